@@ -10,7 +10,9 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedList;
@@ -21,6 +23,7 @@ import kvs.core.KVSException;
 import kvs.core.fileformat.FileFormatBase;
 import kvs.core.matrix.Vector3f;
 import kvs.core.matrix.Vector3i;
+import kvs.core.util.AnyValueArray;
 import kvs.core.util.Utility;
 import kvs.core.util.Version;
 
@@ -89,6 +92,10 @@ public class AVSField extends FileFormatBase{
     protected List<String>          m_labels;          ///< label
     protected ByteBuffer            m_values;          ///< field value array (shared array)
     protected ByteBuffer            m_coords;          ///< coordinate value array (shared array)
+    protected ByteOrder             m_byte_order;      ///< byte order of the data section
+    protected boolean               m_memory_mapped;   ///< map the data section instead of reading it [true/false]
+    protected IntBuffer             m_widened_values;  ///< unsigned byte values widened to int (created on demand)
+    protected long                  m_data_offset;     ///< byte offset of the data section in the file
 
     public AVSField()
     {
@@ -101,6 +108,21 @@ public class AVSField extends FileFormatBase{
         this.read( filename );
     }
 
+    /**
+     * ファイルを読み込みます。memory_mappedがtrueの場合、データ部はヒープに読み込まず
+     * 読み込み専用でメモリマップされます。
+     *
+     * @param filename ファイル
+     * @param memory_mapped データ部をメモリマップするならtrue
+     * @throws KVSException 読み込みに失敗した場合
+     */
+    public AVSField( final File filename, final boolean memory_mapped ) throws KVSException
+    {
+        this.initialize();
+        this.setMemoryMapped( memory_mapped );
+        this.read( filename );
+    }
+
     public void initialize()
     {
         m_bits              = 0;
@@ -115,12 +137,17 @@ public class AVSField extends FileFormatBase{
         m_field             = FieldType.Uniform;
         m_type              = DataType.UnknownDataType;
         m_labels            = new ArrayList<String>();
+        m_byte_order        = ByteOrder.BIG_ENDIAN;
+        m_memory_mapped     = false;
+        m_widened_values    = null;
+        m_data_offset       = 0;
     }
 
     public void clear()
     {
         m_values = null;
         m_coords = null;
+        m_widened_values = null;
     }
 
     public int bits()
@@ -193,30 +220,78 @@ public class AVSField extends FileFormatBase{
         return( m_labels );
     }
 
+    public boolean isMemoryMapped()
+    {
+        return( m_memory_mapped );
+    }
+
+    /**
+     * データ部のバイトオーダーを返します。ヒープに読み込む場合とメモリマップする場合で共通です。
+     */
+    public ByteOrder byteOrder()
+    {
+        return( m_byte_order );
+    }
+
+    public long dataOffset()
+    {
+        return( m_data_offset );
+    }
+
     public Buffer values()
     {
         switch( m_type )
         {
         //case Byte:      return m_values;
         case Byte:
-            //符号なしに変換する
-            int limit = m_values.limit();
-            IntBuffer buf = IntBuffer.allocate( limit );
-            m_values.clear();
-            while(m_values.position() < limit){
-                byte b = m_values.get();
-                buf.put( b & 0xFF );
+            //符号なしに変換する(変換結果は保持して使い回す)
+            if( m_widened_values == null )
+            {
+                final int limit = m_values.limit();
+                IntBuffer buf = IntBuffer.allocate( limit );
+                for( int i = 0; i < limit; i++ ){
+                    buf.put( i, m_values.get( i ) & 0xFF );
+                }
+                m_widened_values = buf;
             }
-            buf.clear();
-            return buf;
-        case Short:     return m_values.asShortBuffer();
-        case Integer:   return m_values.asIntBuffer();
-        case Float:     return m_values.asFloatBuffer();
-        case Double:    return m_values.asDoubleBuffer();
+            return m_widened_values;
+        case Short:     return this.typed_values().asShortBuffer();
+        case Integer:   return this.typed_values().asIntBuffer();
+        case Float:     return this.typed_values().asFloatBuffer();
+        case Double:    return this.typed_values().asDoubleBuffer();
         default:        return null;
         }
     }
 
+    /**
+     * データ部をコピーせずに型付きの配列として返します。
+     * byte型はbits/signedの指定に従い符号付き/符号なしとして扱われます。
+     *
+     * @return 値の配列、データ型が不明な場合はnull
+     */
+    public AnyValueArray valueArray()
+    {
+        switch( m_type )
+        {
+        case Byte:      return AnyValueArray.valueOf( this.typed_values(), m_is_signed );
+        case Short:     return AnyValueArray.valueOf( this.values(), m_is_signed );
+        case Integer:
+        case Float:
+        case Double:    return AnyValueArray.valueOf( this.values() );
+        default:        return null;
+        }
+    }
+
+    private ByteBuffer typed_values()
+    {
+        // Views are created from position 0 regardless of the state of m_values.
+        // NOTE: duplicate() does not inherit the byte order.
+        ByteBuffer values = m_values.duplicate();
+        values.clear();
+        values.order( this.byteOrder() );
+        return values;
+    }
+
     public Buffer coords()
     {
         return( m_coords );
@@ -286,6 +361,27 @@ public class AVSField extends FileFormatBase{
     public void setValues( final ByteBuffer values )
     {
         m_values = values;
+        m_widened_values = null;
+    }
+
+    /**
+     * データ部をメモリマップするかどうかを設定します。read()の前に設定してください。
+     *
+     * @param memory_mapped データ部をメモリマップするならtrue
+     */
+    public void setMemoryMapped( final boolean memory_mapped )
+    {
+        m_memory_mapped = memory_mapped;
+    }
+
+    /**
+     * データ部のバイトオーダーを設定します(既定は従来どおりビッグエンディアン)。read()の前に設定してください。
+     *
+     * @param byte_order バイトオーダー
+     */
+    public void setByteOrder( final ByteOrder byte_order )
+    {
+        m_byte_order = byte_order;
     }
 
     public void setCoords( final ByteBuffer coords )
@@ -304,15 +400,14 @@ public class AVSField extends FileFormatBase{
 
             RandomAccessFile raf = new RandomAccessFile( filename, "r");
             //FileChannel channel = raf.getChannel();
-            if( !read_header( raf ) ){
-                raf.close();
-            }
-            if( !read_node( raf ) ){
+            try{
+                if( read_header( raf ) ){
+                    read_node( raf );
+                }
+            } finally {
                 raf.close();
             }
 
-            raf.close();
-
             long e = System.currentTimeMillis();
             System.out.println( (e-s)+"ms" );
 
@@ -323,6 +418,32 @@ public class AVSField extends FileFormatBase{
 
     }
 
+    /**
+     * ヘッダのみを読み込みます。データ部は読み込まず、その位置をdataOffset()で返します。
+     *
+     * @param filename ファイル
+     * @throws KVSException 読み込みに失敗した場合
+     */
+    public void readHeader( File filename ) throws KVSException {
+        m_filename = filename;
+
+        try{
+            RandomAccessFile raf = new RandomAccessFile( filename, "r");
+            try{
+                if( !read_header( raf ) ){
+                    throw new KVSException("header read failured");
+                }
+                skip_header( raf );
+                m_data_offset = raf.getFilePointer();
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new KVSException("file read failured");
+        }
+    }
+
     private boolean read_header( RandomAccessFile raf )
     {
 
@@ -502,27 +623,49 @@ public class AVSField extends FileFormatBase{
     }
 
 
-    private boolean read_node( RandomAccessFile raf )
+    private boolean read_node( RandomAccessFile raf ) throws KVSException
     {
         try {
             skip_header( raf );
 
-            int nelems = m_dim.getX() * m_dim.getY() * m_dim.getZ() * m_veclen;
+            final long nelems = (long)m_dim.getX() * m_dim.getY() * m_dim.getZ() * m_veclen;
+            long byte_size = 0;
             switch( m_type )
             {
-            case Byte:    m_values = ByteBuffer.allocateDirect( nelems );      break;
-            case Short:   m_values = ByteBuffer.allocateDirect( 2 * nelems );  break;
-            case Integer: m_values = ByteBuffer.allocateDirect( 4 * nelems );  break;
-            case Float:   m_values = ByteBuffer.allocateDirect( 4 * nelems );  break;
-            case Double:  m_values = ByteBuffer.allocateDirect( 8 * nelems );  break;
+            case Byte:    byte_size = nelems;      break;
+            case Short:   byte_size = 2 * nelems;  break;
+            case Integer: byte_size = 4 * nelems;  break;
+            case Float:   byte_size = 4 * nelems;  break;
+            case Double:  byte_size = 8 * nelems;  break;
             default: break;
             }
+            if( byte_size > java.lang.Integer.MAX_VALUE )
+            {
+                throw new KVSException( "The data section is too large (" + byte_size + " bytes)." );
+            }
             //fread( m_values.pointer(), 1, m_values.byteSize(), ifs );
 
             long s = System.currentTimeMillis();
-            //raf.read( m_values.array() );
-            raf.getChannel().read( m_values );
-
+            m_widened_values = null;
+            m_data_offset = raf.getFilePointer();
+            if( m_memory_mapped )
+            {
+                // Only the mapping is created here; pages are faulted in on access.
+                FileChannel channel = raf.getChannel();
+                m_values = channel.map( FileChannel.MapMode.READ_ONLY, raf.getFilePointer(), byte_size );
+            }
+            else
+            {
+                m_values = ByteBuffer.allocateDirect( (int)byte_size );
+                //raf.read( m_values.array() );
+                FileChannel channel = raf.getChannel();
+                while( m_values.hasRemaining() )
+                {
+                    if( channel.read( m_values ) < 0 ) break;
+                }
+                m_values.clear();
+            }
+            m_values.order( this.byteOrder() );
 
             long e = System.currentTimeMillis();
             System.out.println( "read node " + (e-s)+"ms" );
@@ -689,7 +832,22 @@ public class AVSField extends FileFormatBase{
         bos.write( '\f' );
         bos.write( '\f' );
 
-        bos.write(m_values.array());
+        if( m_values.hasArray() )
+        {
+            bos.write( m_values.array(), m_values.arrayOffset(), m_values.limit() );
+        }
+        else
+        {
+            // Direct or memory mapped buffer.
+            ByteBuffer values = this.typed_values();
+            byte[] chunk = new byte[8192];
+            while( values.hasRemaining() )
+            {
+                final int length = java.lang.Math.min( chunk.length, values.remaining() );
+                values.get( chunk, 0, length );
+                bos.write( chunk, 0, length );
+            }
+        }
 
     }
 
@@ -161,6 +161,8 @@ public class KVSMLObjectPolygon extends FileFormatBase {
             PolygonObjectParser parser =new PolygonObjectParser();
             parser.parse( document );
 
+            TagParser.setCurrentFile( filename );
+
             m_polygon_type = parser.polygonType();
             m_color_type   = parser.colorType();
             m_normal_type  = parser.normalType();
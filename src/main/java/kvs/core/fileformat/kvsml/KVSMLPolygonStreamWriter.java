@@ -0,0 +1,291 @@
+package kvs.core.fileformat.kvsml;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import kvs.core.KVSException;
+import kvs.core.visualization.mapper.TriangleSink;
+import kvs.core.visualization.object.PolygonObject.NormalType;
+
+/**
+ * KVSMLPolygonStreamWriterクラスは三角形ポリゴンを外部バイナリ形式のKVSMLファイルへ逐次書き出すクラスです。
+ * 座標と法線ベクトルはチャンク(一定数の三角形)ごとにデータファイルへ追記し、
+ * 頂点数と三角形数は最後にKVSMLファイルへ書き込みます。頂点は共有されず順に接続されるため、
+ * 接続情報(&lt;Connection&gt;)は書き出しません。
+ * 使用するメモリはチャンクの大きさで決まり、出力全体を保持しません。
+ * データファイルはKVSと同じくリトルエンディアンで、KVSMLObjectPolygonで読み込めます。
+ * 出力が中止された場合(abort())は、書きかけのデータファイルを削除します。
+ */
+public class KVSMLPolygonStreamWriter implements TriangleSink {
+
+    public static final int DefaultChunkSize = 65536; ///< number of the triangles per chunk
+
+    private final File    m_filename;       ///< KVSML filename
+    private final int     m_chunk_size;     ///< number of the triangles per chunk
+    private NormalType    m_normal_type;    ///< normal type
+    private Color         m_color;          ///< polygon color
+    private File          m_coord_file;     ///< data file of the coordinates
+    private File          m_normal_file;    ///< data file of the normals
+    private FileChannel   m_coord_channel;  ///< channel to the coordinate file
+    private FileChannel   m_normal_channel; ///< channel to the normal file
+    private ByteBuffer    m_coord_buffer;   ///< chunk of the coordinates
+    private ByteBuffer    m_normal_buffer;  ///< chunk of the normals
+    private int           m_nvertices;      ///< number of the written vertices
+    private int           m_ntriangles;     ///< number of the written triangles
+    private boolean       m_header_written; ///< true if the KVSML file has been (partially) written
+
+    public KVSMLPolygonStreamWriter( final File filename )
+    {
+        this( filename, DefaultChunkSize );
+    }
+
+    public KVSMLPolygonStreamWriter( final File filename, final int chunk_size )
+    {
+        if ( chunk_size < 1 )
+        {
+            throw new IllegalArgumentException( "Chunk size must be positive." );
+        }
+
+        m_filename   = filename;
+        m_chunk_size = chunk_size;
+    }
+
+    public File filename()
+    {
+        return( m_filename );
+    }
+
+    public int nvertices()
+    {
+        return( m_nvertices );
+    }
+
+    public int ntriangles()
+    {
+        return( m_ntriangles );
+    }
+
+    /**
+     * データファイルを作成します。
+     */
+    public void begin( final NormalType normal_type, final Color color ) throws KVSException
+    {
+        m_normal_type = normal_type;
+        m_color       = color;
+        m_nvertices   = 0;
+        m_ntriangles  = 0;
+        m_header_written = false;
+
+        m_coord_file   = TagParser.getDataFilename( m_filename, "coord" );
+        m_normal_file  = TagParser.getDataFilename( m_filename, "normal" );
+
+        final int nnormals = ( normal_type == NormalType.VertexNormal ) ? 3 : 1;
+        m_coord_buffer   = ByteBuffer.allocate( m_chunk_size * 9 * 4 ).order( ByteOrder.LITTLE_ENDIAN );
+        m_normal_buffer  = ByteBuffer.allocate( m_chunk_size * nnormals * 3 * 4 ).order( ByteOrder.LITTLE_ENDIAN );
+
+        try {
+            m_coord_channel   = new FileOutputStream( m_coord_file ).getChannel();
+            m_normal_channel  = new FileOutputStream( m_normal_file ).getChannel();
+        } catch (IOException e) {
+            e.printStackTrace();
+            this.close_channels();
+            throw new KVSException( "Cannot open the data files of '" + m_filename.getName() + "'." );
+        }
+    }
+
+    /**
+     * 三角形をチャンクに追加し、チャンクが一杯になるとデータファイルに書き出します。
+     */
+    public void append( final float[] coords, final float[] normals, final int ntriangles ) throws KVSException
+    {
+        final int nnormals = ( m_normal_type == NormalType.VertexNormal ) ? 9 : 3;
+        for ( int t = 0; t < ntriangles; t++ )
+        {
+            if ( !m_coord_buffer.hasRemaining() ) this.flush();
+
+            for ( int i = 9 * t; i < 9 * t + 9; i++ ) m_coord_buffer.putFloat( coords[i] );
+            for ( int i = nnormals * t; i < nnormals * t + nnormals; i++ ) m_normal_buffer.putFloat( normals[i] );
+        }
+        m_nvertices  += 3 * ntriangles;
+        m_ntriangles += ntriangles;
+    }
+
+    /**
+     * 残りのチャンクを書き出してデータファイルを閉じ、頂点数と三角形数を含むKVSMLファイルを書き込みます。
+     */
+    public void end() throws KVSException
+    {
+        try {
+            this.flush();
+        } finally {
+            this.close_channels();
+            m_coord_buffer   = null;
+            m_normal_buffer  = null;
+        }
+
+        m_header_written = true;
+        this.write_header();
+    }
+
+    /**
+     * データファイルを閉じ、書きかけのデータファイルとKVSMLファイルを削除します。
+     *
+     * @throws KVSException 削除できないファイルがある場合(削除できるファイルはすべて削除されます)
+     */
+    public void abort() throws KVSException
+    {
+        this.close_channels();
+        m_coord_buffer   = null;
+        m_normal_buffer  = null;
+
+        String undeleted = "";
+        final File[] files = { m_coord_file, m_normal_file, m_header_written ? m_filename : null };
+        for ( File file : files )
+        {
+            if ( file != null && file.exists() && !file.delete() )
+            {
+                undeleted += ( undeleted.length() > 0 ? ", '" : "'" ) + file.getName() + "'";
+            }
+        }
+
+        if ( undeleted.length() > 0 )
+        {
+            throw new KVSException( "Cannot delete the partial output " + undeleted + "." );
+        }
+    }
+
+    private void flush() throws KVSException
+    {
+        try {
+            write_buffer( m_coord_channel, m_coord_buffer );
+            write_buffer( m_normal_channel, m_normal_buffer );
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new KVSException( "Cannot write the data files of '" + m_filename.getName() + "'." );
+        }
+    }
+
+    private static void write_buffer( final FileChannel channel, final ByteBuffer buffer ) throws IOException
+    {
+        buffer.flip();
+        while ( buffer.hasRemaining() ) channel.write( buffer );
+        buffer.clear();
+    }
+
+    private void close_channels()
+    {
+        final FileChannel[] channels = { m_coord_channel, m_normal_channel };
+        for ( FileChannel channel : channels )
+        {
+            if ( channel == null ) continue;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        m_coord_channel   = null;
+        m_normal_channel  = null;
+    }
+
+    private void write_header() throws KVSException
+    {
+        try{
+            DocumentBuilderFactory dbfactory = DocumentBuilderFactory.newInstance();
+            DocumentBuilder builder = dbfactory.newDocumentBuilder();
+
+            Document doc = builder.newDocument();
+            doc.setXmlVersion( "1.0" );
+
+            // <KVSML>
+            Element kvs_node = doc.createElement( "KVSML" );
+            doc.appendChild( kvs_node );
+
+            // <Object type="PolygonObject">
+            Element obj_elem = doc.createElement( "Object" );
+            obj_elem.setAttribute( "type", "PolygonObject" );
+            Node obj_node = kvs_node.appendChild( obj_elem );
+
+            // <PolygonObject>
+            final boolean vertex_normal = ( m_normal_type == NormalType.VertexNormal );
+            Element polygon_elem = doc.createElement( "PolygonObject" );
+            polygon_elem.setAttribute( "polygon_type", "triangle" );
+            polygon_elem.setAttribute( "color_type", "polygon" );
+            polygon_elem.setAttribute( "normal_type", vertex_normal ? "vertex" : "polygon" );
+            Node polygon_node = obj_node.appendChild( polygon_elem );
+
+            // <Vertex nvertices="xxx">
+            Element vertex_elem = doc.createElement( "Vertex" );
+            vertex_elem.setAttribute( "nvertices", Integer.toString( m_nvertices ) );
+            Node vertex_node = polygon_node.appendChild( vertex_elem );
+
+            // <Coord>
+            append_data_array( doc, vertex_node, "Coord", "float", m_coord_file );
+
+            // <Color>
+            Element color_elem = doc.createElement( "Color" );
+            Element color_value = doc.createElement( "DataValue" );
+            color_value.appendChild( doc.createTextNode(
+                    m_color.getRed() + " " + m_color.getGreen() + " " + m_color.getBlue() ) );
+            color_elem.appendChild( color_value );
+            vertex_node.appendChild( color_elem );
+
+            // <Polygon npolygons="xxx">
+            Element polygon_connect_elem = doc.createElement( "Polygon" );
+            polygon_connect_elem.setAttribute( "npolygons", Integer.toString( m_ntriangles ) );
+            Node polygon_connect_node = polygon_node.appendChild( polygon_connect_elem );
+
+            // <Normal> is read from <Vertex> or <Polygon> by the normal type.
+            // <Connection> is omitted since the vertices are connected in order.
+            append_data_array( doc, vertex_normal ? vertex_node : polygon_connect_node, "Normal", "float", m_normal_file );
+
+            TransformerFactory tfactory = TransformerFactory.newInstance();
+            Transformer transformer = tfactory.newTransformer();
+            transformer.transform( new DOMSource( doc ), new StreamResult( m_filename ) );
+        } catch (ParserConfigurationException e) {
+            e.printStackTrace();
+            throw new KVSException("create document failured");
+        } catch (TransformerException e) {
+            e.printStackTrace();
+            throw new KVSException("file write failured");
+        }
+    }
+
+    /**
+     * <tag><DataArray type="xxx" format="binary" file="xxx"/></tag>を追加します。
+     * ファイル名はKVSMLファイルからの相対パスです。
+     */
+    private static void append_data_array(
+            final Document doc,
+            final Node     parent_node,
+            final String   tag,
+            final String   type,
+            final File     file )
+    {
+        Element elem = doc.createElement( tag );
+        Element data_elem = doc.createElement( "DataArray" );
+        data_elem.setAttribute( "type", type );
+        data_elem.setAttribute( "format", "binary" );
+        data_elem.setAttribute( "file", file.getName() );
+        elem.appendChild( data_elem );
+        parent_node.appendChild( elem );
+    }
+}
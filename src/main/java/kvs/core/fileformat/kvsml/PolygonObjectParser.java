@@ -177,6 +177,14 @@ public class PolygonObjectParser {
             nindices = m_npolygons * 4;
         }
 
+        // Without <Connection>, the vertices are connected in order (no shared vertices).
+        if( TagParser.findChildNode( m_polygon_node, "Connection" ) == null && nindices == m_nvertices )
+        {
+            IntBuffer connections = IntBuffer.allocate( nindices );
+            for( int i = 0; i < nindices; i++ ) connections.put( i, i );
+            return connections;
+        }
+
         ConnectionTagParser parser = new ConnectionTagParser( nindices );
         return parser.parse( m_polygon_node );
     }
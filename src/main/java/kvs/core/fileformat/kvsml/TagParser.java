@@ -12,6 +12,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.DoubleBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
@@ -250,7 +251,8 @@ public final class TagParser {
 
             byte[] byteData = new byte[ data_array.limit() * type.size() ];
             in.read( byteData );
-            ByteBuffer buf = ByteBuffer.wrap( byteData );
+            // The data files are written in little endian as in KVS.
+            ByteBuffer buf = ByteBuffer.wrap( byteData ).order( ByteOrder.LITTLE_ENDIAN );
             final int nloops = data_array.limit();
 
             switch( type ){
@@ -264,31 +266,31 @@ public final class TagParser {
             case Short:
                 for( int i = 0; i < nloops; i++ )
                 {
-                    data_array.put( i, (byte)buf.getShort( i ) );
+                    data_array.put( i, (byte)buf.getShort( 2 * i ) );
                 }
                 break;
             case Int:
                 for( int i = 0; i < nloops; i++ )
                 {
-                    data_array.put( i, (byte)buf.getInt( i ) );
+                    data_array.put( i, (byte)buf.getInt( 4 * i ) );
                 }
                 break;
             case Long:
                 for( int i = 0; i < nloops; i++ )
                 {
-                    data_array.put( i, (byte)buf.getLong( i ) );
+                    data_array.put( i, (byte)buf.getLong( 8 * i ) );
                 }
                 break;
             case Float:
                 for( int i = 0; i < nloops; i++ )
                 {
-                    data_array.put( i, (byte)buf.getFloat( i ) );
+                    data_array.put( i, (byte)buf.getFloat( 4 * i ) );
                 }
                 break;
             case Double:
                 for( int i = 0; i < nloops; i++ )
                 {
-                    data_array.put( i, (byte)buf.getDouble( i ) );
+                    data_array.put( i, (byte)buf.getDouble( 8 * i ) );
                 }
                 break;
             }
@@ -336,7 +338,8 @@ public final class TagParser {
 
             byte[] byteData = new byte[ data_array.limit() * type.size() ];
             in.read( byteData );
-            ByteBuffer buf = ByteBuffer.wrap( byteData );
+            // The data files are written in little endian as in KVS.
+            ByteBuffer buf = ByteBuffer.wrap( byteData ).order( ByteOrder.LITTLE_ENDIAN );
             final int nloops = data_array.limit();
 
             switch( type ){
@@ -350,31 +353,31 @@ public final class TagParser {
             case Short:
                 for( int i = 0; i < nloops; i++ )
                 {
-                    data_array.put( i, (int)buf.getShort( i ) );
+                    data_array.put( i, (int)buf.getShort( 2 * i ) );
                 }
                 break;
             case Int:
                 for( int i = 0; i < nloops; i++ )
                 {
-                    data_array.put( i, buf.getInt( i ) );
+                    data_array.put( i, buf.getInt( 4 * i ) );
                 }
                 break;
             case Long:
                 for( int i = 0; i < nloops; i++ )
                 {
-                    data_array.put( i, (int)buf.getLong( i ) );
+                    data_array.put( i, (int)buf.getLong( 8 * i ) );
                 }
                 break;
             case Float:
                 for( int i = 0; i < nloops; i++ )
                 {
-                    data_array.put( i, (int)buf.getFloat( i ) );
+                    data_array.put( i, (int)buf.getFloat( 4 * i ) );
                 }
                 break;
             case Double:
                 for( int i = 0; i < nloops; i++ )
                 {
-                    data_array.put( i, (int)buf.getDouble( i ) );
+                    data_array.put( i, (int)buf.getDouble( 8 * i ) );
                 }
                 break;
             }
@@ -421,7 +424,8 @@ public final class TagParser {
 
             byte[] byteData = new byte[ data_array.limit() * type.size() ];
             in.read( byteData );
-            ByteBuffer buf = ByteBuffer.wrap( byteData );
+            // The data files are written in little endian as in KVS.
+            ByteBuffer buf = ByteBuffer.wrap( byteData ).order( ByteOrder.LITTLE_ENDIAN );
             final int nloops = data_array.limit();
 
             switch( type ){
@@ -435,31 +439,31 @@ public final class TagParser {
             case Short:
                 for( int i = 0; i < nloops; i++ )
                 {
-                    data_array.put( i, (float)buf.getShort( i ) );
+                    data_array.put( i, (float)buf.getShort( 2 * i ) );
                 }
                 break;
             case Int:
                 for( int i = 0; i < nloops; i++ )
                 {
-                    data_array.put( i, (float)buf.getInt( i ) );
+                    data_array.put( i, (float)buf.getInt( 4 * i ) );
                 }
                 break;
             case Long:
                 for( int i = 0; i < nloops; i++ )
                 {
-                    data_array.put( i, (float)buf.getLong( i ) );
+                    data_array.put( i, (float)buf.getLong( 8 * i ) );
                 }
                 break;
             case Float:
                 for( int i = 0; i < nloops; i++ )
                 {
-                    data_array.put( i, buf.getFloat( i ) );
+                    data_array.put( i, buf.getFloat( 4 * i ) );
                 }
                 break;
             case Double:
                 for( int i = 0; i < nloops; i++ )
                 {
-                    data_array.put( i, (float)buf.getDouble( i ) );
+                    data_array.put( i, (float)buf.getDouble( 8 * i ) );
                 }
                 break;
             }
@@ -0,0 +1,467 @@
+package kvs.core.util;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * AnyValueArrayクラスは要素の型と符号を保持したままスカラー値の配列を扱うクラスです。
+ * 値はNIOバッファに格納されたまま参照され、doubleなどへの変換コピーは行いません。
+ * 型ごとのループが必要な場合は{@link #valueType()}で一度だけ分岐し、
+ * 各サブクラスのget()を使用してください。
+ */
+public abstract class AnyValueArray {
+
+    public enum ValueType
+    {
+        Byte( 1, true ),            ///< signed 8-bit integer
+        UnsignedByte( 1, false ),   ///< unsigned 8-bit integer
+        Short( 2, true ),           ///< signed 16-bit integer
+        UnsignedShort( 2, false ),  ///< unsigned 16-bit integer
+        Int( 4, true ),             ///< signed 32-bit integer
+        Long( 8, true ),            ///< signed 64-bit integer
+        Char( 2, false ),           ///< unsigned 16-bit character
+        Float( 4, true ),           ///< 32-bit floating point
+        Double( 8, true );          ///< 64-bit floating point
+
+        private final int     m_byte_size;
+        private final boolean m_is_signed;
+
+        private ValueType( int byte_size, boolean is_signed ){
+            m_byte_size = byte_size;
+            m_is_signed = is_signed;
+        }
+
+        public int byteSize(){
+            return m_byte_size;
+        }
+
+        public boolean isSigned(){
+            return m_is_signed;
+        }
+
+        public boolean isInteger(){
+            return this != Float && this != Double;
+        }
+    };
+
+    private final ValueType m_type; ///< value type
+
+    protected AnyValueArray( final ValueType type ){
+        m_type = type;
+    }
+
+    /**
+     * バッファを符号付きの値として包みます。
+     *
+     * @param buffer 値のバッファ
+     * @return 配列、未対応のバッファの場合はnull
+     */
+    public static AnyValueArray valueOf( final Buffer buffer ){
+        return valueOf( buffer, true );
+    }
+
+    /**
+     * バッファを指定された符号で包みます。符号はByteBufferとShortBufferにのみ適用されます。
+     *
+     * @param buffer 値のバッファ
+     * @param signed 符号付きならtrue
+     * @return 配列、未対応のバッファの場合はnull
+     */
+    public static AnyValueArray valueOf( final Buffer buffer, final boolean signed ){
+        if( buffer instanceof ByteBuffer ){
+            return new ByteArray( (ByteBuffer)buffer, signed );
+        } else if( buffer instanceof ShortBuffer ){
+            return new ShortArray( (ShortBuffer)buffer, signed );
+        } else if( buffer instanceof IntBuffer ){
+            return new IntArray( (IntBuffer)buffer );
+        } else if( buffer instanceof LongBuffer ){
+            return new LongArray( (LongBuffer)buffer );
+        } else if( buffer instanceof CharBuffer ){
+            return new CharArray( (CharBuffer)buffer );
+        } else if( buffer instanceof FloatBuffer ){
+            return new FloatArray( (FloatBuffer)buffer );
+        } else if( buffer instanceof DoubleBuffer ){
+            return new DoubleArray( (DoubleBuffer)buffer );
+        }
+        return null;
+    }
+
+    public final ValueType valueType(){
+        return m_type;
+    }
+
+    public final boolean isSigned(){
+        return m_type.isSigned();
+    }
+
+    public int size(){
+        return this.buffer().limit();
+    }
+
+    /**
+     * 値の数をlong型で返します。値の数がint型で表せない配列(BrickedVolumeObjectの値)では
+     * size()の代わりにこちらを使用してください。
+     */
+    public long longSize(){
+        return this.size();
+    }
+
+    public final long byteSize(){
+        return this.longSize() * m_type.byteSize();
+    }
+
+    /**
+     * 値が単一のバッファに格納されているかどうかを返します。
+     */
+    public boolean hasBuffer(){
+        return true;
+    }
+
+    /**
+     * 値を格納しているバッファを返します。
+     *
+     * @return バッファ
+     * @throws UnsupportedOperationException 値が単一のバッファに格納されていない場合(hasBuffer()がfalse)
+     */
+    public abstract Buffer buffer();
+
+    public abstract int getInt( final int index );
+
+    public abstract float getFloat( final int index );
+
+    public abstract double getDouble( final int index );
+
+    /**
+     * long型の番号で値を返します。単一のバッファに格納された配列ではint型の番号の場合と同じです。
+     */
+    public int getInt( final long index ){
+        return this.getInt( to_int( index ) );
+    }
+
+    public float getFloat( final long index ){
+        return this.getFloat( to_int( index ) );
+    }
+
+    public double getDouble( final long index ){
+        return this.getDouble( to_int( index ) );
+    }
+
+    /**
+     * index番目からlength個の値をdoubleに変換してvaluesのoffset番目から格納します。
+     * 各サブクラスは要素の型のままのループで実装しているため、値ごとにgetDouble()を呼ぶより高速です。
+     *
+     * @param index 先頭の値の番号
+     * @param values 値を格納する配列
+     * @param offset 格納する位置
+     * @param length 値の数
+     */
+    public void getDoubles( final int index, final double[] values, final int offset, final int length ){
+        for( int i = 0; i < length; i++ ){
+            values[offset + i] = this.getDouble( index + i );
+        }
+    }
+
+    public void getDoubles( final long index, final double[] values, final int offset, final int length ){
+        this.getDoubles( to_int( index ), values, offset, length );
+    }
+
+    private static int to_int( final long index ){
+        if( index > Integer.MAX_VALUE ){
+            throw new IndexOutOfBoundsException( "Index " + index + " exceeds the int range of a buffer." );
+        }
+        return (int)index;
+    }
+
+    public static final class ByteArray extends AnyValueArray {
+
+        private final ByteBuffer m_data;
+        private final boolean    m_signed;
+
+        public ByteArray( final ByteBuffer data, final boolean signed ){
+            super( signed ? ValueType.Byte : ValueType.UnsignedByte );
+            m_data   = data;
+            m_signed = signed;
+        }
+
+        @Override
+        public ByteBuffer buffer(){
+            return m_data;
+        }
+
+        public int get( final int index ){
+            final byte b = m_data.get( index );
+            return m_signed ? b : b & 0xFF;
+        }
+
+        @Override
+        public int getInt( final int index ){
+            return this.get( index );
+        }
+
+        @Override
+        public float getFloat( final int index ){
+            return this.get( index );
+        }
+
+        @Override
+        public double getDouble( final int index ){
+            return this.get( index );
+        }
+
+        @Override
+        public void getDoubles( final int index, final double[] values, final int offset, final int length ){
+            if( m_signed ){
+                for( int i = 0; i < length; i++ ) values[offset + i] = m_data.get( index + i );
+            } else {
+                for( int i = 0; i < length; i++ ) values[offset + i] = m_data.get( index + i ) & 0xFF;
+            }
+        }
+    }
+
+    public static final class ShortArray extends AnyValueArray {
+
+        private final ShortBuffer m_data;
+        private final boolean     m_signed;
+
+        public ShortArray( final ShortBuffer data, final boolean signed ){
+            super( signed ? ValueType.Short : ValueType.UnsignedShort );
+            m_data   = data;
+            m_signed = signed;
+        }
+
+        @Override
+        public ShortBuffer buffer(){
+            return m_data;
+        }
+
+        public int get( final int index ){
+            final short s = m_data.get( index );
+            return m_signed ? s : s & 0xFFFF;
+        }
+
+        @Override
+        public int getInt( final int index ){
+            return this.get( index );
+        }
+
+        @Override
+        public float getFloat( final int index ){
+            return this.get( index );
+        }
+
+        @Override
+        public double getDouble( final int index ){
+            return this.get( index );
+        }
+
+        @Override
+        public void getDoubles( final int index, final double[] values, final int offset, final int length ){
+            if( m_signed ){
+                for( int i = 0; i < length; i++ ) values[offset + i] = m_data.get( index + i );
+            } else {
+                for( int i = 0; i < length; i++ ) values[offset + i] = m_data.get( index + i ) & 0xFFFF;
+            }
+        }
+    }
+
+    public static final class IntArray extends AnyValueArray {
+
+        private final IntBuffer m_data;
+
+        public IntArray( final IntBuffer data ){
+            super( ValueType.Int );
+            m_data = data;
+        }
+
+        @Override
+        public IntBuffer buffer(){
+            return m_data;
+        }
+
+        public int get( final int index ){
+            return m_data.get( index );
+        }
+
+        @Override
+        public int getInt( final int index ){
+            return m_data.get( index );
+        }
+
+        @Override
+        public float getFloat( final int index ){
+            return m_data.get( index );
+        }
+
+        @Override
+        public double getDouble( final int index ){
+            return m_data.get( index );
+        }
+
+        @Override
+        public void getDoubles( final int index, final double[] values, final int offset, final int length ){
+            for( int i = 0; i < length; i++ ) values[offset + i] = m_data.get( index + i );
+        }
+    }
+
+    public static final class LongArray extends AnyValueArray {
+
+        private final LongBuffer m_data;
+
+        public LongArray( final LongBuffer data ){
+            super( ValueType.Long );
+            m_data = data;
+        }
+
+        @Override
+        public LongBuffer buffer(){
+            return m_data;
+        }
+
+        public long get( final int index ){
+            return m_data.get( index );
+        }
+
+        @Override
+        public int getInt( final int index ){
+            return (int)m_data.get( index );
+        }
+
+        @Override
+        public float getFloat( final int index ){
+            return m_data.get( index );
+        }
+
+        @Override
+        public double getDouble( final int index ){
+            return m_data.get( index );
+        }
+
+        @Override
+        public void getDoubles( final int index, final double[] values, final int offset, final int length ){
+            for( int i = 0; i < length; i++ ) values[offset + i] = m_data.get( index + i );
+        }
+    }
+
+    public static final class CharArray extends AnyValueArray {
+
+        private final CharBuffer m_data;
+
+        public CharArray( final CharBuffer data ){
+            super( ValueType.Char );
+            m_data = data;
+        }
+
+        @Override
+        public CharBuffer buffer(){
+            return m_data;
+        }
+
+        public int get( final int index ){
+            return m_data.get( index );
+        }
+
+        @Override
+        public int getInt( final int index ){
+            return m_data.get( index );
+        }
+
+        @Override
+        public float getFloat( final int index ){
+            return m_data.get( index );
+        }
+
+        @Override
+        public double getDouble( final int index ){
+            return m_data.get( index );
+        }
+
+        @Override
+        public void getDoubles( final int index, final double[] values, final int offset, final int length ){
+            for( int i = 0; i < length; i++ ) values[offset + i] = m_data.get( index + i );
+        }
+    }
+
+    public static final class FloatArray extends AnyValueArray {
+
+        private final FloatBuffer m_data;
+
+        public FloatArray( final FloatBuffer data ){
+            super( ValueType.Float );
+            m_data = data;
+        }
+
+        @Override
+        public FloatBuffer buffer(){
+            return m_data;
+        }
+
+        public float get( final int index ){
+            return m_data.get( index );
+        }
+
+        @Override
+        public int getInt( final int index ){
+            return (int)m_data.get( index );
+        }
+
+        @Override
+        public float getFloat( final int index ){
+            return m_data.get( index );
+        }
+
+        @Override
+        public double getDouble( final int index ){
+            return m_data.get( index );
+        }
+
+        @Override
+        public void getDoubles( final int index, final double[] values, final int offset, final int length ){
+            for( int i = 0; i < length; i++ ) values[offset + i] = m_data.get( index + i );
+        }
+    }
+
+    public static final class DoubleArray extends AnyValueArray {
+
+        private final DoubleBuffer m_data;
+
+        public DoubleArray( final DoubleBuffer data ){
+            super( ValueType.Double );
+            m_data = data;
+        }
+
+        @Override
+        public DoubleBuffer buffer(){
+            return m_data;
+        }
+
+        public double get( final int index ){
+            return m_data.get( index );
+        }
+
+        @Override
+        public int getInt( final int index ){
+            return (int)m_data.get( index );
+        }
+
+        @Override
+        public float getFloat( final int index ){
+            return (float)m_data.get( index );
+        }
+
+        @Override
+        public double getDouble( final int index ){
+            return m_data.get( index );
+        }
+
+        @Override
+        public void getDoubles( final int index, final double[] values, final int offset, final int length ){
+            for( int i = 0; i < length; i++ ) values[offset + i] = m_data.get( index + i );
+        }
+    }
+}
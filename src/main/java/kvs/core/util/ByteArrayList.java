@@ -0,0 +1,99 @@
+package kvs.core.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * ByteArrayListクラスはbyte型の値を格納する可変長配列です。
+ * List&lt;Byte&gt;と異なり値をボクシングせずに保持します。
+ */
+public final class ByteArrayList {
+
+    private static final int DefaultCapacity = 16;
+
+    private byte[]  m_data; ///< values (the first m_size elements are valid)
+    private int     m_size; ///< number of values
+
+    public ByteArrayList(){
+        this( DefaultCapacity );
+    }
+
+    public ByteArrayList( final int capacity ){
+        m_data = new byte[ java.lang.Math.max( capacity, 1 ) ];
+        m_size = 0;
+    }
+
+    public int size(){
+        return m_size;
+    }
+
+    public boolean isEmpty(){
+        return m_size == 0;
+    }
+
+    public byte get( final int index ){
+        return m_data[index];
+    }
+
+    public void set( final int index, final byte value ){
+        m_data[index] = value;
+    }
+
+    public void add( final byte value ){
+        if( m_size == m_data.length ) this.grow( m_size + 1 );
+        m_data[m_size++] = value;
+    }
+
+    public void add( final byte x, final byte y, final byte z ){
+        if( m_size + 3 > m_data.length ) this.grow( m_size + 3 );
+        m_data[m_size++] = x;
+        m_data[m_size++] = y;
+        m_data[m_size++] = z;
+    }
+
+    public void addAll( final ByteArrayList other ){
+        if( m_size + other.m_size > m_data.length ) this.grow( m_size + other.m_size );
+        System.arraycopy( other.m_data, 0, m_data, m_size, other.m_size );
+        m_size += other.m_size;
+    }
+
+    public void clear(){
+        m_size = 0;
+    }
+
+    /**
+     * 値をコピーした配列を返します。
+     */
+    public byte[] toArray(){
+        return Arrays.copyOf( m_data, m_size );
+    }
+
+    /**
+     * 値を配列dstのoffset番目からコピーします。
+     */
+    public void copyTo( final byte[] dst, final int offset ){
+        System.arraycopy( m_data, 0, dst, offset, m_size );
+    }
+
+    /**
+     * 内部の配列をコピーせずに包んだバッファを返します(limitはsize())。
+     * バッファは内部の配列を共有するため、このリストへのadd()以降の変更はバッファに反映されない場合があります。
+     * 値をすべて追加した後にジオメトリオブジェクトへ渡すために使用します。
+     */
+    public ByteBuffer buffer(){
+        return ByteBuffer.wrap( m_data, 0, m_size );
+    }
+
+    /**
+     * 内部の配列の大きさを要素数に合わせます。
+     */
+    public void trimToSize(){
+        if( m_size < m_data.length ) m_data = Arrays.copyOf( m_data, java.lang.Math.max( m_size, 1 ) );
+    }
+
+    private void grow( final int min_capacity ){
+        int capacity = m_data.length + ( m_data.length >> 1 ) + 1;
+        if( capacity < min_capacity ) capacity = min_capacity;
+        m_data = Arrays.copyOf( m_data, capacity );
+    }
+}
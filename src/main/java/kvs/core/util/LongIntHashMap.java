@@ -0,0 +1,110 @@
+package kvs.core.util;
+
+import java.util.Arrays;
+
+/**
+ * LongIntHashMapクラスはlong型のキーとint型の値を格納するハッシュ表です。
+ * Map&lt;Long,Integer&gt;と異なりキーと値をボクシングせずに配列(オープンアドレス法)で保持します。
+ * 値の削除はできません。
+ */
+public final class LongIntHashMap {
+
+    private static final int DefaultCapacity = 16;
+
+    public static final int NotFound = -1; ///< value returned for the absent keys
+
+    private long[]    m_keys;   ///< keys
+    private int[]     m_values; ///< values
+    private boolean[] m_used;   ///< true if the slot has a key
+    private int       m_size;   ///< number of keys
+    private int       m_mask;   ///< number of slots - 1
+
+    public LongIntHashMap(){
+        this( DefaultCapacity );
+    }
+
+    /**
+     * @param capacity 再配置せずに格納できるキーの数
+     */
+    public LongIntHashMap( final int capacity ){
+        int nslots = 2;
+        while( nslots < 2 * capacity ) nslots <<= 1;
+        this.allocate( nslots );
+    }
+
+    public int size(){
+        return m_size;
+    }
+
+    public boolean isEmpty(){
+        return m_size == 0;
+    }
+
+    /**
+     * キーに対応する値を返します。キーがない場合はNotFoundを返します。
+     */
+    public int get( final long key ){
+        int slot = slot_of( key );
+        while( m_used[slot] ){
+            if( m_keys[slot] == key ) return m_values[slot];
+            slot = ( slot + 1 ) & m_mask;
+        }
+        return NotFound;
+    }
+
+    /**
+     * キーがない場合にのみ値を格納します。
+     *
+     * @return 既に格納されていた値、キーがなかった場合はNotFound
+     */
+    public int putIfAbsent( final long key, final int value ){
+        int slot = slot_of( key );
+        while( m_used[slot] ){
+            if( m_keys[slot] == key ) return m_values[slot];
+            slot = ( slot + 1 ) & m_mask;
+        }
+
+        m_used[slot]   = true;
+        m_keys[slot]   = key;
+        m_values[slot] = value;
+        if( ++m_size > ( m_mask + 1 ) / 2 ) this.rehash();
+
+        return NotFound;
+    }
+
+    public void clear(){
+        Arrays.fill( m_used, false );
+        m_size = 0;
+    }
+
+    private int slot_of( final long key ){
+        // Mix the bits so that the keys made of two indices spread over the slots.
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)( h ^ ( h >>> 32 ) ) & m_mask;
+    }
+
+    private void allocate( final int nslots ){
+        m_keys   = new long[nslots];
+        m_values = new int[nslots];
+        m_used   = new boolean[nslots];
+        m_mask   = nslots - 1;
+        m_size   = 0;
+    }
+
+    private void rehash(){
+        final long[]    keys   = m_keys;
+        final int[]     values = m_values;
+        final boolean[] used   = m_used;
+
+        this.allocate( 2 * keys.length );
+        for( int i = 0; i < keys.length; i++ ){
+            if( !used[i] ) continue;
+            int slot = slot_of( keys[i] );
+            while( m_used[slot] ) slot = ( slot + 1 ) & m_mask;
+            m_used[slot]   = true;
+            m_keys[slot]   = keys[i];
+            m_values[slot] = values[i];
+            m_size++;
+        }
+    }
+}
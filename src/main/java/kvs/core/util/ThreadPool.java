@@ -0,0 +1,130 @@
+package kvs.core.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * ThreadPoolクラスはボリューム処理などの並列計算で共有するスレッドプールです。
+ * スレッドはデーモンスレッドとして必要になった時に生成されます。
+ * プールのスレッドから呼び出された場合、タスクは呼び出したスレッドで順に実行されるため、
+ * 入れ子の並列処理でデッドロックすることはありません。
+ */
+public final class ThreadPool {
+
+    private static final int NumberOfThreads = Runtime.getRuntime().availableProcessors();
+
+    private static ExecutorService s_executor = null;
+
+    private ThreadPool(){
+    }
+
+    public static int nthreads(){
+        return NumberOfThreads;
+    }
+
+    public static synchronized ExecutorService executor(){
+        if( s_executor == null ){
+            s_executor = Executors.newFixedThreadPool( NumberOfThreads, new ThreadFactory(){
+                private int m_count = 0;
+
+                public synchronized Thread newThread( final Runnable r ){
+                    final Thread thread = new WorkerThread( r, "kvs-worker-" + ( m_count++ ) );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+        }
+        return s_executor;
+    }
+
+    /**
+     * 現在のスレッドがプールのスレッドかどうかを返します。
+     */
+    public static boolean isWorkerThread(){
+        return Thread.currentThread() instanceof WorkerThread;
+    }
+
+    /**
+     * タスクを並列に実行し、すべての結果をタスクの順に返します。
+     *
+     * @param tasks タスク
+     * @return 各タスクの結果
+     * @throws RuntimeException タスクが例外を投げた場合
+     */
+    public static <T> List<T> invokeAll( final List<? extends Callable<T>> tasks ){
+        final List<T> results = new ArrayList<T>( tasks.size() );
+
+        if( tasks.size() < 2 || NumberOfThreads < 2 || isWorkerThread() ){
+            try{
+                for( Callable<T> task : tasks ){
+                    results.add( task.call() );
+                }
+            } catch( RuntimeException e ){
+                throw e;
+            } catch( Exception e ){
+                throw new RuntimeException( e );
+            }
+            return results;
+        }
+
+        try{
+            final List<Future<T>> futures = executor().invokeAll( tasks );
+            for( Future<T> future : futures ){
+                results.add( future.get() );
+            }
+        } catch( InterruptedException e ){
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( e );
+        } catch( ExecutionException e ){
+            final Throwable cause = e.getCause();
+            if( cause instanceof RuntimeException ){
+                throw (RuntimeException)cause;
+            } else if( cause instanceof Error ){
+                throw (Error)cause;
+            }
+            throw new RuntimeException( cause );
+        }
+        return results;
+    }
+
+    /**
+     * 範囲[0,size)をほぼ等しい大きさの区間に分割します。
+     *
+     * @param size 範囲の大きさ
+     * @param nchunks 区間の数の上限
+     * @param min_chunk_size 区間の大きさの下限
+     * @return 区間の境界(先頭は0、末尾はsize)
+     */
+    public static int[] split( final int size, final int nchunks, final int min_chunk_size ){
+        int n = java.lang.Math.max( 1, java.lang.Math.min( nchunks, size / java.lang.Math.max( 1, min_chunk_size ) ) );
+        final int[] bounds = new int[n + 1];
+        for( int i = 0; i <= n; i++ ){
+            bounds[i] = (int)( (long)size * i / n );
+        }
+        return bounds;
+    }
+
+    /**
+     * 範囲[0,size)をほぼ等しい大きさの区間に分割します。sizeがint型で表せない場合に使用します。
+     */
+    public static long[] split( final long size, final int nchunks, final int min_chunk_size ){
+        int n = (int)java.lang.Math.max( 1, java.lang.Math.min( nchunks, size / java.lang.Math.max( 1, min_chunk_size ) ) );
+        final long[] bounds = new long[n + 1];
+        for( int i = 0; i <= n; i++ ){
+            bounds[i] = size * i / n;
+        }
+        return bounds;
+    }
+
+    private static final class WorkerThread extends Thread {
+        public WorkerThread( final Runnable r, final String name ){
+            super( r, name );
+        }
+    }
+}
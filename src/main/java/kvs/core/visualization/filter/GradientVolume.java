@@ -0,0 +1,325 @@
+package kvs.core.visualization.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import kvs.core.matrix.Vector3i;
+import kvs.core.util.AnyValueArray;
+import kvs.core.util.ThreadPool;
+import kvs.core.visualization.object.StructuredVolumeObject;
+
+/**
+ * GradientVolumeクラスは構造格子ボリュームの各ノードの勾配を事前に計算して保持するクラスです。
+ * 勾配はTrilinearInterpolator.gradient()と同じく中心差分(ボリュームの外側の値は0)で、
+ * 点の勾配はノードの勾配を三線形補間して求めるため、サンプルごとの差分の計算と境界の分岐が不要になります。
+ * ボリュームごとにStructuredVolumeObject.gradientVolume()で1つ作成され、値が変わると作成し直されます。
+ * <p>
+ * メモリを抑えるため、勾配を成分ごとに8ビットに量子化する形式と、方向のみを16ビットの
+ * 八面体表現で保持する形式を選択できます。陰影付けには勾配の方向のみを使用します。
+ * 量子化では最大成分に対して小さい勾配が0ベクトルに丸められるため、その場合は最大成分を1段階として
+ * 方向を保持します(大きさは保持されません)。値が一定の領域などで補間した勾配が0ベクトルになる場合は、
+ * Float形式と同じくシェーダが環境光のみで陰影付けします。
+ */
+public final class GradientVolume {
+
+    /**
+     * 勾配の格納形式です。
+     */
+    public enum Encoding
+    {
+        Float,      ///< 3 x 32-bit float (12 bytes per node)
+        Quantized,  ///< 3 x 8-bit integer scaled by the max component, nonzero gradients kept nonzero (3 bytes per node)
+        Octahedral; ///< 2 x 8-bit octahedral direction without the magnitude (2 bytes per node)
+    }
+
+    private static final byte ZeroDirection = (byte)-128; ///< first octahedral code of the zero gradient
+
+    private final StructuredVolumeObject m_volume;   ///< volume of the gradients
+    private final Encoding               m_encoding; ///< encoding of the gradients
+    private final int                    m_nnodes;   ///< number of nodes
+    private float[] m_floats = null; ///< gradients of the Float encoding
+    private byte[]  m_bytes  = null; ///< gradients of the Quantized and Octahedral encodings
+    private float   m_scale  = 0.0f; ///< gradient per quantization step of the Quantized encoding
+
+    /**
+     * 各ノードの勾配を並列に計算します。
+     *
+     * @param volume スカラーの構造格子ボリューム
+     * @param encoding 勾配の格納形式
+     */
+    public GradientVolume( final StructuredVolumeObject volume, final Encoding encoding )
+    {
+        m_volume   = volume;
+        m_encoding = encoding;
+        m_nnodes   = volume.nnodes();
+
+        switch ( encoding )
+        {
+        case Float:      m_floats = new float[ 3 * m_nnodes ]; break;
+        case Quantized:  m_bytes  = new byte[ 3 * m_nnodes ]; break;
+        case Octahedral: m_bytes  = new byte[ 2 * m_nnodes ]; break;
+        }
+
+        if ( encoding == Encoding.Quantized )
+        {
+            m_scale = this.calculate( false ) / 127.0f;
+        }
+        this.calculate( true );
+    }
+
+    public StructuredVolumeObject volume()
+    {
+        return( m_volume );
+    }
+
+    public Encoding encoding()
+    {
+        return( m_encoding );
+    }
+
+    /**
+     * 勾配の格納に使用しているメモリの大きさ[byte]を返します。
+     */
+    public long byteSize()
+    {
+        return( m_floats != null ? 4L * m_floats.length : (long)m_bytes.length );
+    }
+
+    /**
+     * ノードの番号と重みから勾配を三線形補間し、gradientのoffset番目から格納します。
+     * TrilinearInterpolator.gradient(GradientVolume,float[],int)から呼び出されます。
+     */
+    void interpolate( final long[] index, final float[] weight, final float[] gradient, final int offset )
+    {
+        float x = 0.0f;
+        float y = 0.0f;
+        float z = 0.0f;
+
+        switch ( m_encoding )
+        {
+        case Float:
+            for ( int c = 0; c < 8; c++ )
+            {
+                final int n = 3 * check_node( index[c] );
+                x += m_floats[ n     ] * weight[c];
+                y += m_floats[ n + 1 ] * weight[c];
+                z += m_floats[ n + 2 ] * weight[c];
+            }
+            break;
+        case Quantized:
+            for ( int c = 0; c < 8; c++ )
+            {
+                final int n = 3 * check_node( index[c] );
+                x += m_bytes[ n     ] * weight[c];
+                y += m_bytes[ n + 1 ] * weight[c];
+                z += m_bytes[ n + 2 ] * weight[c];
+            }
+            x *= m_scale;
+            y *= m_scale;
+            z *= m_scale;
+            break;
+        case Octahedral:
+            for ( int c = 0; c < 8; c++ )
+            {
+                final int n = 2 * check_node( index[c] );
+                final byte code_u = m_bytes[ n ];
+                if ( code_u == ZeroDirection ) continue;
+
+                // Unfold the octahedron and normalize the direction.
+                final float u = code_u / 127.0f;
+                final float v = m_bytes[ n + 1 ] / 127.0f;
+                float dz = 1.0f - java.lang.Math.abs( u ) - java.lang.Math.abs( v );
+                float dx = u;
+                float dy = v;
+                if ( dz < 0.0f )
+                {
+                    dx = ( 1.0f - java.lang.Math.abs( v ) ) * sign_not_zero( u );
+                    dy = ( 1.0f - java.lang.Math.abs( u ) ) * sign_not_zero( v );
+                }
+                final float w = weight[c] / (float)java.lang.Math.sqrt( dx * dx + dy * dy + dz * dz );
+                x += dx * w;
+                y += dy * w;
+                z += dz * w;
+            }
+            break;
+        }
+
+        gradient[ offset     ] = x;
+        gradient[ offset + 1 ] = y;
+        gradient[ offset + 2 ] = z;
+    }
+
+    /**
+     * スライスごとに勾配を並列に計算します。
+     *
+     * @param store trueの場合は勾配を格納し、falseの場合は成分の絶対値の最大値のみを求めます
+     * @return 成分の絶対値の最大値(storeがfalseの場合)
+     */
+    private float calculate( final boolean store )
+    {
+        final int nz = m_volume.resolution().getZ();
+        final int[] bounds = ThreadPool.split( nz, ThreadPool.nthreads() * 4, 1 );
+        final float[] max_components = new float[ bounds.length ];
+
+        final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for ( int i = 0; i + 1 < bounds.length; i++ )
+        {
+            final int task  = i;
+            final int begin = bounds[i];
+            final int end   = bounds[i + 1];
+            tasks.add( new Callable<Object>()
+            {
+                public Object call()
+                {
+                    max_components[ task ] = calculate_slices( begin, end, store );
+                    return( null );
+                }
+            } );
+        }
+        ThreadPool.invokeAll( tasks );
+
+        float max_component = 0.0f;
+        for ( float m : max_components ) max_component = java.lang.Math.max( max_component, m );
+        return( max_component );
+    }
+
+    private float calculate_slices( final int begin, final int end, final boolean store )
+    {
+        final AnyValueArray values = m_volume.valueArray();
+        final Vector3i resolution = m_volume.resolution();
+        final int nx = resolution.getX();
+        final int ny = resolution.getY();
+        final int nz = resolution.getZ();
+        final int line_size  = m_volume.nnodesPerLine();
+        final int slice_size = m_volume.nnodesPerSlice();
+
+        // Lines of the node and its neighbours in y and z (zero outside the volume).
+        final double[] line    = new double[nx];
+        final double[] line_y0 = new double[nx];
+        final double[] line_y1 = new double[nx];
+        final double[] line_z0 = new double[nx];
+        final double[] line_z1 = new double[nx];
+
+        float max_component = 0.0f;
+        for ( int k = begin; k < end; k++ )
+        {
+            for ( int j = 0; j < ny; j++ )
+            {
+                final int index = j * line_size + k * slice_size;
+                values.getDoubles( index, line, 0, nx );
+                load_line( values, index - line_size,  j > 0,      line_y0 );
+                load_line( values, index + line_size,  j < ny - 1, line_y1 );
+                load_line( values, index - slice_size, k > 0,      line_z0 );
+                load_line( values, index + slice_size, k < nz - 1, line_z1 );
+
+                for ( int i = 0; i < nx; i++ )
+                {
+                    // Same differences as TrilinearInterpolator.gradient().
+                    final float x0 = ( i > 0 )      ? (float)line[ i - 1 ] : 0.0f;
+                    final float x1 = ( i < nx - 1 ) ? (float)line[ i + 1 ] : 0.0f;
+                    final float gx = x1 - x0;
+                    final float gy = (float)line_y1[i] - (float)line_y0[i];
+                    final float gz = (float)line_z1[i] - (float)line_z0[i];
+
+                    if ( store )
+                    {
+                        this.store( index + i, gx, gy, gz );
+                    }
+                    else
+                    {
+                        max_component = java.lang.Math.max( max_component, java.lang.Math.max(
+                                java.lang.Math.abs( gx ),
+                                java.lang.Math.max( java.lang.Math.abs( gy ), java.lang.Math.abs( gz ) ) ) );
+                    }
+                }
+            }
+        }
+
+        return( max_component );
+    }
+
+    private static void load_line( final AnyValueArray values, final int index, final boolean inside, final double[] line )
+    {
+        if ( inside )
+        {
+            values.getDoubles( index, line, 0, line.length );
+        }
+        else
+        {
+            Arrays.fill( line, 0.0 );
+        }
+    }
+
+    private void store( final int node, final float gx, final float gy, final float gz )
+    {
+        switch ( m_encoding )
+        {
+        case Float:
+            m_floats[ 3 * node     ] = gx;
+            m_floats[ 3 * node + 1 ] = gy;
+            m_floats[ 3 * node + 2 ] = gz;
+            break;
+        case Quantized:
+            {
+                byte qx = quantize( gx, m_scale );
+                byte qy = quantize( gy, m_scale );
+                byte qz = quantize( gz, m_scale );
+                if ( qx == 0 && qy == 0 && qz == 0 )
+                {
+                    // Keep the direction of a small gradient by scaling its max component to one step.
+                    final float max = java.lang.Math.max( java.lang.Math.abs( gx ),
+                            java.lang.Math.max( java.lang.Math.abs( gy ), java.lang.Math.abs( gz ) ) );
+                    qx = quantize( gx, max );
+                    qy = quantize( gy, max );
+                    qz = quantize( gz, max );
+                }
+                m_bytes[ 3 * node     ] = qx;
+                m_bytes[ 3 * node + 1 ] = qy;
+                m_bytes[ 3 * node + 2 ] = qz;
+            }
+            break;
+        case Octahedral:
+            {
+                final float sum = java.lang.Math.abs( gx ) + java.lang.Math.abs( gy ) + java.lang.Math.abs( gz );
+                if ( sum == 0.0f )
+                {
+                    m_bytes[ 2 * node     ] = ZeroDirection;
+                    m_bytes[ 2 * node + 1 ] = 0;
+                    break;
+                }
+
+                // Project onto the octahedron and fold the lower half.
+                float u = gx / sum;
+                float v = gy / sum;
+                if ( gz < 0.0f )
+                {
+                    final float fu = ( 1.0f - java.lang.Math.abs( v ) ) * sign_not_zero( u );
+                    final float fv = ( 1.0f - java.lang.Math.abs( u ) ) * sign_not_zero( v );
+                    u = fu;
+                    v = fv;
+                }
+                m_bytes[ 2 * node     ] = (byte)java.lang.Math.round( u * 127.0f );
+                m_bytes[ 2 * node + 1 ] = (byte)java.lang.Math.round( v * 127.0f );
+            }
+            break;
+        }
+    }
+
+    private static float sign_not_zero( final float value )
+    {
+        return( value >= 0.0f ? 1.0f : -1.0f );
+    }
+
+    private static byte quantize( final float value, final float scale )
+    {
+        return( scale > 0.0f ? (byte)java.lang.Math.round( value / scale ) : 0 );
+    }
+
+    private int check_node( final long node )
+    {
+        // Same as TrilinearInterpolator: the nodes beyond the values are replaced by the first node.
+        return( node < m_nnodes ? (int)node : 0 );
+    }
+}
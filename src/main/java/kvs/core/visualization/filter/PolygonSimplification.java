@@ -0,0 +1,1073 @@
+package kvs.core.visualization.filter;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import kvs.core.KVSException;
+import kvs.core.visualization.object.ObjectBase;
+import kvs.core.visualization.object.PolygonObject;
+import kvs.core.visualization.object.PolygonObject.ColorType;
+import kvs.core.visualization.object.PolygonObject.NormalType;
+import kvs.core.visualization.object.PolygonObject.PolygonType;
+
+/**
+ * PolygonSimplificationクラスは頂点を共有する三角形ポリゴン(接続情報を持つPolygonObject)を
+ * 二次誤差(Quadric Error Metrics)に基づく辺の縮約で簡略化するクラスです。
+ * 縮約する辺は誤差の小さい順にヒープから選択し、三角形数が目標値以下になるか、
+ * 誤差(平面までの距離の二乗の面積重み付き和)が上限を超えるまで縮約を続けます。
+ * 頂点ごとの色、法線ベクトル、不透明度は縮約した辺上で線形補間し、
+ * 三角形ごとの値は残った三角形の値を引き継ぎます。
+ * 三角形数が段階的に少なくなる複数のレベルを一度の簡略化で生成でき、
+ * PolygonRendererに設定すると操作中は粗いレベルで描画されます。
+ * <p>
+ * 頂点の周囲の三角形は入力の頂点ごとの範囲を1つの配列に並べた形(CSR)で保持し、縮約では統合した頂点の範囲を
+ * 連結リストでつなぎます。ヒープの古い候補は、前回整理した時点の有効な候補数の2倍を超えると整理します。
+ */
+public class PolygonSimplification extends FilterBase {
+
+    private static final double BoundaryWeight = 100.0; ///< weight of the quadrics keeping the boundary edges
+
+    private int                      m_target_ntriangles; ///< target number of the triangles (0: no target)
+    private double                   m_max_error;         ///< max quadric error of a collapse
+    private int                      m_nlevels;           ///< number of the simplified levels
+    private int                      m_interactive_level; ///< level used during interaction
+    private ArrayList<PolygonObject> m_levels = new ArrayList<PolygonObject>(); ///< levels (level 0 is the input)
+
+    // Working mesh, released after exec.
+    private float[]   m_coords;           ///< vertex coordinates
+    private int[]     m_connections;      ///< vertex indices of each triangle
+    private boolean[] m_dead_triangles;   ///< true if the triangle has been removed
+    private boolean[] m_dead_vertices;    ///< true if the vertex has been merged into another
+    private int[]     m_versions;         ///< incremented when the vertex is changed
+    private double[]  m_quadrics;         ///< quadric (10 coefficients) of each vertex
+    private int[]     m_first_of;         ///< first entry of each input vertex in m_triangles_of
+    private int[]     m_triangles_of;     ///< triangles around the input vertices (may include removed ones)
+    private int[]     m_ntriangles_of;    ///< number of the entries of each input vertex in m_triangles_of
+    private int[]     m_next_merged;      ///< next input vertex merged into the same vertex (-1: none)
+    private int[]     m_last_merged;      ///< last input vertex merged into each vertex
+    private float[]   m_vertex_colors;    ///< per-vertex colors, or null
+    private float[]   m_vertex_normals;   ///< per-vertex normals, or null
+    private float[]   m_vertex_opacities; ///< per-vertex opacities, or null
+    private int[]     m_marks;            ///< stamps used to mark the neighboring vertices
+    private int       m_mark;             ///< current stamp
+    private int       m_ntriangles;       ///< number of the remaining triangles
+    private EdgeHeap  m_heap;             ///< candidate edges ordered by the error
+    private int       m_nheap_live;       ///< number of the valid candidates at the last compaction
+    private double[]  m_quadric  = new double[10]; ///< work area for the quadric of an edge
+    private double[]  m_position = new double[4];  ///< work area for the position of an edge
+
+    public PolygonSimplification()
+    {
+        this( 0, Double.MAX_VALUE );
+    }
+
+    public PolygonSimplification( final int target_ntriangles )
+    {
+        this( target_ntriangles, Double.MAX_VALUE );
+    }
+
+    public PolygonSimplification( final int target_ntriangles, final double max_error )
+    {
+        m_target_ntriangles = target_ntriangles;
+        m_max_error         = max_error;
+        m_nlevels           = 1;
+        m_interactive_level = 1;
+    }
+
+    public PolygonSimplification( final PolygonObject object, final int target_ntriangles ) throws KVSException
+    {
+        this( target_ntriangles );
+        this.exec( object );
+    }
+
+    /**
+     * ポリゴンを簡略化します。
+     *
+     * @param object 接続情報を持つ三角形ポリゴン(PolygonObject)
+     * @return 最も粗いレベルのポリゴン
+     * @throws KVSException 接続情報を持つ三角形ポリゴンでない場合
+     */
+    @Override
+    public ObjectBase exec( final ObjectBase object ) throws KVSException
+    {
+        if ( !( object instanceof PolygonObject ) )
+        {
+            throw new KVSException( "Input object is not a polygon object." );
+        }
+
+        final PolygonObject polygon = (PolygonObject)object;
+        if ( polygon.polygonType() != PolygonType.Triangle && polygon.polygonType() != PolygonType.Tri )
+        {
+            throw new KVSException( "Only a triangle polygon is supported." );
+        }
+        if ( polygon.connections() == null || polygon.connections().limit() == 0 )
+        {
+            throw new KVSException( "Polygon object without connections is not supported." );
+        }
+
+        m_levels = new ArrayList<PolygonObject>();
+        m_levels.add( polygon );
+
+        this.setup( polygon );
+
+        // Level L has about N (T/N)^(L/nlevels) triangles, so the last level reaches the target T.
+        final int ntriangles = m_ntriangles;
+        final int target     = java.lang.Math.max( m_target_ntriangles, 1 );
+        final int nlevels    = java.lang.Math.max( m_nlevels, 1 );
+        for ( int level = 1; level <= nlevels; level++ )
+        {
+            final double ratio = java.lang.Math.pow( (double)target / ntriangles, (double)level / nlevels );
+            final int level_target = ( level == nlevels ) ?
+                    m_target_ntriangles : (int)java.lang.Math.round( ntriangles * ratio );
+
+            final boolean reached = this.simplify( level_target );
+            m_levels.add( this.create_object( polygon ) );
+
+            // The error bound has been reached, so the coarser levels would be the same.
+            if ( !reached ) break;
+        }
+
+        this.release();
+
+        return( m_levels.get( m_levels.size() - 1 ) );
+    }
+
+    /**
+     * 目標とする三角形数を設定します。0の場合は誤差の上限のみで縮約を止めます。
+     */
+    public void setTargetTriangles( final int target_ntriangles )
+    {
+        m_target_ntriangles = target_ntriangles;
+    }
+
+    /**
+     * 縮約できる辺の誤差の上限を設定します。誤差は座標の二乗と面積の積の単位です。
+     */
+    public void setMaxError( final double max_error )
+    {
+        m_max_error = max_error;
+    }
+
+    /**
+     * 入力されたポリゴンを除くレベル数を設定します。
+     */
+    public void setNumberOfLevels( final int nlevels )
+    {
+        m_nlevels = nlevels;
+    }
+
+    /**
+     * 操作中に描画するレベルを設定します。
+     */
+    public void setInteractiveLevel( final int level )
+    {
+        m_interactive_level = level;
+    }
+
+    public int targetTriangles()
+    {
+        return( m_target_ntriangles );
+    }
+
+    public double maxError()
+    {
+        return( m_max_error );
+    }
+
+    public int interactiveLevel()
+    {
+        return( m_interactive_level );
+    }
+
+    public int nlevels()
+    {
+        return( m_levels.size() );
+    }
+
+    public PolygonObject level( final int level )
+    {
+        return( m_levels.get( level ) );
+    }
+
+    /**
+     * 描画するレベルを選択します。静止時はレベル0、操作中は操作中のレベルです。
+     *
+     * @param interactive 操作中であればtrue
+     * @return レベル
+     */
+    public int selectLevel( final boolean interactive )
+    {
+        final int level = interactive ? m_interactive_level : 0;
+        return( java.lang.Math.max( 0, java.lang.Math.min( level, m_levels.size() - 1 ) ) );
+    }
+
+    private void setup( final PolygonObject polygon )
+    {
+        final int nvertices  = polygon.nvertices();
+        final int ntriangles = polygon.connections().limit() / 3;
+
+        m_coords      = to_array( polygon.coords(), 3 * nvertices );
+        m_connections = to_array( polygon.connections(), 3 * ntriangles );
+        m_ntriangles  = ntriangles;
+
+        m_dead_triangles = new boolean[ntriangles];
+        m_dead_vertices  = new boolean[nvertices];
+        m_versions       = new int[nvertices];
+        m_marks          = new int[nvertices];
+        m_mark           = 0;
+
+        m_vertex_colors    = null;
+        m_vertex_normals   = null;
+        m_vertex_opacities = null;
+        if ( polygon.colorType() == ColorType.VertexColor && polygon.ncolors() == nvertices )
+        {
+            m_vertex_colors = to_floats( polygon.colors(), 3 * nvertices );
+        }
+        if ( polygon.normalType() == NormalType.VertexNormal && polygon.nnormals() == nvertices )
+        {
+            m_vertex_normals = to_array( polygon.normals(), 3 * nvertices );
+        }
+        if ( polygon.colorType() == ColorType.VertexColor && polygon.nopacities() == nvertices )
+        {
+            m_vertex_opacities = to_floats( polygon.opacities(), nvertices );
+        }
+
+        // Triangles around each vertex, in the range of the vertex in one array.
+        m_first_of = new int[ nvertices + 1 ];
+        for ( int i = 0; i < 3 * ntriangles; i++ ) m_first_of[ m_connections[i] + 1 ]++;
+        for ( int v = 0; v < nvertices; v++ ) m_first_of[ v + 1 ] += m_first_of[v];
+        m_triangles_of  = new int[ 3 * ntriangles ];
+        m_ntriangles_of = new int[nvertices];
+        for ( int t = 0; t < ntriangles; t++ )
+        {
+            for ( int k = 0; k < 3; k++ )
+            {
+                final int v = m_connections[ 3 * t + k ];
+                m_triangles_of[ m_first_of[v] + m_ntriangles_of[v]++ ] = t;
+            }
+        }
+        m_next_merged = new int[nvertices];
+        m_last_merged = new int[nvertices];
+        Arrays.fill( m_next_merged, -1 );
+        for ( int v = 0; v < nvertices; v++ ) m_last_merged[v] = v;
+
+        // Quadrics of the planes of the triangles and of the planes through the boundary edges.
+        m_quadrics = new double[ 10 * nvertices ];
+        final double[] plane = new double[4];
+        for ( int t = 0; t < ntriangles; t++ )
+        {
+            final int v0 = m_connections[ 3 * t     ];
+            final int v1 = m_connections[ 3 * t + 1 ];
+            final int v2 = m_connections[ 3 * t + 2 ];
+
+            final double area = this.triangle_plane( v0, v1, v2, plane );
+            if ( area <= 0.0 ) continue;
+
+            this.add_quadric( v0, plane, area );
+            this.add_quadric( v1, plane, area );
+            this.add_quadric( v2, plane, area );
+
+            for ( int k = 0; k < 3; k++ )
+            {
+                final int a = m_connections[ 3 * t + k ];
+                final int b = m_connections[ 3 * t + ( k + 1 ) % 3 ];
+                if ( this.count_triangles( a, b ) == 1 )
+                {
+                    final double weight = this.boundary_plane( a, b, plane, plane );
+                    if ( weight > 0.0 )
+                    {
+                        this.add_quadric( a, plane, weight );
+                        this.add_quadric( b, plane, weight );
+                    }
+                }
+            }
+        }
+
+        // Each interior edge appears in two triangles in the opposite directions, so it is pushed once.
+        m_heap = new EdgeHeap( 3 * ntriangles / 2 + 16 );
+        for ( int t = 0; t < ntriangles; t++ )
+        {
+            for ( int k = 0; k < 3; k++ )
+            {
+                final int a = m_connections[ 3 * t + k ];
+                final int b = m_connections[ 3 * t + ( k + 1 ) % 3 ];
+                if ( a != b && ( a < b || this.count_triangles( a, b ) == 1 ) )
+                {
+                    this.push_edge( a, b );
+                }
+            }
+        }
+        m_nheap_live = m_heap.size();
+    }
+
+    private void release()
+    {
+        m_coords           = null;
+        m_connections      = null;
+        m_dead_triangles   = null;
+        m_dead_vertices    = null;
+        m_versions         = null;
+        m_quadrics         = null;
+        m_first_of         = null;
+        m_triangles_of     = null;
+        m_ntriangles_of    = null;
+        m_next_merged      = null;
+        m_last_merged      = null;
+        m_vertex_colors    = null;
+        m_vertex_normals   = null;
+        m_vertex_opacities = null;
+        m_marks            = null;
+        m_heap             = null;
+    }
+
+    /**
+     * 三角形数が目標値以下になるまで辺を縮約します。
+     *
+     * @return 目標値に達した場合はtrue、誤差の上限または縮約できる辺がなくなった場合はfalse
+     */
+    private boolean simplify( final int target )
+    {
+        final double[] position = new double[4];
+
+        while ( m_ntriangles > target )
+        {
+            if ( m_heap.isEmpty() ) return( false );
+            if ( m_heap.minCost() > m_max_error ) return( false );
+
+            final int entry = m_heap.pop();
+            final int u = m_heap.m_u[entry];
+            final int v = m_heap.m_v[entry];
+            if ( m_dead_vertices[u] || m_dead_vertices[v] ) continue;
+            if ( m_versions[u] != m_heap.m_u_version[entry] || m_versions[v] != m_heap.m_v_version[entry] ) continue;
+
+            this.optimal_position( u, v, position );
+            if ( !this.is_collapsible( u, v, position ) ) continue;
+
+            this.collapse( u, v, position );
+
+            // The stale candidates are dropped when the heap has grown twice as large as the valid ones.
+            if ( m_heap.size() > 2 * m_nheap_live + 1024 )
+            {
+                m_nheap_live = m_heap.compact( m_versions, m_dead_vertices );
+            }
+        }
+
+        return( true );
+    }
+
+    private void push_edge( final int u, final int v )
+    {
+        this.optimal_position( u, v, m_position );
+        m_heap.push( m_position[3], u, v, m_versions[u], m_versions[v] );
+    }
+
+    /**
+     * 辺(u,v)を縮約する位置を求めます。
+     *
+     * @param position {x, y, z, 誤差}
+     */
+    private void optimal_position( final int u, final int v, final double[] position )
+    {
+        final double[] q = m_quadric;
+        for ( int i = 0; i < 10; i++ ) q[i] = m_quadrics[ 10 * u + i ] + m_quadrics[ 10 * v + i ];
+
+        final int iu = 3 * u;
+        final int iv = 3 * v;
+        final double ux = m_coords[ iu ], uy = m_coords[ iu + 1 ], uz = m_coords[ iu + 2 ];
+        final double vx = m_coords[ iv ], vy = m_coords[ iv + 1 ], vz = m_coords[ iv + 2 ];
+
+        // Endpoints and midpoint.
+        double best_x = ux, best_y = uy, best_z = uz;
+        double best   = quadric_error( q, ux, uy, uz );
+        double error  = quadric_error( q, vx, vy, vz );
+        if ( error < best ) { best = error; best_x = vx; best_y = vy; best_z = vz; }
+        final double mx = 0.5 * ( ux + vx ), my = 0.5 * ( uy + vy ), mz = 0.5 * ( uz + vz );
+        error = quadric_error( q, mx, my, mz );
+        if ( error < best ) { best = error; best_x = mx; best_y = my; best_z = mz; }
+
+        // Minimizer of the quadric, used unless the system is singular or the point goes far from the edge.
+        final double a00 = q[0], a01 = q[1], a02 = q[2];
+        final double a11 = q[4], a12 = q[5], a22 = q[7];
+        final double c00 = a11 * a22 - a12 * a12;
+        final double c01 = a02 * a12 - a01 * a22;
+        final double c02 = a01 * a12 - a02 * a11;
+        final double det = a00 * c00 + a01 * c01 + a02 * c02;
+        final double scale = java.lang.Math.max( java.lang.Math.abs( a00 ), java.lang.Math.max( java.lang.Math.abs( a11 ), java.lang.Math.abs( a22 ) ) );
+        if ( java.lang.Math.abs( det ) > 1.0e-10 * scale * scale * scale )
+        {
+            final double c11 = a00 * a22 - a02 * a02;
+            final double c12 = a01 * a02 - a00 * a12;
+            final double c22 = a00 * a11 - a01 * a01;
+            final double bx = -q[3], by = -q[6], bz = -q[8];
+            final double x = ( c00 * bx + c01 * by + c02 * bz ) / det;
+            final double y = ( c01 * bx + c11 * by + c12 * bz ) / det;
+            final double z = ( c02 * bx + c12 * by + c22 * bz ) / det;
+
+            final double ex = vx - ux, ey = vy - uy, ez = vz - uz;
+            final double dx = x - mx, dy = y - my, dz = z - mz;
+            if ( dx * dx + dy * dy + dz * dz <= ex * ex + ey * ey + ez * ez )
+            {
+                error = quadric_error( q, x, y, z );
+                if ( error < best ) { best = error; best_x = x; best_y = y; best_z = z; }
+            }
+        }
+
+        position[0] = best_x;
+        position[1] = best_y;
+        position[2] = best_z;
+        position[3] = java.lang.Math.max( best, 0.0 );
+    }
+
+    /**
+     * 辺(u,v)を縮約しても多様体のままで、周囲の三角形が裏返らないかどうかを返します。
+     */
+    private boolean is_collapsible( final int u, final int v, final double[] position )
+    {
+        // Link condition: the common neighbors are exactly the opposite vertices of the shared triangles.
+        m_mark++;
+        int nshared = 0;
+        for ( int x = u; x >= 0; x = m_next_merged[x] )
+        {
+            final int end = m_first_of[x] + m_ntriangles_of[x];
+            for ( int i = m_first_of[x]; i < end; i++ )
+            {
+                final int t = m_triangles_of[i];
+                if ( m_dead_triangles[t] ) continue;
+                boolean shared = false;
+                for ( int k = 0; k < 3; k++ )
+                {
+                    final int w = m_connections[ 3 * t + k ];
+                    m_marks[w] = m_mark;
+                    if ( w == v ) shared = true;
+                }
+                if ( shared ) nshared++;
+            }
+        }
+        if ( nshared == 0 ) return( false );
+
+        final int common_mark = m_mark + 1;
+        int ncommons = 0;
+        for ( int x = v; x >= 0; x = m_next_merged[x] )
+        {
+            final int end = m_first_of[x] + m_ntriangles_of[x];
+            for ( int i = m_first_of[x]; i < end; i++ )
+            {
+                final int t = m_triangles_of[i];
+                if ( m_dead_triangles[t] ) continue;
+                for ( int k = 0; k < 3; k++ )
+                {
+                    final int w = m_connections[ 3 * t + k ];
+                    if ( w != u && w != v && m_marks[w] == m_mark )
+                    {
+                        m_marks[w] = common_mark;
+                        ncommons++;
+                    }
+                }
+            }
+        }
+        m_mark = common_mark;
+        if ( ncommons != nshared ) return( false );
+
+        // An interior edge joining two boundary vertices would pinch the surface.
+        if ( nshared > 1 && this.is_boundary( u ) && this.is_boundary( v ) ) return( false );
+
+        return( !this.flips( u, v, position ) && !this.flips( v, u, position ) );
+    }
+
+    /**
+     * 頂点vをpositionに移動したとき、辺(u,v)を含まないvの周囲の三角形が裏返るかどうかを返します。
+     */
+    private boolean flips( final int v, final int u, final double[] position )
+    {
+        for ( int x = v; x >= 0; x = m_next_merged[x] )
+        {
+            final int end = m_first_of[x] + m_ntriangles_of[x];
+            for ( int i = m_first_of[x]; i < end; i++ )
+            {
+                final int t = m_triangles_of[i];
+                if ( m_dead_triangles[t] ) continue;
+
+                final int index = 3 * t;
+                int k = 0;
+                while ( m_connections[ index + k ] != v ) k++;
+                final int a = m_connections[ index + ( k + 1 ) % 3 ];
+                final int b = m_connections[ index + ( k + 2 ) % 3 ];
+                if ( a == u || b == u ) continue;
+
+                final double ax = m_coords[ 3 * a ], ay = m_coords[ 3 * a + 1 ], az = m_coords[ 3 * a + 2 ];
+                final double e1x = m_coords[ 3 * b ] - ax, e1y = m_coords[ 3 * b + 1 ] - ay, e1z = m_coords[ 3 * b + 2 ] - az;
+                final double e0x = m_coords[ 3 * v ] - ax, e0y = m_coords[ 3 * v + 1 ] - ay, e0z = m_coords[ 3 * v + 2 ] - az;
+                final double p0x = position[0] - ax, p0y = position[1] - ay, p0z = position[2] - az;
+
+                // Normals of (a,b,v) before and after the move.
+                final double nx = e1y * e0z - e1z * e0y, ny = e1z * e0x - e1x * e0z, nz = e1x * e0y - e1y * e0x;
+                final double mx = e1y * p0z - e1z * p0y, my = e1z * p0x - e1x * p0z, mz = e1x * p0y - e1y * p0x;
+                if ( nx * mx + ny * my + nz * mz <= 0.0 ) return( true );
+            }
+        }
+
+        return( false );
+    }
+
+    /**
+     * 辺(u,v)の頂点vを頂点uに統合し、uをpositionに移動します。
+     */
+    private void collapse( final int u, final int v, final double[] position )
+    {
+        // Interpolation parameter of the position projected onto the edge.
+        final int iu = 3 * u;
+        final int iv = 3 * v;
+        final double ex = m_coords[ iv ] - m_coords[ iu ];
+        final double ey = m_coords[ iv + 1 ] - m_coords[ iu + 1 ];
+        final double ez = m_coords[ iv + 2 ] - m_coords[ iu + 2 ];
+        final double length2 = ex * ex + ey * ey + ez * ez;
+        double s = 0.5;
+        if ( length2 > 0.0 )
+        {
+            s = ( ( position[0] - m_coords[ iu ] ) * ex +
+                  ( position[1] - m_coords[ iu + 1 ] ) * ey +
+                  ( position[2] - m_coords[ iu + 2 ] ) * ez ) / length2;
+            s = java.lang.Math.max( 0.0, java.lang.Math.min( s, 1.0 ) );
+        }
+        final float t = (float)s;
+
+        m_coords[ iu     ] = (float)position[0];
+        m_coords[ iu + 1 ] = (float)position[1];
+        m_coords[ iu + 2 ] = (float)position[2];
+        if ( m_vertex_colors    != null ) lerp( m_vertex_colors,    3, u, v, t );
+        if ( m_vertex_normals   != null ) lerp( m_vertex_normals,   3, u, v, t );
+        if ( m_vertex_opacities != null ) lerp( m_vertex_opacities, 1, u, v, t );
+
+        for ( int i = 0; i < 10; i++ ) m_quadrics[ 10 * u + i ] += m_quadrics[ 10 * v + i ];
+
+        // Move the triangles of v to u, and remove the ones sharing the edge.
+        for ( int x = v; x >= 0; x = m_next_merged[x] )
+        {
+            final int end = m_first_of[x] + m_ntriangles_of[x];
+            for ( int i = m_first_of[x]; i < end; i++ )
+            {
+                final int tri = m_triangles_of[i];
+                if ( m_dead_triangles[tri] ) continue;
+
+                final int index = 3 * tri;
+                if ( m_connections[ index ] == u || m_connections[ index + 1 ] == u || m_connections[ index + 2 ] == u )
+                {
+                    m_dead_triangles[tri] = true;
+                    m_ntriangles--;
+                }
+                else
+                {
+                    for ( int k = 0; k < 3; k++ )
+                    {
+                        if ( m_connections[ index + k ] == v ) m_connections[ index + k ] = u;
+                    }
+                }
+            }
+        }
+        m_next_merged[ m_last_merged[u] ] = v;
+        m_last_merged[u] = m_last_merged[v];
+        m_dead_vertices[v] = true;
+        m_versions[u]++;
+
+        // Drop the removed triangles from the ranges merged into u, unlink the empty ranges
+        // (except u itself) and push the edges around u again.
+        m_mark++;
+        m_marks[u] = m_mark;
+        int previous = -1;
+        for ( int x = u; x >= 0; x = m_next_merged[x] )
+        {
+            final int first = m_first_of[x];
+            final int end   = first + m_ntriangles_of[x];
+            int n = first;
+            for ( int i = first; i < end; i++ )
+            {
+                final int tri = m_triangles_of[i];
+                if ( m_dead_triangles[tri] ) continue;
+                m_triangles_of[n++] = tri;
+
+                for ( int k = 0; k < 3; k++ )
+                {
+                    final int w = m_connections[ 3 * tri + k ];
+                    if ( m_marks[w] != m_mark )
+                    {
+                        m_marks[w] = m_mark;
+                        this.push_edge( u, w );
+                    }
+                }
+            }
+            m_ntriangles_of[x] = n - first;
+
+            if ( n == first && x != u )
+            {
+                m_next_merged[previous] = m_next_merged[x];
+                if ( m_last_merged[u] == x ) m_last_merged[u] = previous;
+            }
+            else
+            {
+                previous = x;
+            }
+        }
+    }
+
+    /**
+     * 頂点vが境界の辺の端点かどうかを返します。
+     */
+    private boolean is_boundary( final int v )
+    {
+        for ( int x = v; x >= 0; x = m_next_merged[x] )
+        {
+            final int end = m_first_of[x] + m_ntriangles_of[x];
+            for ( int i = m_first_of[x]; i < end; i++ )
+            {
+                final int t = m_triangles_of[i];
+                if ( m_dead_triangles[t] ) continue;
+                for ( int k = 0; k < 3; k++ )
+                {
+                    final int w = m_connections[ 3 * t + k ];
+                    if ( w != v && this.count_triangles( v, w ) == 1 ) return( true );
+                }
+            }
+        }
+
+        return( false );
+    }
+
+    /**
+     * 辺(a,b)を含む三角形の数を返します。
+     */
+    private int count_triangles( final int a, final int b )
+    {
+        int count = 0;
+        for ( int x = a; x >= 0; x = m_next_merged[x] )
+        {
+            final int end = m_first_of[x] + m_ntriangles_of[x];
+            for ( int i = m_first_of[x]; i < end; i++ )
+            {
+                if ( m_dead_triangles[ m_triangles_of[i] ] ) continue;
+                final int index = 3 * m_triangles_of[i];
+                if ( m_connections[ index ] == b || m_connections[ index + 1 ] == b || m_connections[ index + 2 ] == b ) count++;
+            }
+        }
+
+        return( count );
+    }
+
+    /**
+     * 三角形の平面(単位法線ベクトルn、ax+by+cz+d=0)を求めます。
+     *
+     * @param plane {a, b, c, d}
+     * @return 三角形の面積
+     */
+    private double triangle_plane( final int v0, final int v1, final int v2, final double[] plane )
+    {
+        final double x0 = m_coords[ 3 * v0 ], y0 = m_coords[ 3 * v0 + 1 ], z0 = m_coords[ 3 * v0 + 2 ];
+        final double ux = m_coords[ 3 * v1 ] - x0, uy = m_coords[ 3 * v1 + 1 ] - y0, uz = m_coords[ 3 * v1 + 2 ] - z0;
+        final double wx = m_coords[ 3 * v2 ] - x0, wy = m_coords[ 3 * v2 + 1 ] - y0, wz = m_coords[ 3 * v2 + 2 ] - z0;
+
+        final double nx = uy * wz - uz * wy;
+        final double ny = uz * wx - ux * wz;
+        final double nz = ux * wy - uy * wx;
+        final double length = java.lang.Math.sqrt( nx * nx + ny * ny + nz * nz );
+        if ( length <= 0.0 ) return( 0.0 );
+
+        plane[0] = nx / length;
+        plane[1] = ny / length;
+        plane[2] = nz / length;
+        plane[3] = -( plane[0] * x0 + plane[1] * y0 + plane[2] * z0 );
+
+        return( 0.5 * length );
+    }
+
+    /**
+     * 境界の辺(a,b)を含み、三角形の平面に垂直な平面を求めます。
+     *
+     * @param face 三角形の平面
+     * @param plane 求めた平面(faceと同じ配列でもよい)
+     * @return 平面の重み
+     */
+    private double boundary_plane( final int a, final int b, final double[] face, final double[] plane )
+    {
+        final double ax = m_coords[ 3 * a ], ay = m_coords[ 3 * a + 1 ], az = m_coords[ 3 * a + 2 ];
+        final double ex = m_coords[ 3 * b ] - ax, ey = m_coords[ 3 * b + 1 ] - ay, ez = m_coords[ 3 * b + 2 ] - az;
+
+        final double nx = ey * face[2] - ez * face[1];
+        final double ny = ez * face[0] - ex * face[2];
+        final double nz = ex * face[1] - ey * face[0];
+        final double length = java.lang.Math.sqrt( nx * nx + ny * ny + nz * nz );
+        if ( length <= 0.0 ) return( 0.0 );
+
+        plane[0] = nx / length;
+        plane[1] = ny / length;
+        plane[2] = nz / length;
+        plane[3] = -( plane[0] * ax + plane[1] * ay + plane[2] * az );
+
+        return( BoundaryWeight * ( ex * ex + ey * ey + ez * ez ) );
+    }
+
+    private void add_quadric( final int v, final double[] plane, final double weight )
+    {
+        final double a = plane[0], b = plane[1], c = plane[2], d = plane[3];
+        final int index = 10 * v;
+        m_quadrics[ index     ] += weight * a * a;
+        m_quadrics[ index + 1 ] += weight * a * b;
+        m_quadrics[ index + 2 ] += weight * a * c;
+        m_quadrics[ index + 3 ] += weight * a * d;
+        m_quadrics[ index + 4 ] += weight * b * b;
+        m_quadrics[ index + 5 ] += weight * b * c;
+        m_quadrics[ index + 6 ] += weight * b * d;
+        m_quadrics[ index + 7 ] += weight * c * c;
+        m_quadrics[ index + 8 ] += weight * c * d;
+        m_quadrics[ index + 9 ] += weight * d * d;
+    }
+
+    private static double quadric_error( final double[] q, final double x, final double y, final double z )
+    {
+        return( q[0] * x * x + 2.0 * q[1] * x * y + 2.0 * q[2] * x * z + 2.0 * q[3] * x
+              + q[4] * y * y + 2.0 * q[5] * y * z + 2.0 * q[6] * y
+              + q[7] * z * z + 2.0 * q[8] * z
+              + q[9] );
+    }
+
+    private static void lerp( final float[] values, final int veclen, final int u, final int v, final float t )
+    {
+        for ( int i = 0; i < veclen; i++ )
+        {
+            final float value = values[ veclen * u + i ];
+            values[ veclen * u + i ] = value + t * ( values[ veclen * v + i ] - value );
+        }
+    }
+
+    private static float[] to_floats( final ByteBuffer values, final int length )
+    {
+        final float[] floats = new float[length];
+        for ( int i = 0; i < length; i++ ) floats[i] = values.get( i ) & 0xFF;
+
+        return( floats );
+    }
+
+    // The buffers are copied through a duplicate since they may not be backed by an array.
+
+    private static float[] to_array( final FloatBuffer buffer, final int length )
+    {
+        final FloatBuffer source = buffer.duplicate();
+        source.clear();
+        final float[] array = new float[length];
+        source.get( array );
+
+        return( array );
+    }
+
+    private static int[] to_array( final IntBuffer buffer, final int length )
+    {
+        final IntBuffer source = buffer.duplicate();
+        source.clear();
+        final int[] array = new int[length];
+        source.get( array );
+
+        return( array );
+    }
+
+    private static byte[] to_array( final ByteBuffer buffer, final int length )
+    {
+        final ByteBuffer source = buffer.duplicate();
+        source.clear();
+        final byte[] array = new byte[length];
+        source.get( array );
+
+        return( array );
+    }
+
+    private static byte[] to_bytes( final float[] values, final int[] indices, final int veclen )
+    {
+        final byte[] bytes = new byte[ veclen * indices.length ];
+        for ( int i = 0; i < indices.length; i++ )
+        {
+            for ( int k = 0; k < veclen; k++ )
+            {
+                final int value = java.lang.Math.round( values[ veclen * indices[i] + k ] );
+                bytes[ veclen * i + k ] = (byte)java.lang.Math.max( 0, java.lang.Math.min( value, 255 ) );
+            }
+        }
+
+        return( bytes );
+    }
+
+    /**
+     * 現在のメッシュから、残った三角形とそれらが参照する頂点のみのポリゴンを生成します。
+     */
+    private PolygonObject create_object( final PolygonObject polygon )
+    {
+        final int nvertices  = m_dead_vertices.length;
+        final int ntriangles = m_dead_triangles.length;
+
+        // New vertex indices in the order of the first reference.
+        final int[] new_index = new int[nvertices];
+        Arrays.fill( new_index, -1 );
+        final int[] old_index = new int[nvertices];
+        final int[] triangles = new int[m_ntriangles];
+        final int[] connections = new int[ 3 * m_ntriangles ];
+        int nnew_vertices = 0;
+        int nnew_triangles = 0;
+        for ( int t = 0; t < ntriangles; t++ )
+        {
+            if ( m_dead_triangles[t] ) continue;
+            for ( int k = 0; k < 3; k++ )
+            {
+                final int v = m_connections[ 3 * t + k ];
+                if ( new_index[v] < 0 )
+                {
+                    new_index[v] = nnew_vertices;
+                    old_index[ nnew_vertices++ ] = v;
+                }
+                connections[ 3 * nnew_triangles + k ] = new_index[v];
+            }
+            triangles[ nnew_triangles++ ] = t;
+        }
+        final int[] vertices = Arrays.copyOf( old_index, nnew_vertices );
+
+        final float[] coords = new float[ 3 * nnew_vertices ];
+        for ( int i = 0; i < nnew_vertices; i++ )
+        {
+            System.arraycopy( m_coords, 3 * vertices[i], coords, 3 * i, 3 );
+        }
+
+        final PolygonObject object = new PolygonObject();
+        object.setCoords( coords );
+        object.setConnections( connections );
+        object.setPolygonType( polygon.polygonType() );
+        object.setColorType( polygon.colorType() );
+
+        // Colors.
+        if ( m_vertex_colors != null )
+        {
+            object.setColors( to_bytes( m_vertex_colors, vertices, 3 ) );
+        }
+        else if ( polygon.ncolors() == ntriangles && ntriangles > 1 )
+        {
+            object.setColors( select( to_array( polygon.colors(), 3 * ntriangles ), triangles, 3 ) );
+        }
+        else
+        {
+            object.setColors( to_array( polygon.colors(), polygon.colors().limit() ) );
+        }
+
+        // Opacities.
+        if ( m_vertex_opacities != null )
+        {
+            object.setOpacities( to_bytes( m_vertex_opacities, vertices, 1 ) );
+        }
+        else if ( polygon.nopacities() == ntriangles && ntriangles > 1 )
+        {
+            object.setOpacities( select( to_array( polygon.opacities(), ntriangles ), triangles, 1 ) );
+        }
+        else
+        {
+            object.setOpacities( to_array( polygon.opacities(), polygon.opacities().limit() ) );
+        }
+
+        // Normals.
+        if ( m_vertex_normals != null )
+        {
+            final float[] normals = new float[ 3 * nnew_vertices ];
+            for ( int i = 0; i < nnew_vertices; i++ )
+            {
+                System.arraycopy( m_vertex_normals, 3 * vertices[i], normals, 3 * i, 3 );
+            }
+            object.setNormals( normals );
+            object.setNormalType( NormalType.VertexNormal );
+        }
+        else if ( polygon.nnormals() > 0 )
+        {
+            // The triangles have been deformed, so their normals are calculated again. The vertex normals
+            // which could not be carried over (the number differs from the vertices) are also replaced.
+            final float[] normals = new float[ 3 * nnew_triangles ];
+            for ( int i = 0; i < 3 * nnew_triangles; i += 3 )
+            {
+                final int v0 = 3 * connections[ i ], v1 = 3 * connections[ i + 1 ], v2 = 3 * connections[ i + 2 ];
+                final float ux = coords[ v1 ] - coords[ v0 ], uy = coords[ v1 + 1 ] - coords[ v0 + 1 ], uz = coords[ v1 + 2 ] - coords[ v0 + 2 ];
+                final float wx = coords[ v2 ] - coords[ v0 ], wy = coords[ v2 + 1 ] - coords[ v0 + 1 ], wz = coords[ v2 + 2 ] - coords[ v0 + 2 ];
+                normals[ i     ] = uy * wz - uz * wy;
+                normals[ i + 1 ] = uz * wx - ux * wz;
+                normals[ i + 2 ] = ux * wy - uy * wx;
+            }
+            object.setNormals( normals );
+            object.setNormalType( NormalType.PolygonNormal );
+        }
+        else
+        {
+            // No normals, same as the input.
+            object.setNormalType( polygon.normalType() );
+        }
+
+        if ( polygon.hasMinMaxObjectCoords() )
+        {
+            object.setMinMaxObjectCoords( polygon.minObjectCoord(), polygon.maxObjectCoord() );
+        }
+        if ( polygon.hasMinMaxExternalCoords() )
+        {
+            object.setMinMaxExternalCoords( polygon.minExternalCoord(), polygon.maxExternalCoord() );
+        }
+        object.setMaterial( polygon.material() );
+
+        return( object );
+    }
+
+    private static byte[] select( final byte[] values, final int[] indices, final int veclen )
+    {
+        final byte[] selected = new byte[ veclen * indices.length ];
+        for ( int i = 0; i < indices.length; i++ )
+        {
+            System.arraycopy( values, veclen * indices[i], selected, veclen * i, veclen );
+        }
+
+        return( selected );
+    }
+
+    /**
+     * 辺の候補を誤差の小さい順に取り出す二分ヒープです。
+     * 頂点が変更された後の古い候補は取り出した時点でバージョンを比べて捨てます。
+     */
+    private static final class EdgeHeap {
+
+        private double[] m_cost;      ///< error of each entry
+        private int[]    m_u;         ///< first vertex of each entry
+        private int[]    m_v;         ///< second vertex of each entry
+        private int[]    m_u_version; ///< version of the first vertex when pushed
+        private int[]    m_v_version; ///< version of the second vertex when pushed
+        private int[]    m_heap;      ///< entries ordered as a binary heap
+        private int[]    m_free;      ///< entries popped and reusable
+        private int      m_size;      ///< number of the entries in the heap
+        private int      m_nfree;     ///< number of the reusable entries
+        private int      m_nentries;  ///< number of the allocated entries
+
+        EdgeHeap( final int capacity )
+        {
+            m_cost      = new double[capacity];
+            m_u         = new int[capacity];
+            m_v         = new int[capacity];
+            m_u_version = new int[capacity];
+            m_v_version = new int[capacity];
+            m_heap      = new int[capacity];
+            m_free      = new int[capacity];
+        }
+
+        boolean isEmpty()
+        {
+            return( m_size == 0 );
+        }
+
+        int size()
+        {
+            return( m_size );
+        }
+
+        double minCost()
+        {
+            return( m_cost[ m_heap[0] ] );
+        }
+
+        void push( final double cost, final int u, final int v, final int u_version, final int v_version )
+        {
+            int entry;
+            if ( m_nfree > 0 )
+            {
+                entry = m_free[ --m_nfree ];
+            }
+            else
+            {
+                if ( m_nentries == m_cost.length ) this.grow();
+                entry = m_nentries++;
+            }
+            m_cost[entry]      = cost;
+            m_u[entry]         = u;
+            m_v[entry]         = v;
+            m_u_version[entry] = u_version;
+            m_v_version[entry] = v_version;
+
+            int i = m_size++;
+            while ( i > 0 )
+            {
+                final int parent = ( i - 1 ) / 2;
+                if ( m_cost[ m_heap[parent] ] <= cost ) break;
+                m_heap[i] = m_heap[parent];
+                i = parent;
+            }
+            m_heap[i] = entry;
+        }
+
+        /**
+         * 誤差が最小の候補を取り出します。返した番号の内容は次のpushまで有効です。
+         */
+        int pop()
+        {
+            final int top  = m_heap[0];
+            final int last = m_heap[ --m_size ];
+            if ( m_size > 0 ) this.sift_down( 0, last );
+
+            m_free[ m_nfree++ ] = top;
+            return( top );
+        }
+
+        /**
+         * 頂点が統合または変更された後の古い候補を取り除き、ヒープを作り直します。
+         *
+         * @return 残った候補の数
+         */
+        int compact( final int[] versions, final boolean[] dead_vertices )
+        {
+            final boolean[] used = new boolean[m_nentries];
+            int n = 0;
+            for ( int i = 0; i < m_size; i++ )
+            {
+                final int entry = m_heap[i];
+                final int u = m_u[entry];
+                final int v = m_v[entry];
+                if ( dead_vertices[u] || dead_vertices[v] ) continue;
+                if ( versions[u] != m_u_version[entry] || versions[v] != m_v_version[entry] ) continue;
+                m_heap[n++] = entry;
+                used[entry] = true;
+            }
+            m_size = n;
+
+            m_nfree = 0;
+            for ( int entry = 0; entry < m_nentries; entry++ )
+            {
+                if ( !used[entry] ) m_free[ m_nfree++ ] = entry;
+            }
+
+            for ( int i = m_size / 2 - 1; i >= 0; i-- ) this.sift_down( i, m_heap[i] );
+
+            return( m_size );
+        }
+
+        private void sift_down( int i, final int entry )
+        {
+            final double cost = m_cost[entry];
+            while ( true )
+            {
+                int child = 2 * i + 1;
+                if ( child >= m_size ) break;
+                if ( child + 1 < m_size && m_cost[ m_heap[ child + 1 ] ] < m_cost[ m_heap[child] ] ) child++;
+                if ( cost <= m_cost[ m_heap[child] ] ) break;
+                m_heap[i] = m_heap[child];
+                i = child;
+            }
+            m_heap[i] = entry;
+        }
+
+        private void grow()
+        {
+            final int capacity = 2 * m_cost.length;
+            m_cost      = Arrays.copyOf( m_cost, capacity );
+            m_u         = Arrays.copyOf( m_u, capacity );
+            m_v         = Arrays.copyOf( m_v, capacity );
+            m_u_version = Arrays.copyOf( m_u_version, capacity );
+            m_v_version = Arrays.copyOf( m_v_version, capacity );
+            m_heap      = Arrays.copyOf( m_heap, capacity );
+            m_free      = Arrays.copyOf( m_free, capacity );
+        }
+    }
+}
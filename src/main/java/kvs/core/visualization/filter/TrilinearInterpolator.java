@@ -1,48 +1,105 @@
 package kvs.core.visualization.filter;
 
 import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 
 import kvs.core.matrix.Vector3f;
 import kvs.core.matrix.Vector3i;
-import kvs.core.util.Utility;
+import kvs.core.util.AnyValueArray;
 import kvs.core.visualization.object.StructuredVolumeObject;
 
+/**
+ * TrilinearInterpolatorクラスは構造格子ボリュームの値と勾配を三線形補間で求めるクラスです。
+ * 値の型ごとにバッファを直接参照するため、AnyValueArrayの全ての型を変換せずに補間できます。
+ */
 public class TrilinearInterpolator {
     
+    // Kinds of the value access (the int constants keep the switch in value() cheap).
+    private static final int ByteKind          = 0;
+    private static final int UnsignedByteKind  = 1;
+    private static final int ShortKind         = 2;
+    private static final int UnsignedShortKind = 3;
+    private static final int IntKind           = 4;
+    private static final int FloatKind         = 5;
+    private static final int DoubleKind        = 6;
+    private static final int AnyKind           = 7; ///< values not stored in a single buffer
 
-    private Vector3i    m_grid_index = Vector3i.ZERO; ///< grid index
-    private int[]       m_index = new int[8];   ///< neighbouring grid index < unsigned
+    private int         m_i = 0;    ///< grid index in x
+    private int         m_j = 0;    ///< grid index in y
+    private int         m_k = 0;    ///< grid index in z
+    private long[]      m_index = new long[8];  ///< neighbouring grid index (long for the bricked volumes)
     private float[]     m_weight = new float[8];  ///< weight for the neighbouring grid index
+    private final float[] m_dx = new float[8];  ///< x-differences at the neighbouring grid points
+    private final float[] m_dy = new float[8];  ///< y-differences at the neighbouring grid points
+    private final float[] m_dz = new float[8];  ///< z-differences at the neighbouring grid points
 
     private final StructuredVolumeObject m_reference_volume; ///< reference irregular volume m_data
     
-    private FloatBuffer m_data;                                 ///m_reference_volumeのvaluesを配列に変換したもの
+    private final AnyValueArray m_data;                         ///m_reference_volumeのvalues(コピーせずに参照)
     
-    private int m_data_limit;
+    private final long m_data_limit;
+
+    private final int          m_kind;    ///< kind of the value access
+    private final ByteBuffer   m_bytes;   ///< values of the Byte and UnsignedByte types
+    private final ShortBuffer  m_shorts;  ///< values of the Short and UnsignedShort types
+    private final IntBuffer    m_ints;    ///< values of the Int type
+    private final FloatBuffer  m_floats;  ///< values of the Float type
+    private final DoubleBuffer m_doubles; ///< values of the Double type
 
     public TrilinearInterpolator( final StructuredVolumeObject volume ){
         m_reference_volume = volume;
-        final Buffer buffer = volume.values();
-        m_data = Utility.bufferToDirectFloatBuffer( buffer );
-        m_data_limit = m_data.limit();
-            
+        m_data = volume.valueArray();
+        m_data_limit = m_data.longSize();
+
+        final Buffer buffer = m_data.hasBuffer() ? m_data.buffer() : null;
+        m_bytes   = ( buffer instanceof ByteBuffer )   ? (ByteBuffer)buffer   : null;
+        m_shorts  = ( buffer instanceof ShortBuffer )  ? (ShortBuffer)buffer  : null;
+        m_ints    = ( buffer instanceof IntBuffer )    ? (IntBuffer)buffer    : null;
+        m_floats  = ( buffer instanceof FloatBuffer )  ? (FloatBuffer)buffer  : null;
+        m_doubles = ( buffer instanceof DoubleBuffer ) ? (DoubleBuffer)buffer : null;
+
+        switch( m_data.valueType() )
+        {
+        case Byte:          m_kind = ( m_bytes   != null ) ? ByteKind          : AnyKind; break;
+        case UnsignedByte:  m_kind = ( m_bytes   != null ) ? UnsignedByteKind  : AnyKind; break;
+        case Short:         m_kind = ( m_shorts  != null ) ? ShortKind         : AnyKind; break;
+        case UnsignedShort: m_kind = ( m_shorts  != null ) ? UnsignedShortKind : AnyKind; break;
+        case Int:           m_kind = ( m_ints    != null ) ? IntKind           : AnyKind; break;
+        case Float:         m_kind = ( m_floats  != null ) ? FloatKind         : AnyKind; break;
+        case Double:        m_kind = ( m_doubles != null ) ? DoubleKind        : AnyKind; break;
+        default:            m_kind = AnyKind; break;
+        }
     }
 
     public final void attachPoint( final Vector3f point )
     {
-        final int i = point.getX() < 0 ? 0 : (int)( point.getX() ); //unsigned
-        final int j = point.getY() < 0 ? 0 : (int)( point.getY() ); //unsigned
-        final int k = point.getZ() < 0 ? 0 : (int)( point.getZ() ); //unsigned
+        this.attachPoint( point.getX(), point.getY(), point.getZ() );
+    }
+
+    /**
+     * 点(px,py,pz)を含むセルと補間の重みを求めます。ボリュームの最大側の面上の点は、
+     * その面に接するセルに含まれるものとして扱います。
+     */
+    public final void attachPoint( final float px, final float py, final float pz )
+    {
+        final Vector3i resolution = m_reference_volume.resolution();
+        final int i = clamp_cell( px, resolution.getX() );
+        final int j = clamp_cell( py, resolution.getY() );
+        final int k = clamp_cell( pz, resolution.getZ() );
 
         final int line_size  = m_reference_volume.nnodesPerLine();
         final int slice_size = m_reference_volume.nnodesPerSlice();
 
         // Calculate index.
-        m_grid_index = new Vector3i( i, j, k );
+        m_i = i;
+        m_j = j;
+        m_k = k;
         
-        m_index[0] = (i + j * line_size + k * slice_size);
+        m_index[0] = (i + (long)j * line_size + (long)k * slice_size);
         m_index[1] = (m_index[0] + 1);
         m_index[2] = (m_index[1] + line_size);
         m_index[3] = (m_index[0] + line_size);
@@ -52,9 +109,9 @@ public class TrilinearInterpolator {
         m_index[7] = (m_index[3] + slice_size);
 
         // Calculate local coordinate.
-        final float x = point.getX() - i;
-        final float y = point.getY() - j;
-        final float z = point.getZ() - k;
+        final float x = px - i;
+        final float y = py - j;
+        final float z = pz - k;
 
         final float xy = x * y;
         final float yz = y * z;
@@ -75,142 +132,147 @@ public class TrilinearInterpolator {
     public final float scalar()
     {
         //const T* const data = reinterpret_cast<const T*>( m_reference_volume->values().pointer() );
-        final Buffer buffer = m_reference_volume.values();
-
-        if( buffer instanceof IntBuffer ){
-            final IntBuffer data = (IntBuffer)buffer;
-            final int limit = data.limit(); 
-            return (data.get( m_index[0] < limit ? m_index[0] : 0 ) * m_weight[0] +
-                    data.get( m_index[1] < limit ? m_index[1] : 0 ) * m_weight[1] +
-                    data.get( m_index[2] < limit ? m_index[2] : 0 ) * m_weight[2] +
-                    data.get( m_index[3] < limit ? m_index[3] : 0 ) * m_weight[3] +
-                    data.get( m_index[4] < limit ? m_index[4] : 0 ) * m_weight[4] +
-                    data.get( m_index[5] < limit ? m_index[5] : 0 ) * m_weight[5] +
-                    data.get( m_index[6] < limit ? m_index[6] : 0 ) * m_weight[6] +
-                    data.get( m_index[7] < limit ? m_index[7] : 0 ) * m_weight[7] );
-
-        } else {
-            return -1;
-        }
+        return( this.value( m_index[0] ) * m_weight[0] +
+                this.value( m_index[1] ) * m_weight[1] +
+                this.value( m_index[2] ) * m_weight[2] +
+                this.value( m_index[3] ) * m_weight[3] +
+                this.value( m_index[4] ) * m_weight[4] +
+                this.value( m_index[5] ) * m_weight[5] +
+                this.value( m_index[6] ) * m_weight[6] +
+                this.value( m_index[7] ) * m_weight[7] );
     }
     
     public final Vector3f gradient()
+    {
+        final float[] gradient = new float[3];
+        this.gradient( gradient, 0 );
+
+        return( new Vector3f( gradient[0], gradient[1], gradient[2] ) );
+    }
+
+    /**
+     * 勾配を求め、gradientのoffset番目から格納します。配列を確保しません。
+     *
+     * @param gradient 勾配(x,y,z)を格納する配列
+     * @param offset 格納する位置
+     */
+    public final void gradient( final float[] gradient, final int offset )
     {
         // Calculate the point's gradient.
-        float[] dx = new float[8];
-        float[] dy = new float[8];
-        float[] dz = new float[8];
+        final float[] dx = m_dx;
+        final float[] dy = m_dy;
+        final float[] dz = m_dz;
         
         final Vector3i resolution = m_reference_volume.resolution();
         final int line_size  = m_reference_volume.nnodesPerLine();
         final int slice_size = m_reference_volume.nnodesPerSlice();
 
-        final int i = m_grid_index.getX();
-        final int j = m_grid_index.getY();
-        final int k = m_grid_index.getZ();
+        final int i = m_i;
+        final int j = m_j;
+        final int k = m_k;
         
         //float[] data = m_data;
 
         if ( i == 0 )
         {
-            dx[0] = ( m_data.get( check_value( m_index[1]     ) )  );
-            dx[1] = ( m_data.get( check_value( m_index[1] + 1 ) ) ) - ( m_data.get( check_value( m_index[0]     ) ) );
-            dx[2] = ( m_data.get( check_value( m_index[2] + 1 ) ) ) - ( m_data.get( check_value( m_index[3]     ) ) );
-            dx[3] = ( m_data.get( check_value( m_index[2]     ) ) );
-            dx[4] = ( m_data.get( check_value( m_index[5]     ) ) );
-            dx[5] = ( m_data.get( check_value( m_index[5] + 1 ) ) ) - ( m_data.get( check_value( m_index[4]     ) ) );
-            dx[6] = ( m_data.get( check_value( m_index[6] + 1 ) ) ) - ( m_data.get( check_value( m_index[7]     ) ) );
-            dx[7] = ( m_data.get( check_value( m_index[6]     ) ) );
+            dx[0] = ( this.value( m_index[1]     )  );
+            dx[1] = ( this.value( m_index[1] + 1 ) ) - ( this.value( m_index[0]     ) );
+            dx[2] = ( this.value( m_index[2] + 1 ) ) - ( this.value( m_index[3]     ) );
+            dx[3] = ( this.value( m_index[2]     ) );
+            dx[4] = ( this.value( m_index[5]     ) );
+            dx[5] = ( this.value( m_index[5] + 1 ) ) - ( this.value( m_index[4]     ) );
+            dx[6] = ( this.value( m_index[6] + 1 ) ) - ( this.value( m_index[7]     ) );
+            dx[7] = ( this.value( m_index[6]     ) );
         }
         else if ( i == resolution.getX() - 2 )
         {
-            dx[0] = ( m_data.get( check_value( m_index[1]     ) ) ) - ( m_data.get( check_value( m_index[0] - 1 ) ) );
-            dx[1] =                                             - ( m_data.get( check_value( m_index[0]     ) ) );
-            dx[2] =                                             - ( m_data.get( check_value( m_index[3]     ) ) );
-            dx[3] = ( m_data.get( check_value( m_index[2]     ) ) ) - ( m_data.get( check_value( m_index[3] - 1 ) ) );
-            dx[4] = ( m_data.get( check_value( m_index[5]     ) ) ) - ( m_data.get( check_value( m_index[4] - 1 ) ) );
-            dx[5] =                                             - ( m_data.get( check_value( m_index[4]     ) ) );
-            dx[6] =                                             - ( m_data.get( check_value( m_index[7]     ) ) );
-            dx[7] = ( m_data.get( check_value( m_index[6]     ) ) ) - ( m_data.get( check_value( m_index[7] - 1 ) ) );
+            dx[0] = ( this.value( m_index[1]     ) ) - ( this.value( m_index[0] - 1 ) );
+            dx[1] =                                  - ( this.value( m_index[0]     ) );
+            dx[2] =                                  - ( this.value( m_index[3]     ) );
+            dx[3] = ( this.value( m_index[2]     ) ) - ( this.value( m_index[3] - 1 ) );
+            dx[4] = ( this.value( m_index[5]     ) ) - ( this.value( m_index[4] - 1 ) );
+            dx[5] =                                  - ( this.value( m_index[4]     ) );
+            dx[6] =                                  - ( this.value( m_index[7]     ) );
+            dx[7] = ( this.value( m_index[6]     ) ) - ( this.value( m_index[7] - 1 ) );
         }
         else
         {
-            dx[0] = ( m_data.get( check_value( m_index[1]     ) ) ) - ( m_data.get( check_value( m_index[0] - 1 ) ) );
-            dx[1] = ( m_data.get( check_value( m_index[1] + 1 ) ) ) - ( m_data.get( check_value( m_index[0]     ) ) );
-            dx[2] = ( m_data.get( check_value( m_index[2] + 1 ) ) ) - ( m_data.get( check_value( m_index[3]     ) ) );
-            dx[3] = ( m_data.get( check_value( m_index[2]     ) ) ) - ( m_data.get( check_value( m_index[3] - 1 ) ) );
-            dx[4] = ( m_data.get( check_value( m_index[5]     ) ) ) - ( m_data.get( check_value( m_index[4] - 1 ) ) );
-            dx[5] = ( m_data.get( check_value( m_index[5] + 1 ) ) ) - ( m_data.get( check_value( m_index[4]     ) ) );
-            dx[6] = ( m_data.get( check_value( m_index[6] + 1 ) ) ) - ( m_data.get( check_value( m_index[7]     ) ) );
-            dx[7] = ( m_data.get( check_value( m_index[6]     ) ) ) - ( m_data.get( check_value( m_index[7] - 1 ) ) );
+            dx[0] = ( this.value( m_index[1]     ) ) - ( this.value( m_index[0] - 1 ) );
+            dx[1] = ( this.value( m_index[1] + 1 ) ) - ( this.value( m_index[0]     ) );
+            dx[2] = ( this.value( m_index[2] + 1 ) ) - ( this.value( m_index[3]     ) );
+            dx[3] = ( this.value( m_index[2]     ) ) - ( this.value( m_index[3] - 1 ) );
+            dx[4] = ( this.value( m_index[5]     ) ) - ( this.value( m_index[4] - 1 ) );
+            dx[5] = ( this.value( m_index[5] + 1 ) ) - ( this.value( m_index[4]     ) );
+            dx[6] = ( this.value( m_index[6] + 1 ) ) - ( this.value( m_index[7]     ) );
+            dx[7] = ( this.value( m_index[6]     ) ) - ( this.value( m_index[7] - 1 ) );
         }
 
         if ( j == 0 )
         {
-            dy[0] = ( m_data.get( check_value( m_index[3]             ) ) );
-            dy[1] = ( m_data.get( check_value( m_index[2]             ) ) );
-            dy[2] = ( m_data.get( check_value( m_index[2] + line_size ) ) ) - ( m_data.get( check_value( m_index[1]             ) ) );
-            dy[3] = ( m_data.get( check_value( m_index[3] + line_size ) ) ) - ( m_data.get( check_value( m_index[0]             ) ) );
-            dy[4] = ( m_data.get( check_value( m_index[7]             ) ) );
-            dy[5] = ( m_data.get( check_value( m_index[6]             ) ) );
-            dy[6] = ( m_data.get( check_value( m_index[6] + line_size ) ) ) - ( m_data.get( check_value( m_index[5]             ) ) );
-            dy[7] = ( m_data.get( check_value( m_index[7] + line_size ) ) ) - ( m_data.get( check_value( m_index[4]             ) ) );
+            dy[0] = ( this.value( m_index[3]             ) );
+            dy[1] = ( this.value( m_index[2]             ) );
+            dy[2] = ( this.value( m_index[2] + line_size ) ) - ( this.value( m_index[1]             ) );
+            dy[3] = ( this.value( m_index[3] + line_size ) ) - ( this.value( m_index[0]             ) );
+            dy[4] = ( this.value( m_index[7]             ) );
+            dy[5] = ( this.value( m_index[6]             ) );
+            dy[6] = ( this.value( m_index[6] + line_size ) ) - ( this.value( m_index[5]             ) );
+            dy[7] = ( this.value( m_index[7] + line_size ) ) - ( this.value( m_index[4]             ) );
         }
         else if ( j == resolution.getY() - 2 )
         {
-            dy[0] = ( m_data.get( check_value( m_index[3]             ) ) ) - ( m_data.get( check_value( m_index[0] - line_size ) ) );
-            dy[1] = ( m_data.get( check_value( m_index[2]             ) ) ) - ( m_data.get( check_value( m_index[1] - line_size ) ) );
-            dy[2] =                                                     - ( m_data.get( check_value( m_index[1]             ) ) );
-            dy[3] =                                                     - ( m_data.get( check_value( m_index[0]             ) ) );
-            dy[4] = ( m_data.get( check_value( m_index[7]             ) ) ) - ( m_data.get( check_value( m_index[4] - line_size ) ) );
-            dy[5] = ( m_data.get( check_value( m_index[6]             ) ) ) - ( m_data.get( check_value( m_index[5] - line_size ) ) );
-            dy[6] =                                                     - ( m_data.get( check_value( m_index[5]             ) ) );
-            dy[7] =                                                     - ( m_data.get( check_value( m_index[4]             ) ) );
+            dy[0] = ( this.value( m_index[3]             ) ) - ( this.value( m_index[0] - line_size ) );
+            dy[1] = ( this.value( m_index[2]             ) ) - ( this.value( m_index[1] - line_size ) );
+            dy[2] =                                          - ( this.value( m_index[1]             ) );
+            dy[3] =                                          - ( this.value( m_index[0]             ) );
+            dy[4] = ( this.value( m_index[7]             ) ) - ( this.value( m_index[4] - line_size ) );
+            dy[5] = ( this.value( m_index[6]             ) ) - ( this.value( m_index[5] - line_size ) );
+            dy[6] =                                          - ( this.value( m_index[5]             ) );
+            dy[7] =                                          - ( this.value( m_index[4]             ) );
         }
         else
         {
-            dy[0] = ( m_data.get( check_value( m_index[3]             ) ) ) - ( m_data.get( check_value( m_index[0] - line_size ) ) );
-            dy[1] = ( m_data.get( check_value( m_index[2]             ) ) ) - ( m_data.get( check_value( m_index[1] - line_size ) ) );
-            dy[2] = ( m_data.get( check_value( m_index[2] + line_size ) ) ) - ( m_data.get( check_value( m_index[1]             ) ) );
-            dy[3] = ( m_data.get( check_value( m_index[3] + line_size ) ) ) - ( m_data.get( check_value( m_index[0]             ) ) );
-            dy[4] = ( m_data.get( check_value( m_index[7]             ) ) ) - ( m_data.get( check_value( m_index[4] - line_size ) ) );
-            dy[5] = ( m_data.get( check_value( m_index[6]             ) ) ) - ( m_data.get( check_value( m_index[5] - line_size ) ) );
-            dy[6] = ( m_data.get( check_value( m_index[6] + line_size ) ) ) - ( m_data.get( check_value( m_index[5]             ) ) );
-            dy[7] = ( m_data.get( check_value( m_index[7] + line_size ) ) ) - ( m_data.get( check_value( m_index[4]             ) ) );
+            dy[0] = ( this.value( m_index[3]             ) ) - ( this.value( m_index[0] - line_size ) );
+            dy[1] = ( this.value( m_index[2]             ) ) - ( this.value( m_index[1] - line_size ) );
+            dy[2] = ( this.value( m_index[2] + line_size ) ) - ( this.value( m_index[1]             ) );
+            dy[3] = ( this.value( m_index[3] + line_size ) ) - ( this.value( m_index[0]             ) );
+            dy[4] = ( this.value( m_index[7]             ) ) - ( this.value( m_index[4] - line_size ) );
+            dy[5] = ( this.value( m_index[6]             ) ) - ( this.value( m_index[5] - line_size ) );
+            dy[6] = ( this.value( m_index[6] + line_size ) ) - ( this.value( m_index[5]             ) );
+            dy[7] = ( this.value( m_index[7] + line_size ) ) - ( this.value( m_index[4]             ) );
         }
 
         if ( k == 0 )
         {
-            dz[0] = ( m_data.get( check_value( m_index[4]              ) ) );
-            dz[1] = ( m_data.get( check_value( m_index[5]              ) ) );
-            dz[2] = ( m_data.get( check_value( m_index[6]              ) ) );
-            dz[3] = ( m_data.get( check_value( m_index[7]              ) ) );
-            dz[4] = ( m_data.get( check_value( m_index[4] + slice_size ) ) ) - ( m_data.get( check_value( m_index[0]              ) ) );
-            dz[5] = ( m_data.get( check_value( m_index[5] + slice_size ) ) ) - ( m_data.get( check_value( m_index[1]              ) ) );
-            dz[6] = ( m_data.get( check_value( m_index[6] + slice_size ) ) ) - ( m_data.get( check_value( m_index[2]              ) ) );
-            dz[7] = ( m_data.get( check_value( m_index[7] + slice_size ) ) ) - ( m_data.get( check_value( m_index[3]              ) ) );
+            dz[0] = ( this.value( m_index[4]              ) );
+            dz[1] = ( this.value( m_index[5]              ) );
+            dz[2] = ( this.value( m_index[6]              ) );
+            dz[3] = ( this.value( m_index[7]              ) );
+            dz[4] = ( this.value( m_index[4] + slice_size ) ) - ( this.value( m_index[0]              ) );
+            dz[5] = ( this.value( m_index[5] + slice_size ) ) - ( this.value( m_index[1]              ) );
+            dz[6] = ( this.value( m_index[6] + slice_size ) ) - ( this.value( m_index[2]              ) );
+            dz[7] = ( this.value( m_index[7] + slice_size ) ) - ( this.value( m_index[3]              ) );
         }
         else if ( k == resolution.getZ() - 2 )
         {
-            dz[0] = ( m_data.get( check_value( m_index[4]              ) ) ) - ( m_data.get( check_value( m_index[0] - slice_size ) ) );
-            dz[1] = ( m_data.get( check_value( m_index[5]              ) ) ) - ( m_data.get( check_value( m_index[1] - slice_size ) ) );
-            dz[2] = ( m_data.get( check_value( m_index[6]              ) ) ) - ( m_data.get( check_value( m_index[2] - slice_size ) ) );
-            dz[3] = ( m_data.get( check_value( m_index[7]              ) ) ) - ( m_data.get( check_value( m_index[3] - slice_size ) ) );
-            dz[4] =                                                      - ( m_data.get( check_value( m_index[0]              ) ) );
-            dz[5] =                                                      - ( m_data.get( check_value( m_index[1]              ) ) );
-            dz[6] =                                                      - ( m_data.get( check_value( m_index[2]              ) ) );
-            dz[7] =                                                      - ( m_data.get( check_value( m_index[3]              ) ) );
+            dz[0] = ( this.value( m_index[4]              ) ) - ( this.value( m_index[0] - slice_size ) );
+            dz[1] = ( this.value( m_index[5]              ) ) - ( this.value( m_index[1] - slice_size ) );
+            dz[2] = ( this.value( m_index[6]              ) ) - ( this.value( m_index[2] - slice_size ) );
+            dz[3] = ( this.value( m_index[7]              ) ) - ( this.value( m_index[3] - slice_size ) );
+            dz[4] =                                           - ( this.value( m_index[0]              ) );
+            dz[5] =                                           - ( this.value( m_index[1]              ) );
+            dz[6] =                                           - ( this.value( m_index[2]              ) );
+            dz[7] =                                           - ( this.value( m_index[3]              ) );
         }
         else
         {
-            dz[0] = ( m_data.get( check_value( m_index[4]              ) ) ) - ( m_data.get( check_value( m_index[0] - slice_size ) ) );
-            dz[1] = ( m_data.get( check_value( m_index[5]              ) ) ) - ( m_data.get( check_value( m_index[1] - slice_size ) ) );
-            dz[2] = ( m_data.get( check_value( m_index[6]              ) ) ) - ( m_data.get( check_value( m_index[2] - slice_size ) ) );
-            dz[3] = ( m_data.get( check_value( m_index[7]              ) ) ) - ( m_data.get( check_value( m_index[3] - slice_size ) ) );
-            dz[4] = ( m_data.get( check_value( m_index[4] + slice_size ) ) ) - ( m_data.get( check_value( m_index[0]              ) ) );
-            dz[5] = ( m_data.get( check_value( m_index[5] + slice_size ) ) ) - ( m_data.get( check_value( m_index[1]              ) ) );
-            dz[6] = ( m_data.get( check_value( m_index[6] + slice_size ) ) ) - ( m_data.get( check_value( m_index[2]              ) ) );
-            dz[7] = ( m_data.get( check_value( m_index[7] + slice_size ) ) ) - ( m_data.get( check_value( m_index[3]              ) ) );
+            dz[0] = ( this.value( m_index[4]              ) ) - ( this.value( m_index[0] - slice_size ) );
+            dz[1] = ( this.value( m_index[5]              ) ) - ( this.value( m_index[1] - slice_size ) );
+            dz[2] = ( this.value( m_index[6]              ) ) - ( this.value( m_index[2] - slice_size ) );
+            dz[3] = ( this.value( m_index[7]              ) ) - ( this.value( m_index[3] - slice_size ) );
+            dz[4] = ( this.value( m_index[4] + slice_size ) ) - ( this.value( m_index[0]              ) );
+            dz[5] = ( this.value( m_index[5] + slice_size ) ) - ( this.value( m_index[1]              ) );
+            dz[6] = ( this.value( m_index[6] + slice_size ) ) - ( this.value( m_index[2]              ) );
+            dz[7] = ( this.value( m_index[7] + slice_size ) ) - ( this.value( m_index[3]              ) );
         }
 
         final float x =
@@ -243,10 +305,51 @@ public class TrilinearInterpolator {
             dz[6] * m_weight[6] +
             dz[7] * m_weight[7];
 
-        return( new Vector3f( x, y, z ) );
+        gradient[ offset     ] = x;
+        gradient[ offset + 1 ] = y;
+        gradient[ offset + 2 ] = z;
+    }
+
+    /**
+     * 事前に計算した勾配ボリュームから点の勾配を補間し、gradientのoffset番目から格納します。
+     * 勾配ボリュームの形式がFloatの場合はgradient(float[],int)と同じ値になります。
+     *
+     * @param gradients この補間器のボリュームの勾配ボリューム
+     * @param gradient 勾配(x,y,z)を格納する配列
+     * @param offset 格納する位置
+     */
+    public final void gradient( final GradientVolume gradients, final float[] gradient, final int offset )
+    {
+        gradients.interpolate( m_index, m_weight, gradient, offset );
+    }
+
+    private static int clamp_cell( final float p, final int resolution )
+    {
+        final int i = p < 0 ? 0 : (int)( p ); //unsigned
+        return( ( resolution > 1 && i > resolution - 2 ) ? resolution - 2 : i );
     }
     
-    private int check_value( int value ){   //TODO 改良の余地あり
+    /**
+     * index番目の値を、値の型に応じたバッファから直接読み出します。
+     * 単一のバッファの値はint型の番号で、それ以外(ブリック化されたボリューム)はlong型の番号で参照します。
+     */
+    private float value( final long index )
+    {
+        final long l = check_value( index );
+        switch( m_kind )
+        {
+        case ByteKind:          return( m_bytes.get( (int)l ) );
+        case UnsignedByteKind:  return( m_bytes.get( (int)l ) & 0xFF );
+        case ShortKind:         return( m_shorts.get( (int)l ) );
+        case UnsignedShortKind: return( m_shorts.get( (int)l ) & 0xFFFF );
+        case IntKind:           return( m_ints.get( (int)l ) );
+        case FloatKind:         return( m_floats.get( (int)l ) );
+        case DoubleKind:        return( (float)m_doubles.get( (int)l ) );
+        default:                return( m_data.getFloat( l ) );
+        }
+    }
+
+    private long check_value( long value ){   //TODO 改良の余地あり
         return value < m_data_limit ? value : 0;
     }
 
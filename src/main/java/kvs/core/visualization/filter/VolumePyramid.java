@@ -0,0 +1,368 @@
+package kvs.core.visualization.filter;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import kvs.core.KVSException;
+import kvs.core.matrix.Vector3f;
+import kvs.core.matrix.Vector3i;
+import kvs.core.util.AnyValueArray;
+import kvs.core.util.ThreadPool;
+import kvs.core.util.AnyValueArray.ValueType;
+import kvs.core.visualization.object.ObjectBase;
+import kvs.core.visualization.object.StructuredVolumeObject;
+import kvs.core.visualization.object.VolumeObjectBase.GridType;
+
+/**
+ * VolumePyramidクラスは一様格子のスカラーボリュームから解像度を1/2ずつ下げたボリュームの列を生成するクラスです。
+ * レベルLのノード(i,j,k)はレベル0のノード(2^L i, 2^L j, 2^L k)に対応し、
+ * その周囲3x3x3ノードの重み付き平均(1/4,1/2,1/4)または最大値を値とします。
+ * 1段階粗いレベルのノード数は各辺(n+1)/2で、最後のノードは細かいレベルのn-1(nが奇数)またはn-2(nが偶数)です。
+ * 各レベルの値の型は元のボリュームと同じです。
+ * 各レベルのオブジェクト座標はそのレベルのノード番号(0からresolution-1)で、外部座標はレベル0の外部座標のうち
+ * ノードが覆う範囲に設定されるため、任意のレベルをそのままMarchingCubesやMetropolisSamplingに渡して
+ * 元のボリュームと同じ位置に表示できます。
+ * 各レベルは全コアで並列に生成されます。
+ */
+public class VolumePyramid extends FilterBase {
+
+    public enum Reduction
+    {
+        Average, ///< weighted average of the neighboring nodes
+        Max      ///< maximum value of the neighboring nodes
+    };
+
+    private static final int DefaultMinResolution = 8;
+
+    private Reduction                         m_reduction;         ///< reduction method
+    private int                               m_max_levels;        ///< max number of levels (0: unlimited)
+    private int                               m_min_resolution;    ///< levels stop when every edge is below this
+    private int                               m_interactive_level; ///< level offset used during interaction
+    private ArrayList<StructuredVolumeObject> m_levels = new ArrayList<StructuredVolumeObject>(); ///< levels
+
+    public VolumePyramid()
+    {
+        this( Reduction.Average, 0 );
+    }
+
+    public VolumePyramid( final Reduction reduction, final int max_levels )
+    {
+        m_reduction         = reduction;
+        m_max_levels        = max_levels;
+        m_min_resolution    = DefaultMinResolution;
+        m_interactive_level = 1;
+    }
+
+    public VolumePyramid( final StructuredVolumeObject volume ) throws KVSException
+    {
+        this( volume, Reduction.Average, 0 );
+    }
+
+    public VolumePyramid( final StructuredVolumeObject volume, final Reduction reduction, final int max_levels ) throws KVSException
+    {
+        this( reduction, max_levels );
+        this.exec( volume );
+    }
+
+    /**
+     * ピラミッドを生成します。
+     *
+     * @param object 一様格子のスカラーボリューム(StructuredVolumeObject)
+     * @return レベル0のボリューム(入力されたボリューム)
+     * @throws KVSException 一様格子のスカラーボリュームでない場合
+     */
+    @Override
+    public ObjectBase exec( final ObjectBase object ) throws KVSException
+    {
+        if ( !( object instanceof StructuredVolumeObject ) )
+        {
+            throw new KVSException( "Input object is not a structured volume object." );
+        }
+
+        final StructuredVolumeObject volume = (StructuredVolumeObject)object;
+        if ( volume.gridType() != GridType.Uniform || volume.veclen() != 1 )
+        {
+            throw new KVSException( "Only a uniform scalar volume is supported." );
+        }
+        if ( volume.valueArray() == null )
+        {
+            throw new KVSException( "Unsupported data type." );
+        }
+
+        if ( !volume.hasMinMaxObjectCoords() )
+        {
+            volume.updateMinMaxCoords();
+        }
+
+        m_levels = new ArrayList<StructuredVolumeObject>();
+        m_levels.add( volume );
+
+        StructuredVolumeObject current = volume;
+        while ( ( m_max_levels <= 0 || m_levels.size() < m_max_levels ) && this.can_reduce( current.resolution() ) )
+        {
+            current = this.reduce( current, volume, m_levels.size() );
+            m_levels.add( current );
+        }
+
+        return( volume );
+    }
+
+    public void setReduction( final Reduction reduction )
+    {
+        m_reduction = reduction;
+    }
+
+    public void setMaxLevels( final int max_levels )
+    {
+        m_max_levels = max_levels;
+    }
+
+    public void setMinResolution( final int min_resolution )
+    {
+        m_min_resolution = min_resolution;
+    }
+
+    /**
+     * 操作中に選択するレベルを、静止時に選択されるレベルからの差で設定します。
+     * 1でノード数が約1/8のレベルになります。
+     */
+    public void setInteractiveLevel( final int level )
+    {
+        m_interactive_level = level;
+    }
+
+    public Reduction reduction()
+    {
+        return( m_reduction );
+    }
+
+    public int interactiveLevel()
+    {
+        return( m_interactive_level );
+    }
+
+    public int nlevels()
+    {
+        return( m_levels.size() );
+    }
+
+    public StructuredVolumeObject level( final int level )
+    {
+        return( m_levels.get( level ) );
+    }
+
+    /**
+     * レベルLの1ノード間隔がレベル0の何ノード間隔に相当するか(2^L)を返します。
+     */
+    public static float scale( final int level )
+    {
+        return( (float)( 1 << level ) );
+    }
+
+    /**
+     * 画面上でのボクセルの大きさからレベルを選択します。
+     * 選択されるのは1ボクセルが1画素以上となる最も粗いレベルです。
+     *
+     * @param voxel_size レベル0の1ボクセルの画面上での大きさ[pixel]
+     * @param interactive 操作中であればtrue
+     * @return レベル
+     */
+    public int selectLevel( final float voxel_size, final boolean interactive )
+    {
+        int level = 0;
+        if ( voxel_size > 0.0f )
+        {
+            while ( voxel_size * scale( level + 1 ) <= 1.0f ) level++;
+        }
+
+        if ( interactive ) level += m_interactive_level;
+
+        return( java.lang.Math.max( 0, java.lang.Math.min( level, m_levels.size() - 1 ) ) );
+    }
+
+    private boolean can_reduce( final Vector3i resolution )
+    {
+        return( resolution.getX() > 2 && resolution.getY() > 2 && resolution.getZ() > 2 &&
+                ( resolution.getX() >= m_min_resolution ||
+                  resolution.getY() >= m_min_resolution ||
+                  resolution.getZ() >= m_min_resolution ) );
+    }
+
+    private static int reduced_size( final int n )
+    {
+        // Coarse node i is at the fine node 2i, so the last coarse node is at n-1 (odd n) or n-2 (even n).
+        return( ( n + 1 ) / 2 );
+    }
+
+    private StructuredVolumeObject reduce(
+            final StructuredVolumeObject fine,
+            final StructuredVolumeObject base,
+            final int                    level )
+    {
+        final Vector3i fine_resolution = fine.resolution();
+        final Vector3i resolution = new Vector3i(
+                reduced_size( fine_resolution.getX() ),
+                reduced_size( fine_resolution.getY() ),
+                reduced_size( fine_resolution.getZ() ) );
+
+        final AnyValueArray src = fine.valueArray();
+        final int nnodes = resolution.getX() * resolution.getY() * resolution.getZ();
+        final AnyValueArray dst = allocate( src.valueType(), nnodes );
+
+        final int nz = resolution.getZ();
+        final int[] bounds = ThreadPool.split( nz, ThreadPool.nthreads() * 4, 1 );
+        final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for ( int c = 0; c + 1 < bounds.length; c++ )
+        {
+            final int begin = bounds[c];
+            final int end   = bounds[c + 1];
+            tasks.add( new Callable<Object>()
+            {
+                public Object call()
+                {
+                    reduce_slices( src, fine_resolution, dst, resolution, begin, end );
+                    return( null );
+                }
+            } );
+        }
+        ThreadPool.invokeAll( tasks );
+
+        final StructuredVolumeObject coarse = new StructuredVolumeObject( resolution, 1, (Buffer)null );
+        coarse.setValues( dst );
+
+        // The object coordinates are the node indices of the level, and the external coordinates
+        // are the part of the base external box covered by the coarse nodes.
+        coarse.updateMinMaxCoords();
+        final float scale = scale( level );
+        final Vector3i base_resolution = base.resolution();
+        final Vector3f min_ext = base.minExternalCoord();
+        final Vector3f max_ext = base.maxExternalCoord();
+        coarse.setMinMaxExternalCoords( min_ext, new Vector3f(
+                covered_coord( min_ext.getX(), max_ext.getX(), scale * ( resolution.getX() - 1 ), base_resolution.getX() ),
+                covered_coord( min_ext.getY(), max_ext.getY(), scale * ( resolution.getY() - 1 ), base_resolution.getY() ),
+                covered_coord( min_ext.getZ(), max_ext.getZ(), scale * ( resolution.getZ() - 1 ), base_resolution.getZ() ) ) );
+
+        return( coarse );
+    }
+
+    /**
+     * レベル0のノード番号nodeの外部座標を返します。
+     */
+    private static float covered_coord( final float min_ext, final float max_ext, final float node, final int base_size )
+    {
+        return( min_ext + ( max_ext - min_ext ) * node / ( base_size - 1 ) );
+    }
+
+    private void reduce_slices(
+            final AnyValueArray src,
+            final Vector3i      src_resolution,
+            final AnyValueArray dst,
+            final Vector3i      dst_resolution,
+            final int           begin,
+            final int           end )
+    {
+        final int snx = src_resolution.getX();
+        final int sny = src_resolution.getY();
+        final int snz = src_resolution.getZ();
+        final int dnx = dst_resolution.getX();
+        final int dny = dst_resolution.getY();
+
+        final boolean is_max = ( m_reduction == Reduction.Max );
+        final double[] row = new double[dnx];
+
+        for ( int k = begin; k < end; k++ )
+        {
+            for ( int j = 0; j < dny; j++ )
+            {
+                for ( int i = 0; i < dnx; i++ )
+                {
+                    double value = is_max ? -Double.MAX_VALUE : 0.0;
+                    double weight_sum = 0.0;
+                    for ( int dk = -1; dk <= 1; dk++ )
+                    {
+                        final int z = 2 * k + dk;
+                        if ( z < 0 || z >= snz ) continue;
+                        final double wz = ( dk == 0 ) ? 0.5 : 0.25;
+                        for ( int dj = -1; dj <= 1; dj++ )
+                        {
+                            final int y = 2 * j + dj;
+                            if ( y < 0 || y >= sny ) continue;
+                            final double wy = ( dj == 0 ) ? 0.5 : 0.25;
+                            final int line = ( z * sny + y ) * snx;
+                            for ( int di = -1; di <= 1; di++ )
+                            {
+                                final int x = 2 * i + di;
+                                if ( x < 0 || x >= snx ) continue;
+                                final double s = src.getDouble( line + x );
+                                if ( is_max )
+                                {
+                                    if ( s > value ) value = s;
+                                }
+                                else
+                                {
+                                    final double w = wz * wy * ( ( di == 0 ) ? 0.5 : 0.25 );
+                                    value += w * s;
+                                    weight_sum += w;
+                                }
+                            }
+                        }
+                    }
+                    row[i] = is_max ? value : value / weight_sum;
+                }
+
+                store( dst, ( k * dny + j ) * dnx, row );
+            }
+        }
+    }
+
+    private static AnyValueArray allocate( final ValueType type, final int nnodes )
+    {
+        switch ( type )
+        {
+        case Byte:          return( AnyValueArray.valueOf( ByteBuffer.allocate( nnodes ), true ) );
+        case UnsignedByte:  return( AnyValueArray.valueOf( ByteBuffer.allocate( nnodes ), false ) );
+        case Short:         return( AnyValueArray.valueOf( ShortBuffer.allocate( nnodes ), true ) );
+        case UnsignedShort: return( AnyValueArray.valueOf( ShortBuffer.allocate( nnodes ), false ) );
+        case Int:           return( AnyValueArray.valueOf( IntBuffer.allocate( nnodes ) ) );
+        case Float:         return( AnyValueArray.valueOf( FloatBuffer.allocate( nnodes ) ) );
+        default:            return( AnyValueArray.valueOf( DoubleBuffer.allocate( nnodes ) ) );
+        }
+    }
+
+    private static void store( final AnyValueArray dst, final int offset, final double[] row )
+    {
+        final Buffer buffer = dst.buffer();
+        if ( buffer instanceof ByteBuffer )
+        {
+            final ByteBuffer data = (ByteBuffer)buffer;
+            for ( int i = 0; i < row.length; i++ ) data.put( offset + i, (byte)java.lang.Math.round( row[i] ) );
+        }
+        else if ( buffer instanceof ShortBuffer )
+        {
+            final ShortBuffer data = (ShortBuffer)buffer;
+            for ( int i = 0; i < row.length; i++ ) data.put( offset + i, (short)java.lang.Math.round( row[i] ) );
+        }
+        else if ( buffer instanceof IntBuffer )
+        {
+            final IntBuffer data = (IntBuffer)buffer;
+            for ( int i = 0; i < row.length; i++ ) data.put( offset + i, (int)java.lang.Math.round( row[i] ) );
+        }
+        else if ( buffer instanceof FloatBuffer )
+        {
+            final FloatBuffer data = (FloatBuffer)buffer;
+            for ( int i = 0; i < row.length; i++ ) data.put( offset + i, (float)row[i] );
+        }
+        else
+        {
+            final DoubleBuffer data = (DoubleBuffer)buffer;
+            for ( int i = 0; i < row.length; i++ ) data.put( offset + i, row[i] );
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package kvs.core.visualization.filter;
+
+import java.lang.ref.WeakReference;
+
+import kvs.core.util.AnyValueArray.ValueType;
+import kvs.core.visualization.object.StructuredVolumeObject;
+
+/**
+ * VolumeSamplerクラスは構造格子ボリュームの値を三線形補間で取り出すクラスです。
+ * ボリュームごとにStructuredVolumeObject.sampler()で1つ作成され、レンダラやマッパー、
+ * 複数のスレッドで共有されます。補間する点の状態(カーソル)はスレッドごとに保持されます。
+ * <p>
+ * カーソルは弱参照で保持するため、使用中でなければスレッドプールのスレッドに残ったカーソルが
+ * ボリュームや置き換えられた値の配列を保持し続けることはありません。
+ */
+public final class VolumeSampler {
+
+    private final StructuredVolumeObject m_volume; ///< sampled volume
+    private final ThreadLocal<WeakReference<TrilinearInterpolator>> m_cursor; ///< interpolator of each thread
+
+    /**
+     * StructuredVolumeObject.sampler()から呼び出されます。
+     */
+    public VolumeSampler( final StructuredVolumeObject volume )
+    {
+        m_volume = volume;
+        m_cursor = new ThreadLocal<WeakReference<TrilinearInterpolator>>();
+    }
+
+    public StructuredVolumeObject volume()
+    {
+        return( m_volume );
+    }
+
+    /**
+     * 呼び出したスレッドの補間器を返します。補間器を参照している間、同じスレッドでは同じ補間器が返されるため、
+     * 同じスレッドで2つの点を同時に保持する場合はTrilinearInterpolatorを作成してください。
+     */
+    public TrilinearInterpolator interpolator()
+    {
+        final WeakReference<TrilinearInterpolator> reference = m_cursor.get();
+        final TrilinearInterpolator cached = ( reference != null ) ? reference.get() : null;
+        if ( cached != null ) return( cached );
+
+        // The interpolator refers to the volume and the volume to this sampler, so that a strong
+        // value would keep the entry of the thread-local map (and the volume) alive forever.
+        final TrilinearInterpolator interpolator = new TrilinearInterpolator( m_volume );
+        m_cursor.set( new WeakReference<TrilinearInterpolator>( interpolator ) );
+        return( interpolator );
+    }
+
+    /**
+     * 点(x,y,z)の値を返します。
+     */
+    public float scalar( final float x, final float y, final float z )
+    {
+        final TrilinearInterpolator interpolator = this.interpolator();
+        interpolator.attachPoint( x, y, z );
+        return( interpolator.scalar() );
+    }
+
+    /**
+     * 点(x,y,z)の勾配をgradientのoffset番目から格納します。
+     */
+    public void gradient( final float x, final float y, final float z, final float[] gradient, final int offset )
+    {
+        final TrilinearInterpolator interpolator = this.interpolator();
+        interpolator.attachPoint( x, y, z );
+        interpolator.gradient( gradient, offset );
+    }
+
+    /**
+     * 値をそのまま伝達関数の表の番号とする場合にtrueを返します。符号なし8ビット整数とint型の値が該当し、
+     * その他の型の値はボリュームの最小値と最大値を表の範囲に対応させます。
+     */
+    public boolean isIndexedDirectly()
+    {
+        final ValueType type = m_volume.valueArray().valueType();
+        return( type == ValueType.UnsignedByte || type == ValueType.Int );
+    }
+
+    /**
+     * 値を伝達関数の表の番号に変換するときに値から引く数(ボリュームの最小値)を返します。
+     * 番号は( value - indexOffset() ) * indexScale( resolution )を切り捨てた値です。
+     */
+    public float indexOffset()
+    {
+        if ( this.isIndexedDirectly() ) return( 0.0f );
+
+        this.update_min_max_values();
+        return( (float)m_volume.minValue() );
+    }
+
+    /**
+     * 値を伝達関数の表の番号に変換するときの倍率を返します。ボリュームの最大値が番号resolution-1になります。
+     *
+     * @param resolution 伝達関数の表の大きさ
+     */
+    public float indexScale( final int resolution )
+    {
+        if ( this.isIndexedDirectly() ) return( 1.0f );
+
+        this.update_min_max_values();
+        final double range = m_volume.maxValue() - m_volume.minValue();
+        return( range > 0.0 ? (float)( ( resolution - 1 ) / range ) : 0.0f );
+    }
+
+    private void update_min_max_values()
+    {
+        if ( !m_volume.hasMinMaxValues() )
+        {
+            m_volume.updateMinMaxValues();
+        }
+    }
+}
@@ -7,6 +7,8 @@ import kvs.core.fileformat.avsfield.AVSField.FieldType;
 import kvs.core.fileformat.kvsml.KVSMLObjectStructuredVolume;
 import kvs.core.matrix.Vector3f;
 import kvs.core.matrix.Vector3i;
+import kvs.core.util.AnyValueArray.ValueType;
+import kvs.core.visualization.object.BrickedVolumeObject;
 import kvs.core.visualization.object.ObjectBase;
 import kvs.core.visualization.object.StructuredVolumeObject;
 import kvs.core.visualization.object.VolumeObjectBase.GridType;
@@ -79,11 +81,64 @@ public class StructuredVolumeImporter extends ImporterBase {
         object.setGridType( GridType.Uniform );
         object.setVeclen( field.veclen() );
         object.setResolution( field.dim() );
-        object.setValues( field.values() );
+        object.setValues( field.valueArray() );
         
         return object;
     }
     
+    /**
+     * AVSFieldのデータ部をブリック単位で読み込むボリュームを生成します。
+     * fieldはヘッダのみ読み込まれていれば十分です(AVSField.readHeader())。
+     * 
+     * @param field AVSField
+     * @param brick_size ブリックの一辺のノード数
+     * @param max_bricks キャッシュに保持する最大ブリック数
+     * @return ブリック化されたボリューム
+     * @throws KVSException 未対応の形式の場合
+     */
+    public static BrickedVolumeObject importBrickedFile(
+            final AVSField field,
+            final int      brick_size,
+            final int      max_bricks ) throws KVSException
+    {
+        if ( field.fieldType() != FieldType.Uniform )
+        {
+            throw new KVSException( "'Uniform' type in kvs::AVSField format is only supported." );
+        }
+        if ( field.veclen() != 1 )
+        {
+            throw new KVSException( "Bricked volume supports only scalar fields." );
+        }
+
+        ValueType type;
+        switch ( field.dataType() )
+        {
+        case Byte:    type = field.isSigned() ? ValueType.Byte : ValueType.UnsignedByte; break;
+        case Short:   type = field.isSigned() ? ValueType.Short : ValueType.UnsignedShort; break;
+        case Integer: type = ValueType.Int; break;
+        case Float:   type = ValueType.Float; break;
+        case Double:  type = ValueType.Double; break;
+        default:      throw new KVSException( "Unknown data type in kvs::AVSField." );
+        }
+
+        BrickedVolumeObject object = new BrickedVolumeObject(
+                field.filename(),
+                field.dataOffset(),
+                field.dim(),
+                type,
+                field.byteOrder(),
+                brick_size,
+                max_bricks );
+
+        if ( field.hasMinMaxExt() )
+        {
+            object.setMinMaxObjectCoords( field.minExt(), field.maxExt() );
+            object.setMinMaxExternalCoords( field.minExt(), field.maxExt() );
+        }
+
+        return object;
+    }
+    
     public static final GridType StringToGridType( final String grid_type )
     {
         if (      grid_type.equals( "uniform" )     ) { return( GridType.Uniform );     }
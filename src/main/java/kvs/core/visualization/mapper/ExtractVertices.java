@@ -4,13 +4,12 @@
  */
 package kvs.core.visualization.mapper;
 
-import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import kvs.core.KVSException;
 import kvs.core.matrix.Vector3f;
 import kvs.core.matrix.Vector3i;
-import kvs.core.util.Utility;
+import kvs.core.util.AnyValueArray;
 import kvs.core.visualization.object.ObjectBase;
 import kvs.core.visualization.object.ObjectBase.ObjectType;
 import kvs.core.visualization.object.PointObject;
@@ -114,9 +113,8 @@ public class ExtractVertices extends MapperBase{
     private void calculate_colors(){
         final VolumeObjectBase volume = m_volume;
 
-        Buffer buf = volume.values();
-        double[] value = Utility.bufferToDoubleArray( buf );
-        final int end = value.length;
+        final AnyValueArray value = volume.valueArray();
+        final int end = value.size();
 
         ByteBuffer colors = ByteBuffer.allocate( 3 * volume.nnodes() );
 
@@ -138,7 +136,7 @@ public class ExtractVertices extends MapperBase{
         if ( veclen == 1 ){
             while ( index < end ){
                 int color_level =
-                        (int) (normalize_factor * (value[index++] - min_value));
+                        (int) (normalize_factor * (value.getDouble( index++ ) - min_value));
 
                 colors.put( (byte) cmap.getAt( color_level ).getRed() );
                 colors.put( (byte) cmap.getAt( color_level ).getGreen() );
@@ -149,7 +147,7 @@ public class ExtractVertices extends MapperBase{
                 double magnitude = 0.0;
 
                 for ( int i = 0; i < veclen; ++i ){
-                    magnitude = kvs.core.util.Math.square( value[index] );
+                    magnitude = kvs.core.util.Math.square( value.getDouble( index ) );
                     ++index;
                 }
                 magnitude = kvs.core.util.Math.squareRoot( magnitude );
@@ -0,0 +1,658 @@
+package kvs.core.visualization.mapper;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import kvs.core.KVSException;
+import kvs.core.matrix.Vector3i;
+import kvs.core.util.AnyValueArray;
+import kvs.core.util.ThreadPool;
+import kvs.core.visualization.object.ObjectBase;
+import kvs.core.visualization.object.PolygonObject;
+import kvs.core.visualization.object.StructuredVolumeObject;
+import kvs.core.visualization.object.VolumeObjectBase;
+import kvs.core.visualization.object.ObjectBase.ObjectType;
+import kvs.core.visualization.object.PolygonObject.ColorType;
+import kvs.core.visualization.object.PolygonObject.NormalType;
+import kvs.core.visualization.object.PolygonObject.PolygonType;
+import kvs.core.visualization.object.VolumeObjectBase.VolumeType;
+
+/**
+ * FlyingEdgesクラスはx方向のノードの行を単位とした複数パスの走査で構造格子ボリュームから等値面を抽出するクラスです。
+ * <ol>
+ * <li>各行のx方向の辺を分類し、等値点を持つ辺の範囲(トリム範囲)と数を求めます。</li>
+ * <li>隣接する行のトリム範囲から、各行のy,z方向の辺の等値点の数と各セル行の三角形の数を求めます。</li>
+ * <li>行ごとの数の累積和から、出力する配列を正確な大きさで確保します。</li>
+ * <li>各行の等値点と三角形を並列に書き込みます。</li>
+ * </ol>
+ * 等値点と三角形はMarchingCubesと同じ分類(value &gt; isolevel)と補間で求められ、
+ * 出力するポリゴンオブジェクトの形式もMarchingCubesと同じです。
+ */
+public class FlyingEdges extends MapperBase {
+
+    private static final long serialVersionUID = -2311687416453350171L;
+    private double  m_isolevel    = 0;    ///< isosurface level
+    private boolean m_duplication = true; ///< duplication flag
+    private boolean m_gradient_normal = false; ///< true if the vertex normals are calculated from the gradient
+
+    private PolygonObject m_object = new PolygonObject();
+
+    private AnyValueArray m_values;         ///< node values
+    private int           m_nx;             ///< number of the nodes in x
+    private int           m_ny;             ///< number of the nodes in y
+    private int           m_nz;             ///< number of the nodes in z
+    private byte[]        m_edge_cases;     ///< x-edge cases (bit 0: start node > isolevel, bit 1: end node > isolevel)
+    private int[]         m_trim_left;      ///< first x-edge with an isopoint in each row (nx if none)
+    private int[]         m_trim_right;     ///< last x-edge with an isopoint + 1 in each row (0 if none)
+    private int[]         m_first_x;        ///< number of the first isopoint on the x-edges of each row
+    private int[]         m_first_y;        ///< number of the first isopoint on the y-edges of each row
+    private int[]         m_first_z;        ///< number of the first isopoint on the z-edges of each row
+    private int[]         m_first_triangle; ///< number of the first triangle of each cell row
+    private float[]       m_coords;         ///< isopoint coordinates
+    private int[]         m_connections;    ///< isopoint numbers of the triangles
+
+    /**
+     * セルの種類ごとの三角形の数です。
+     */
+    private static final int[] NumTriangles = new int[256];
+    static
+    {
+        for ( int i = 0; i < 256; i++ )
+        {
+            int n = 0;
+            while ( MarchingCubesTable.TriangleID[i][ 3 * n ] != -1 ) n++;
+            NumTriangles[i] = n;
+        }
+    }
+
+    private enum Pass
+    {
+        Classify, ///< classify the x-edges of each row
+        Count,    ///< count the isopoints and the triangles of each row
+        Generate  ///< write the isopoints and the triangles of each row
+    };
+
+    public FlyingEdges(){
+        super();
+    }
+
+    public FlyingEdges(
+            final double           isolevel,
+            final NormalType       normal_type,
+            final boolean          duplication,
+            final TransferFunction transfer_function )
+    {
+        super( transfer_function );
+        m_duplication = duplication;
+        m_object.setNormalType( normal_type );
+
+        this.setIsolevel( isolevel );
+    }
+
+    public void setIsolevel( final double isolevel )
+    {
+        m_isolevel = isolevel;
+    }
+
+    /**
+     * 頂点の法線ベクトルを、頂点の位置でのスカラー場の勾配から求めるようにします(MarchingCubesと同じ)。
+     */
+    public void enableGradientNormal()
+    {
+        m_gradient_normal = true;
+    }
+
+    public void disableGradientNormal()
+    {
+        m_gradient_normal = false;
+    }
+
+    public boolean isEnabledGradientNormal()
+    {
+        return( m_gradient_normal );
+    }
+
+    @Override
+    public ObjectBase exec( ObjectBase object ) throws KVSException {
+        final ObjectType object_type = object.objectType();
+        if ( object_type == ObjectType.Geometry )
+        {
+            throw new KVSException("Geometry object is not supported.");
+        }
+
+        // In the case of VertexNormal-type, the duplicated vertices are forcibly deleted.
+        if ( m_object.normalType() == NormalType.VertexNormal )
+        {
+            m_duplication = false;
+        }
+
+        final VolumeObjectBase volume = (VolumeObjectBase)object;
+        if ( volume.volumeType() != VolumeType.Structured )
+        {
+            throw new KVSException("Unstructured volume object is not supported.");
+        }
+        if ( volume.veclen() != 1 )
+        {
+            throw new KVSException("The input volume is not a sclar field data.");
+        }
+
+        // Attach the pointer to the volume object.
+        attach_volume( volume );
+
+        // Set the min/max coordinates.
+        set_min_max_coords( volume, m_object );
+
+        // Extract surfaces.
+        this.extract_surfaces( (StructuredVolumeObject)volume );
+
+        return( m_object );
+    }
+
+    private void extract_surfaces( final StructuredVolumeObject volume )
+    {
+        final Vector3i resolution = volume.resolution();
+        m_values = volume.valueArray();
+        m_nx     = resolution.getX();
+        m_ny     = resolution.getY();
+        m_nz     = resolution.getZ();
+
+        m_coords      = new float[0];
+        m_connections = new int[0];
+        if ( m_nx > 1 && m_ny > 1 && m_nz > 1 )
+        {
+            final int nrows = m_ny * m_nz;
+            m_edge_cases     = new byte[ ( m_nx - 1 ) * nrows ];
+            m_trim_left      = new int[nrows];
+            m_trim_right     = new int[nrows];
+            m_first_x        = new int[nrows];
+            m_first_y        = new int[nrows];
+            m_first_z        = new int[nrows];
+            m_first_triangle = new int[nrows + 1];
+
+            // Pass 1 and 2: the numbers of the isopoints and the triangles of each row are stored.
+            this.run( Pass.Classify );
+            this.run( Pass.Count );
+
+            // Pass 3: the numbers are turned into the first numbers of each row.
+            int nvertices  = 0;
+            int ntriangles = 0;
+            for ( int row = 0; row < nrows; row++ )
+            {
+                final int nx = m_first_x[row];
+                final int ny = m_first_y[row];
+                final int nz = m_first_z[row];
+                final int nt = m_first_triangle[row];
+                m_first_x[row]        = nvertices;
+                m_first_y[row]        = nvertices + nx;
+                m_first_z[row]        = nvertices + nx + ny;
+                m_first_triangle[row] = ntriangles;
+                nvertices  += nx + ny + nz;
+                ntriangles += nt;
+            }
+            m_first_triangle[nrows] = ntriangles;
+
+            // Pass 4: the rows are written in parallel into the exactly allocated arrays.
+            m_coords      = new float[ 3 * nvertices ];
+            m_connections = new int[ 3 * ntriangles ];
+            this.run( Pass.Generate );
+
+            m_edge_cases     = null;
+            m_trim_left      = null;
+            m_trim_right     = null;
+            m_first_x        = null;
+            m_first_y        = null;
+            m_first_z        = null;
+            m_first_triangle = null;
+        }
+        float[] coords      = m_coords;
+        int[]   connections = m_connections;
+        m_values      = null;
+        m_coords      = null;
+        m_connections = null;
+
+        // The polygon normals of the duplicated vertices are calculated together with the vertices.
+        float[] normals = null;
+        if ( m_duplication )
+        {
+            final float[][] arrays = this.duplicate_vertices( coords, connections, !m_gradient_normal );
+            coords  = arrays[0];
+            normals = arrays[1];
+            m_object.setNormalType( NormalType.PolygonNormal );
+        }
+        else if ( !m_gradient_normal )
+        {
+            normals = ( m_object.normalType() == NormalType.PolygonNormal ) ?
+                    SurfaceNormals.calculateOnPolygon( coords, connections ) :
+                    SurfaceNormals.calculateOnVertex( coords, connections );
+        }
+
+        if ( m_gradient_normal )
+        {
+            normals = SurfaceNormals.calculateFromGradient( volume, coords, coords.length / 3 );
+            m_object.setNormalType( NormalType.VertexNormal );
+        }
+
+        // Calculate the polygon color for the isolevel.
+        final Color color = this.calculate_color();
+
+        m_object.setCoords( coords );
+        if ( !m_duplication ) m_object.setConnections( connections );
+        m_object.setColor( color );
+        m_object.setNormals( normals );
+        m_object.setOpacity( (byte)255 );
+        m_object.setPolygonType( PolygonType.Triangle );
+        m_object.setColorType( ColorType.PolygonColor );
+    }
+
+    /**
+     * z方向のスライスごとにパスを並列に実行します。
+     */
+    private void run( final Pass pass )
+    {
+        final int[] bounds = ThreadPool.split( m_nz, ThreadPool.nthreads() * 4, 1 );
+        final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for ( int i = 0; i + 1 < bounds.length; i++ )
+        {
+            final int z_begin = bounds[i];
+            final int z_end   = bounds[i + 1];
+            tasks.add( new Callable<Object>()
+            {
+                public Object call()
+                {
+                    final int[]    range  = new int[2];
+                    final double[] values = new double[m_nx];
+                    for ( int z = z_begin; z < z_end; z++ )
+                    {
+                        for ( int y = 0; y < m_ny; y++ )
+                        {
+                            switch ( pass )
+                            {
+                            case Classify: classify_row( y, z, values ); break;
+                            case Count:    count_row( y, z, range ); break;
+                            default:       generate_row( y, z, range ); break;
+                            }
+                        }
+                    }
+                    return( null );
+                }
+            } );
+        }
+        ThreadPool.invokeAll( tasks );
+    }
+
+    /**
+     * パス1: 行(y,z)のx方向の辺を分類し、トリム範囲と等値点の数を求めます。
+     * 行の値は要素の型ごとのループで一度に読み込まれます。
+     *
+     * @param values 行の値を読み込む作業用の配列
+     */
+    private void classify_row( final int y, final int z, final double[] values )
+    {
+        final int row    = y + m_ny * z;
+        final int cases  = ( m_nx - 1 ) * row;
+        m_values.getDoubles( m_nx * row, values, 0, m_nx );
+
+        int left   = m_nx;
+        int right  = 0;
+        int count  = 0;
+        int side0  = ( values[0] > m_isolevel ) ? 1 : 0;
+        for ( int x = 0; x < m_nx - 1; x++ )
+        {
+            final int side1 = ( values[ x + 1 ] > m_isolevel ) ? 1 : 0;
+            final int c = side0 | ( side1 << 1 );
+            m_edge_cases[ cases + x ] = (byte)c;
+            if ( c == 1 || c == 2 )
+            {
+                if ( left == m_nx ) left = x;
+                right = x + 1;
+                count++;
+            }
+            side0 = side1;
+        }
+
+        m_trim_left[row]  = left;
+        m_trim_right[row] = right;
+        m_first_x[row]    = count;
+    }
+
+    /**
+     * パス2: 行(y,z)から+y,+z方向の辺の等値点の数と、行(y,z)を底辺とするセル行の三角形の数を求めます。
+     */
+    private void count_row( final int y, final int z, final int[] range )
+    {
+        final int row = y + m_ny * z;
+
+        if ( y < m_ny - 1 && this.trim_rows( row, row + 1, row, row + 1, range ) )
+        {
+            m_first_y[row] = this.count_crossings( row, row + 1, range );
+        }
+
+        if ( z < m_nz - 1 && this.trim_rows( row, row + m_ny, row, row + m_ny, range ) )
+        {
+            m_first_z[row] = this.count_crossings( row, row + m_ny, range );
+        }
+
+        if ( y < m_ny - 1 && z < m_nz - 1 &&
+             this.trim_rows( row, row + 1, row + m_ny, row + m_ny + 1, range ) )
+        {
+            final int a = ( m_nx - 1 ) * row;
+            final int b = a + ( m_nx - 1 );
+            final int c = a + ( m_nx - 1 ) * m_ny;
+            final int d = c + ( m_nx - 1 );
+
+            int ntriangles = 0;
+            for ( int x = range[0]; x < range[1]; x++ )
+            {
+                ntriangles += NumTriangles[ table_index(
+                        m_edge_cases[ a + x ], m_edge_cases[ b + x ],
+                        m_edge_cases[ c + x ], m_edge_cases[ d + x ] ) ];
+            }
+            m_first_triangle[row] = ntriangles;
+        }
+    }
+
+    /**
+     * パス4: 行(y,z)が持つ等値点と、行(y,z)を底辺とするセル行の三角形を書き込みます。
+     */
+    private void generate_row( final int y, final int z, final int[] range )
+    {
+        final float[] coords      = m_coords;
+        final int[]   connections = m_connections;
+
+        final int row    = y + m_ny * z;
+        final int offset = m_nx * row;
+        final int cases  = ( m_nx - 1 ) * row;
+
+        // Isopoints on the x-edges.
+        int id = m_first_x[row];
+        for ( int x = m_trim_left[row]; x < m_trim_right[row]; x++ )
+        {
+            final int c = m_edge_cases[ cases + x ];
+            if ( c == 1 || c == 2 )
+            {
+                this.set_isopoint( coords, id++, offset + x, offset + x + 1, x, y, z, 0 );
+            }
+        }
+
+        // Isopoints on the y-edges.
+        if ( y < m_ny - 1 && this.trim_rows( row, row + 1, row, row + 1, range ) )
+        {
+            id = m_first_y[row];
+            for ( int x = range[0]; x <= range[1]; x++ )
+            {
+                if ( this.side( row, x ) != this.side( row + 1, x ) )
+                {
+                    this.set_isopoint( coords, id++, offset + x, offset + x + m_nx, x, y, z, 1 );
+                }
+            }
+        }
+
+        // Isopoints on the z-edges.
+        if ( z < m_nz - 1 && this.trim_rows( row, row + m_ny, row, row + m_ny, range ) )
+        {
+            id = m_first_z[row];
+            for ( int x = range[0]; x <= range[1]; x++ )
+            {
+                if ( this.side( row, x ) != this.side( row + m_ny, x ) )
+                {
+                    this.set_isopoint( coords, id++, offset + x, offset + x + m_nx * m_ny, x, y, z, 2 );
+                }
+            }
+        }
+
+        // Triangles of the cell row.
+        if ( y < m_ny - 1 && z < m_nz - 1 &&
+             m_first_triangle[row] != m_first_triangle[row + 1] &&
+             this.trim_rows( row, row + 1, row + m_ny, row + m_ny + 1, range ) )
+        {
+            // Rows of the cell corners: a(y,z), b(y+1,z), c(y,z+1), d(y+1,z+1).
+            final int ra = row;
+            final int rb = row + 1;
+            final int rc = row + m_ny;
+            final int rd = row + m_ny + 1;
+            final int a = ( m_nx - 1 ) * ra;
+            final int b = ( m_nx - 1 ) * rb;
+            final int c = ( m_nx - 1 ) * rc;
+            final int d = ( m_nx - 1 ) * rd;
+
+            // The isopoints left of the trimmed range are none, so the numbers start from the first ones.
+            int xa = m_first_x[ra];
+            int xb = m_first_x[rb];
+            int xc = m_first_x[rc];
+            int xd = m_first_x[rd];
+            int ya = m_first_y[ra];
+            int yc = m_first_y[rc];
+            int za = m_first_z[ra];
+            int zb = m_first_z[rb];
+
+            final int[] local_edge = new int[12];
+            int index = 3 * m_first_triangle[row];
+            for ( int x = range[0]; x < range[1]; x++ )
+            {
+                final int ca = m_edge_cases[ a + x ];
+                final int cb = m_edge_cases[ b + x ];
+                final int cc = m_edge_cases[ c + x ];
+                final int cd = m_edge_cases[ d + x ];
+
+                // Whether the y- and z-edges at the nodes x and x+1 have the isopoints.
+                final int ya0 = ( ( ca ^ cb ) & 1 );
+                final int yc0 = ( ( cc ^ cd ) & 1 );
+                final int za0 = ( ( ca ^ cc ) & 1 );
+                final int zb0 = ( ( cb ^ cd ) & 1 );
+
+                final int table_index = table_index( ca, cb, cc, cd );
+                if ( table_index != 0 && table_index != 255 )
+                {
+                    local_edge[ 0] = xa;
+                    local_edge[ 1] = ya + ya0;
+                    local_edge[ 2] = xb;
+                    local_edge[ 3] = ya;
+                    local_edge[ 4] = xc;
+                    local_edge[ 5] = yc + yc0;
+                    local_edge[ 6] = xd;
+                    local_edge[ 7] = yc;
+                    local_edge[ 8] = za;
+                    local_edge[ 9] = za + za0;
+                    local_edge[10] = zb + zb0;
+                    local_edge[11] = zb;
+
+                    for ( int i = 0; MarchingCubesTable.TriangleID[table_index][i] != -1; i += 3 )
+                    {
+                        connections[ index++ ] = local_edge[ MarchingCubesTable.TriangleID[table_index][i]   ];
+                        connections[ index++ ] = local_edge[ MarchingCubesTable.TriangleID[table_index][i+2] ];
+                        connections[ index++ ] = local_edge[ MarchingCubesTable.TriangleID[table_index][i+1] ];
+                    }
+                }
+
+                // Advance past the edges at the node x.
+                if ( ca == 1 || ca == 2 ) xa++;
+                if ( cb == 1 || cb == 2 ) xb++;
+                if ( cc == 1 || cc == 2 ) xc++;
+                if ( cd == 1 || cd == 2 ) xd++;
+                ya += ya0;
+                yc += yc0;
+                za += za0;
+                zb += zb0;
+            }
+        }
+    }
+
+    /**
+     * 行r0～r3の間の辺や行をまたぐセルに等値面が存在し得るノードの範囲を求めます。
+     * 範囲の外側では、どの行にもx方向の等値点がなく、すべての行のノードが等値面の同じ側にあります。
+     *
+     * @param range ノードの範囲{最初, 最後}を格納する配列
+     * @return 等値面が存在し得ない場合はfalse
+     */
+    private boolean trim_rows( final int r0, final int r1, final int r2, final int r3, final int[] range )
+    {
+        int left  = java.lang.Math.min(
+                java.lang.Math.min( m_trim_left[r0], m_trim_left[r1] ),
+                java.lang.Math.min( m_trim_left[r2], m_trim_left[r3] ) );
+        int right = java.lang.Math.max(
+                java.lang.Math.max( m_trim_right[r0], m_trim_right[r1] ),
+                java.lang.Math.max( m_trim_right[r2], m_trim_right[r3] ) );
+
+        if ( left > right )
+        {
+            // Every row lies on one side of the isosurface.
+            if ( this.same_side( r0, r1, r2, r3, 0 ) ) return( false );
+            left  = 0;
+            right = m_nx - 1;
+        }
+        else
+        {
+            if ( !this.same_side( r0, r1, r2, r3, left ) )  left  = 0;
+            if ( !this.same_side( r0, r1, r2, r3, right ) ) right = m_nx - 1;
+        }
+
+        range[0] = left;
+        range[1] = right;
+        return( true );
+    }
+
+    private boolean same_side( final int r0, final int r1, final int r2, final int r3, final int x )
+    {
+        final int s = this.side( r0, x );
+        return( this.side( r1, x ) == s && this.side( r2, x ) == s && this.side( r3, x ) == s );
+    }
+
+    /**
+     * ノード(x,row)が等値面の値より大きい場合は1、そうでない場合は0を返します。
+     */
+    private int side( final int row, final int x )
+    {
+        final int offset = ( m_nx - 1 ) * row;
+        return( ( x < m_nx - 1 ) ? ( m_edge_cases[ offset + x ] & 1 ) : ( m_edge_cases[ offset + x - 1 ] >> 1 ) );
+    }
+
+    /**
+     * 範囲内のノードのうち、行r0とr1で等値面の反対側にあるノードの数を返します。
+     */
+    private int count_crossings( final int r0, final int r1, final int[] range )
+    {
+        int count = 0;
+        for ( int x = range[0]; x <= range[1]; x++ )
+        {
+            if ( this.side( r0, x ) != this.side( r1, x ) ) count++;
+        }
+
+        return( count );
+    }
+
+    /**
+     * セルの4本のx方向の辺の分類からMarchingCubesTableの番号を求めます。
+     *
+     * @param ca 行(y,z)の辺の分類
+     * @param cb 行(y+1,z)の辺の分類
+     * @param cc 行(y,z+1)の辺の分類
+     * @param cd 行(y+1,z+1)の辺の分類
+     */
+    private static int table_index( final int ca, final int cb, final int cc, final int cd )
+    {
+        return( ( ca & 1 ) | ( ( ca >> 1 ) << 1 ) | ( ( cb >> 1 ) << 2 ) | ( ( cb & 1 ) << 3 ) |
+                ( ( cc & 1 ) << 4 ) | ( ( cc >> 1 ) << 5 ) | ( ( cd >> 1 ) << 6 ) | ( ( cd & 1 ) << 7 ) );
+    }
+
+    /**
+     * ノード(x,y,z)から+axis方向の辺上の等値点をid番目に格納します。
+     *
+     * @param index0 ノード(x,y,z)の番号
+     * @param index1 辺の他方のノードの番号
+     * @param axis 辺の方向(0:x, 1:y, 2:z)
+     */
+    private void set_isopoint(
+            final float[] coords,
+            final int     id,
+            final int     index0,
+            final int     index1,
+            final int x, final int y, final int z,
+            final int     axis )
+    {
+        final double v0 = m_values.getDouble( index0 );
+        final double v1 = m_values.getDouble( index1 );
+        final float ratio = (float)( kvs.core.util.Math.abs( ( m_isolevel - v0 ) / ( v1 - v0 ) ) );
+
+        // Same arithmetic as MarchingCubes so that both extractions give the same coordinates.
+        final float x1 = ( axis == 0 ) ? x + 1 : x;
+        final float y1 = ( axis == 1 ) ? y + 1 : y;
+        final float z1 = ( axis == 2 ) ? z + 1 : z;
+        coords[ 3 * id     ] = ( 1.0f - ratio ) * x + ratio * x1;
+        coords[ 3 * id + 1 ] = ( 1.0f - ratio ) * y + ratio * y1;
+        coords[ 3 * id + 2 ] = ( 1.0f - ratio ) * z + ratio * z1;
+    }
+
+    /**
+     * 三角形ごとに頂点を複製した座標と三角形ごとの法線ベクトルを並列に求めます。
+     *
+     * @param with_normals 法線ベクトルを求める場合はtrue
+     * @return {座標, 法線ベクトル(with_normalsがfalseの場合はnull)}
+     */
+    private float[][] duplicate_vertices( final float[] coords, final int[] connections, final boolean with_normals )
+    {
+        final float[] duplicated = new float[ 3 * connections.length ];
+        final float[] normals    = with_normals ? new float[ connections.length ] : null;
+
+        final int ntriangles = connections.length / 3;
+        final int[] bounds = ThreadPool.split( ntriangles, ThreadPool.nthreads() * 4, 4096 );
+        final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for ( int i = 0; i + 1 < bounds.length; i++ )
+        {
+            final int begin = bounds[i];
+            final int end   = bounds[i + 1];
+            tasks.add( new Callable<Object>()
+            {
+                public Object call()
+                {
+                    for ( int t = begin; t < end; t++ )
+                    {
+                        for ( int k = 0; k < 3; k++ )
+                        {
+                            final int src = 3 * connections[ 3 * t + k ];
+                            final int dst = 9 * t + 3 * k;
+                            duplicated[ dst     ] = coords[ src     ];
+                            duplicated[ dst + 1 ] = coords[ src + 1 ];
+                            duplicated[ dst + 2 ] = coords[ src + 2 ];
+                        }
+                        if ( normals == null ) continue;
+
+                        final int v = 9 * t;
+                        final float ux = duplicated[ v + 3 ] - duplicated[ v     ];
+                        final float uy = duplicated[ v + 4 ] - duplicated[ v + 1 ];
+                        final float uz = duplicated[ v + 5 ] - duplicated[ v + 2 ];
+                        final float wx = duplicated[ v + 6 ] - duplicated[ v     ];
+                        final float wy = duplicated[ v + 7 ] - duplicated[ v + 1 ];
+                        final float wz = duplicated[ v + 8 ] - duplicated[ v + 2 ];
+                        normals[ 3 * t     ] = uy * wz - uz * wy;
+                        normals[ 3 * t + 1 ] = uz * wx - ux * wz;
+                        normals[ 3 * t + 2 ] = ux * wy - uy * wx;
+                    }
+                    return( null );
+                }
+            } );
+        }
+        ThreadPool.invokeAll( tasks );
+
+        return( new float[][] { duplicated, normals } );
+    }
+
+    private Color calculate_color()
+    {
+        // Calculate the min/max values of the node data.
+        if ( !m_volume.hasMinMaxValues() )
+        {
+            m_volume.updateMinMaxValues();
+        }
+
+        final double min_value = m_volume.minValue();
+        final double max_value = m_volume.maxValue();
+        final double normalize_factor = 255.0 / ( max_value - min_value );
+        int  index = (int)( normalize_factor * ( m_isolevel - min_value ) );
+        if( index < 0 ) index = 0;
+        if( index > 255 ) index = 255;
+
+        return( transferFunction().colorMap().getAt( index ) );
+    }
+}
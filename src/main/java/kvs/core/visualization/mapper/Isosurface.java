@@ -1,5 +1,8 @@
 package kvs.core.visualization.mapper;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import kvs.core.KVSException;
 import kvs.core.visualization.object.ObjectBase;
 import kvs.core.visualization.object.PolygonObject;
@@ -12,9 +15,21 @@ import kvs.core.visualization.object.VolumeObjectBase.VolumeType;
 
 public class Isosurface extends MapperBase {
 
+    /**
+     * 構造格子ボリュームの等値面の抽出方法です。
+     */
+    public enum Method
+    {
+        MarchingCubes, ///< MarchingCubes
+        FlyingEdges    ///< FlyingEdges
+    };
+
     private static final long serialVersionUID = -5762794166363059513L;
     private double  m_isolevel      = 0;    ///< isosurface level
+    private double[] m_isolevels    = null; ///< isosurface levels extracted by execLevels()
     private boolean m_duplication   = true; ///< duplication flag
+    private Method  m_method        = Method.MarchingCubes; ///< extraction method for structured volumes
+    private boolean m_gradient_normal = false; ///< true if the vertex normals are calculated from the gradient
 
     PolygonObject m_object = new PolygonObject();
 
@@ -60,6 +75,123 @@ public class Isosurface extends MapperBase {
         //this.exec( volume );
     }
 
+    /**
+     * 構造格子ボリュームの等値面の抽出方法を設定します。非構造格子ボリュームでは常にMarchingTetrahedraを使用します。
+     *
+     * @param method 抽出方法
+     */
+    public void setMethod( final Method method )
+    {
+        m_method = method;
+    }
+
+    public Method method()
+    {
+        return( m_method );
+    }
+
+    /**
+     * 構造格子ボリュームの等値面の頂点の法線ベクトルを、スカラー場の勾配から求めるようにします。
+     * 非構造格子ボリュームでは無視されます。
+     */
+    public void enableGradientNormal()
+    {
+        m_gradient_normal = true;
+    }
+
+    public void disableGradientNormal()
+    {
+        m_gradient_normal = false;
+    }
+
+    public boolean isEnabledGradientNormal()
+    {
+        return( m_gradient_normal );
+    }
+
+    /**
+     * execLevels()で抽出する等値面の値を設定します。
+     *
+     * @param isolevels 等値面の値の配列
+     */
+    public void setIsolevels( final double[] isolevels )
+    {
+        m_isolevels = isolevels.clone();
+    }
+
+    /**
+     * setIsolevels()で設定したすべての等値面を抽出します。構造格子ボリュームでは
+     * ボリュームを一度だけ走査し、各セルをすべての等値面の値に対して分類します。
+     *
+     * @param object ボリュームオブジェクト
+     * @return 等値面ごとのポリゴンオブジェクト(setIsolevels()の順)
+     * @throws KVSException ボリュームが処理できない場合
+     */
+    public List<PolygonObject> execLevels( ObjectBase object ) throws KVSException {
+        if ( object.objectType() != ObjectType.Volume )
+        {
+            throw new KVSException("Geometry object is inputed.");
+        }
+
+        final VolumeObjectBase volume = (VolumeObjectBase)object;
+        if ( volume.veclen() != 1 )
+        {
+            throw new KVSException("The input volume is not a sclar field data.");
+        }
+
+        final double[] isolevels = ( m_isolevels == null ) ? new double[] { m_isolevel } : m_isolevels;
+        if ( volume.volumeType() == VolumeType.Structured && m_method == Method.MarchingCubes )
+        {
+            MarchingCubes factory = (MarchingCubes)this.structured_mapper( m_isolevel );
+            factory.setIsolevels( isolevels );
+
+            return( factory.execLevels( volume ) );
+        }
+        else
+        {
+            // FlyingEdges and MarchingTetrahedra extract one isolevel per pass.
+            final List<PolygonObject> polygons = new ArrayList<PolygonObject>();
+            for ( double isolevel : isolevels )
+            {
+                final MapperBase factory = ( volume.volumeType() == VolumeType.Structured ) ?
+                        this.structured_mapper( isolevel ) :
+                        new MarchingTetrahedra( isolevel, m_object.normalType(), m_duplication, this.transferFunction() );
+
+                polygons.add( (PolygonObject)factory.exec( volume ) );
+            }
+
+            return( polygons );
+        }
+    }
+
+    /**
+     * 構造格子ボリュームの等値面の三角形を、ポリゴンオブジェクトを生成せずに出力先へ逐次書き出します。
+     * 抽出方法の設定にかかわらずMarchingCubesを使用します(MarchingCubes.execTo()を参照)。
+     *
+     * @param object 構造格子ボリューム
+     * @param sink 三角形の出力先
+     * @throws KVSException ボリュームが処理できない場合、または出力できない場合
+     */
+    public void execTo( ObjectBase object, TriangleSink sink ) throws KVSException {
+        if ( object.objectType() != ObjectType.Volume )
+        {
+            throw new KVSException("Geometry object is inputed.");
+        }
+        if ( ((VolumeObjectBase)object).volumeType() != VolumeType.Structured )
+        {
+            throw new KVSException("Unstructured volume object is not supported.");
+        }
+
+        final MarchingCubes factory = new MarchingCubes(
+                m_isolevel,
+                m_object.normalType(),
+                true,
+                this.transferFunction() );
+        if ( m_gradient_normal ) factory.enableGradientNormal();
+
+        factory.execTo( object, sink );
+    }
+
     @Override
     public ObjectBase exec( ObjectBase object ) throws KVSException {
                     System.out.println( "isosurface exec..." );
@@ -92,11 +224,7 @@ public class Isosurface extends MapperBase {
             final StructuredVolumeObject structured_volume =
                 (StructuredVolumeObject)volume;
             
-            MarchingCubes factory = new MarchingCubes(
-                    m_isolevel,
-                    m_object.normalType(),
-                    m_duplication,
-                    this.transferFunction() );
+            final MapperBase factory = this.structured_mapper( m_isolevel );
 
             PolygonObject polygon = (PolygonObject)factory.exec(structured_volume);
             if ( polygon == null )
@@ -132,4 +260,30 @@ public class Isosurface extends MapperBase {
         }
     }
 
+    /**
+     * 構造格子ボリュームの等値面を抽出するクラスを設定に従って生成します。
+     */
+    private MapperBase structured_mapper( final double isolevel )
+    {
+        if ( m_method == Method.FlyingEdges )
+        {
+            final FlyingEdges mapper = new FlyingEdges(
+                    isolevel,
+                    m_object.normalType(),
+                    m_duplication,
+                    this.transferFunction() );
+            if ( m_gradient_normal ) mapper.enableGradientNormal();
+
+            return( mapper );
+        }
+
+        final MarchingCubes mapper = new MarchingCubes(
+                isolevel,
+                m_object.normalType(),
+                m_duplication,
+                this.transferFunction() );
+        if ( m_gradient_normal ) mapper.enableGradientNormal();
+
+        return( mapper );
+    }
 }
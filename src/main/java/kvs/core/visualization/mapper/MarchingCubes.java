@@ -1,15 +1,22 @@
 package kvs.core.visualization.mapper;
 
 import java.awt.Color;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import kvs.core.KVSException;
-import kvs.core.matrix.Vector3f;
 import kvs.core.matrix.Vector3i;
-import kvs.core.util.Utility;
+import kvs.core.util.AnyValueArray;
+import kvs.core.util.FloatArrayList;
+import kvs.core.util.IntArrayList;
+import kvs.core.util.ThreadPool;
+import kvs.core.visualization.object.MinMaxGrid;
 import kvs.core.visualization.object.ObjectBase;
 import kvs.core.visualization.object.PolygonObject;
+import kvs.core.visualization.object.SpanSpaceIndex;
 import kvs.core.visualization.object.StructuredVolumeObject;
 import kvs.core.visualization.object.VolumeObjectBase;
 import kvs.core.visualization.object.ObjectBase.ObjectType;
@@ -22,10 +29,28 @@ public class MarchingCubes extends MapperBase {
 
     private static final long serialVersionUID = 8672567272642924408L;
     private double  m_isolevel      = 0;    ///< isosurface level
+    private double[] m_isolevels    = null; ///< isosurface levels extracted by execLevels()
     private boolean m_duplication   = true; ///< duplication flag
+    private boolean m_gradient_normal = false; ///< true if the vertex normals are calculated from the gradient
 
     private PolygonObject m_object = new PolygonObject();
-    private double[]  baseValues; 
+    private AnyValueArray baseValues; 
+    private MinMaxGrid    m_grid;          ///< min/max values of the blocks
+    private int[]         m_row_start;     ///< start of the active blocks of each block row in m_row_blocks
+    private int[]         m_row_blocks;    ///< x-indices of the active blocks ordered by block row
+    private double[]      m_levels;        ///< isolevels being extracted in ascending order
+
+    private static final int StreamSlabSize = 4; ///< number of the cell layers per slab in execTo()
+
+    /**
+     * 辺の両端の頂点のセル内での番号です(頂点の順はMarchingCubesTable.VertexIDと同じ)。
+     */
+    private static final int[][] EdgeCorner =
+    {
+        { 0, 1 }, { 1, 2 }, { 2, 3 }, { 3, 0 },
+        { 4, 5 }, { 5, 6 }, { 6, 7 }, { 7, 4 },
+        { 0, 4 }, { 1, 5 }, { 2, 6 }, { 3, 7 }
+    };
 
 
     public MarchingCubes(){
@@ -54,8 +79,151 @@ public class MarchingCubes extends MapperBase {
         m_isolevel = isolevel;
     }
 
+    /**
+     * 頂点の法線ベクトルを、頂点の位置でのスカラー場の勾配から求めるようにします。
+     * 法線ベクトルは頂点ごとに並列に求められ、頂点を重複させる場合にも滑らかなシェーディングになります。
+     * 出力するポリゴンオブジェクトの法線ベクトルの種類はVertexNormalになります。
+     */
+    public void enableGradientNormal()
+    {
+        m_gradient_normal = true;
+    }
+
+    public void disableGradientNormal()
+    {
+        m_gradient_normal = false;
+    }
+
+    public boolean isEnabledGradientNormal()
+    {
+        return( m_gradient_normal );
+    }
+
+    /**
+     * execLevels()で抽出する等値面の値を設定します。
+     *
+     * @param isolevels 等値面の値の配列
+     */
+    public void setIsolevels( final double[] isolevels )
+    {
+        m_isolevels = isolevels.clone();
+    }
+
+    public double[] isolevels()
+    {
+        return( m_isolevels == null ? new double[] { m_isolevel } : m_isolevels.clone() );
+    }
+
     @Override
     public ObjectBase exec( ObjectBase object ) throws KVSException {
+        final StructuredVolumeObject volume = this.check_volume( object );
+
+        this.mapping( volume, new double[] { m_isolevel }, new PolygonObject[] { m_object } );
+
+        return( m_object );
+    }
+
+    /**
+     * setIsolevels()で設定したすべての等値面を抽出します。
+     * 各セルは一度だけ読み込まれ、すべての等値面の値に対して分類されるため、
+     * 等値面ごとにexec()を呼ぶよりもボリュームの走査が少なくなります。
+     * 各ポリゴンオブジェクトの色は伝達関数の等値面の値に対応する色です。
+     *
+     * @param object 構造格子ボリューム
+     * @return 等値面ごとのポリゴンオブジェクト(setIsolevels()の順)
+     * @throws KVSException ボリュームが処理できない場合
+     */
+    public List<PolygonObject> execLevels( ObjectBase object ) throws KVSException {
+        final StructuredVolumeObject volume = this.check_volume( object );
+
+        final double[] isolevels = this.isolevels();
+        final PolygonObject[] objects = new PolygonObject[isolevels.length];
+        for ( int i = 0; i < objects.length; i++ )
+        {
+            objects[i] = new PolygonObject();
+            objects[i].setNormalType( m_object.normalType() );
+        }
+
+        this.mapping( volume, isolevels, objects );
+
+        return( Arrays.asList( objects ) );
+    }
+
+    /**
+     * 等値面の三角形を、頂点を共有しないままz方向のスラブの順に出力先へ書き出します。
+     * ポリゴンオブジェクトは生成されず、同時に保持されるのは並列に処理する数スラブ分の三角形のみです。
+     * 勾配による法線ベクトルが有効またはVertexNormalの場合は頂点ごとの法線ベクトルを勾配から求め、
+     * それ以外は三角形ごとの法線ベクトルを出力します。三角形の順序はexec()で重複を許した場合と同じです。
+     *
+     * @param object 構造格子ボリューム
+     * @param sink 三角形の出力先
+     * @throws KVSException ボリュームが処理できない場合、または出力できない場合(出力先はabort()で中止され、
+     *                      abort()も失敗した場合はその例外が送出されます)
+     */
+    public void execTo( ObjectBase object, final TriangleSink sink ) throws KVSException {
+        final StructuredVolumeObject volume = this.check_volume( object );
+        if ( volume.veclen() != 1 )
+        {
+            throw new KVSException("The input volume is not a sclar field data.");
+        }
+
+        attach_volume( volume );
+        baseValues = m_volume.valueArray();
+        m_levels   = new double[] { m_isolevel };
+        m_grid     = volume.minMaxGrid();
+        this.set_active_blocks( this.active_blocks() );
+
+        final boolean vertex_normal = m_gradient_normal || m_object.normalType() == NormalType.VertexNormal;
+        sink.begin( vertex_normal ? NormalType.VertexNormal : NormalType.PolygonNormal, this.calculate_color( m_isolevel ) );
+
+        boolean completed = false;
+        try {
+            // Batches of thin z-slabs are extracted in parallel and written in order.
+            final int ncells_z = volume.resolution().getZ() - 1;
+            final int nslabs   = ThreadPool.nthreads() * 2;
+            for ( int z = 0; z < ncells_z; z += nslabs * StreamSlabSize )
+            {
+                final List<Callable<Slab[]>> tasks = new ArrayList<Callable<Slab[]>>();
+                for ( int i = 0; i < nslabs && z + i * StreamSlabSize < ncells_z; i++ )
+                {
+                    final int z_begin = z + i * StreamSlabSize;
+                    final int z_end   = java.lang.Math.min( z_begin + StreamSlabSize, ncells_z );
+                    tasks.add( new Callable<Slab[]>()
+                    {
+                        public Slab[] call()
+                        {
+                            return( extract_slab_with_duplication( volume, z_begin, z_end, !vertex_normal ) );
+                        }
+                    } );
+                }
+
+                for ( Slab[] slab : ThreadPool.invokeAll( tasks ) )
+                {
+                    final int nvertices = slab[0].coords.size() / 3;
+                    if ( nvertices == 0 ) continue;
+
+                    final float[] coords  = slab[0].coords.buffer().array();
+                    final float[] normals = vertex_normal ?
+                            SurfaceNormals.calculateFromGradient( volume, coords, nvertices ) :
+                            slab[0].normals.buffer().array();
+                    sink.append( coords, normals, nvertices / 3 );
+                }
+            }
+
+            sink.end();
+            completed = true;
+        } finally {
+            m_row_start  = null;
+            m_row_blocks = null;
+            m_levels     = null;
+
+            // The sink releases its resources and discards the partial output.
+            if ( !completed ) sink.abort();
+        }
+    }
+
+    private StructuredVolumeObject check_volume( final ObjectBase object ) throws KVSException
+    {
         final ObjectType object_type = object.objectType();
         if ( object_type == ObjectType.Geometry )
         {
@@ -70,19 +238,18 @@ public class MarchingCubes extends MapperBase {
 
         final VolumeObjectBase volume = (VolumeObjectBase)object;
         final VolumeType volume_type = volume.volumeType();
-        if ( volume_type == VolumeType.Structured )
-        {
-            this.mapping( (StructuredVolumeObject)object );
-        }
-        else // volume_type == kvs::VolumeObjectBase::Unstructured
+        if ( volume_type != VolumeType.Structured ) // volume_type == kvs::VolumeObjectBase::Unstructured
         {
             throw new KVSException("Unstructured volume object is not supported.");
         }
 
-        return( m_object );
+        return( (StructuredVolumeObject)object );
     }
 
-    private void mapping( final StructuredVolumeObject volume ) throws KVSException
+    private void mapping(
+            final StructuredVolumeObject volume,
+            final double[]               isolevels,
+            final PolygonObject[]        objects ) throws KVSException
     {
         // Check whether the volume can be processed or not.
         if ( volume.veclen() != 1 )
@@ -94,220 +261,506 @@ public class MarchingCubes extends MapperBase {
         attach_volume( volume );
 
         // Set the min/max coordinates.
-        set_min_max_coords( volume, m_object );
+        for ( PolygonObject object : objects )
+        {
+            set_min_max_coords( volume, object );
+        }
 
         // Extract surfaces.
-        extract_surfaces( volume );
+        extract_surfaces( volume, isolevels, objects );
     }
 
-    private void extract_surfaces( final StructuredVolumeObject volume )
+    private void extract_surfaces(
+            final StructuredVolumeObject volume,
+            final double[]               isolevels,
+            final PolygonObject[]        objects )
     {
-        baseValues = Utility.bufferToDoubleArray( m_volume.values() );
-        if ( m_duplication ) this.extract_surfaces_with_duplication( volume );
-        else                 this.extract_surfaces_without_duplication( volume );
+        baseValues = m_volume.valueArray();
+
+        // The isolevels are processed in ascending order so that the isolevels crossing
+        // an edge or a cell are found by binary search.
+        final int nlevels = isolevels.length;
+        m_levels = isolevels.clone();
+        Arrays.sort( m_levels );
+        final PolygonObject[] sorted_objects = new PolygonObject[nlevels];
+        final boolean[] assigned = new boolean[nlevels];
+        for ( int i = 0; i < nlevels; i++ )
+        {
+            int level = this.first_level( isolevels[i] );
+            while ( assigned[level] ) level++;
+            assigned[level] = true;
+            sorted_objects[level] = objects[i];
+        }
+
+        // Blocks whose value range excludes the isolevels are skipped. The blocks which may
+        // contain the isosurfaces are looked up in the span-space index cached by the volume.
+        m_grid = volume.minMaxGrid();
+        this.set_active_blocks( this.active_blocks() );
+
+        if ( m_duplication ) this.extract_surfaces_with_duplication( volume, sorted_objects );
+        else                 this.extract_surfaces_without_duplication( volume, sorted_objects );
+
+        m_row_start  = null;
+        m_row_blocks = null;
+        m_levels     = null;
     }
 
-    private void extract_surfaces_with_duplication( final StructuredVolumeObject volume )
+    /**
+     * m_levels[level] >= valueとなる最小のlevelを返します。
+     * 値の範囲[min,max)に含まれる等値面の値はfirst_level(min)からfirst_level(max)-1番目です。
+     */
+    private int first_level( final double value )
     {
-        // Calculated the coordinate data array and the normal vector array.
-        List<Float> coords  = new ArrayList<Float>();
-        List<Float> normals = new ArrayList<Float>();
+        int lo = 0;
+        int hi = m_levels.length;
+        while ( lo < hi )
+        {
+            final int mid = ( lo + hi ) >>> 1;
+            if ( m_levels[mid] < value ) lo = mid + 1;
+            else                         hi = mid;
+        }
 
-        final Vector3i  ncells = volume.resolution().sub( new Vector3i(1) );
-        final int       line_size = volume.nnodesPerLine();
-        final int       slice_size = volume.nnodesPerSlice();
+        return( lo );
+    }
 
-        final double[]  values = Utility.bufferToDoubleArray(volume.values());
-        
-        // Extract surfaces.
-        int index = 0;
-        int[] local_index = new int[8];
-        for ( int z = 0; z < ncells.getZ(); ++z )
-        {
+    /**
+     * いずれかの等値面を含み得るブロックの番号を昇順に返します。
+     */
+    private int[] active_blocks()
+    {
+        final SpanSpaceIndex index = m_grid.spanSpaceIndex();
+        if ( m_levels.length == 1 ) return( index.activeBlocks( m_levels[0] ) );
 
-            for ( int y = 0; y < ncells.getY(); ++y )
+        final boolean[] flags = new boolean[ m_grid.nblocksTotal() ];
+        int nactives = 0;
+        for ( int level = 0; level < m_levels.length; level++ )
+        {
+            for ( int block : index.activeBlocks( m_levels[level] ) )
             {
-                for ( int x = 0; x < ncells.getX(); ++x )
-                {
-                    // Calculate the indices of the target cell.
-                    local_index[0] = index;
-                    local_index[1] = local_index[0] + 1;
-                    local_index[2] = local_index[1] + line_size;
-                    local_index[3] = local_index[0] + line_size;
-                    local_index[4] = local_index[0] + slice_size;
-                    local_index[5] = local_index[1] + slice_size;
-                    local_index[6] = local_index[2] + slice_size;
-                    local_index[7] = local_index[3] + slice_size;
-                    index++;
-
-                    // Calculate the index of the reference table.
-                    final int table_index = this.calculate_table_index( values, local_index );
-                    if ( table_index == 0 ) continue;
-                    if ( table_index == 255 ) continue;
-
-                    // Calculate the triangle polygons.
-                    for ( int i = 0; MarchingCubesTable.TriangleID[ table_index ][i] != -1; i += 3 )
-                    {
-                        // Refer the edge IDs from the TriangleTable by using the table_index.
-                        final int e0 = MarchingCubesTable.TriangleID[table_index][i];
-                        final int e1 = MarchingCubesTable.TriangleID[table_index][i+2];
-                        final int e2 = MarchingCubesTable.TriangleID[table_index][i+1];
-
-                        // Determine vertices for each edge.
-                        final Vector3f v0 = new Vector3f(
-                                x + MarchingCubesTable.VertexID[e0][0][0],
-                                y + MarchingCubesTable.VertexID[e0][0][1],
-                                z + MarchingCubesTable.VertexID[e0][0][2] );
-
-                        final Vector3f v1 = new Vector3f(
-                                x + MarchingCubesTable.VertexID[e0][1][0],
-                                y + MarchingCubesTable.VertexID[e0][1][1],
-                                z + MarchingCubesTable.VertexID[e0][1][2] );
-
-                        final Vector3f v2 = new Vector3f(
-                                x + MarchingCubesTable.VertexID[e1][0][0],
-                                y + MarchingCubesTable.VertexID[e1][0][1],
-                                z + MarchingCubesTable.VertexID[e1][0][2] );
-
-                        final Vector3f v3 = new Vector3f(
-                                x + MarchingCubesTable.VertexID[e1][1][0],
-                                y + MarchingCubesTable.VertexID[e1][1][1],
-                                z + MarchingCubesTable.VertexID[e1][1][2] );
-
-                        final Vector3f v4 = new Vector3f(
-                                x + MarchingCubesTable.VertexID[e2][0][0],
-                                y + MarchingCubesTable.VertexID[e2][0][1],
-                                z + MarchingCubesTable.VertexID[e2][0][2] );
-
-                        final Vector3f v5 = new Vector3f(
-                                x + MarchingCubesTable.VertexID[e2][1][0],
-                                y + MarchingCubesTable.VertexID[e2][1][1],
-                                z + MarchingCubesTable.VertexID[e2][1][2] );
-
-                        // Calculate coordinates of the vertices which are composed
-                        // of the triangle polygon.
-                        final Vector3f vertex0 = this.interpolate_vertex( v0, v1 );
-                        coords.add( vertex0.getX() );
-                        coords.add( vertex0.getY() );
-                        coords.add( vertex0.getZ() );
-
-                        final Vector3f vertex1 = this.interpolate_vertex( v2, v3 );
-                        coords.add( vertex1.getX() );
-                        coords.add( vertex1.getY() );
-                        coords.add( vertex1.getZ() );
-
-                        final Vector3f vertex2 = this.interpolate_vertex( v4, v5 );
-                        coords.add( vertex2.getX() );
-                        coords.add( vertex2.getY() );
-                        coords.add( vertex2.getZ() );
-
-                        // Calculate a normal vector for the triangle polygon.
-                        final Vector3f normal =  ( vertex1.sub( vertex0) ).cross( vertex2.sub( vertex0 ) );
-                        normals.add( normal.getX() );
-                        normals.add( normal.getY() );
-                        normals.add( normal.getZ() );
-                    } // end of loop-triangle
-                } // end of loop-x
-                ++index;
-            } // end of loop-y
-            index += line_size;
-        } // end of loop-z
+                if ( !flags[block] ) nactives++;
+                flags[block] = true;
+            }
+        }
 
-        // Calculate the polygon color for the isolevel.
-        final Color color = this.calculate_color();
+        final int[] blocks = new int[nactives];
+        nactives = 0;
+        for ( int block = 0; block < flags.length; block++ )
+        {
+            if ( flags[block] ) blocks[ nactives++ ] = block;
+        }
 
-        m_object.setCoords( Utility.ListToFloatArray( coords ) );
-        m_object.setColor( color );
-        m_object.setNormals( Utility.ListToFloatArray( normals ) );
-        m_object.setOpacity( (byte)255 );
-        m_object.setPolygonType( PolygonType.Triangle );
-        m_object.setColorType( ColorType.PolygonColor );
-        m_object.setNormalType( NormalType.PolygonNormal );
+        return( blocks );
     }
 
-    private void extract_surfaces_without_duplication(
-                                                      final StructuredVolumeObject volume )
+    /**
+     * 等値面を含み得るブロックを、ブロックの行(y,z方向のブロック番号)ごとに分類します。
+     *
+     * @param blocks 等値面を含み得るブロックの番号(昇順)
+     */
+    private void set_active_blocks( final int[] blocks )
     {
-        final int volume_size = volume.nnodes();
-        final int byte_size   = 4 * 3 * volume_size;
-        int[] vertex_map = new int[byte_size];
+        final int nblocks_x = m_grid.nblocks().getX();
+        final int nrows     = m_grid.nblocks().getY() * m_grid.nblocks().getZ();
+
+        m_row_start  = new int[nrows + 1];
+        m_row_blocks = new int[blocks.length];
+        for ( int i = 0; i < blocks.length; i++ )
+        {
+            m_row_start[ blocks[i] / nblocks_x + 1 ]++;
+            m_row_blocks[i] = blocks[i] % nblocks_x;
+        }
+        for ( int row = 0; row < nrows; row++ )
+        {
+            m_row_start[row + 1] += m_row_start[row];
+        }
+    }
 
-        List<Float> coords  = new ArrayList<Float>();
-        this.calculate_isopoints( vertex_map, coords );
+    /**
+     * セルまたはノード(*,y,z)を含むブロックの行の番号を返します。
+     */
+    private int block_row( final int y, final int z )
+    {
+        return( m_grid.blockOf( y, 1 ) + m_grid.nblocks().getY() * m_grid.blockOf( z, 2 ) );
+    }
 
+    /**
+     * ブロックbxに含まれるx方向のセル(またはノード)の終端を返します。
+     * 最後のブロックは末尾のノードも含みます。
+     *
+     * @param n x方向のセル数(ノード単位で走査する場合はノード数)
+     */
+    private int block_end( final int bx, final int n )
+    {
+        if ( bx == m_grid.nblocks().getX() - 1 ) return( n );
+        return( java.lang.Math.min( ( bx + 1 ) * m_grid.blockSize(), n ) );
+    }
 
-        int[] connections = this.connect_isopoints( vertex_map );
+    private void extract_surfaces_with_duplication(
+            final StructuredVolumeObject volume,
+            final PolygonObject[]        objects )
+    {
+        final int ncells_z = volume.resolution().getZ() - 1;
 
-        vertex_map = null;
+        // Extract surfaces in each z-slab in parallel.
+        final int[] bounds = ThreadPool.split( ncells_z, ThreadPool.nthreads() * 4, 1 );
+        final List<Callable<Slab[]>> tasks = new ArrayList<Callable<Slab[]>>();
+        for ( int i = 0; i + 1 < bounds.length; i++ )
+        {
+            final int z_begin = bounds[i];
+            final int z_end   = bounds[i + 1];
+            tasks.add( new Callable<Slab[]>()
+            {
+                public Slab[] call()
+                {
+                    return( extract_slab_with_duplication( volume, z_begin, z_end, !m_gradient_normal ) );
+                }
+            } );
+        }
+        final List<Slab[]> slabs = ThreadPool.invokeAll( tasks );
 
-        float[] normals = null;
-        float[] coords_array = Utility.ListToFloatArray( coords );
-        if ( m_object.normalType() == NormalType.PolygonNormal )
+        for ( int level = 0; level < objects.length; level++ )
         {
-            normals = this.calculate_normals_on_polygon( coords_array, connections );
+            // Merge the slabs in order. A single slab is handed off without copying.
+            FloatBuffer coords;
+            FloatBuffer normals;
+            if ( slabs.size() == 1 )
+            {
+                coords  = slabs.get( 0 )[level].coords.buffer();
+                normals = m_gradient_normal ? null : slabs.get( 0 )[level].normals.buffer();
+            }
+            else
+            {
+                int ncoords  = 0;
+                int nnormals = 0;
+                for ( Slab[] slab : slabs )
+                {
+                    ncoords  += slab[level].coords.size();
+                    nnormals += m_gradient_normal ? 0 : slab[level].normals.size();
+                }
+
+                final float[] coords_array  = new float[ncoords];
+                final float[] normals_array = new float[nnormals];
+                ncoords  = 0;
+                nnormals = 0;
+                for ( Slab[] slab : slabs )
+                {
+                    slab[level].coords.copyTo( coords_array, ncoords );
+                    ncoords += slab[level].coords.size();
+                    if ( m_gradient_normal ) continue;
+                    slab[level].normals.copyTo( normals_array, nnormals );
+                    nnormals += slab[level].normals.size();
+                }
+                coords  = FloatBuffer.wrap( coords_array );
+                normals = FloatBuffer.wrap( normals_array );
+            }
+
+            if ( m_gradient_normal )
+            {
+                normals = FloatBuffer.wrap(
+                        SurfaceNormals.calculateFromGradient( volume, coords.array(), coords.limit() / 3 ) );
+            }
+
+            // Calculate the polygon color for the isolevel.
+            final Color color = this.calculate_color( m_levels[level] );
+
+            final PolygonObject object = objects[level];
+            object.setCoords( coords );
+            object.setColor( color );
+            object.setNormals( normals );
+            object.setOpacity( (byte)255 );
+            object.setPolygonType( PolygonType.Triangle );
+            object.setColorType( ColorType.PolygonColor );
+            object.setNormalType( m_gradient_normal ? NormalType.VertexNormal : NormalType.PolygonNormal );
         }
-        else
+    }
+
+    /**
+     * @param triangle_normals trueの場合は三角形ごとの法線ベクトルも求める
+     */
+    private Slab[] extract_slab_with_duplication(
+            final StructuredVolumeObject volume,
+            final int                    z_begin,
+            final int                    z_end,
+            final boolean                triangle_normals )
+    {
+        // Calculated the coordinate data array and the normal vector array of each isolevel.
+        final Slab[] slabs = new Slab[m_levels.length];
+        for ( int level = 0; level < slabs.length; level++ )
         {
-            normals = this.calculate_normals_on_vertex( coords_array, connections );
+            slabs[level] = new Slab();
+            slabs[level].coords  = new FloatArrayList();
+            slabs[level].normals = triangle_normals ? new FloatArrayList() : null;
         }
 
-        // Calculate the polygon color for the isolevel.
-        final Color color = this.calculate_color();
+        final Vector3i  ncells = volume.resolution().sub( new Vector3i(1) );
+        final int       block_size = m_grid.blockSize();
+
+        // Extract surfaces. Only the cells in the blocks which may contain the isosurfaces are visited.
+        double[][] rows        = new double[4][ncells.getX() + 1];
+        double[]   local_value = new double[8];
+        float[]    vertex      = new float[9];
+        int[]      level_range = new int[2];
+        for ( int z = z_begin; z < z_end; ++z )
+        {
+            for ( int y = 0; y < ncells.getY(); ++y )
+            {
+                final int row = this.block_row( y, z );
+                for ( int k = m_row_start[row]; k < m_row_start[row + 1]; k++ )
+                {
+                    final int bx    = m_row_blocks[k];
+                    final int x_end = this.block_end( bx, ncells.getX() );
+                    this.read_cell_rows( bx * block_size, x_end + 1, y, z, rows );
+                    for ( int x = bx * block_size; x < x_end; ++x )
+                    {
+                        // The values are read once and classified against all the isolevels.
+                        this.read_cell_values( rows, x, local_value, level_range );
+                        for ( int level = level_range[0]; level < level_range[1]; level++ )
+                        {
+                            final double isolevel = m_levels[level];
+
+                            // Calculate the index of the reference table.
+                            final int table_index = this.calculate_table_index( local_value, isolevel );
+                            if ( table_index == 0 ) continue;
+                            if ( table_index == 255 ) continue;
+
+                            final FloatArrayList coords  = slabs[level].coords;
+                            final FloatArrayList normals = slabs[level].normals;
+
+                            // Calculate the triangle polygons.
+                            for ( int i = 0; MarchingCubesTable.TriangleID[ table_index ][i] != -1; i += 3 )
+                            {
+                                // Refer the edge IDs from the TriangleTable by using the table_index.
+                                final int e0 = MarchingCubesTable.TriangleID[table_index][i];
+                                final int e1 = MarchingCubesTable.TriangleID[table_index][i+2];
+                                final int e2 = MarchingCubesTable.TriangleID[table_index][i+1];
+
+                                // Calculate coordinates of the vertices which are composed
+                                // of the triangle polygon.
+                                this.interpolate_vertex( local_value, isolevel, x, y, z, e0, vertex, 0 );
+                                this.interpolate_vertex( local_value, isolevel, x, y, z, e1, vertex, 3 );
+                                this.interpolate_vertex( local_value, isolevel, x, y, z, e2, vertex, 6 );
+                                coords.add( vertex[0], vertex[1], vertex[2] );
+                                coords.add( vertex[3], vertex[4], vertex[5] );
+                                coords.add( vertex[6], vertex[7], vertex[8] );
+                                if ( normals == null ) continue;
+
+                                // Calculate a normal vector for the triangle polygon.
+                                final float ux = vertex[3] - vertex[0];
+                                final float uy = vertex[4] - vertex[1];
+                                final float uz = vertex[5] - vertex[2];
+                                final float wx = vertex[6] - vertex[0];
+                                final float wy = vertex[7] - vertex[1];
+                                final float wz = vertex[8] - vertex[2];
+                                normals.add( uy * wz - uz * wy, uz * wx - ux * wz, ux * wy - uy * wx );
+                            } // end of loop-triangle
+                        } // end of loop-level
+                    }
+                } // end of loop-block
+            } // end of loop-y
+        } // end of loop-z
 
-        m_object.setCoords( Utility.ListToFloatArray( coords ) );
-        m_object.setConnections( connections );
-        m_object.setColor( color );
-        m_object.setNormals( normals );
-        m_object.setOpacity( (byte)255 );
-        m_object.setPolygonType( PolygonType.Triangle );
-        m_object.setColorType( ColorType.PolygonColor );
+        return( slabs );
     }
 
-    private int calculate_table_index( final double[] values, final int[] local_index )
+    private void extract_surfaces_without_duplication(
+            final StructuredVolumeObject volume,
+            final PolygonObject[]        objects )
     {
-        //final T* const values = static_cast<const T*>( m_volume.values().pointer() );
-        final double isolevel = m_isolevel;
+        // Isopoints and connections are extracted together in a single pass over z-slabs.
+        // Each slab holds the isopoints on its bottom node slice and on the z-edges of its
+        // cell layers, and refers to the isopoints on its top slice by the numbers of the next slab.
+        final int ncells_z = volume.resolution().getZ() - 1;
+
+        final int[] bounds = ThreadPool.split( ncells_z, ThreadPool.nthreads() * 4, 1 );
+        final List<Callable<Slab[]>> tasks = new ArrayList<Callable<Slab[]>>();
+        for ( int i = 0; i + 1 < bounds.length; i++ )
+        {
+            final int     z_begin  = bounds[i];
+            final int     z_end    = bounds[i + 1];
+            final boolean owns_top = ( i + 2 == bounds.length );
+            tasks.add( new Callable<Slab[]>()
+            {
+                public Slab[] call()
+                {
+                    return( extract_slab_without_duplication( z_begin, z_end, owns_top ) );
+                }
+            } );
+        }
+        final List<Slab[]> slabs = ThreadPool.invokeAll( tasks );
+
+        // Offsets of the isopoint numbers and the connections of each slab.
+        final int nslabs  = slabs.size();
+        final int nlevels = objects.length;
+        final float[][] coords_arrays = new float[nlevels][];
+        final int[][]   connections   = new int[nlevels][];
+        final List<Callable<Object>> merge_tasks = new ArrayList<Callable<Object>>();
+        for ( int level = 0; level < nlevels; level++ )
+        {
+            final int[] vertex_offsets     = new int[nslabs + 1];
+            final int[] connection_offsets = new int[nslabs + 1];
+            for ( int i = 0; i < nslabs; i++ )
+            {
+                vertex_offsets[i + 1]     = vertex_offsets[i] + slabs.get( i )[level].nisopoints;
+                connection_offsets[i + 1] = connection_offsets[i] + slabs.get( i )[level].connections.size();
+            }
+
+            final float[] coords_array = new float[3 * vertex_offsets[nslabs]];
+            final int[]   connection   = new int[connection_offsets[nslabs]];
+            coords_arrays[level] = coords_array;
+            connections[level]   = connection;
+            for ( int i = 0; i < nslabs; i++ )
+            {
+                final Slab slab        = slabs.get( i )[level];
+                final int  offset      = vertex_offsets[i];
+                final int  next_offset = vertex_offsets[i + 1];
+                final int  begin       = connection_offsets[i];
+                merge_tasks.add( new Callable<Object>()
+                {
+                    public Object call()
+                    {
+                        slab.coords.copyTo( coords_array, 3 * offset );
+                        final IntArrayList ids = slab.connections;
+                        for ( int j = 0; j < ids.size(); j++ )
+                        {
+                            final int id = ids.get( j );
+                            connection[ begin + j ] = ( id >= 0 ) ? offset + id : next_offset - id - 1;
+                        }
+                        return( null );
+                    }
+                } );
+            }
+        }
+        ThreadPool.invokeAll( merge_tasks );
 
-        int table_index = 0;
-        if ( ( values[ local_index[0] ] ) > isolevel ) { table_index |=   1; }
-        if ( ( values[ local_index[1] ] ) > isolevel ) { table_index |=   2; }
-        if ( ( values[ local_index[2] ] ) > isolevel ) { table_index |=   4; }
-        if ( ( values[ local_index[3] ] ) > isolevel ) { table_index |=   8; }
-        if ( ( values[ local_index[4] ] ) > isolevel ) { table_index |=  16; }
-        if ( ( values[ local_index[5] ] ) > isolevel ) { table_index |=  32; }
-        if ( ( values[ local_index[6] ] ) > isolevel ) { table_index |=  64; }
-        if ( ( values[ local_index[7] ] ) > isolevel ) { table_index |= 128; }
+        for ( int level = 0; level < nlevels; level++ )
+        {
+            final PolygonObject object = objects[level];
 
-        return( table_index );
+            float[] normals = null;
+            if ( m_gradient_normal )
+            {
+                normals = SurfaceNormals.calculateFromGradient( volume, coords_arrays[level], coords_arrays[level].length / 3 );
+                object.setNormalType( NormalType.VertexNormal );
+            }
+            else if ( object.normalType() == NormalType.PolygonNormal )
+            {
+                normals = SurfaceNormals.calculateOnPolygon( coords_arrays[level], connections[level] );
+            }
+            else
+            {
+                normals = SurfaceNormals.calculateOnVertex( coords_arrays[level], connections[level] );
+            }
+
+            // Calculate the polygon color for the isolevel.
+            final Color color = this.calculate_color( m_levels[level] );
+
+            object.setCoords( coords_arrays[level] );
+            object.setConnections( connections[level] );
+            object.setColor( color );
+            object.setNormals( normals );
+            object.setOpacity( (byte)255 );
+            object.setPolygonType( PolygonType.Triangle );
+            object.setColorType( ColorType.PolygonColor );
+        }
     }
 
-    private Vector3f interpolate_vertex(
-                                        final Vector3f vertex0,
-                                        final Vector3f vertex1 )
+    /**
+     * ノード[x_begin,x_end)の行(y,z)の値をrowのx_begin番目から読み込みます。
+     * 値は要素の型ごとのループで一度に読み込まれます。
+     */
+    private void read_row( final int x_begin, final int x_end, final int y, final int z, final double[] row )
     {
-        //const T* const values = static_cast<const T*>( BaseClass::m_volume->values().pointer() );
-        //final double[] values = BufferUtility.bufferToDoubleArray( m_volume.values() );
-        StructuredVolumeObject volume = (StructuredVolumeObject) m_volume;
+        final StructuredVolumeObject volume = (StructuredVolumeObject)m_volume;
+        final long index = x_begin + (long)y * volume.nnodesPerLine() + (long)z * volume.nnodesPerSlice();
+        baseValues.getDoubles( index, row, x_begin, x_end - x_begin );
+    }
 
+    /**
+     * セル行(y,z)の4本のノードの行(y,z),(y+1,z),(y,z+1),(y+1,z+1)のノード[x_begin,x_end)の値を読み込みます。
+     */
+    private void read_cell_rows( final int x_begin, final int x_end, final int y, final int z, final double[][] rows )
+    {
+        this.read_row( x_begin, x_end, y,     z,     rows[0] );
+        this.read_row( x_begin, x_end, y + 1, z,     rows[1] );
+        this.read_row( x_begin, x_end, y,     z + 1, rows[2] );
+        this.read_row( x_begin, x_end, y + 1, z + 1, rows[3] );
+    }
 
-        final int line_size  = volume.nnodesPerLine();
-        final int slice_size = volume.nnodesPerSlice();
+    /**
+     * セル(x,y,z)の8頂点の値を読み込み済みの行から取り出し、値の範囲に含まれる等値面の値の番号の範囲を求めます。
+     *
+     * @param rows read_cell_rows()で読み込んだ行
+     * @param level_range 等値面の値の番号の範囲{先頭, 終端}を格納する配列
+     */
+    private void read_cell_values(
+            final double[][] rows,
+            final int        x,
+            final double[]   local_value,
+            final int[]      level_range )
+    {
+        local_value[0] = rows[0][x];
+        local_value[1] = rows[0][x + 1];
+        local_value[2] = rows[1][x + 1];
+        local_value[3] = rows[1][x];
+        local_value[4] = rows[2][x];
+        local_value[5] = rows[2][x + 1];
+        local_value[6] = rows[3][x + 1];
+        local_value[7] = rows[3][x];
+
+        double min_value = local_value[0];
+        double max_value = min_value;
+        for ( int i = 1; i < 8; i++ )
+        {
+            final double value = local_value[i];
+            if ( value < min_value ) min_value = value;
+            if ( value > max_value ) max_value = value;
+        }
 
-        final int v0_index = (int)( vertex0.getX() + vertex0.getY() * line_size + vertex0.getZ() * slice_size );
-        final int v1_index = (int)( vertex1.getX() + vertex1.getY() * line_size + vertex1.getZ() * slice_size );
+        level_range[0] = this.first_level( min_value );
+        level_range[1] = this.first_level( max_value );
+    }
 
-        final double v0 =  baseValues[ v0_index ];
-        final double v1 =  baseValues[ v1_index ];
-        final float ratio = (float)( kvs.core.util.Math.abs( ( m_isolevel - v0 ) / ( v1 - v0 ) ) );
+    private int calculate_table_index( final double[] local_value, final double isolevel )
+    {
+        int table_index = 0;
+        if ( local_value[0] > isolevel ) { table_index |=   1; }
+        if ( local_value[1] > isolevel ) { table_index |=   2; }
+        if ( local_value[2] > isolevel ) { table_index |=   4; }
+        if ( local_value[3] > isolevel ) { table_index |=   8; }
+        if ( local_value[4] > isolevel ) { table_index |=  16; }
+        if ( local_value[5] > isolevel ) { table_index |=  32; }
+        if ( local_value[6] > isolevel ) { table_index |=  64; }
+        if ( local_value[7] > isolevel ) { table_index |= 128; }
+
+        return( table_index );
+    }
 
-        final float x = ( 1.0f - ratio ) * vertex0.getX() + ratio * vertex1.getX();
-        final float y = ( 1.0f - ratio ) * vertex0.getY() + ratio * vertex1.getY();
-        final float z = ( 1.0f - ratio ) * vertex0.getZ() + ratio * vertex1.getZ();
+    /**
+     * セル(x,y,z)の辺edge上の等値点を求め、vertexのoffset番目から格納します。
+     *
+     * @param local_value セルの8頂点の値
+     */
+    private void interpolate_vertex(
+            final double[] local_value,
+            final double   isolevel,
+            final int x, final int y, final int z,
+            final int      edge,
+            final float[]  vertex,
+            final int      offset )
+    {
+        final int[] p0 = MarchingCubesTable.VertexID[edge][0];
+        final int[] p1 = MarchingCubesTable.VertexID[edge][1];
 
-        return( new Vector3f( x, y, z ) );
+        final double v0 = local_value[ EdgeCorner[edge][0] ];
+        final double v1 = local_value[ EdgeCorner[edge][1] ];
+        final float ratio = (float)( kvs.core.util.Math.abs( ( isolevel - v0 ) / ( v1 - v0 ) ) );
+
+        vertex[ offset     ] = ( 1.0f - ratio ) * ( x + p0[0] ) + ratio * ( x + p1[0] );
+        vertex[ offset + 1 ] = ( 1.0f - ratio ) * ( y + p0[1] ) + ratio * ( y + p1[1] );
+        vertex[ offset + 2 ] = ( 1.0f - ratio ) * ( z + p0[2] ) + ratio * ( z + p1[2] );
     }
-    
-    private Color calculate_color()
+
+    private Color calculate_color( final double isolevel )
     {
         // Calculate the min/max values of the node data.
         if ( !m_volume.hasMinMaxValues() )
@@ -318,7 +771,7 @@ public class MarchingCubes extends MapperBase {
         final double min_value = m_volume.minValue();
         final double max_value = m_volume.maxValue();
         final double normalize_factor = 255.0 / ( max_value - min_value );
-        int  index = (int)( normalize_factor * ( m_isolevel - min_value ) );
+        int  index = (int)( normalize_factor * ( isolevel - min_value ) );
         if( index > 255 ){
             index = 255;
         }
@@ -329,229 +782,278 @@ public class MarchingCubes extends MapperBase {
         return( transferFunction().colorMap().getAt( index ) );
     }
 
-    private void calculate_isopoints(
-                                     int[]             vertex_map,
-                                     List<Float> coords )
+    /**
+     * セル層[z_begin,z_end)の等値面を求めます。辺と等値点の対応は現在のセル層の下面と上面のスライス分だけ保持します。
+     *
+     * @param owns_top 上端のスライスの等値点をこのスラブで求める場合はtrue
+     * @return 等値面の値ごとの抽出結果
+     */
+    private Slab[] extract_slab_without_duplication(
+            final int     z_begin,
+            final int     z_end,
+            final boolean owns_top )
     {
-        final double[] values = Utility.bufferToDoubleArray( m_volume.values() );
-        
         final StructuredVolumeObject volume = (StructuredVolumeObject)m_volume;
+        final int slice_size = volume.nnodesPerSlice();
 
-        final Vector3i resolution   = volume.resolution();
-        final Vector3i ncells       = resolution.sub( new Vector3i(1) );
-        final int      line_size    = volume.nnodesPerLine();
-        final int      slice_size   = volume.nnodesPerSlice();
-        final double   isolevel     = m_isolevel;
+        final Slab[] slabs = new Slab[m_levels.length];
+        for ( int level = 0; level < slabs.length; level++ )
+        {
+            final Slab slab = new Slab();
+            slab.coords      = new FloatArrayList();
+            slab.connections = new IntArrayList();
+            slab.bottom_x    = new int[slice_size];
+            slab.bottom_y    = new int[slice_size];
+            slab.top_x       = new int[slice_size];
+            slab.top_y       = new int[slice_size];
+            slab.ids_z       = new int[slice_size];
+            slabs[level] = slab;
+        }
 
-        int nisopoints = 0;
-        int index = 0;
-        for ( int z = 0; z < resolution.getZ(); ++z )
+        final double[][] rows = new double[4][volume.resolution().getX()];
+        this.calculate_slice_isopoints( z_begin, slabs, true, rows );
+        this.swap_slices( slabs );
+        for ( int z = z_begin; z < z_end; ++z )
         {
-            for ( int y = 0; y < resolution.getY(); ++y )
-            {
-                for ( int x = 0; x < resolution.getX(); ++x )
-                {
-                    final int id0 = index;
-                    final int id1 = id0 + 1;
-                    final int id2 = id0 + line_size;
-                    final int id3 = id0 + slice_size;
+            this.calculate_vertical_isopoints( z, slabs, rows );
+            this.calculate_slice_isopoints( z + 1, slabs, z + 1 < z_end || owns_top, rows );
+            this.connect_layer_isopoints( z, slabs, rows );
 
-                    if ( x != ncells.getX() )
-                    {
-                        if ( ( values[id0] > isolevel ) !=
-                            ( values[id1] > isolevel ) )
-                        {
-                            final Vector3f v1 = new Vector3f( x,   y, z );
-                            final Vector3f v2 = new Vector3f( x+1, y, z );
-                            final Vector3f isopoint = this.interpolate_vertex( v1, v2 );
+            // The top slice becomes the bottom slice of the next cell layer.
+            this.swap_slices( slabs );
+        }
 
-                            coords.add( isopoint.getX() );
-                            coords.add( isopoint.getY() );
-                            coords.add( isopoint.getZ() );
+        for ( Slab slab : slabs )
+        {
+            slab.bottom_x = null;
+            slab.bottom_y = null;
+            slab.top_x    = null;
+            slab.top_y    = null;
+            slab.ids_z    = null;
+        }
 
-                            vertex_map[ 3 * index ] = nisopoints++;
-                        }
-                    }
+        return( slabs );
+    }
 
-                    if ( y != ncells.getY() )
-                    {
-                        if ( ( ( values[id0] ) > isolevel ) !=
-                            ( ( values[id2] ) > isolevel ) )
-                        {
-                            final Vector3f v1 = new Vector3f( x,   y, z );
-                            final Vector3f v2 = new Vector3f( x, y+1, z );
-                            final Vector3f isopoint = this.interpolate_vertex( v1, v2 );
+    private void swap_slices( final Slab[] slabs )
+    {
+        for ( Slab slab : slabs )
+        {
+            int[] swap = slab.bottom_x;
+            slab.bottom_x = slab.top_x;
+            slab.top_x    = swap;
+            swap          = slab.bottom_y;
+            slab.bottom_y = slab.top_y;
+            slab.top_y    = swap;
+        }
+    }
+
+    /**
+     * スライスzの各ノードから+x,+y方向の辺上の等値点を求め、各スラブのtop_x,top_yに番号を格納します。
+     * ownedがfalseの場合は座標を求めず、スライス内でk番目の等値点に-(k+1)を格納します。
+     *
+     * @param owned このスラブがスライスの等値点を持つ場合はtrue
+     */
+    private void calculate_slice_isopoints(
+            final int        z,
+            final Slab[]     slabs,
+            final boolean    owned,
+            final double[][] rows )
+    {
+        final StructuredVolumeObject volume = (StructuredVolumeObject)m_volume;
+
+        final Vector3i resolution = volume.resolution();
+        final int      nx         = resolution.getX();
+        final int      ny         = resolution.getY();
+        final int      line_size  = volume.nnodesPerLine();
+        final int      block_size = m_grid.blockSize();
 
-                            coords.add( isopoint.getX() );
-                            coords.add( isopoint.getY() );
-                            coords.add( isopoint.getZ() );
+        final int[] nforeigns = owned ? null : new int[slabs.length];
 
-                            vertex_map[ 3 * index + 1 ] = nisopoints++;
+        // The edges from the node (x,y,z) lie in the cell containing the node,
+        // so only the nodes in the blocks which may contain the isosurfaces are visited.
+        for ( int y = 0; y < ny; ++y )
+        {
+            final int row = this.block_row( y, z );
+            for ( int k = m_row_start[row]; k < m_row_start[row + 1]; k++ )
+            {
+                final int bx    = m_row_blocks[k];
+                final int x_end = this.block_end( bx, nx );
+                this.read_row( bx * block_size, java.lang.Math.min( x_end + 1, nx ), y, z, rows[0] );
+                if ( y != ny - 1 ) this.read_row( bx * block_size, x_end, y + 1, z, rows[1] );
+                for ( int x = bx * block_size; x < x_end; ++x )
+                {
+                    final int s = x + y * line_size;
+                    final double v0 = rows[0][x];
+
+                    if ( x != nx - 1 )
+                    {
+                        final double v1 = rows[0][x + 1];
+                        final int level_end = this.first_level( java.lang.Math.max( v0, v1 ) );
+                        for ( int level = this.first_level( java.lang.Math.min( v0, v1 ) ); level < level_end; level++ )
+                        {
+                            slabs[level].top_x[s] = this.add_isopoint( slabs[level], nforeigns, level, v0, v1, x, y, z, 0 );
                         }
                     }
 
-                    if ( z != ncells.getZ() )
+                    if ( y != ny - 1 )
                     {
-                        if ( ( ( values[id0] ) > isolevel ) !=
-                            ( ( values[id3] ) > isolevel ) )
+                        final double v1 = rows[1][x];
+                        final int level_end = this.first_level( java.lang.Math.max( v0, v1 ) );
+                        for ( int level = this.first_level( java.lang.Math.min( v0, v1 ) ); level < level_end; level++ )
                         {
-                            final Vector3f v1 = new Vector3f( x,   y, z );
-                            final Vector3f v2 = new Vector3f( x, y, z+1 );
-                            final Vector3f isopoint = this.interpolate_vertex( v1, v2 );
-
-                            coords.add( isopoint.getX() );
-                            coords.add( isopoint.getY() );
-                            coords.add( isopoint.getZ() );
-
-                            vertex_map[ 3 * index + 2 ] = nisopoints++;
+                            slabs[level].top_y[s] = this.add_isopoint( slabs[level], nforeigns, level, v0, v1, x, y, z, 1 );
                         }
                     }
-                    ++index;
-                } // x
-            } // y
-        } // z
+                }
+            }
+        }
     }
 
-    
-    private int[] connect_isopoints( int[] vertex_map )
+    /**
+     * スライスzの各ノードから+z方向の辺上の等値点を求め、各スラブのids_zに番号を格納します。
+     */
+    private void calculate_vertical_isopoints( final int z, final Slab[] slabs, final double[][] rows )
     {
         final StructuredVolumeObject volume = (StructuredVolumeObject)m_volume;
 
-        final Vector3i resolution   = volume.resolution();
-        final Vector3i ncells       = resolution.sub( new Vector3i(1) );
-        final int      line_size    = volume.nnodesPerLine();
-        final int      slice_size   = volume.nnodesPerSlice();
-        //final double[]  values = Utility.bufferToDoubleArray(volume.values());
+        final Vector3i resolution = volume.resolution();
+        final int      nx         = resolution.getX();
+        final int      ny         = resolution.getY();
+        final int      line_size  = volume.nnodesPerLine();
+        final int      block_size = m_grid.blockSize();
 
-        
-        List<Integer> connections = new ArrayList<Integer>();
-
-        int   index       = 0;
-        int[] local_index = new int[8];
-        int[] local_edge  = new int[12];
-        for ( int z = 0; z < ncells.getZ(); ++z )
+        for ( int y = 0; y < ny; ++y )
         {
-            for ( int y = 0; y < ncells.getY(); ++y )
+            final int row = this.block_row( y, z );
+            for ( int k = m_row_start[row]; k < m_row_start[row + 1]; k++ )
             {
-                for ( int x = 0; x < ncells.getX(); ++x )
+                final int bx    = m_row_blocks[k];
+                final int x_end = this.block_end( bx, nx );
+                this.read_row( bx * block_size, x_end, y, z,     rows[0] );
+                this.read_row( bx * block_size, x_end, y, z + 1, rows[2] );
+                for ( int x = bx * block_size; x < x_end; ++x )
                 {
-                    // Calculate the indices of the target cell.
-                    local_index[0] = index;
-                    local_index[1] = local_index[0] + 1;
-                    local_index[2] = local_index[1] + line_size;
-                    local_index[3] = local_index[0] + line_size;
-                    local_index[4] = local_index[0] + slice_size;
-                    local_index[5] = local_index[1] + slice_size;
-                    local_index[6] = local_index[2] + slice_size;
-                    local_index[7] = local_index[3] + slice_size;
-                    index++;
-
-                    // Calculate the index of the reference table.
-                    final int table_index = this.calculate_table_index( baseValues,local_index );
-                    if ( table_index == 0 ) continue;
-                    if ( table_index == 255 ) continue;
-
-                    local_edge[ 0] = 3 * local_index[0];
-                    local_edge[ 1] = local_edge[0] + 3 + 1;
-                    local_edge[ 2] = local_edge[0] + 3 * line_size;
-                    local_edge[ 3] = local_edge[0] + 1;
-                    local_edge[ 4] = local_edge[0] + 3 * slice_size;
-                    local_edge[ 5] = local_edge[1] + 3 * slice_size;
-                    local_edge[ 6] = local_edge[2] + 3 * slice_size;
-                    local_edge[ 7] = local_edge[3] + 3 * slice_size;
-                    local_edge[ 8] = local_edge[0] + 2;
-                    local_edge[ 9] = local_edge[8] + 3;
-                    local_edge[10] = local_edge[8] + 3 + 3 * line_size;
-                    local_edge[11] = local_edge[8] + 3 * line_size;
-
-                    for ( int i = 0; MarchingCubesTable.TriangleID[table_index][i] != -1; i += 3 )
-                    {
-                        final int e0 = local_edge[ MarchingCubesTable.TriangleID[table_index][i]   ];
-                        final int e1 = local_edge[ MarchingCubesTable.TriangleID[table_index][i+2] ];
-                        final int e2 = local_edge[ MarchingCubesTable.TriangleID[table_index][i+1] ];
+                    final int s = x + y * line_size;
+                    final double v0 = rows[0][x];
+                    final double v1 = rows[2][x];
 
-                        connections.add( vertex_map[e0] );
-                        connections.add( vertex_map[e1] );
-                        connections.add( vertex_map[e2] );
+                    final int level_end = this.first_level( java.lang.Math.max( v0, v1 ) );
+                    for ( int level = this.first_level( java.lang.Math.min( v0, v1 ) ); level < level_end; level++ )
+                    {
+                        slabs[level].ids_z[s] = this.add_isopoint( slabs[level], null, level, v0, v1, x, y, z, 2 );
                     }
-                } // x
-                ++index;
-            } // y
-            index += line_size;
-        } // z
-        
-        return Utility.ListToIntArray( connections );
+                }
+            }
+        }
     }
 
-
-    private float[] calculate_normals_on_polygon(
-                                              final float[] coords,
-                                              final int[] connections )
+    /**
+     * ノード(x,y,z)から+axis方向の辺上の等値点を追加し、その番号を返します。
+     * nforeignsがnullでない場合は座標を求めず、次のスラブの等値点を参照する負の番号を返します。
+     *
+     * @param v0 ノード(x,y,z)の値
+     * @param v1 辺の他方のノードの値
+     * @param axis 辺の方向(0:x, 1:y, 2:z)
+     */
+    private int add_isopoint(
+            final Slab   slab,
+            final int[]  nforeigns,
+            final int    level,
+            final double v0,
+            final double v1,
+            final int x, final int y, final int z,
+            final int    axis )
     {
-        if ( coords.length == 0 ) return new float[0];
-
-        float[] normals = new float[connections.length];
-
-        //final float coords_ptr = coords.get( 0 );
-
-        final int size = connections.length;
-        for ( int index = 0; index < size; index += 3 )
-        {
-            final int coord0_index = 3 * connections[ index     ];
-            final int coord1_index = 3 * connections[ index + 1 ];
-            final int coord2_index = 3 * connections[ index + 2 ];
+        if ( nforeigns != null ) return( -( ++nforeigns[level] ) );
 
-            final Vector3f v0 = new Vector3f( coords, coord0_index  );
-            final Vector3f v1 = new Vector3f( coords, coord1_index  );
-            final Vector3f v2 = new Vector3f( coords, coord2_index  );
+        final float ratio = (float)( kvs.core.util.Math.abs( ( m_levels[level] - v0 ) / ( v1 - v0 ) ) );
 
-            final Vector3f normal = ( v1.sub( v0 ) ).cross( v2.sub( v0 ) );
+        // Same arithmetic as interpolate_vertex() so that both extractions give the same coordinates.
+        final float x1 = ( axis == 0 ) ? x + 1 : x;
+        final float y1 = ( axis == 1 ) ? y + 1 : y;
+        final float z1 = ( axis == 2 ) ? z + 1 : z;
+        slab.coords.add(
+                ( 1.0f - ratio ) * x + ratio * x1,
+                ( 1.0f - ratio ) * y + ratio * y1,
+                ( 1.0f - ratio ) * z + ratio * z1 );
 
-            normals[ index     ] = normal.getX();
-            normals[ index + 1 ] = normal.getY();
-            normals[ index + 2 ] = normal.getZ();
-        }
-        return normals;
+        return( slab.nisopoints++ );
     }
-    
-    private float[] calculate_normals_on_vertex(
-                                             final float[] coords,
-                                             final int[] connections)
-    {
-        if ( coords.length == 0 ) return new float[0];
 
-        float[] normals = new float[coords.length];
-        //std::fill( normals.begin(), normals.end(), 0.0f );
+    /**
+     * セル層zの三角形を等値点の番号で追加します。
+     */
+    private void connect_layer_isopoints( final int z, final Slab[] slabs, final double[][] rows )
+    {
+        final StructuredVolumeObject volume = (StructuredVolumeObject)m_volume;
 
-        //final float coords_ptr = coords.get( 0 );
+        final Vector3i ncells     = volume.resolution().sub( new Vector3i(1) );
+        final int      line_size  = volume.nnodesPerLine();
+        final int      block_size = m_grid.blockSize();
 
-        final int size = connections.length;
-        for ( int index = 0; index < size; index += 3 )
+        double[] local_value = new double[8];
+        int[]    local_edge  = new int[12];
+        int[]    level_range = new int[2];
+        for ( int y = 0; y < ncells.getY(); ++y )
         {
-            
-            final int coord0_index = 3 * connections[ index     ];
-            final int coord1_index = 3 * connections[ index + 1 ];
-            final int coord2_index = 3 * connections[ index + 2 ];
-
-            final Vector3f v0 = new Vector3f( coords, coord0_index  );
-            final Vector3f v1 = new Vector3f( coords, coord1_index  );
-            final Vector3f v2 = new Vector3f( coords, coord2_index  );
-
-            final Vector3f normal = ( v1.sub( v0 ) ).cross( v2.sub( v0 ) );
-
-            normals[ coord0_index     ] += normal.getX();
-            normals[ coord0_index + 1 ] += normal.getY();
-            normals[ coord0_index + 2 ] += normal.getZ();
-
-            normals[ coord1_index     ] += normal.getX();
-            normals[ coord1_index + 1 ] += normal.getY();
-            normals[ coord1_index + 2 ] += normal.getZ();
-
-            normals[ coord2_index     ] += normal.getX();
-            normals[ coord2_index + 1 ] += normal.getY();
-            normals[ coord2_index + 2 ] += normal.getZ();
-        }
-        return normals;
+            final int row = this.block_row( y, z );
+            for ( int k = m_row_start[row]; k < m_row_start[row + 1]; k++ )
+            {
+                final int bx    = m_row_blocks[k];
+                final int x_end = this.block_end( bx, ncells.getX() );
+                this.read_cell_rows( bx * block_size, x_end + 1, y, z, rows );
+                for ( int x = bx * block_size; x < x_end; ++x )
+                {
+                    final int s = x + y * line_size;
+                    this.read_cell_values( rows, x, local_value, level_range );
+                    for ( int level = level_range[0]; level < level_range[1]; level++ )
+                    {
+                        // Calculate the index of the reference table.
+                        final int table_index = this.calculate_table_index( local_value, m_levels[level] );
+                        if ( table_index == 0 ) continue;
+                        if ( table_index == 255 ) continue;
+
+                        final Slab slab = slabs[level];
+                        local_edge[ 0] = slab.bottom_x[ s ];
+                        local_edge[ 1] = slab.bottom_y[ s + 1 ];
+                        local_edge[ 2] = slab.bottom_x[ s + line_size ];
+                        local_edge[ 3] = slab.bottom_y[ s ];
+                        local_edge[ 4] = slab.top_x[ s ];
+                        local_edge[ 5] = slab.top_y[ s + 1 ];
+                        local_edge[ 6] = slab.top_x[ s + line_size ];
+                        local_edge[ 7] = slab.top_y[ s ];
+                        local_edge[ 8] = slab.ids_z[ s ];
+                        local_edge[ 9] = slab.ids_z[ s + 1 ];
+                        local_edge[10] = slab.ids_z[ s + 1 + line_size ];
+                        local_edge[11] = slab.ids_z[ s + line_size ];
+
+                        for ( int i = 0; MarchingCubesTable.TriangleID[table_index][i] != -1; i += 3 )
+                        {
+                            slab.connections.add(
+                                    local_edge[ MarchingCubesTable.TriangleID[table_index][i]   ],
+                                    local_edge[ MarchingCubesTable.TriangleID[table_index][i+2] ],
+                                    local_edge[ MarchingCubesTable.TriangleID[table_index][i+1] ] );
+                        }
+                    }
+                }
+            }
+        } // y
     }
 
+    /**
+     * z方向のスラブごとの抽出結果です。
+     */
+    private static final class Slab
+    {
+        FloatArrayList coords;
+        FloatArrayList normals;
+        IntArrayList   connections;
+        int            nisopoints; ///< number of the isopoints owned by the slab
+        int[]          bottom_x;   ///< isopoint numbers on the +x edges of the bottom slice
+        int[]          bottom_y;   ///< isopoint numbers on the +y edges of the bottom slice
+        int[]          top_x;      ///< isopoint numbers on the +x edges of the top slice
+        int[]          top_y;      ///< isopoint numbers on the +y edges of the top slice
+        int[]          ids_z;      ///< isopoint numbers on the +z edges of the bottom slice
+    }
 }
@@ -1,10 +1,15 @@
 package kvs.core.visualization.mapper;
 
 import java.awt.Color;
-import java.util.LinkedList;
-
-import kvs.core.matrix.Vector3f;
-import kvs.core.util.Utility;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import kvs.core.util.AnyValueArray;
+import kvs.core.util.FloatArrayList;
+import kvs.core.util.IntArrayList;
+import kvs.core.util.LongIntHashMap;
+import kvs.core.util.ThreadPool;
 import kvs.core.visualization.object.ObjectBase;
 import kvs.core.visualization.object.PolygonObject;
 import kvs.core.visualization.object.UnstructuredVolumeObject;
@@ -19,6 +24,7 @@ import kvs.core.visualization.object.VolumeObjectBase.VolumeType;
 public class MarchingTetrahedra extends MapperBase {
     
     private static final long serialVersionUID = 3397780576456948308L;
+    private static final int MinChunkSize = 4096; ///< min number of the cells per task
     private double  m_isolevel      = 0;    ///< isosurface level
     private boolean m_duplication   = true; ///< duplication flag
     
@@ -103,27 +109,82 @@ public class MarchingTetrahedra extends MapperBase {
     private void extract_surfaces( final UnstructuredVolumeObject volume )
     {
         if ( m_duplication ) this.extract_surfaces_with_duplication( volume );
-        //else                 this.extract_surfaces_without_duplication( volume );
+        else                 this.extract_surfaces_without_duplication( volume );
     }
-    
+
     private void extract_surfaces_with_duplication(
                                                    final UnstructuredVolumeObject volume )
+    {
+        // Extract surfaces in each chunk of the cells in parallel.
+        final int[] bounds = ThreadPool.split( volume.ncells(), ThreadPool.nthreads() * 4, MinChunkSize );
+        final List<Callable<Chunk>> tasks = new ArrayList<Callable<Chunk>>();
+        for ( int i = 0; i + 1 < bounds.length; i++ )
+        {
+            final int cell_begin = bounds[i];
+            final int cell_end   = bounds[i + 1];
+            tasks.add( new Callable<Chunk>()
+            {
+                public Chunk call()
+                {
+                    return( extract_chunk_with_duplication( volume, cell_begin, cell_end ) );
+                }
+            } );
+        }
+        final List<Chunk> chunks = ThreadPool.invokeAll( tasks );
+
+        // Merge the chunks in order.
+        int ncoords  = 0;
+        int nnormals = 0;
+        for ( Chunk chunk : chunks )
+        {
+            ncoords  += chunk.coords.size();
+            nnormals += chunk.normals.size();
+        }
+        final float[] coords  = new float[ncoords];
+        final float[] normals = new float[nnormals];
+        ncoords  = 0;
+        nnormals = 0;
+        for ( Chunk chunk : chunks )
+        {
+            chunk.coords.copyTo( coords, ncoords );
+            chunk.normals.copyTo( normals, nnormals );
+            ncoords  += chunk.coords.size();
+            nnormals += chunk.normals.size();
+        }
+
+        // Calculate the polygon color for the isolevel.
+        final Color color = this.calculate_color();
+
+        m_object.setCoords( coords );
+        m_object.setColor( color );
+        m_object.setNormals( normals );
+        m_object.setOpacity( (byte)255 );
+        m_object.setPolygonType( PolygonType.Triangle );
+        m_object.setColorType( ColorType.PolygonColor );
+        m_object.setNormalType( NormalType.PolygonNormal );
+    }
+
+    private Chunk extract_chunk_with_duplication(
+            final UnstructuredVolumeObject volume,
+            final int                      cell_begin,
+            final int                      cell_end )
     {
         // Calculated the coordinate data array and the normal vector array.
-        LinkedList<Float> coords = new LinkedList<Float>();
-        LinkedList<Float> normals = new LinkedList<Float>();
+        final Chunk chunk = new Chunk();
+        chunk.coords  = new FloatArrayList();
+        chunk.normals = new FloatArrayList();
 
         // Refer the unstructured volume object.
         final int[] connections = volume.connections();
+        final float[] volume_coords = volume.coords();
 
-        final int ncells = volume.ncells();
-        
-        double[] values = Utility.bufferToDoubleArray( m_volume.values() );
+        final AnyValueArray values = m_volume.valueArray();
 
         // Extract surfaces.
-        int index = 0;
+        int index = 4 * cell_begin;
         int[] local_index = new int[4];
-        for ( int cell = 0; cell < ncells; ++cell, index += 4 )
+        float[] vertex = new float[9];
+        for ( int cell = cell_begin; cell < cell_end; ++cell, index += 4 )
         {
             // Calculate the indices of the target cell.
             local_index[0] = connections[ index ];
@@ -156,73 +217,294 @@ public class MarchingTetrahedra extends MapperBase {
 
                 // Calculate coordinates of the vertices which are composed
                 // of the triangle polygon.
-                final Vector3f vertex0 = this.interpolate_vertex( values, v0, v1 );
-                coords.add( vertex0.getX() );
-                coords.add( vertex0.getY() );
-                coords.add( vertex0.getZ() );
-
-                final Vector3f vertex1 = this.interpolate_vertex( values, v2, v3 );
-                coords.add( vertex1.getX() );
-                coords.add( vertex1.getY() );
-                coords.add( vertex1.getZ() );
-
-                final Vector3f vertex2 = this.interpolate_vertex( values, v4, v5 );
-                coords.add( vertex2.getX() );
-                coords.add( vertex2.getY() );
-                coords.add( vertex2.getZ() );
+                this.interpolate_vertex( values, volume_coords, v0, v1, vertex, 0 );
+                this.interpolate_vertex( values, volume_coords, v2, v3, vertex, 3 );
+                this.interpolate_vertex( values, volume_coords, v4, v5, vertex, 6 );
+                if ( !this.faces_lower_side( values, volume_coords, v0, v1, vertex ) )
+                {
+                    swap_vertices( vertex );
+                }
+                chunk.coords.add( vertex[0], vertex[1], vertex[2] );
+                chunk.coords.add( vertex[3], vertex[4], vertex[5] );
+                chunk.coords.add( vertex[6], vertex[7], vertex[8] );
 
                 // Calculate a normal vector for the triangle polygon.
-                final Vector3f normal = ( vertex1.sub( vertex0 ) ).cross( vertex2.sub( vertex0 ) );
-                normals.add( normal.getX() );
-                normals.add( normal.getY() );
-                normals.add( normal.getZ() );
+                final float ux = vertex[3] - vertex[0];
+                final float uy = vertex[4] - vertex[1];
+                final float uz = vertex[5] - vertex[2];
+                final float wx = vertex[6] - vertex[0];
+                final float wy = vertex[7] - vertex[1];
+                final float wz = vertex[8] - vertex[2];
+                chunk.normals.add( uy * wz - uz * wy, uz * wx - ux * wz, ux * wy - uy * wx );
             } // end of loop-triangle
         } // end of loop-cell
 
+        return( chunk );
+    }
+
+    /**
+     * 頂点を共有した等値面を抽出します。等値面の頂点はそれが乗る辺(両端のノード番号の組)で識別され、
+     * セルの塊ごとに並列に抽出した後、塊の間で同じ辺の頂点をまとめます。
+     */
+    private void extract_surfaces_without_duplication(
+            final UnstructuredVolumeObject volume )
+    {
+        // Extract the isopoints and the triangles in each chunk of the cells in parallel.
+        final int[] bounds = ThreadPool.split( volume.ncells(), ThreadPool.nthreads() * 4, MinChunkSize );
+        final List<Callable<Chunk>> tasks = new ArrayList<Callable<Chunk>>();
+        for ( int i = 0; i + 1 < bounds.length; i++ )
+        {
+            final int cell_begin = bounds[i];
+            final int cell_end   = bounds[i + 1];
+            tasks.add( new Callable<Chunk>()
+            {
+                public Chunk call()
+                {
+                    return( extract_chunk_without_duplication( volume, cell_begin, cell_end ) );
+                }
+            } );
+        }
+        final List<Chunk> chunks = ThreadPool.invokeAll( tasks );
+
+        // Number the isopoints over the chunks. An isopoint is owned by the first chunk having its edge,
+        // and the other chunks refer to it by -id-1.
+        int nisopoints = 0;
+        for ( Chunk chunk : chunks ) nisopoints += chunk.edges.size() / 2;
+        final LongIntHashMap global_ids = new LongIntHashMap( nisopoints );
+        final int[][] ids = new int[chunks.size()][];
+        int nvertices = 0;
+        int nindices  = 0;
+        for ( int c = 0; c < chunks.size(); c++ )
+        {
+            final IntArrayList edges = chunks.get( c ).edges;
+            final int[] chunk_ids = new int[ edges.size() / 2 ];
+            for ( int i = 0; i < chunk_ids.length; i++ )
+            {
+                final long key = edge_key( edges.get( 2 * i ), edges.get( 2 * i + 1 ) );
+                final int id = global_ids.putIfAbsent( key, nvertices );
+                chunk_ids[i] = ( id == LongIntHashMap.NotFound ) ? nvertices++ : -id - 1;
+            }
+            ids[c] = chunk_ids;
+            nindices += chunks.get( c ).connections.size();
+        }
+
+        // Copy the owned isopoints and renumber the connections in parallel.
+        final float[] coords      = new float[3 * nvertices];
+        final int[]   connections = new int[nindices];
+        final List<Callable<Object>> merge_tasks = new ArrayList<Callable<Object>>();
+        nindices = 0;
+        for ( int c = 0; c < chunks.size(); c++ )
+        {
+            final Chunk chunk     = chunks.get( c );
+            final int[] chunk_ids = ids[c];
+            final int   begin     = nindices;
+            nindices += chunk.connections.size();
+            merge_tasks.add( new Callable<Object>()
+            {
+                public Object call()
+                {
+                    for ( int i = 0; i < chunk_ids.length; i++ )
+                    {
+                        final int id = chunk_ids[i];
+                        if ( id < 0 ) continue;
+                        coords[ 3 * id     ] = chunk.coords.get( 3 * i );
+                        coords[ 3 * id + 1 ] = chunk.coords.get( 3 * i + 1 );
+                        coords[ 3 * id + 2 ] = chunk.coords.get( 3 * i + 2 );
+                    }
+                    final IntArrayList local = chunk.connections;
+                    for ( int j = 0; j < local.size(); j++ )
+                    {
+                        final int id = chunk_ids[ local.get( j ) ];
+                        connections[ begin + j ] = ( id >= 0 ) ? id : -id - 1;
+                    }
+                    return( null );
+                }
+            } );
+        }
+        ThreadPool.invokeAll( merge_tasks );
+
+        final float[] normals = ( m_object.normalType() == NormalType.PolygonNormal ) ?
+                SurfaceNormals.calculateOnPolygon( coords, connections ) :
+                SurfaceNormals.calculateOnVertex( coords, connections );
+
         // Calculate the polygon color for the isolevel.
         final Color color = this.calculate_color();
 
-        m_object.setCoords( Utility.ListToFloatArray( coords ) );
+        m_object.setCoords( coords );
+        m_object.setConnections( connections );
         m_object.setColor( color );
-        m_object.setNormals( Utility.ListToFloatArray( normals ) );
+        m_object.setNormals( normals );
         m_object.setOpacity( (byte)255 );
         m_object.setPolygonType( PolygonType.Triangle );
         m_object.setColorType( ColorType.PolygonColor );
-        m_object.setNormalType( NormalType.PolygonNormal );
     }
-    
-    private int calculate_table_index( double[] values, final int[] local_index )
+
+    private Chunk extract_chunk_without_duplication(
+            final UnstructuredVolumeObject volume,
+            final int                      cell_begin,
+            final int                      cell_end )
+    {
+        final Chunk chunk = new Chunk();
+        chunk.coords      = new FloatArrayList();
+        chunk.connections = new IntArrayList();
+        chunk.edges       = new IntArrayList();
+
+        final int[]   connections   = volume.connections();
+        final float[] volume_coords = volume.coords();
+
+        final AnyValueArray values = m_volume.valueArray();
+
+        // Isopoint number in the chunk of each edge.
+        final LongIntHashMap local_ids = new LongIntHashMap();
+
+        int index = 4 * cell_begin;
+        int[] local_index = new int[4];
+        float[] vertex = new float[9];
+        int[] triangle = new int[3];
+        for ( int cell = cell_begin; cell < cell_end; ++cell, index += 4 )
+        {
+            local_index[0] = connections[ index ];
+            local_index[1] = connections[ index + 1 ];
+            local_index[2] = connections[ index + 2 ];
+            local_index[3] = connections[ index + 3 ];
+
+            final int table_index = this.calculate_table_index( values, local_index );
+            if ( table_index == 0 ) continue;
+            if ( table_index == 15 ) continue;
+
+            for ( int i = 0; MarchingTetrahedraTable.TriangleID[ table_index ][i] != -1; i += 3 )
+            {
+                for ( int k = 0; k < 3; k++ )
+                {
+                    final int e  = MarchingTetrahedraTable.TriangleID[table_index][i + k];
+                    final int n0 = local_index[ MarchingTetrahedraTable.VertexID[e][0] ];
+                    final int n1 = local_index[ MarchingTetrahedraTable.VertexID[e][1] ];
+
+                    // The isopoint is interpolated from the smaller node so that the cells sharing
+                    // the edge give the same coordinates.
+                    final int a = java.lang.Math.min( n0, n1 );
+                    final int b = java.lang.Math.max( n0, n1 );
+                    final int nisopoints = chunk.edges.size() / 2;
+                    int id = local_ids.putIfAbsent( edge_key( a, b ), nisopoints );
+                    if ( id == LongIntHashMap.NotFound )
+                    {
+                        id = nisopoints;
+                        this.interpolate_vertex( values, volume_coords, a, b, vertex, 3 * k );
+                        chunk.coords.add( vertex[3 * k], vertex[3 * k + 1], vertex[3 * k + 2] );
+                        chunk.edges.add( a );
+                        chunk.edges.add( b );
+                    }
+                    else
+                    {
+                        vertex[ 3 * k     ] = chunk.coords.get( 3 * id     );
+                        vertex[ 3 * k + 1 ] = chunk.coords.get( 3 * id + 1 );
+                        vertex[ 3 * k + 2 ] = chunk.coords.get( 3 * id + 2 );
+                    }
+                    triangle[k] = id;
+                }
+
+                final int e = MarchingTetrahedraTable.TriangleID[table_index][i];
+                final int n0 = local_index[ MarchingTetrahedraTable.VertexID[e][0] ];
+                final int n1 = local_index[ MarchingTetrahedraTable.VertexID[e][1] ];
+                if ( this.faces_lower_side( values, volume_coords, n0, n1, vertex ) )
+                {
+                    chunk.connections.add( triangle[0], triangle[1], triangle[2] );
+                }
+                else
+                {
+                    chunk.connections.add( triangle[0], triangle[2], triangle[1] );
+                }
+            }
+        }
+
+        return( chunk );
+    }
+
+    /**
+     * 三角形の法線ベクトル(v1-v0)x(v2-v0)が値の小さい側を向いているかどうかを返します。
+     * セル内の値は線形なので、三角形が乗る辺(node0,node1)の値の大きいノードから小さいノードへの向きで判定できます。
+     * この向きはMarchingCubesの三角形と同じです。
+     *
+     * @param vertex 三角形の頂点座標(9個)
+     */
+    private boolean faces_lower_side(
+            final AnyValueArray values,
+            final float[]       coords,
+            final int           node0,
+            final int           node1,
+            final float[]       vertex )
+    {
+        final boolean upper0 = values.getDouble( node0 ) > m_isolevel;
+        final int high = 3 * ( upper0 ? node0 : node1 );
+        final int low  = 3 * ( upper0 ? node1 : node0 );
+
+        final float ux = vertex[3] - vertex[0];
+        final float uy = vertex[4] - vertex[1];
+        final float uz = vertex[5] - vertex[2];
+        final float wx = vertex[6] - vertex[0];
+        final float wy = vertex[7] - vertex[1];
+        final float wz = vertex[8] - vertex[2];
+
+        return( ( uy * wz - uz * wy ) * ( coords[ low     ] - coords[ high     ] ) +
+                ( uz * wx - ux * wz ) * ( coords[ low + 1 ] - coords[ high + 1 ] ) +
+                ( ux * wy - uy * wx ) * ( coords[ low + 2 ] - coords[ high + 2 ] ) >= 0.0f );
+    }
+
+    /**
+     * 三角形の2番目と3番目の頂点を入れ替えて向きを反転します。
+     */
+    private static void swap_vertices( final float[] vertex )
+    {
+        for ( int i = 3; i < 6; i++ )
+        {
+            final float v = vertex[i];
+            vertex[i]     = vertex[i + 3];
+            vertex[i + 3] = v;
+        }
+    }
+
+    /**
+     * ノードa,b(a &lt; b)を両端とする辺の識別子を返します。
+     */
+    private static long edge_key( final int a, final int b )
+    {
+        return( ( (long)a << 32 ) | ( b & 0xFFFFFFFFL ) );
+    }
+
+    private int calculate_table_index( final AnyValueArray values, final int[] local_index )
     {
         final double isolevel = m_isolevel;
 
         int table_index = 0;
-        if ( ( values[ local_index[0] ] ) > isolevel ) { table_index |=   1; }
-        if ( ( values[ local_index[1] ] ) > isolevel ) { table_index |=   2; }
-        if ( ( values[ local_index[2] ] ) > isolevel ) { table_index |=   4; }
-        if ( ( values[ local_index[3] ] ) > isolevel ) { table_index |=   8; }
+        if ( ( values.getDouble( local_index[0] ) ) > isolevel ) { table_index |=   1; }
+        if ( ( values.getDouble( local_index[1] ) ) > isolevel ) { table_index |=   2; }
+        if ( ( values.getDouble( local_index[2] ) ) > isolevel ) { table_index |=   4; }
+        if ( ( values.getDouble( local_index[3] ) ) > isolevel ) { table_index |=   8; }
 
         return( table_index );
     }
     
-    private Vector3f interpolate_vertex(
-                                        double[] values,
-                                        final int vertex0,
-                                        final int vertex1 )
+    /**
+     * ノードvertex0,vertex1の間の等値面の頂点座標をvertexのoffset番目から格納します。
+     */
+    private void interpolate_vertex(
+                                    final AnyValueArray values,
+                                    final float[] coords,
+                                    final int vertex0,
+                                    final int vertex1,
+                                    final float[] vertex,
+                                    final int offset )
     {
-        final float[] coords = m_volume.coords();
-
         final int coord0_index = 3 * vertex0;
         final int coord1_index = 3 * vertex1;
 
-        final double v0 = values[ vertex0 ];
-        final double v1 = values[ vertex1 ];
+        final double v0 = values.getDouble( vertex0 );
+        final double v1 = values.getDouble( vertex1 );
         final float ratio = (float)( kvs.core.util.Math.abs( ( m_isolevel - v0 ) / ( v1 - v0 ) ) );
 
-        final float x = coords[coord0_index]   + ratio * ( coords[coord1_index]   - coords[coord0_index] );
-        final float y = coords[coord0_index+1] + ratio * ( coords[coord1_index+1] - coords[coord0_index+1] );
-        final float z = coords[coord0_index+2] + ratio * ( coords[coord1_index+2] - coords[coord0_index+2] );
-
-        return( new Vector3f( x, y, z ) );
+        vertex[ offset     ] = coords[coord0_index]   + ratio * ( coords[coord1_index]   - coords[coord0_index] );
+        vertex[ offset + 1 ] = coords[coord0_index+1] + ratio * ( coords[coord1_index+1] - coords[coord0_index+1] );
+        vertex[ offset + 2 ] = coords[coord0_index+2] + ratio * ( coords[coord1_index+2] - coords[coord0_index+2] );
     }
     
     private Color calculate_color()
@@ -243,5 +525,14 @@ public class MarchingTetrahedra extends MapperBase {
         return( transferFunction().colorMap().getAt( index ) );
     }
 
-
+    /**
+     * セルの塊ごとの抽出結果です。
+     */
+    private static final class Chunk
+    {
+        FloatArrayList coords;
+        FloatArrayList normals;
+        IntArrayList   connections; ///< isopoint numbers in the chunk
+        IntArrayList   edges;       ///< node pair of each isopoint
+    }
 }
@@ -1,15 +1,17 @@
 package kvs.core.visualization.mapper;
 
-import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
+import java.util.Arrays;
 import java.util.Random;
 
 import kvs.core.KVSException;
 import kvs.core.matrix.Vector3f;
 import kvs.core.matrix.Vector3i;
+import kvs.core.visualization.filter.GradientVolume;
 import kvs.core.visualization.filter.TrilinearInterpolator;
+import kvs.core.visualization.filter.VolumeSampler;
+import kvs.core.visualization.object.MinMaxGrid;
 import kvs.core.visualization.object.ObjectBase;
 import kvs.core.visualization.object.PointObject;
 import kvs.core.visualization.object.StructuredVolumeObject;
@@ -23,9 +25,17 @@ public class MetropolisSampling extends MapperBase{
     private static final long serialVersionUID = 7809365247131354699L;
 
     protected int m_nparticles; ///< number of generated particles
+    protected GradientVolume.Encoding m_gradient_encoding = null; ///< encoding of the precomputed gradients (null: not used)
 
     PointObject m_object = new PointObject();
 
+    private transient MinMaxGrid m_grid;       ///< min/max values of the blocks
+    private transient int[]      m_blocks;     ///< blocks used for the trial particles
+    private transient double[]   m_cumulative; ///< cumulative volume of the blocks
+    private transient float      m_index_offset; ///< value subtracted from the scalar before the scaling
+    private transient float      m_index_scale;  ///< scale from the scalar to the index of the transfer function
+    private transient int        m_max_index;    ///< max index of the transfer function
+
     public MetropolisSampling(){
         super();
     }
@@ -49,6 +59,31 @@ public class MetropolisSampling extends MapperBase{
         m_nparticles = nparticles;
     }
 
+    /**
+     * 粒子の法線ベクトルを、事前に計算した勾配ボリュームから求めます。
+     * 勾配はボリュームごとに1度だけ計算され、同じボリュームから粒子を繰り返し生成する場合に再利用されます。
+     *
+     * @param encoding 勾配の格納形式
+     */
+    public void enableGradientVolume( final GradientVolume.Encoding encoding ){
+        if( encoding == null ){
+            throw new IllegalArgumentException( "Gradient encoding must not be null." );
+        }
+        m_gradient_encoding = encoding;
+    }
+
+    public void disableGradientVolume(){
+        m_gradient_encoding = null;
+    }
+
+    public boolean isEnabledGradientVolume(){
+        return m_gradient_encoding != null;
+    }
+
+    public GradientVolume.Encoding gradientEncoding(){
+        return m_gradient_encoding;
+    }
+
     public ObjectBase exec( ObjectBase object ) throws KVSException {
         final ObjectType object_type = object.objectType();
         if ( object_type == ObjectType.Geometry )
@@ -79,12 +114,11 @@ public class MetropolisSampling extends MapperBase{
         this.set_min_max_coords( volume, m_object );
 
         // Generate the particles.
-        final Buffer type = volume.values();
-        if (      type instanceof IntBuffer ){
-            this.generate_particles( volume );
-        } else {
-            throw new KVSException("Unsupported data type '" +type.getClass().getName()+ "' of the structured volume." );
+        if ( volume.valueArray() == null ){
+            throw new KVSException("Unsupported data type of the structured volume." );
         }
+
+        this.generate_particles( volume );
     }
 
     private void mapping( final UnstructuredVolumeObject volume ) throws KVSException
@@ -95,8 +129,14 @@ public class MetropolisSampling extends MapperBase{
 
     private void generate_particles( final StructuredVolumeObject volume  )
     {
-        // Set the trilinear interpolator.
-        TrilinearInterpolator interpolator = new TrilinearInterpolator( volume );
+        // Set the trilinear interpolator and the conversion from the scalar to the index.
+        final VolumeSampler sampler = volume.sampler();
+        TrilinearInterpolator interpolator = sampler.interpolator();
+        m_max_index    = this.opacityMap().resolution() - 1;
+        m_index_offset = sampler.indexOffset();
+        m_index_scale  = sampler.indexScale( m_max_index + 1 );
+        final GradientVolume gradients = ( m_gradient_encoding != null ) ?
+                volume.gradientVolume( m_gradient_encoding ) : null;
 
         // Alias.
         final Vector3i r = volume.resolution().sub( new Vector3i(1) );
@@ -109,13 +149,16 @@ public class MetropolisSampling extends MapperBase{
         // Random number generator.
         Random R = new Random();
 
+        // Trial particles are generated only in the blocks which are not fully transparent.
+        this.create_sampling_blocks( volume );
+
         // Set a initial particle and a trial particle.
-        Vector3f particle = new Vector3f( R.nextFloat() * r.getX(), R.nextFloat() * r.getY(), R.nextFloat() * r.getZ() );
+        Vector3f particle = this.random_point( R, r );
         Vector3f trial_particle = Vector3f.ZERO;
 
         // Attach the initial particle to the interpolator and get a rho value.
         interpolator.attachPoint( particle );
-        int scalar = (int)interpolator.scalar();
+        int scalar = this.table_index( interpolator );
         float  rho    =  this.opacityMap().getAt( scalar );
         float  trial_rho =  0.0f;
 
@@ -123,17 +166,17 @@ public class MetropolisSampling extends MapperBase{
         int counter = 0;
         while( counter < m_nparticles )
         {
-            trial_particle = new Vector3f( R.nextFloat() * r.getX(), R.nextFloat() * r.getY(), R.nextFloat() * r.getZ() );
+            trial_particle = this.random_point( R, r );
             interpolator.attachPoint( trial_particle );
 
-            scalar    = (int)interpolator.scalar();
+            scalar    = this.table_index( interpolator );
             trial_rho = this.opacityMap().getAt( scalar );
 
             final float ratio = trial_rho / rho;
             if( ratio >= 1.0f )
             {
                 // Adopt the particle.
-                final Vector3f gradient = interpolator.gradient();
+                final Vector3f gradient = this.gradient( interpolator, gradients );
                 this.adopt_particle( counter, trial_particle, scalar, gradient );
 
                 // Update the particle.
@@ -147,7 +190,7 @@ public class MetropolisSampling extends MapperBase{
                 if( ratio >= R.nextFloat() )
                 {
                     // Adopt the particle.
-                    final Vector3f gradient = interpolator.gradient();
+                    final Vector3f gradient = this.gradient( interpolator, gradients );
                     this.adopt_particle( counter, trial_particle, scalar, gradient );
 
                     // Update the particle.
@@ -159,8 +202,8 @@ public class MetropolisSampling extends MapperBase{
                 else
                 {
                     interpolator.attachPoint( particle );
-                    scalar = (int)interpolator.scalar();
-                    final Vector3f gradient = interpolator.gradient();
+                    scalar = this.table_index( interpolator );
+                    final Vector3f gradient = this.gradient( interpolator, gradients );
                     this.adopt_particle( counter, particle, scalar, gradient );
 
                     counter++;
@@ -169,6 +212,103 @@ public class MetropolisSampling extends MapperBase{
         }
 
         m_object.setSize( 1.0f );
+
+        m_grid       = null;
+        m_blocks     = null;
+        m_cumulative = null;
+    }
+
+    /**
+     * 不透明度が0でないブロックとその体積の累積和を求めます。
+     * すべてのブロックが対象となる場合(または対象がない場合)はボリューム全体から一様に生成します。
+     */
+    private void create_sampling_blocks( final StructuredVolumeObject volume )
+    {
+        m_grid       = volume.minMaxGrid();
+        m_blocks     = null;
+        m_cumulative = null;
+
+        final boolean[] empty = m_grid.transparentBlocks( this.opacityMap(), m_index_offset, m_index_scale );
+
+        int nblocks = 0;
+        for ( int i = 0; i < empty.length; i++ ) if ( !empty[i] ) nblocks++;
+        if ( nblocks == 0 || nblocks == empty.length ) return;
+
+        final Vector3i n = m_grid.nblocks();
+        m_blocks     = new int[nblocks];
+        m_cumulative = new double[nblocks];
+
+        int    index = 0;
+        double total = 0.0;
+        for ( int bz = 0; bz < n.getZ(); bz++ )
+        {
+            final int[] range_z = m_grid.cellRange( bz, 2 );
+            for ( int by = 0; by < n.getY(); by++ )
+            {
+                final int[] range_y = m_grid.cellRange( by, 1 );
+                for ( int bx = 0; bx < n.getX(); bx++ )
+                {
+                    final int block = m_grid.blockIndex( bx, by, bz );
+                    if ( empty[block] ) continue;
+
+                    final int[] range_x = m_grid.cellRange( bx, 0 );
+                    total += (double)( range_x[1] - range_x[0] ) * ( range_y[1] - range_y[0] ) * ( range_z[1] - range_z[0] );
+
+                    m_blocks[index]     = block;
+                    m_cumulative[index] = total;
+                    index++;
+                }
+            }
+        }
+    }
+
+    /**
+     * 不透明度が0でないブロック内に一様に分布する点を生成します。
+     */
+    private Vector3f random_point( final Random R, final Vector3i r )
+    {
+        if ( m_blocks == null )
+        {
+            return( new Vector3f( R.nextFloat() * r.getX(), R.nextFloat() * r.getY(), R.nextFloat() * r.getZ() ) );
+        }
+
+        final double u = R.nextDouble() * m_cumulative[ m_cumulative.length - 1 ];
+        int index = Arrays.binarySearch( m_cumulative, u );
+        if ( index < 0 ) index = -index - 1;
+        if ( index >= m_blocks.length ) index = m_blocks.length - 1;
+
+        final Vector3i n = m_grid.nblocks();
+        final int block = m_blocks[index];
+        final int bx = block % n.getX();
+        final int by = ( block / n.getX() ) % n.getY();
+        final int bz = block / ( n.getX() * n.getY() );
+
+        final int[] range_x = m_grid.cellRange( bx, 0 );
+        final int[] range_y = m_grid.cellRange( by, 1 );
+        final int[] range_z = m_grid.cellRange( bz, 2 );
+
+        return( new Vector3f(
+                range_x[0] + R.nextFloat() * ( range_x[1] - range_x[0] ),
+                range_y[0] + R.nextFloat() * ( range_y[1] - range_y[0] ),
+                range_z[0] + R.nextFloat() * ( range_z[1] - range_z[0] ) ) );
+    }
+
+    /**
+     * 補間した値を伝達関数の番号に変換します。
+     */
+    private int table_index( final TrilinearInterpolator interpolator )
+    {
+        final int index = (int)( ( interpolator.scalar() - m_index_offset ) * m_index_scale );
+        return( index < 0 ? 0 : ( index > m_max_index ? m_max_index : index ) );
+    }
+
+    private Vector3f gradient( final TrilinearInterpolator interpolator, final GradientVolume gradients )
+    {
+        if ( gradients == null ) return( interpolator.gradient() );
+
+        final float[] gradient = new float[3];
+        interpolator.gradient( gradients, gradient, 0 );
+        return( new Vector3f( gradient[0], gradient[1], gradient[2] ) );
     }
 
     private void adopt_particle( final int      index,
@@ -4,20 +4,13 @@
  */
 package kvs.core.visualization.mapper;
 
-import java.nio.Buffer;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.DoubleBuffer;
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
-import java.nio.LongBuffer;
-import java.nio.ShortBuffer;
-import java.util.ArrayList;
 import kvs.core.KVSException;
 import kvs.core.matrix.Vector3f;
 import kvs.core.matrix.Vector3i;
 import kvs.core.matrix.Vector4f;
-import kvs.core.util.Utility;
+import kvs.core.util.AnyValueArray;
+import kvs.core.util.ByteArrayList;
+import kvs.core.util.FloatArrayList;
 import kvs.core.visualization.object.ObjectBase;
 import kvs.core.visualization.object.ObjectBase.ObjectType;
 import kvs.core.visualization.object.PolygonObject;
@@ -102,9 +95,9 @@ public class SlicePlane extends MapperBase{
 
     private void extract_plane( final StructuredVolumeObject volume ) throws KVSException{
         // Calculated the coordinate data array and the normal vector array.
-        ArrayList<Float> coords = new ArrayList<Float>();
-        ArrayList<Float> normals = new ArrayList<Float>();
-        ArrayList<Integer> colors = new ArrayList<Integer>();
+        FloatArrayList coords = new FloatArrayList();
+        FloatArrayList normals = new FloatArrayList();
+        ByteArrayList colors = new ByteArrayList();
 
         // Calculate min/max values of the node data.
         if ( !volume.hasMinMaxValues() ){
@@ -195,21 +188,21 @@ public class SlicePlane extends MapperBase{
 
                         final int color0 =
                                 (int) (normalize_factor * (value0 - min_value));
-                        colors.add( color_map.getAt( color0 ).getRed() );
-                        colors.add( color_map.getAt( color0 ).getGreen() );
-                        colors.add( color_map.getAt( color0 ).getBlue() );
+                        colors.add( (byte)color_map.getAt( color0 ).getRed() );
+                        colors.add( (byte)color_map.getAt( color0 ).getGreen() );
+                        colors.add( (byte)color_map.getAt( color0 ).getBlue() );
 
                         final int color1 =
                                 (int) (normalize_factor * (value1 - min_value));
-                        colors.add( color_map.getAt( color1 ).getRed() );
-                        colors.add( color_map.getAt( color1 ).getGreen() );
-                        colors.add( color_map.getAt( color1 ).getBlue() );
+                        colors.add( (byte)color_map.getAt( color1 ).getRed() );
+                        colors.add( (byte)color_map.getAt( color1 ).getGreen() );
+                        colors.add( (byte)color_map.getAt( color1 ).getBlue() );
 
                         final int color2 =
                                 (int) (normalize_factor * (value2 - min_value));
-                        colors.add( color_map.getAt( color2 ).getRed() );
-                        colors.add( color_map.getAt( color2 ).getGreen() );
-                        colors.add( color_map.getAt( color2 ).getBlue() );
+                        colors.add( (byte)color_map.getAt( color2 ).getRed() );
+                        colors.add( (byte)color_map.getAt( color2 ).getGreen() );
+                        colors.add( (byte)color_map.getAt( color2 ).getBlue() );
 
                         // Calculate a normal vector for the triangle polygon.
                         final Vector3f normal = (vertex2.sub( vertex0 )).cross( vertex1.sub( vertex0 ) );
@@ -223,9 +216,9 @@ public class SlicePlane extends MapperBase{
             index += line_size;
         } // end of loop-z
 
-        m_object.setCoords( Utility.ListToFloatArray( coords ) );
-        m_object.setColors( Utility.ListToIntArray( colors ) );
-        m_object.setNormals( Utility.ListToFloatArray( normals ) );
+        m_object.setCoords( coords.buffer() );
+        m_object.setColors( colors.buffer() );
+        m_object.setNormals( normals.buffer() );
         m_object.setOpacity( (byte) 255 );
         m_object.setPolygonType( PolygonObject.PolygonType.Triangle );
         m_object.setColorType( PolygonObject.ColorType.VertexColor );
@@ -235,9 +228,9 @@ public class SlicePlane extends MapperBase{
     private void extract_plane(
             final UnstructuredVolumeObject volume ) throws KVSException{
         // Calculated the coordinate data array and the normal vector array.
-        ArrayList<Float> coords = new ArrayList<Float>();
-        ArrayList<Float> normals = new ArrayList<Float>();
-        ArrayList<Integer> colors = new ArrayList<Integer>();
+        FloatArrayList coords = new FloatArrayList();
+        FloatArrayList normals = new FloatArrayList();
+        ByteArrayList colors = new ByteArrayList();
 
         // Calculate min/max values of the node data.
         if ( !volume.hasMinMaxValues() ){
@@ -323,21 +316,21 @@ public class SlicePlane extends MapperBase{
 
                 final int color0 =
                         (int) (normalize_factor * (value0 - min_value));
-                colors.add( color_map.getAt( color0 ).getRed() );
-                colors.add( color_map.getAt( color0 ).getGreen() ); //blue?
-                colors.add( color_map.getAt( color0 ).getBlue() );
+                colors.add( (byte)color_map.getAt( color0 ).getRed() );
+                colors.add( (byte)color_map.getAt( color0 ).getGreen() ); //blue?
+                colors.add( (byte)color_map.getAt( color0 ).getBlue() );
 
                 final int color1 =
                         (int) (normalize_factor * (value1 - min_value));
-                colors.add( color_map.getAt( color1 ).getRed() );
-                colors.add( color_map.getAt( color1 ).getGreen() );
-                colors.add( color_map.getAt( color1 ).getBlue() );
+                colors.add( (byte)color_map.getAt( color1 ).getRed() );
+                colors.add( (byte)color_map.getAt( color1 ).getGreen() );
+                colors.add( (byte)color_map.getAt( color1 ).getBlue() );
 
                 final int color2 =
                         (int) (normalize_factor * (value2 - min_value));
-                colors.add( color_map.getAt( color2 ).getRed() );
-                colors.add( color_map.getAt( color2 ).getGreen() );
-                colors.add( color_map.getAt( color2 ).getBlue() );
+                colors.add( (byte)color_map.getAt( color2 ).getRed() );
+                colors.add( (byte)color_map.getAt( color2 ).getGreen() );
+                colors.add( (byte)color_map.getAt( color2 ).getBlue() );
 
                 // Calculate a normal vector for the triangle polygon.
                 final Vector3f normal = (vertex2.sub( vertex0 )).cross( vertex1.sub( vertex0 ) );
@@ -347,9 +340,9 @@ public class SlicePlane extends MapperBase{
             } // end of loop-triangle
         } // end of loop-cell
 
-        m_object.setCoords( Utility.ListToFloatArray( coords ) );
-        m_object.setColors( Utility.ListToIntArray( colors ) );
-        m_object.setNormals( Utility.ListToFloatArray( normals ) );
+        m_object.setCoords( coords.buffer() );
+        m_object.setColors( colors.buffer() );
+        m_object.setNormals( normals.buffer() );
         m_object.setOpacity( (byte) 255 );
         m_object.setPolygonType( PolygonObject.PolygonType.Triangle );
         m_object.setColorType( PolygonObject.ColorType.PolygonColor );
@@ -446,7 +439,7 @@ public class SlicePlane extends MapperBase{
             final StructuredVolumeObject volume,
             final Vector3f vertex0,
             final Vector3f vertex1 ) throws KVSException{
-        Buffer buf = volume.values();
+        final AnyValueArray values = volume.valueArray();
 
         final int line_size = volume.nnodesPerLine();
         final int slice_size = volume.nnodesPerSlice();
@@ -458,31 +451,12 @@ public class SlicePlane extends MapperBase{
         final int index0 = (int) (vertex0.getX() + vertex0.getY() * line_size + vertex0.getZ() * slice_size);
         final int index1 = (int) (vertex1.getX() + vertex1.getY() * line_size + vertex1.getZ() * slice_size);
 
-        if ( buf instanceof ByteBuffer ){
-            ByteBuffer values = (ByteBuffer) buf;
-            return (values.get( index0 ) + ratio * (values.get( index1 ) - values.get( index0 )));
-        } else if ( buf instanceof ShortBuffer ){
-            ShortBuffer values = (ShortBuffer) buf;
-            return (values.get( index0 ) + ratio * (values.get( index1 ) - values.get( index0 )));
-        } else if ( buf instanceof IntBuffer ){
-            IntBuffer values = (IntBuffer) buf;
-            return (values.get( index0 ) + ratio * (values.get( index1 ) - values.get( index0 )));
-        } else if ( buf instanceof LongBuffer ){
-            LongBuffer values = (LongBuffer) buf;
-            return (values.get( index0 ) + ratio * (values.get( index1 ) - values.get( index0 )));
-        } else if ( buf instanceof FloatBuffer ){
-            FloatBuffer values = (FloatBuffer) buf;
-            return (values.get( index0 ) + ratio * (values.get( index1 ) - values.get( index0 )));
-        } else if ( buf instanceof DoubleBuffer ){
-            DoubleBuffer values = (DoubleBuffer) buf;
-            return (values.get( index0 ) + ratio * (values.get( index1 ) - values.get( index0 )));
-        } else if ( buf instanceof CharBuffer ){
-            CharBuffer values = (CharBuffer) buf;
-            return (values.get( index0 ) + ratio * (values.get( index1 ) - values.get( index0 )));
-        } else{
+        if ( values == null ){
             throw new KVSException( "Unsupported data type" );
         }
 
+        return (values.getDouble( index0 ) + ratio * (values.getDouble( index1 ) - values.getDouble( index0 )));
+
 
     }
 
@@ -490,36 +464,17 @@ public class SlicePlane extends MapperBase{
             final UnstructuredVolumeObject volume,
             final int index0,
             final int index1 ) throws KVSException{
-        Buffer buf = volume.values();
+        final AnyValueArray values = volume.valueArray();
         float[] coords = volume.coords();
 
         final float value0 = this.substitute_plane_equation( new Vector3f( coords, 3 * index0 ) );
         final float value1 = this.substitute_plane_equation( new Vector3f( coords, 3 * index1 ) );
         final float ratio = kvs.core.util.Math.abs( value0 / (value1 - value0) );
 
-        if ( buf instanceof ByteBuffer ){
-            ByteBuffer values = (ByteBuffer) buf;
-            return (values.get( index0 ) + ratio * (values.get( index1 ) - values.get( index0 )));
-        } else if ( buf instanceof ShortBuffer ){
-            ShortBuffer values = (ShortBuffer) buf;
-            return (values.get( index0 ) + ratio * (values.get( index1 ) - values.get( index0 )));
-        } else if ( buf instanceof IntBuffer ){
-            IntBuffer values = (IntBuffer) buf;
-            return (values.get( index0 ) + ratio * (values.get( index1 ) - values.get( index0 )));
-        } else if ( buf instanceof LongBuffer ){
-            LongBuffer values = (LongBuffer) buf;
-            return (values.get( index0 ) + ratio * (values.get( index1 ) - values.get( index0 )));
-        } else if ( buf instanceof FloatBuffer ){
-            FloatBuffer values = (FloatBuffer) buf;
-            return (values.get( index0 ) + ratio * (values.get( index1 ) - values.get( index0 )));
-        } else if ( buf instanceof DoubleBuffer ){
-            DoubleBuffer values = (DoubleBuffer) buf;
-            return (values.get( index0 ) + ratio * (values.get( index1 ) - values.get( index0 )));
-        } else if ( buf instanceof CharBuffer ){
-            CharBuffer values = (CharBuffer) buf;
-            return (values.get( index0 ) + ratio * (values.get( index1 ) - values.get( index0 )));
-        } else{
+        if ( values == null ){
             throw new KVSException( "Unsupported data type" );
         }
+
+        return (values.getDouble( index0 ) + ratio * (values.getDouble( index1 ) - values.getDouble( index0 )));
     }
 }
@@ -0,0 +1,171 @@
+package kvs.core.visualization.mapper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import kvs.core.util.ThreadPool;
+import kvs.core.visualization.filter.TrilinearInterpolator;
+import kvs.core.visualization.object.StructuredVolumeObject;
+
+/**
+ * 等値面の三角形ポリゴンの法線ベクトルを求めるクラスです。
+ * MarchingCubesとFlyingEdgesで共通に使用します。
+ */
+final class SurfaceNormals {
+
+    private static final int MinChunkSize = 4096; ///< min number of the elements per task
+
+    private SurfaceNormals(){}
+
+    /**
+     * 三角形ごとの法線ベクトル(正規化しない外積)を並列に求めます。
+     *
+     * @param coords 頂点座標
+     * @param connections 三角形ごとの頂点番号
+     * @return 三角形ごとの法線ベクトル
+     */
+    static float[] calculateOnPolygon(
+            final float[] coords,
+            final int[]   connections )
+    {
+        if ( coords.length == 0 ) return new float[0];
+
+        final float[] normals = new float[connections.length];
+
+        final int[] bounds = ThreadPool.split( connections.length / 3, ThreadPool.nthreads() * 4, MinChunkSize );
+        final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for ( int i = 0; i + 1 < bounds.length; i++ )
+        {
+            final int begin = bounds[i];
+            final int end   = bounds[i + 1];
+            tasks.add( new Callable<Object>()
+            {
+                public Object call()
+                {
+                    for ( int index = 3 * begin; index < 3 * end; index += 3 )
+                    {
+                        cross( coords,
+                               3 * connections[ index     ],
+                               3 * connections[ index + 1 ],
+                               3 * connections[ index + 2 ],
+                               normals, index );
+                    }
+                    return( null );
+                }
+            } );
+        }
+        ThreadPool.invokeAll( tasks );
+
+        return normals;
+    }
+
+    /**
+     * 頂点ごとの法線ベクトルを、その頂点を含む三角形の法線ベクトルの和として求めます。
+     *
+     * @param coords 頂点座標
+     * @param connections 三角形ごとの頂点番号
+     * @return 頂点ごとの法線ベクトル
+     */
+    static float[] calculateOnVertex(
+            final float[] coords,
+            final int[]   connections )
+    {
+        if ( coords.length == 0 ) return new float[0];
+
+        final float[] normals = new float[coords.length];
+        final float[] normal  = new float[3];
+
+        final int size = connections.length;
+        for ( int index = 0; index < size; index += 3 )
+        {
+            final int coord0_index = 3 * connections[ index     ];
+            final int coord1_index = 3 * connections[ index + 1 ];
+            final int coord2_index = 3 * connections[ index + 2 ];
+
+            cross( coords, coord0_index, coord1_index, coord2_index, normal, 0 );
+
+            normals[ coord0_index     ] += normal[0];
+            normals[ coord0_index + 1 ] += normal[1];
+            normals[ coord0_index + 2 ] += normal[2];
+
+            normals[ coord1_index     ] += normal[0];
+            normals[ coord1_index + 1 ] += normal[1];
+            normals[ coord1_index + 2 ] += normal[2];
+
+            normals[ coord2_index     ] += normal[0];
+            normals[ coord2_index + 1 ] += normal[1];
+            normals[ coord2_index + 2 ] += normal[2];
+        }
+        return normals;
+    }
+
+    /**
+     * 頂点ごとの法線ベクトルを、頂点の位置でのスカラー場の勾配から並列に求めます。
+     * 法線ベクトルは値の小さい側を向き、三角形の法線ベクトルと同じ側になります。
+     * 頂点が共有されていない(重複した)座標にも使用できます。
+     *
+     * @param volume 等値面を抽出したボリューム(座標はボリュームの格子の番号)
+     * @param coords 頂点座標
+     * @param nvertices 頂点数
+     * @return 頂点ごとの法線ベクトル
+     */
+    static float[] calculateFromGradient(
+            final StructuredVolumeObject volume,
+            final float[]                coords,
+            final int                    nvertices )
+    {
+        final float[] normals = new float[ 3 * nvertices ];
+
+        final int[] bounds = ThreadPool.split( nvertices, ThreadPool.nthreads() * 4, MinChunkSize );
+        final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for ( int i = 0; i + 1 < bounds.length; i++ )
+        {
+            final int begin = bounds[i];
+            final int end   = bounds[i + 1];
+            tasks.add( new Callable<Object>()
+            {
+                public Object call()
+                {
+                    // The interpolator holds the state of the attached point, so each thread has its own.
+                    final TrilinearInterpolator interpolator = volume.sampler().interpolator();
+                    for ( int index = 3 * begin; index < 3 * end; index += 3 )
+                    {
+                        interpolator.attachPoint( coords[ index ], coords[ index + 1 ], coords[ index + 2 ] );
+                        interpolator.gradient( normals, index );
+                        normals[ index     ] = -normals[ index     ];
+                        normals[ index + 1 ] = -normals[ index + 1 ];
+                        normals[ index + 2 ] = -normals[ index + 2 ];
+                    }
+                    return( null );
+                }
+            } );
+        }
+        ThreadPool.invokeAll( tasks );
+
+        return normals;
+    }
+
+    /**
+     * 三角形(v0,v1,v2)の外積(v1-v0)x(v2-v0)をnormalのoffset番目から格納します。
+     */
+    private static void cross(
+            final float[] coords,
+            final int     v0,
+            final int     v1,
+            final int     v2,
+            final float[] normal,
+            final int     offset )
+    {
+        final float ux = coords[ v1     ] - coords[ v0     ];
+        final float uy = coords[ v1 + 1 ] - coords[ v0 + 1 ];
+        final float uz = coords[ v1 + 2 ] - coords[ v0 + 2 ];
+        final float wx = coords[ v2     ] - coords[ v0     ];
+        final float wy = coords[ v2 + 1 ] - coords[ v0 + 1 ];
+        final float wz = coords[ v2 + 2 ] - coords[ v0 + 2 ];
+
+        normal[ offset     ] = uy * wz - uz * wy;
+        normal[ offset + 1 ] = uz * wx - ux * wz;
+        normal[ offset + 2 ] = ux * wy - uy * wx;
+    }
+}
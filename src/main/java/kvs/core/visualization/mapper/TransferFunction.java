@@ -74,6 +74,43 @@ public class TransferFunction implements Serializable{
         return( m_opacity_map.resolution() );
     }
 
+    /**
+     * 色に不透明度を掛けた値と不透明度をRGBAの順に並べた表を返します。色の範囲は[0,255]です。
+     * 表は呼び出しごとに作成されるため、描画の前に一度だけ取得してください。
+     */
+    public float[] premultipliedTable()
+    {
+        return( premultipliedTable( m_color_map, m_opacity_map ) );
+    }
+
+    /**
+     * 色に不透明度を掛けた値と不透明度をRGBAの順に並べた表を作成します。
+     * 表の大きさは不透明度マップの解像度で、色マップの範囲外の色は最後の色とします。
+     *
+     * @param color_map 色マップ
+     * @param opacity_map 不透明度マップ
+     * @return 4 x 解像度の表
+     */
+    public static float[] premultipliedTable( final ColorMap color_map, final OpacityMap opacity_map )
+    {
+        final int[]   colors    = color_map.table();
+        final float[] opacities = opacity_map.table();
+        final int     ncolors   = color_map.resolution();
+
+        final float[] table = new float[ 4 * opacities.length ];
+        for ( int i = 0; i < opacities.length; i++ )
+        {
+            final int   c = 3 * java.lang.Math.min( i, ncolors - 1 );
+            final float a = opacities[i];
+            table[ 4 * i     ] = colors[ c     ] * a;
+            table[ 4 * i + 1 ] = colors[ c + 1 ] * a;
+            table[ 4 * i + 2 ] = colors[ c + 2 ] * a;
+            table[ 4 * i + 3 ] = a;
+        }
+
+        return( table );
+    }
+
     public void create( final int resolution )
     {
         m_opacity_map.create( resolution );
@@ -0,0 +1,48 @@
+package kvs.core.visualization.mapper;
+
+import java.awt.Color;
+
+import kvs.core.KVSException;
+import kvs.core.visualization.object.PolygonObject.NormalType;
+
+/**
+ * 等値面の三角形を逐次受け取る出力先のインタフェースです。
+ * 三角形は頂点を共有せず、begin()、append()の繰り返し、end()の順に呼ばれます。
+ * begin()の後に出力が失敗した場合は、end()の代わりにabort()が呼ばれます。
+ */
+public interface TriangleSink {
+
+    /**
+     * 出力を開始します。
+     *
+     * @param normal_type 法線ベクトルの割り当て方法(VertexNormalまたはPolygonNormal)
+     * @param color ポリゴンの色
+     * @throws KVSException 出力を開始できない場合
+     */
+    public void begin( NormalType normal_type, Color color ) throws KVSException;
+
+    /**
+     * 三角形を追加します。配列は呼び出し後に再利用されるため、保持する場合はコピーしてください。
+     *
+     * @param coords 頂点座標(三角形ごとに9個)
+     * @param normals 法線ベクトル(VertexNormalでは三角形ごとに9個、PolygonNormalでは3個)
+     * @param ntriangles 三角形数
+     * @throws KVSException 出力できない場合
+     */
+    public void append( float[] coords, float[] normals, int ntriangles ) throws KVSException;
+
+    /**
+     * 出力を終了します。
+     *
+     * @throws KVSException 出力できない場合
+     */
+    public void end() throws KVSException;
+
+    /**
+     * 出力を中止し、開いている資源を解放して書きかけの出力を破棄します。
+     * begin()の後に三角形の抽出、append()またはend()が失敗した場合に呼ばれます。
+     *
+     * @throws KVSException 書きかけの出力を破棄できない場合
+     */
+    public void abort() throws KVSException;
+}
@@ -0,0 +1,565 @@
+package kvs.core.visualization.object;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import kvs.core.KVSException;
+import kvs.core.matrix.Vector3i;
+import kvs.core.util.AnyValueArray;
+import kvs.core.util.AnyValueArray.ValueType;
+
+/**
+ * BrickedVolumeObjectクラスはファイル上の生データをブリック単位で必要な時に読み込む構造格子ボリュームです。
+ * 読み込んだブリックは上限付きのLRUキャッシュに保持されます。
+ * valueArray()はブリックを透過的に参照する配列を返すため、TrilinearInterpolatorやMarchingCubesなど
+ * StructuredVolumeObjectを扱うクラスからそのまま利用できます。
+ * <p>
+ * ノード数はint型で表せる範囲を超えてもよく、その場合はnnodesAsLong()とvalueArray()のlong型の番号で
+ * 値を参照します。long型の番号に対応しているのはTrilinearInterpolator(ボリュームレンダリング)、
+ * MarchingCubes、MinMaxGrid、VolumeStatisticsで、ノードごとの配列を作成するクラス(GradientVolumeなど)は
+ * nnodes()またはvalueArray().size()の例外で失敗します。1スライスのノード数はint型の範囲に制限されます。
+ * <p>
+ * 各スレッドは最後に参照したブリックを保持するため、同じブリック内の参照ではロックを取りません。
+ * キャッシュはアクセス順のLinkedHashMapで、参照と追い出しはO(1)です。ロックを取るのはキャッシュの更新のみで、
+ * ブリックの読み込みはロックの外で行い、同じブリックを待つスレッドは読み込み中のFutureTaskを待ちます。
+ */
+public class BrickedVolumeObject extends StructuredVolumeObject {
+
+    private static final long serialVersionUID = -2358064934786423161L;
+
+    private static final int DefaultBrickSize = 64;
+    private static final int DefaultMaxBricks = 64;
+
+    private final File              m_file;         ///< raw data file
+    private final long              m_offset;       ///< byte offset of the first value in the file
+    private final ValueType         m_value_type;   ///< value type
+    private final ByteOrder         m_byte_order;   ///< byte order of the raw data
+    private final int               m_brick_size;   ///< number of nodes per brick edge (without ghost)
+    private final int               m_max_bricks;   ///< max number of bricks in the cache
+    private final Vector3i          m_nbricks;      ///< number of bricks
+    private final long              m_nnodes;       ///< number of nodes
+
+    private transient RandomAccessFile                                m_raf;    ///< raw data file
+    private transient Map<Integer,FutureTask<VolumeBrick>>            m_cache;  ///< cached (or loading) bricks by brick id in the LRU order
+    private transient ThreadLocal<VolumeBrick>                        m_cursor; ///< most recently accessed brick of each thread
+    private long                                                      m_hits;   ///< number of cache hits
+    private long                                                      m_misses; ///< number of cache misses
+
+    public BrickedVolumeObject(
+            final File      file,
+            final long      offset,
+            final Vector3i  resolution,
+            final ValueType value_type,
+            final ByteOrder byte_order ) throws KVSException
+    {
+        this( file, offset, resolution, value_type, byte_order, DefaultBrickSize, DefaultMaxBricks );
+    }
+
+    /**
+     * ブリック化されたボリュームを生成します。
+     *
+     * @param file 生データのファイル
+     * @param offset ファイル中の値の開始位置[byte]
+     * @param resolution 解像度
+     * @param value_type 値の型
+     * @param byte_order 値のバイトオーダー
+     * @param brick_size ブリックの一辺のノード数(ゴースト領域を除く)
+     * @param max_bricks キャッシュに保持する最大ブリック数
+     * @throws KVSException ファイルが開けない、サイズが合わない、または値の型に対応していない場合
+     */
+    public BrickedVolumeObject(
+            final File      file,
+            final long      offset,
+            final Vector3i  resolution,
+            final ValueType value_type,
+            final ByteOrder byte_order,
+            final int       brick_size,
+            final int       max_bricks ) throws KVSException
+    {
+        super( resolution, 1, (Buffer)null );
+
+        if ( brick_size < 1 || max_bricks < 1 )
+        {
+            throw new KVSException( "Brick size and max number of bricks must be positive." );
+        }
+
+        if ( value_type == null )
+        {
+            throw new KVSException( "Value type of a bricked volume is not specified." );
+        }
+        try
+        {
+            // Unsupported value types are rejected here rather than when the first brick is read.
+            wrap( ByteBuffer.allocate( 0 ), value_type );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            throw new KVSException( e.getMessage() );
+        }
+
+        // The nodes are indexed by long, but the nodes of a slice and the bricks are indexed by int.
+        if ( (long)resolution.getX() * resolution.getY() > Integer.MAX_VALUE )
+        {
+            throw new KVSException( "Too many nodes in a slice of a bricked volume." );
+        }
+        final long nbricks_x = ( resolution.getX() + (long)brick_size - 1 ) / brick_size;
+        final long nbricks_y = ( resolution.getY() + (long)brick_size - 1 ) / brick_size;
+        final long nbricks_z = ( resolution.getZ() + (long)brick_size - 1 ) / brick_size;
+        if ( nbricks_x * nbricks_y * nbricks_z > Integer.MAX_VALUE )
+        {
+            throw new KVSException( "Too many bricks for a bricked volume. Use a larger brick size." );
+        }
+
+        final long nnodes = (long)resolution.getX() * resolution.getY() * resolution.getZ();
+
+        m_file       = file;
+        m_offset     = offset;
+        m_value_type = value_type;
+        m_byte_order = byte_order;
+        m_brick_size = brick_size;
+        m_max_bricks = max_bricks;
+        m_nbricks    = new Vector3i( (int)nbricks_x, (int)nbricks_y, (int)nbricks_z );
+        m_nnodes     = nnodes;
+
+        try
+        {
+            m_raf = new RandomAccessFile( file, "r" );
+            if ( m_raf.length() < offset + nnodes * value_type.byteSize() )
+            {
+                m_raf.close();
+                throw new KVSException( "'" + file.getName() + "' is smaller than the volume." );
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new KVSException( e );
+        }
+
+        this.create_cache();
+        this.setValues( new BrickedValueArray( this ) );
+        this.updateMinMaxCoords();
+    }
+
+    /**
+     * ノード数を返します。int型で表せない場合は例外を投げるため、nnodesAsLong()を使用してください。
+     *
+     * @throws UnsupportedOperationException ノード数がint型で表せない場合
+     */
+    @Override
+    public int nnodes()
+    {
+        if ( m_nnodes > Integer.MAX_VALUE )
+        {
+            throw new UnsupportedOperationException(
+                    "Bricked volume has " + m_nnodes + " nodes, which exceed the int range. Use nnodesAsLong()." );
+        }
+
+        return( (int)m_nnodes );
+    }
+
+    public long nnodesAsLong()
+    {
+        return( m_nnodes );
+    }
+
+    /**
+     * ブリック化されたボリュームの値は単一のバッファに格納されないため、常に例外を投げます。
+     * 値はvalueArray()で参照してください。
+     *
+     * @throws UnsupportedOperationException 常に
+     */
+    @Override
+    public Buffer values()
+    {
+        throw new UnsupportedOperationException(
+                "Values of a bricked volume are not stored in a single buffer. Use valueArray()." );
+    }
+
+    public File file()
+    {
+        return( m_file );
+    }
+
+    public int brickSize()
+    {
+        return( m_brick_size );
+    }
+
+    public Vector3i nbricks()
+    {
+        return( m_nbricks );
+    }
+
+    public int maxBricks()
+    {
+        return( m_max_bricks );
+    }
+
+    public synchronized int ncachedBricks()
+    {
+        return( m_cache.size() );
+    }
+
+    public synchronized long hits()
+    {
+        return( m_hits );
+    }
+
+    public synchronized long misses()
+    {
+        return( m_misses );
+    }
+
+    public synchronized void resetCounters()
+    {
+        m_hits   = 0;
+        m_misses = 0;
+    }
+
+    /**
+     * キャッシュを破棄します。各スレッドが最後に参照したブリックと読み込み中のブリックは、値が変わらないため
+     * それを参照しているスレッドでは引き続き使用されます。
+     */
+    public synchronized void clearCache()
+    {
+        m_cache.clear();
+    }
+
+    /**
+     * ファイルを閉じ、キャッシュを破棄します。以降ブリックは読み込めません。
+     */
+    public synchronized void close()
+    {
+        this.clearCache();
+        try
+        {
+            if ( m_raf != null ) m_raf.close();
+        }
+        catch ( IOException e )
+        {
+            e.printStackTrace();
+        }
+        m_raf = null;
+    }
+
+    /**
+     * ノード(i,j,k)を含むブリックを返します。
+     */
+    public VolumeBrick brickAt( final int i, final int j, final int k )
+    {
+        final ThreadLocal<VolumeBrick> cursor = m_cursor;
+        final VolumeBrick last = cursor.get();
+        if ( last != null && last.contains( i, j, k ) ) return( last );
+
+        final VolumeBrick brick = this.brick(
+                java.lang.Math.min( i / m_brick_size, m_nbricks.getX() - 1 ),
+                java.lang.Math.min( j / m_brick_size, m_nbricks.getY() - 1 ),
+                java.lang.Math.min( k / m_brick_size, m_nbricks.getZ() - 1 ) );
+        cursor.set( brick );
+
+        return( brick );
+    }
+
+    public double valueAt( final int i, final int j, final int k )
+    {
+        final VolumeBrick brick = this.brickAt( i, j, k );
+        return( brick.values().getDouble( brick.index( i, j, k ) ) );
+    }
+
+    /**
+     * ブリック番号(bx,by,bz)のブリックを返します。キャッシュにない場合はファイルから読み込みます。
+     * ロックを取るのはキャッシュの参照と更新の間のみで、読み込みはロックの外で行います。
+     *
+     * @throws IllegalStateException ファイルが閉じられている場合、または読み込みに失敗した場合
+     */
+    public VolumeBrick brick( final int bx, final int by, final int bz )
+    {
+        final int id = bx + m_nbricks.getX() * ( by + m_nbricks.getY() * bz );
+
+        final FutureTask<VolumeBrick> task;
+        boolean loader = false;
+        synchronized ( this )
+        {
+            FutureTask<VolumeBrick> cached = m_cache.get( id );
+            if ( cached != null )
+            {
+                m_hits++;
+            }
+            else
+            {
+                if ( m_raf == null )
+                {
+                    throw new IllegalStateException( "'" + m_file.getName() + "' is already closed." );
+                }
+
+                // The placeholder is cached before the brick is read, so the other threads wait for it
+                // instead of reading the same brick. The least recently used brick is evicted by the map.
+                final FileChannel channel = m_raf.getChannel();
+                cached = new FutureTask<VolumeBrick>( new Callable<VolumeBrick>()
+                {
+                    public VolumeBrick call() throws IOException
+                    {
+                        return( load_brick( channel, id, bx, by, bz ) );
+                    }
+                } );
+                m_cache.put( id, cached );
+                m_misses++;
+                loader = true;
+            }
+            task = cached;
+        }
+
+        if ( loader ) task.run();
+
+        try
+        {
+            return( task.get() );
+        }
+        catch ( ExecutionException e )
+        {
+            // The failed brick is removed so that it can be read again.
+            synchronized ( this )
+            {
+                if ( m_cache.get( id ) == task ) m_cache.remove( id );
+            }
+            throw new IllegalStateException( "Cannot read a brick from '" + m_file.getName() + "'.", e.getCause() );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException( "Interrupted while reading a brick from '" + m_file.getName() + "'.", e );
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private void create_cache()
+    {
+        m_cache = new LinkedHashMap<Integer,FutureTask<VolumeBrick>>( 16, 0.75f, true )
+        {
+            @Override
+            protected boolean removeEldestEntry( final Map.Entry<Integer,FutureTask<VolumeBrick>> eldest )
+            {
+                return( this.size() > m_max_bricks );
+            }
+        };
+        m_cursor = new ThreadLocal<VolumeBrick>();
+    }
+
+    private VolumeBrick load_brick(
+            final FileChannel channel,
+            final int         id,
+            final int         bx,
+            final int         by,
+            final int         bz ) throws IOException
+    {
+        final Vector3i resolution = this.resolution();
+        final int nx = resolution.getX();
+        final int ny = resolution.getY();
+        final int nz = resolution.getZ();
+
+        // Node range of the brick including the one-voxel ghost region.
+        final int x0 = java.lang.Math.max( bx * m_brick_size - 1, 0 );
+        final int y0 = java.lang.Math.max( by * m_brick_size - 1, 0 );
+        final int z0 = java.lang.Math.max( bz * m_brick_size - 1, 0 );
+        final int x1 = java.lang.Math.min( ( bx + 1 ) * m_brick_size + 1, nx );
+        final int y1 = java.lang.Math.min( ( by + 1 ) * m_brick_size + 1, ny );
+        final int z1 = java.lang.Math.min( ( bz + 1 ) * m_brick_size + 1, nz );
+
+        final int dim_x = x1 - x0;
+        final int dim_y = y1 - y0;
+        final int dim_z = z1 - z0;
+
+        final int value_size = m_value_type.byteSize();
+        final int row_size   = dim_x * value_size;
+
+        ByteBuffer data = ByteBuffer.allocate( dim_x * dim_y * dim_z * value_size );
+        data.order( m_byte_order );
+
+        int row_offset = 0;
+        for ( int k = z0; k < z1; k++ )
+        {
+            for ( int j = y0; j < y1; j++ )
+            {
+                long position = m_offset + ( ( (long)k * ny + j ) * nx + x0 ) * value_size;
+
+                data.limit( row_offset + row_size );
+                data.position( row_offset );
+                while ( data.hasRemaining() )
+                {
+                    final int n = channel.read( data, position );
+                    if ( n < 0 ) throw new IOException( "Unexpected end of file." );
+                    position += n;
+                }
+                row_offset += row_size;
+            }
+        }
+        data.clear();
+
+        return( new VolumeBrick( id, x0, y0, z0, dim_x, dim_y, dim_z, wrap( data, m_value_type ) ) );
+    }
+
+    private static AnyValueArray wrap( final ByteBuffer data, final ValueType type )
+    {
+        switch ( type )
+        {
+        case Byte:          return( AnyValueArray.valueOf( data, true ) );
+        case UnsignedByte:  return( AnyValueArray.valueOf( data, false ) );
+        case Short:         return( AnyValueArray.valueOf( data.asShortBuffer(), true ) );
+        case UnsignedShort: return( AnyValueArray.valueOf( data.asShortBuffer(), false ) );
+        case Int:           return( AnyValueArray.valueOf( data.asIntBuffer() ) );
+        case Long:          return( AnyValueArray.valueOf( data.asLongBuffer() ) );
+        case Char:          return( AnyValueArray.valueOf( data.asCharBuffer() ) );
+        case Float:         return( AnyValueArray.valueOf( data.asFloatBuffer() ) );
+        case Double:        return( AnyValueArray.valueOf( data.asDoubleBuffer() ) );
+        default:            throw new IllegalArgumentException( "Unsupported value type for a bricked volume: " + type + "." );
+        }
+    }
+
+    /**
+     * ノード番号の一次元インデックスでブリックを参照する配列です。番号はlong型で、int型の番号の
+     * メソッドはlong型のメソッドに委譲します。値は単一のバッファに格納されないため、buffer()は例外を投げます。
+     */
+    private static final class BrickedValueArray extends AnyValueArray {
+
+        private final BrickedVolumeObject m_volume;
+        private final int                 m_line_size;
+        private final int                 m_nlines;
+        private final long                m_size;
+
+        public BrickedValueArray( final BrickedVolumeObject volume )
+        {
+            super( volume.m_value_type );
+            m_volume    = volume;
+            m_line_size = volume.resolution().getX();
+            m_nlines    = volume.resolution().getY();
+            m_size      = volume.nnodesAsLong();
+        }
+
+        @Override
+        public boolean hasBuffer()
+        {
+            return( false );
+        }
+
+        @Override
+        public Buffer buffer()
+        {
+            throw new UnsupportedOperationException( "Values of a bricked volume are not stored in a single buffer." );
+        }
+
+        @Override
+        public int size()
+        {
+            if ( m_size > Integer.MAX_VALUE )
+            {
+                throw new UnsupportedOperationException(
+                        "Bricked volume has " + m_size + " values, which exceed the int range. Use longSize()." );
+            }
+
+            return( (int)m_size );
+        }
+
+        @Override
+        public long longSize()
+        {
+            return( m_size );
+        }
+
+        @Override
+        public int getInt( final int index )
+        {
+            return( this.getInt( (long)index ) );
+        }
+
+        @Override
+        public float getFloat( final int index )
+        {
+            return( this.getFloat( (long)index ) );
+        }
+
+        @Override
+        public double getDouble( final int index )
+        {
+            return( this.getDouble( (long)index ) );
+        }
+
+        @Override
+        public int getInt( final long index )
+        {
+            final int i = (int)( index % m_line_size );
+            final long t = index / m_line_size;
+            final int j = (int)( t % m_nlines );
+            final int k = (int)( t / m_nlines );
+            final VolumeBrick brick = m_volume.brickAt( i, j, k );
+            return( brick.values().getInt( brick.index( i, j, k ) ) );
+        }
+
+        @Override
+        public float getFloat( final long index )
+        {
+            final int i = (int)( index % m_line_size );
+            final long t = index / m_line_size;
+            final int j = (int)( t % m_nlines );
+            final int k = (int)( t / m_nlines );
+            final VolumeBrick brick = m_volume.brickAt( i, j, k );
+            return( brick.values().getFloat( brick.index( i, j, k ) ) );
+        }
+
+        @Override
+        public double getDouble( final long index )
+        {
+            final int i = (int)( index % m_line_size );
+            final long t = index / m_line_size;
+            final int j = (int)( t % m_nlines );
+            final int k = (int)( t / m_nlines );
+            final VolumeBrick brick = m_volume.brickAt( i, j, k );
+            return( brick.values().getDouble( brick.index( i, j, k ) ) );
+        }
+
+        @Override
+        public void getDoubles( final int index, final double[] values, final int offset, final int length )
+        {
+            this.getDoubles( (long)index, values, offset, length );
+        }
+
+        @Override
+        public void getDoubles( final long index, final double[] values, final int offset, final int length )
+        {
+            int i = (int)( index % m_line_size );
+            int j = (int)( ( index / m_line_size ) % m_nlines );
+            int k = (int)( ( index / m_line_size ) / m_nlines );
+
+            // The consecutive values in a line of a brick are read at once.
+            int n = 0;
+            while ( n < length )
+            {
+                final VolumeBrick brick = m_volume.brickAt( i, j, k );
+                int m = 1;
+                while ( n + m < length && i + m < m_line_size && brick.contains( i + m, j, k ) ) m++;
+                brick.values().getDoubles( brick.index( i, j, k ), values, offset + n, m );
+
+                n += m;
+                i += m;
+                if ( i == m_line_size )
+                {
+                    i = 0;
+                    if ( ++j == m_nlines )
+                    {
+                        j = 0;
+                        k++;
+                    }
+                }
+            }
+        }
+    }
+}
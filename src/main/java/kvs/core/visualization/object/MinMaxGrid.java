@@ -0,0 +1,313 @@
+package kvs.core.visualization.object;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import kvs.core.matrix.Vector3i;
+import kvs.core.util.AnyValueArray;
+import kvs.core.util.ThreadPool;
+import kvs.core.visualization.mapper.OpacityMap;
+
+/**
+ * MinMaxGridクラスは構造格子ボリュームをブロックに分割し、ブロックごとの値の最小値と最大値を保持するクラスです。
+ * ブロック(bx,by,bz)はセル[bx*B,(bx+1)*B)x[by*B,(by+1)*B)x[bz*B,(bz+1)*B)を含み、
+ * 最小値と最大値はそれらのセルの頂点(境界のノードを含む)から求めます。
+ * そのため、ブロック内の点で三線形補間した値やブロック内のセルの等値面は必ずこの範囲に収まります。
+ * 空領域のスキップ(レイキャスティング、マーチングキューブ法、メトロポリス法)に使用します。
+ */
+public final class MinMaxGrid {
+
+    public static final int DefaultBlockSize = 8;
+
+    private final int      m_block_size; ///< number of cells per block edge
+    private final Vector3i m_ncells;     ///< number of cells of the volume
+    private final Vector3i m_nblocks;    ///< number of blocks
+    private final boolean  m_is_integer; ///< true if the values are integers
+    private final double[] m_min_values; ///< min value of each block
+    private final double[] m_max_values; ///< max value of each block
+    private SpanSpaceIndex m_span_space_index = null; ///< blocks sorted by the min/max values
+
+    /**
+     * ブロックごとの最小値と最大値を並列に計算します。
+     *
+     * @param volume スカラーの構造格子ボリューム
+     * @param block_size ブロックの一辺のセル数
+     */
+    public MinMaxGrid( final StructuredVolumeObject volume, final int block_size )
+    {
+        if ( block_size < 1 )
+        {
+            throw new IllegalArgumentException( "Block size must be positive." );
+        }
+
+        final Vector3i resolution = volume.resolution();
+        m_block_size = block_size;
+        m_ncells     = new Vector3i(
+                java.lang.Math.max( resolution.getX() - 1, 1 ),
+                java.lang.Math.max( resolution.getY() - 1, 1 ),
+                java.lang.Math.max( resolution.getZ() - 1, 1 ) );
+        m_nblocks    = new Vector3i(
+                ( m_ncells.getX() + block_size - 1 ) / block_size,
+                ( m_ncells.getY() + block_size - 1 ) / block_size,
+                ( m_ncells.getZ() + block_size - 1 ) / block_size );
+
+        final AnyValueArray values = volume.valueArray();
+        m_is_integer = values.valueType().isInteger();
+
+        final int nblocks = m_nblocks.getX() * m_nblocks.getY() * m_nblocks.getZ();
+        m_min_values = new double[nblocks];
+        m_max_values = new double[nblocks];
+
+        final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for ( int bz = 0; bz < m_nblocks.getZ(); bz++ )
+        {
+            final int block_z = bz;
+            tasks.add( new Callable<Object>()
+            {
+                public Object call()
+                {
+                    calculate_blocks( values, resolution, block_z );
+                    return( null );
+                }
+            } );
+        }
+        ThreadPool.invokeAll( tasks );
+    }
+
+    public int blockSize()
+    {
+        return( m_block_size );
+    }
+
+    public Vector3i nblocks()
+    {
+        return( m_nblocks );
+    }
+
+    public int nblocksTotal()
+    {
+        return( m_min_values.length );
+    }
+
+    public int blockIndex( final int bx, final int by, final int bz )
+    {
+        return( bx + m_nblocks.getX() * ( by + m_nblocks.getY() * bz ) );
+    }
+
+    /**
+     * セル(cx,cy,cz)を含むブロックの番号を返します。範囲外のセルは最も近いブロックになります。
+     */
+    public int blockIndexOfCell( final int cx, final int cy, final int cz )
+    {
+        return( this.blockIndex(
+                block_of( cx, m_ncells.getX() ),
+                block_of( cy, m_ncells.getY() ),
+                block_of( cz, m_ncells.getZ() ) ) );
+    }
+
+    /**
+     * セル番号から軸ごとのブロック番号を返します。範囲外のセルは最も近いブロックになります。
+     *
+     * @param cell セル番号
+     * @param axis 軸(0:x, 1:y, 2:z)
+     */
+    public int blockOf( final int cell, final int axis )
+    {
+        return( block_of( cell, ( axis == 0 ) ? m_ncells.getX() : ( axis == 1 ) ? m_ncells.getY() : m_ncells.getZ() ) );
+    }
+
+    /**
+     * ブロックに含まれるセルの範囲を返します。
+     *
+     * @param b ブロック番号(軸ごと)
+     * @param axis 軸(0:x, 1:y, 2:z)
+     * @return {最初のセル, 最後のセル+1}
+     */
+    public int[] cellRange( final int b, final int axis )
+    {
+        return( new int[] { this.cellBegin( b ), this.cellEnd( b, axis ) } );
+    }
+
+    /**
+     * ブロックbに含まれる最初のセルの番号を返します。
+     */
+    public int cellBegin( final int b )
+    {
+        return( b * m_block_size );
+    }
+
+    /**
+     * ブロックbに含まれる最後のセルの次の番号を返します。
+     */
+    public int cellEnd( final int b, final int axis )
+    {
+        final int ncells = ( axis == 0 ) ? m_ncells.getX() : ( axis == 1 ) ? m_ncells.getY() : m_ncells.getZ();
+        return( java.lang.Math.min( ( b + 1 ) * m_block_size, ncells ) );
+    }
+
+    public double minValue( final int block )
+    {
+        return( m_min_values[block] );
+    }
+
+    public double maxValue( final int block )
+    {
+        return( m_max_values[block] );
+    }
+
+    /**
+     * ブロック内のセルに等値面が存在し得るかどうかを返します。
+     * マーチングキューブ法の分類(value > isolevel)に合わせ、min <= isolevel < maxのときtrueです。
+     */
+    public boolean straddles( final int block, final double isolevel )
+    {
+        return( m_min_values[block] <= isolevel && isolevel < m_max_values[block] );
+    }
+
+    /**
+     * 等値面が存在し得るブロックをすべて求めます。
+     *
+     * @param isolevel 等値面の値
+     * @return ブロック番号ごとのフラグ
+     */
+    public boolean[] straddlingBlocks( final double isolevel )
+    {
+        final boolean[] flags = new boolean[m_min_values.length];
+        for ( int i = 0; i < flags.length; i++ )
+        {
+            flags[i] = this.straddles( i, isolevel );
+        }
+
+        return( flags );
+    }
+
+    /**
+     * ブロックを最小値順と最大値順に整列した索引を返します。索引は初回の呼び出しで作成され、
+     * MinMaxGridとともに破棄されます。
+     */
+    public synchronized SpanSpaceIndex spanSpaceIndex()
+    {
+        if ( m_span_space_index == null )
+        {
+            m_span_space_index = new SpanSpaceIndex( this );
+        }
+
+        return( m_span_space_index );
+    }
+
+    /**
+     * 値を不透明度マップの番号((int)で切り捨て)に変換したとき、ブロック内のすべての値で不透明度が0になるかどうかを返します。
+     */
+    public boolean isTransparent( final int block, final OpacityMap omap )
+    {
+        final float[] table = omap.table();
+        final int[] range = this.index_range( block, table.length, 0.0, 1.0 );
+        for ( int i = range[0]; i <= range[1]; i++ )
+        {
+            if ( !kvs.core.util.Math.isZero( table[i] ) ) return( false );
+        }
+
+        return( true );
+    }
+
+    /**
+     * 不透明度が0のブロックをすべて求めます。
+     *
+     * @param omap 不透明度マップ
+     * @return ブロック番号ごとのフラグ
+     */
+    public boolean[] transparentBlocks( final OpacityMap omap )
+    {
+        return( this.transparentBlocks( omap, 0.0, 1.0 ) );
+    }
+
+    /**
+     * 値を( value - offset ) * scaleで不透明度マップの番号に変換するとき、不透明度が0のブロックをすべて求めます。
+     *
+     * @param omap 不透明度マップ
+     * @param offset 値から引く数
+     * @param scale 倍率
+     * @return ブロック番号ごとのフラグ
+     */
+    public boolean[] transparentBlocks( final OpacityMap omap, final double offset, final double scale )
+    {
+        final float[] table = omap.table();
+
+        // Number of the non-transparent entries in [0,i).
+        final int[] count = new int[table.length + 1];
+        for ( int i = 0; i < table.length; i++ )
+        {
+            count[i + 1] = count[i] + ( kvs.core.util.Math.isZero( table[i] ) ? 0 : 1 );
+        }
+
+        final boolean[] flags = new boolean[m_min_values.length];
+        for ( int block = 0; block < flags.length; block++ )
+        {
+            final int[] range = this.index_range( block, table.length, offset, scale );
+            flags[block] = ( count[range[1] + 1] - count[range[0]] == 0 );
+        }
+
+        return( flags );
+    }
+
+    private int[] index_range( final int block, final int resolution, final double offset, final double scale )
+    {
+        // Interpolated float values may round across an integer for non-integer data or indices.
+        final int margin = ( m_is_integer && scale == 1.0 ) ? 0 : 1;
+        final int lo = (int)( ( m_min_values[block] - offset ) * scale ) - margin;
+        final int hi = (int)( ( m_max_values[block] - offset ) * scale ) + margin;
+
+        return( new int[] {
+                java.lang.Math.max( 0, java.lang.Math.min( lo, resolution - 1 ) ),
+                java.lang.Math.max( 0, java.lang.Math.min( hi, resolution - 1 ) ) } );
+    }
+
+    private int block_of( final int c, final int ncells )
+    {
+        final int cell = c < 0 ? 0 : ( c >= ncells ? ncells - 1 : c );
+        return( cell / m_block_size );
+    }
+
+    private void calculate_blocks( final AnyValueArray values, final Vector3i resolution, final int bz )
+    {
+        final int nx = resolution.getX();
+        final int ny = resolution.getY();
+        final int nz = resolution.getZ();
+
+        final int z0 = bz * m_block_size;
+        final int z1 = java.lang.Math.min( z0 + m_block_size, nz - 1 );
+
+        for ( int by = 0; by < m_nblocks.getY(); by++ )
+        {
+            final int y0 = by * m_block_size;
+            final int y1 = java.lang.Math.min( y0 + m_block_size, ny - 1 );
+
+            for ( int bx = 0; bx < m_nblocks.getX(); bx++ )
+            {
+                final int x0 = bx * m_block_size;
+                final int x1 = java.lang.Math.min( x0 + m_block_size, nx - 1 );
+
+                double min_value = Double.MAX_VALUE;
+                double max_value = -Double.MAX_VALUE;
+                for ( int z = z0; z <= z1; z++ )
+                {
+                    for ( int y = y0; y <= y1; y++ )
+                    {
+                        final long line = ( (long)z * ny + y ) * nx;
+                        for ( int x = x0; x <= x1; x++ )
+                        {
+                            final double value = values.getDouble( line + x );
+                            if ( value < min_value ) min_value = value;
+                            if ( value > max_value ) max_value = value;
+                        }
+                    }
+                }
+
+                final int block = this.blockIndex( bx, by, bz );
+                m_min_values[block] = min_value;
+                m_max_values[block] = max_value;
+            }
+        }
+    }
+}
@@ -12,6 +12,7 @@ import kvs.core.matrix.Vector3f;
 import kvs.core.visualization.pipeline.PipelineModule;
 import kvs.core.visualization.viewer.Camera;
 import kvs.core.visualization.viewer.Material;
+import kvs.core.visualization.viewer.ViewTransform;
 import kvs.core.visualization.viewer.XformControl;
 
 public abstract class ObjectBase extends XformControl implements PipelineModule, Serializable{
@@ -282,6 +283,37 @@ public abstract class ObjectBase extends XformControl implements PipelineModule,
                 -m_object_center.getZ() );
     }
     
+    /**
+     * transform()と同じ変換をOpenGLを使わずにviewのモデルビュー行列に掛けます。
+     *
+     * @param view 変換を掛ける行列
+     * @param global_trans オブジェクト全体の中心
+     * @param global_scale オブジェクト全体の正規化の倍率
+     */
+    public final void transform(
+            final ViewTransform view,
+            final Vector3f      global_trans,
+            final Vector3f      global_scale )
+    {
+        view.multMatrix( this.toArray() );
+
+        view.scale( global_scale.getX(), global_scale.getY(), global_scale.getZ() );
+
+        view.translate( -global_trans.getX(),
+                -global_trans.getY(),
+                -global_trans.getZ() );
+
+        view.translate( m_external_position.getX(),
+                m_external_position.getY(),
+                m_external_position.getZ() );
+
+        view.scale( m_normalize.getX(), m_normalize.getY(), m_normalize.getZ() );
+
+        view.translate( -m_object_center.getX(),
+                -m_object_center.getY(),
+                -m_object_center.getZ() );
+    }
+    
     public void applyMaterial()
     {
         m_material.apply();
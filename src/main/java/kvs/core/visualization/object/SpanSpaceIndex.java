@@ -0,0 +1,156 @@
+package kvs.core.visualization.object;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import kvs.core.util.ThreadPool;
+
+/**
+ * SpanSpaceIndexクラスはMinMaxGridのブロックを最小値順と最大値順に整列した索引です。
+ * 等値面の値が与えられたとき、最小値が等値面の値以下のブロックと最大値が等値面の値より大きいブロックのうち
+ * 少ない方だけを調べて、等値面を含み得るブロックを求めます。
+ * 等値面の値を連続して変更する場合に、全ブロックや全セルを走査せずに済みます。
+ */
+public final class SpanSpaceIndex {
+
+    private final MinMaxGrid m_grid;        ///< min/max values of the blocks
+    private final long[]     m_min_sorted;  ///< (min value key << 32 | block) sorted in ascending order
+    private final long[]     m_max_sorted;  ///< (max value key << 32 | block) sorted in ascending order
+
+    /**
+     * 索引を作成します。最小値順と最大値順の整列は並列に行われます。
+     *
+     * @param grid ブロックごとの最小値と最大値
+     */
+    public SpanSpaceIndex( final MinMaxGrid grid )
+    {
+        m_grid = grid;
+
+        final int nblocks = grid.nblocksTotal();
+        m_min_sorted = new long[nblocks];
+        m_max_sorted = new long[nblocks];
+
+        final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        tasks.add( new Callable<Object>()
+        {
+            public Object call()
+            {
+                for ( int block = 0; block < nblocks; block++ )
+                {
+                    m_min_sorted[block] = entry( lower_key( m_grid.minValue( block ) ), block );
+                }
+                Arrays.sort( m_min_sorted );
+                return( null );
+            }
+        } );
+        tasks.add( new Callable<Object>()
+        {
+            public Object call()
+            {
+                for ( int block = 0; block < nblocks; block++ )
+                {
+                    m_max_sorted[block] = entry( upper_key( m_grid.maxValue( block ) ), block );
+                }
+                Arrays.sort( m_max_sorted );
+                return( null );
+            }
+        } );
+        ThreadPool.invokeAll( tasks );
+    }
+
+    public MinMaxGrid grid()
+    {
+        return( m_grid );
+    }
+
+    /**
+     * 等値面を含み得るブロック(min &lt;= isolevel &lt; max)の番号を昇順に返します。
+     *
+     * @param isolevel 等値面の値
+     * @return ブロック番号の配列
+     */
+    public int[] activeBlocks( final double isolevel )
+    {
+        // Candidates are found with the keys rounded outward and checked with the exact values.
+        final int nlower = count_less_or_equal( m_min_sorted, upper_key( isolevel ) );
+        final int nupper = m_max_sorted.length - count_less_or_equal( m_max_sorted, lower_key( isolevel ) );
+
+        final int[] blocks = new int[ java.lang.Math.min( nlower, nupper ) ];
+        int nactives = 0;
+        if ( nlower <= nupper )
+        {
+            for ( int i = 0; i < nlower; i++ )
+            {
+                final int block = block_of( m_min_sorted[i] );
+                if ( m_grid.straddles( block, isolevel ) ) blocks[ nactives++ ] = block;
+            }
+        }
+        else
+        {
+            for ( int i = m_max_sorted.length - nupper; i < m_max_sorted.length; i++ )
+            {
+                final int block = block_of( m_max_sorted[i] );
+                if ( m_grid.straddles( block, isolevel ) ) blocks[ nactives++ ] = block;
+            }
+        }
+
+        final int[] actives = Arrays.copyOf( blocks, nactives );
+        Arrays.sort( actives );
+        return( actives );
+    }
+
+    private static long entry( final int key, final int block )
+    {
+        return( ( (long)key << 32 ) | ( block & 0xffffffffL ) );
+    }
+
+    private static int block_of( final long entry )
+    {
+        return( (int)entry );
+    }
+
+    /**
+     * 先頭のキーがkey以下である要素の数を返します。
+     */
+    private static int count_less_or_equal( final long[] sorted, final int key )
+    {
+        int lo = 0;
+        int hi = sorted.length;
+        while ( lo < hi )
+        {
+            final int mid = ( lo + hi ) >>> 1;
+            if ( (int)( sorted[mid] >> 32 ) <= key ) lo = mid + 1;
+            else                                    hi = mid;
+        }
+
+        return( lo );
+    }
+
+    /**
+     * 値以下で最大のfloat値の、大小関係を保つ整数キーを返します。
+     */
+    private static int lower_key( final double value )
+    {
+        float f = (float)value;
+        if ( f > value ) f = java.lang.Math.nextAfter( f, Double.NEGATIVE_INFINITY );
+        return( sortable( f ) );
+    }
+
+    /**
+     * 値以上で最小のfloat値の、大小関係を保つ整数キーを返します。
+     */
+    private static int upper_key( final double value )
+    {
+        float f = (float)value;
+        if ( f < value ) f = java.lang.Math.nextUp( f );
+        return( sortable( f ) );
+    }
+
+    private static int sortable( final float f )
+    {
+        final int bits = Float.floatToIntBits( f == 0.0f ? 0.0f : f );
+        return( bits >= 0 ? bits : bits ^ 0x7fffffff );
+    }
+}
@@ -4,12 +4,18 @@ import java.nio.Buffer;
 
 import kvs.core.matrix.Vector3f;
 import kvs.core.matrix.Vector3i;
+import kvs.core.util.AnyValueArray;
+import kvs.core.visualization.filter.GradientVolume;
+import kvs.core.visualization.filter.VolumeSampler;
 
 public class StructuredVolumeObject extends VolumeObjectBase {
 
     private static final long serialVersionUID = 4977151939612674873L;
     private GridType m_grid_type = GridType.UnknownGridType; // /< Grid type.
     private Vector3i m_resolution = Vector3i.ZERO; // /< Node resolution.
+    private transient MinMaxGrid m_min_max_grid = null; // /< Cached min/max values of the blocks.
+    private transient VolumeSampler m_sampler = null; // /< Cached trilinear sampler.
+    private transient GradientVolume m_gradient_volume = null; // /< Cached gradients of the nodes.
 
     public StructuredVolumeObject() {
         super();
@@ -38,6 +44,64 @@ public class StructuredVolumeObject extends VolumeObjectBase {
 
     public void setResolution( Vector3i resolution ) {
         m_resolution = resolution;
+        m_min_max_grid = null;
+        m_sampler = null;
+        m_gradient_volume = null;
+    }
+
+    @Override
+    public void setValues( Buffer values ) {
+        super.setValues( values );
+        m_min_max_grid = null;
+        m_sampler = null;
+        m_gradient_volume = null;
+    }
+
+    @Override
+    public void setValues( AnyValueArray values ) {
+        super.setValues( values );
+        m_min_max_grid = null;
+        m_sampler = null;
+        m_gradient_volume = null;
+    }
+
+    /**
+     * ブロックごとの最小値と最大値を返します。初回の呼び出しで計算され、
+     * setValues()またはsetResolution()が呼ばれるまで保持されます。
+     */
+    public MinMaxGrid minMaxGrid() {
+        return this.minMaxGrid( MinMaxGrid.DefaultBlockSize );
+    }
+
+    public synchronized MinMaxGrid minMaxGrid( int block_size ) {
+        if ( m_min_max_grid == null || m_min_max_grid.blockSize() != block_size ) {
+            m_min_max_grid = new MinMaxGrid( this, block_size );
+        }
+        return m_min_max_grid;
+    }
+
+    /**
+     * 三線形補間で値を取り出すサンプラーを返します。初回の呼び出しで作成され、
+     * setValues()またはsetResolution()が呼ばれるまで保持されます。
+     */
+    public synchronized VolumeSampler sampler() {
+        if ( m_sampler == null ) {
+            m_sampler = new VolumeSampler( this );
+        }
+        return m_sampler;
+    }
+
+    /**
+     * 各ノードの勾配を保持する勾配ボリュームを返します。初回の呼び出し(または形式を変えたとき)に並列に計算され、
+     * setValues()またはsetResolution()が呼ばれるまで保持されます。値のバッファを直接書き換えた場合はsetValues()を呼んでください。
+     *
+     * @param encoding 勾配の格納形式
+     */
+    public synchronized GradientVolume gradientVolume( GradientVolume.Encoding encoding ) {
+        if ( m_gradient_volume == null || m_gradient_volume.encoding() != encoding ) {
+            m_gradient_volume = new GradientVolume( this, encoding );
+        }
+        return m_gradient_volume;
     }
 
     @Override
@@ -0,0 +1,66 @@
+package kvs.core.visualization.object;
+
+import kvs.core.util.AnyValueArray;
+
+/**
+ * VolumeBrickクラスはBrickedVolumeObjectの一つのブリックの値を保持するクラスです。
+ * 値はブリックの周囲1ボクセル分(ゴースト領域)を含みます。ボリュームの境界ではゴースト領域は
+ * 省略されるため、ブリックの大きさは位置によって異なります。生成後は変更されません。
+ */
+public final class VolumeBrick {
+
+    private final int           m_id;       ///< brick id
+    private final int           m_origin_x; ///< min node index (including the ghost region)
+    private final int           m_origin_y;
+    private final int           m_origin_z;
+    private final int           m_dim_x;    ///< number of nodes (including the ghost region)
+    private final int           m_dim_y;
+    private final int           m_dim_z;
+    private final AnyValueArray m_values;   ///< node values
+
+    public VolumeBrick(
+            final int id,
+            final int origin_x, final int origin_y, final int origin_z,
+            final int dim_x, final int dim_y, final int dim_z,
+            final AnyValueArray values )
+    {
+        m_id       = id;
+        m_origin_x = origin_x;
+        m_origin_y = origin_y;
+        m_origin_z = origin_z;
+        m_dim_x    = dim_x;
+        m_dim_y    = dim_y;
+        m_dim_z    = dim_z;
+        m_values   = values;
+    }
+
+    public int id()
+    {
+        return( m_id );
+    }
+
+    public AnyValueArray values()
+    {
+        return( m_values );
+    }
+
+    public boolean contains( final int i, final int j, final int k )
+    {
+        return( i >= m_origin_x && i < m_origin_x + m_dim_x &&
+                j >= m_origin_y && j < m_origin_y + m_dim_y &&
+                k >= m_origin_z && k < m_origin_z + m_dim_z );
+    }
+
+    /**
+     * ボリューム全体でのノード番号(i,j,k)をブリック内の配列番号に変換します。
+     */
+    public int index( final int i, final int j, final int k )
+    {
+        return( ( i - m_origin_x ) + m_dim_x * ( ( j - m_origin_y ) + m_dim_y * ( k - m_origin_z ) ) );
+    }
+
+    public long byteSize()
+    {
+        return( m_values.byteSize() );
+    }
+}
@@ -1,11 +1,8 @@
 package kvs.core.visualization.object;
 
 import java.nio.Buffer;
-import java.nio.ByteBuffer;
-import java.nio.DoubleBuffer;
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
-import java.nio.ShortBuffer;
+
+import kvs.core.util.AnyValueArray;
 
 public abstract class VolumeObjectBase extends ObjectBase {
     
@@ -49,10 +46,12 @@ public abstract class VolumeObjectBase extends ObjectBase {
 
     private float[]     m_coords; ///< Coordinate array.
     private Buffer      m_values; ///< Value array.
+    private AnyValueArray m_value_array; ///< Typed view of the value array.
     
     private boolean     m_has_min_max_values = false; ///< Whether includes min/max values or not.
     private double      m_min_value = 0.0;          ///< Minimum field value.
     private double      m_max_value = 0.0;          ///< Maximum field value.
+    private transient VolumeStatistics m_statistics = null; ///< Cached value statistics.
     
     
     public VolumeObjectBase()
@@ -66,6 +65,7 @@ public abstract class VolumeObjectBase extends ObjectBase {
         m_veclen = veclen;
         m_coords = coords;
         m_values = values;
+        m_value_array = AnyValueArray.valueOf( values );
     }
     
     /*
@@ -85,6 +85,7 @@ public abstract class VolumeObjectBase extends ObjectBase {
     public void setVeclen( int veclen )
     {
         m_veclen = veclen;
+        m_statistics = null;
     }
     
     public void setCoords( float[] coords )
@@ -95,6 +96,15 @@ public abstract class VolumeObjectBase extends ObjectBase {
     public void setValues( Buffer values )
     {
         m_values = values;
+        m_value_array = AnyValueArray.valueOf( values );
+        m_statistics = null;
+    }
+    
+    public void setValues( AnyValueArray values )
+    {
+        m_values = values.hasBuffer() ? values.buffer() : null;
+        m_value_array = values;
+        m_statistics = null;
     }
     
     public void setMinMaxValues(
@@ -136,6 +146,11 @@ public abstract class VolumeObjectBase extends ObjectBase {
     {
         return( m_values );
     }
+    
+    public AnyValueArray valueArray()
+    {
+        return( m_value_array );
+    }
 
 
     public boolean hasMinMaxValues()
@@ -153,262 +168,37 @@ public abstract class VolumeObjectBase extends ObjectBase {
         return( m_max_value );
     }
     
-    public void updateMinMaxValues() 
+    /**
+     * 値の統計量を返します。統計量は初回の呼び出しで並列に計算され、
+     * setValues()またはsetVeclen()が呼ばれるまで保持されます。
+     *
+     * @return 統計量(ヒストグラムのビン数はVolumeStatistics.DefaultNumberOfBins)
+     */
+    public VolumeStatistics statistics()
     {
-        m_values.clear();
-        if( m_values instanceof ByteBuffer){
-            calculate_min_max_values( (ByteBuffer)m_values );
-        } else if( m_values instanceof ShortBuffer ) {
-            calculate_min_max_values( (ShortBuffer)m_values );
-        } else if( m_values instanceof IntBuffer ) {
-            calculate_min_max_values( (IntBuffer)m_values );
-        } else if( m_values instanceof FloatBuffer ) {
-            calculate_min_max_values( (FloatBuffer)m_values );
-        } else if( m_values instanceof DoubleBuffer ) {
-            calculate_min_max_values( (DoubleBuffer)m_values );
-        }
-        
+        return( this.statistics( VolumeStatistics.DefaultNumberOfBins ) );
     }
-    
-    private void calculate_min_max_values( ByteBuffer valuesBuffer )
-    {        
-        byte[] values = valuesBuffer.array();
-        
-        int index = 0;
-        final int end = values.length;
-
-        if ( m_veclen == 1 )
-        {
-            double min_value = values[index];
-            double max_value = values[index];
-
-            while ( index < end )
-            {
-                min_value = kvs.core.util.Math.min( values[index], min_value );
-                max_value = kvs.core.util.Math.max( values[index], max_value );
-                ++index;
-            }
-
-            this.setMinMaxValues(
-                    min_value,
-                    max_value );
-        }
-        else
-        {
-            double min_value = 0.0;
-            double max_value = 0.0;
-
-            final int veclen = m_veclen;
-
-            while ( index < end )
-            {
-                double magnitude = 0.0;
-                for ( int i = 0; i < veclen; ++i )
-                {
-                    magnitude = values[index] * values[index];
-                    ++index;
-                }
-                magnitude = Math.sqrt( magnitude );
 
-                min_value = kvs.core.util.Math.min( magnitude, min_value );
-                max_value = kvs.core.util.Math.max( magnitude, max_value );
-            }
-
-            this.setMinMaxValues( min_value, max_value );
-        }
-    }
-    
-    private void calculate_min_max_values( ShortBuffer valuesBuffer )
-    {        
-        short[] values = valuesBuffer.array();
-        
-        int index = 0;
-        final int end = values.length;
-
-        if ( m_veclen == 1 )
-        {
-            double min_value = values[index];
-            double max_value = values[index];
-
-            while ( index < end )
-            {
-                min_value = kvs.core.util.Math.min( values[index], min_value );
-                max_value = kvs.core.util.Math.max( values[index], max_value );
-                ++index;
-            }
-
-            this.setMinMaxValues(
-                    min_value,
-                    max_value );
-        }
-        else
-        {
-            double min_value = 0.0;
-            double max_value = 0.0;
-
-            final int veclen = m_veclen;
-
-            while ( index < end )
-            {
-                double magnitude = 0.0;
-                for ( int i = 0; i < veclen; ++i )
-                {
-                    magnitude = values[index] * values[index];
-                    ++index;
-                }
-                magnitude = Math.sqrt( magnitude );
-
-                min_value = kvs.core.util.Math.min( magnitude, min_value );
-                max_value = kvs.core.util.Math.max( magnitude, max_value );
-            }
-
-            this.setMinMaxValues( min_value, max_value );
-        }
-    }
-    
-    private void calculate_min_max_values( IntBuffer valuesBuffer )
-    {        
-        int[] values = valuesBuffer.array();
-        
-        int index = 0;
-        final int end = values.length;
-
-        if ( m_veclen == 1 )
-        {
-            double min_value = values[index];
-            double max_value = values[index];
-
-            while ( index < end )
-            {
-                min_value = kvs.core.util.Math.min( values[index], min_value );
-                max_value = kvs.core.util.Math.max( values[index], max_value );
-                ++index;
-            }
-
-            this.setMinMaxValues(
-                    min_value,
-                    max_value );
-        }
-        else
-        {
-            double min_value = 0.0;
-            double max_value = 0.0;
-
-            final int veclen = m_veclen;
-
-            while ( index < end )
-            {
-                double magnitude = 0.0;
-                for ( int i = 0; i < veclen; ++i )
-                {
-                    magnitude = values[index] * values[index];
-                    ++index;
-                }
-                magnitude = Math.sqrt( magnitude );
-
-                min_value = kvs.core.util.Math.min( magnitude, min_value );
-                max_value = kvs.core.util.Math.max( magnitude, max_value );
-            }
-
-            this.setMinMaxValues( min_value, max_value );
-        }
-    }
-    
-    
-    private void calculate_min_max_values( FloatBuffer values )
-    {        
-        //float[] values = valuesBuffer.array(); //FIXME UnsupportedOperationException
-        
-        int index = 0;
-        final int end = values.limit();
-
-        if ( m_veclen == 1 )
+    /**
+     * 指定したビン数のヒストグラムを含む値の統計量を返します。
+     *
+     * @param nbins ヒストグラムのビン数
+     * @return 統計量
+     */
+    public synchronized VolumeStatistics statistics( int nbins )
+    {
+        if ( m_statistics == null || m_statistics.nbins() != nbins )
         {
-            double min_value = values.get( index );
-            double max_value = values.get( index );
-
-            while ( index < end )
-            {
-                min_value = kvs.core.util.Math.min( values.get( index ), min_value );
-                max_value = kvs.core.util.Math.max( values.get( index ), max_value );
-                ++index;
-            }
-
-            this.setMinMaxValues(
-                    min_value,
-                    max_value );
+            m_statistics = VolumeStatistics.calculate( m_value_array, m_veclen, nbins );
         }
-        else
-        {
-            double min_value = 0.0;
-            double max_value = 0.0;
-
-            final int veclen = m_veclen;
-
-            while ( index < end )
-            {
-                double magnitude = 0.0;
-                for ( int i = 0; i < veclen; ++i )
-                {
-                    magnitude = values.get( index ) * values.get( index );
-                    ++index;
-                }
-                magnitude = Math.sqrt( magnitude );
 
-                min_value = kvs.core.util.Math.min( magnitude, min_value );
-                max_value = kvs.core.util.Math.max( magnitude, max_value );
-            }
-
-            this.setMinMaxValues( min_value, max_value );
-        }
+        return( m_statistics );
     }
-    
-    private void calculate_min_max_values( DoubleBuffer values )
-    {        
-        //double[] values = valuesBuffer.array();
-        
-        int index = 0;
-        final int end = values.limit();
-
-        if ( m_veclen == 1 )
-        {
-            double min_value = values.get( index );
-            double max_value = values.get( index );
-
-            while ( index < end )
-            {
-                min_value = kvs.core.util.Math.min( values.get( index ), min_value );
-                max_value = kvs.core.util.Math.max( values.get( index ), max_value );
-                ++index;
-            }
 
-            this.setMinMaxValues(
-                    min_value,
-                    max_value );
-        }
-        else
-        {
-            double min_value = 0.0;
-            double max_value = 0.0;
-
-            final int veclen = m_veclen;
-
-            while ( index < end )
-            {
-                double magnitude = 0.0;
-                for ( int i = 0; i < veclen; ++i )
-                {
-                    magnitude = values.get( index ) * values.get( index );
-                    ++index;
-                }
-                magnitude = Math.sqrt( magnitude );
-
-                min_value = kvs.core.util.Math.min( magnitude, min_value );
-                max_value = kvs.core.util.Math.max( magnitude, max_value );
-            }
-
-            this.setMinMaxValues( min_value, max_value );
-        }
+    public void updateMinMaxValues() 
+    {
+        final VolumeStatistics statistics = this.statistics();
+        this.setMinMaxValues( statistics.minValue(), statistics.maxValue() );
     }
     
 }
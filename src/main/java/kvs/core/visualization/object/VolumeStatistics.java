@@ -0,0 +1,437 @@
+package kvs.core.visualization.object;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import kvs.core.util.AnyValueArray;
+import kvs.core.util.ThreadPool;
+import kvs.core.util.AnyValueArray.ValueType;
+
+/**
+ * VolumeStatisticsクラスはボリュームの値の最小値、最大値、平均、分散、ヒストグラムを保持するクラスです。
+ * ベクトルデータの場合は各ノードのベクトルの大きさについての統計量になります。
+ * 計算は全コアで並列に行われます。8/16ビット整数型では値ごとの度数を一度走査するだけで
+ * すべての統計量を求め、それ以外の型では最小値などを求めた後にヒストグラムを求めます。
+ */
+public final class VolumeStatistics {
+
+    public static final int DefaultNumberOfBins = 256;
+
+    private static final int MinChunkSize = 1 << 16;
+
+    private final long   m_count;     ///< number of samples
+    private final double m_min_value; ///< minimum value
+    private final double m_max_value; ///< maximum value
+    private final double m_mean;      ///< mean value
+    private final double m_variance;  ///< population variance
+    private final long[] m_histogram; ///< histogram in [min_value, max_value]
+
+    private VolumeStatistics(
+            final long   count,
+            final double min_value,
+            final double max_value,
+            final double mean,
+            final double variance,
+            final long[] histogram )
+    {
+        m_count     = count;
+        m_min_value = min_value;
+        m_max_value = max_value;
+        m_mean      = mean;
+        m_variance  = variance;
+        m_histogram = histogram;
+    }
+
+    public long count()
+    {
+        return( m_count );
+    }
+
+    public double minValue()
+    {
+        return( m_min_value );
+    }
+
+    public double maxValue()
+    {
+        return( m_max_value );
+    }
+
+    public double mean()
+    {
+        return( m_mean );
+    }
+
+    public double variance()
+    {
+        return( m_variance );
+    }
+
+    public double standardDeviation()
+    {
+        return( Math.sqrt( m_variance ) );
+    }
+
+    public int nbins()
+    {
+        return( m_histogram.length );
+    }
+
+    /**
+     * ヒストグラムを返します。i番目のビンは[min + i*w, min + (i+1)*w)の度数です(w = (max - min) / nbins)。
+     * 最大値は最後のビンに含まれます。
+     */
+    public long[] histogram()
+    {
+        return( m_histogram.clone() );
+    }
+
+    public long histogram( final int bin )
+    {
+        return( m_histogram[bin] );
+    }
+
+    /**
+     * 値の配列の統計量を計算します。
+     *
+     * @param values 値の配列
+     * @param veclen ベクトル長
+     * @param nbins ヒストグラムのビンの数
+     * @return 統計量
+     */
+    public static VolumeStatistics calculate( final AnyValueArray values, final int veclen, final int nbins )
+    {
+        if ( nbins < 1 )
+        {
+            throw new IllegalArgumentException( "Number of bins must be positive." );
+        }
+
+        // The samples are indexed by long for the bricked volumes.
+        final long nsamples = values.longSize() / java.lang.Math.max( veclen, 1 );
+        if ( nsamples == 0 )
+        {
+            return( new VolumeStatistics( 0, 0.0, 0.0, 0.0, 0.0, new long[nbins] ) );
+        }
+
+        final long[] bounds = ThreadPool.split( nsamples, ThreadPool.nthreads(), MinChunkSize );
+
+        final ValueType type = values.valueType();
+        if ( veclen == 1 && type.isInteger() && type.byteSize() <= 2 )
+        {
+            return( calculate_by_counting( values, bounds, nbins ) );
+        }
+
+        // First pass: min, max, mean and variance.
+        final List<Callable<Moments>> moment_tasks = new ArrayList<Callable<Moments>>();
+        for ( int c = 0; c + 1 < bounds.length; c++ )
+        {
+            final long begin = bounds[c];
+            final long end   = bounds[c + 1];
+            moment_tasks.add( new Callable<Moments>()
+            {
+                public Moments call()
+                {
+                    return( veclen == 1 ?
+                            scalar_moments( values, begin, end ) :
+                            vector_moments( values, veclen, begin, end ) );
+                }
+            } );
+        }
+
+        Moments total = null;
+        for ( Moments m : ThreadPool.invokeAll( moment_tasks ) )
+        {
+            total = ( total == null ) ? m : Moments.merge( total, m );
+        }
+
+        // Second pass: histogram.
+        final double min_value = total.min;
+        final double max_value = total.max;
+        final List<Callable<long[]>> histogram_tasks = new ArrayList<Callable<long[]>>();
+        for ( int c = 0; c + 1 < bounds.length; c++ )
+        {
+            final long begin = bounds[c];
+            final long end   = bounds[c + 1];
+            histogram_tasks.add( new Callable<long[]>()
+            {
+                public long[] call()
+                {
+                    return( histogram( values, veclen, begin, end, min_value, max_value, nbins ) );
+                }
+            } );
+        }
+
+        final long[] histogram = new long[nbins];
+        for ( long[] h : ThreadPool.invokeAll( histogram_tasks ) )
+        {
+            for ( int i = 0; i < nbins; i++ ) histogram[i] += h[i];
+        }
+
+        return( new VolumeStatistics(
+                total.count, min_value, max_value, total.mean, total.m2 / total.count, histogram ) );
+    }
+
+    /**
+     * 8/16ビット整数型の値を値ごとに数え、その度数からすべての統計量を求めます。
+     */
+    private static VolumeStatistics calculate_by_counting(
+            final AnyValueArray values,
+            final long[]        bounds,
+            final int           nbins )
+    {
+        final ValueType type   = values.valueType();
+        final int       ncodes = 1 << ( 8 * type.byteSize() );
+        final int       bias   = type.isSigned() ? ncodes / 2 : 0;
+
+        final List<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>();
+        for ( int c = 0; c + 1 < bounds.length; c++ )
+        {
+            final long begin = bounds[c];
+            final long end   = bounds[c + 1];
+            tasks.add( new Callable<long[]>()
+            {
+                public long[] call()
+                {
+                    return( count_values( values, begin, end, ncodes, bias ) );
+                }
+            } );
+        }
+
+        final long[] counts = new long[ncodes];
+        for ( long[] h : ThreadPool.invokeAll( tasks ) )
+        {
+            for ( int i = 0; i < ncodes; i++ ) counts[i] += h[i];
+        }
+
+        int min_code = 0;
+        while ( counts[min_code] == 0 ) min_code++;
+        int max_code = ncodes - 1;
+        while ( counts[max_code] == 0 ) max_code--;
+
+        final double min_value = min_code - bias;
+        final double max_value = max_code - bias;
+
+        long   count = 0;
+        double sum   = 0.0;
+        for ( int code = min_code; code <= max_code; code++ )
+        {
+            count += counts[code];
+            sum   += (double)counts[code] * ( code - bias );
+        }
+        final double mean = sum / count;
+
+        double m2 = 0.0;
+        final long[] histogram = new long[nbins];
+        final double scale = ( max_value > min_value ) ? nbins / ( max_value - min_value ) : 0.0;
+        for ( int code = min_code; code <= max_code; code++ )
+        {
+            if ( counts[code] == 0 ) continue;
+            final double value = code - bias;
+            final double d = value - mean;
+            m2 += counts[code] * d * d;
+            histogram[bin( value, min_value, scale, nbins )] += counts[code];
+        }
+
+        return( new VolumeStatistics( count, min_value, max_value, mean, m2 / count, histogram ) );
+    }
+
+    private static long[] count_values(
+            final AnyValueArray values,
+            final long begin,
+            final long end,
+            final int ncodes,
+            final int bias )
+    {
+        final long[] counts = new long[ncodes];
+
+        // Count in an int table and flush before it could overflow.
+        final int[] local = new int[ncodes];
+        for ( long start = begin; start < end; start += Integer.MAX_VALUE / 2 )
+        {
+            final long stop = java.lang.Math.min( start + Integer.MAX_VALUE / 2, end );
+            if ( values instanceof AnyValueArray.ByteArray )
+            {
+                final AnyValueArray.ByteArray data = (AnyValueArray.ByteArray)values;
+                for ( int index = (int)start; index < stop; index++ ) local[data.get( index ) + bias]++;
+            }
+            else if ( values instanceof AnyValueArray.ShortArray )
+            {
+                final AnyValueArray.ShortArray data = (AnyValueArray.ShortArray)values;
+                for ( int index = (int)start; index < stop; index++ ) local[data.get( index ) + bias]++;
+            }
+            else
+            {
+                for ( long index = start; index < stop; index++ ) local[values.getInt( index ) + bias]++;
+            }
+
+            for ( int i = 0; i < ncodes; i++ )
+            {
+                counts[i] += local[i];
+                local[i] = 0;
+            }
+        }
+
+        return( counts );
+    }
+
+    private static Moments scalar_moments( final AnyValueArray values, final long begin, final long end )
+    {
+        // Sums are shifted by the first value to keep the variance accurate.
+        final double shift = values.getDouble( begin );
+        double min_value = shift;
+        double max_value = shift;
+        double sum  = 0.0;
+        double sum2 = 0.0;
+
+        if ( values instanceof AnyValueArray.FloatArray )
+        {
+            final AnyValueArray.FloatArray data = (AnyValueArray.FloatArray)values;
+            for ( int index = (int)begin; index < end; index++ )
+            {
+                final double value = data.get( index );
+                if ( value < min_value ) min_value = value;
+                if ( value > max_value ) max_value = value;
+                final double d = value - shift;
+                sum  += d;
+                sum2 += d * d;
+            }
+        }
+        else
+        {
+            for ( long index = begin; index < end; index++ )
+            {
+                final double value = values.getDouble( index );
+                if ( value < min_value ) min_value = value;
+                if ( value > max_value ) max_value = value;
+                final double d = value - shift;
+                sum  += d;
+                sum2 += d * d;
+            }
+        }
+
+        return( Moments.fromSums( end - begin, min_value, max_value, shift, sum, sum2 ) );
+    }
+
+    private static Moments vector_moments(
+            final AnyValueArray values,
+            final int  veclen,
+            final long begin,
+            final long end )
+    {
+        final double shift = magnitude( values, veclen, begin );
+        double min_value = shift;
+        double max_value = shift;
+        double sum  = 0.0;
+        double sum2 = 0.0;
+
+        for ( long node = begin; node < end; node++ )
+        {
+            final double value = magnitude( values, veclen, node );
+            if ( value < min_value ) min_value = value;
+            if ( value > max_value ) max_value = value;
+            final double d = value - shift;
+            sum  += d;
+            sum2 += d * d;
+        }
+
+        return( Moments.fromSums( end - begin, min_value, max_value, shift, sum, sum2 ) );
+    }
+
+    private static long[] histogram(
+            final AnyValueArray values,
+            final int    veclen,
+            final long   begin,
+            final long   end,
+            final double min_value,
+            final double max_value,
+            final int    nbins )
+    {
+        final long[] histogram = new long[nbins];
+        final double scale = ( max_value > min_value ) ? nbins / ( max_value - min_value ) : 0.0;
+
+        if ( veclen == 1 )
+        {
+            for ( long index = begin; index < end; index++ )
+            {
+                histogram[bin( values.getDouble( index ), min_value, scale, nbins )]++;
+            }
+        }
+        else
+        {
+            for ( long node = begin; node < end; node++ )
+            {
+                histogram[bin( magnitude( values, veclen, node ), min_value, scale, nbins )]++;
+            }
+        }
+
+        return( histogram );
+    }
+
+    private static int bin( final double value, final double min_value, final double scale, final int nbins )
+    {
+        final int bin = (int)( ( value - min_value ) * scale );
+        return( bin < 0 ? 0 : ( bin >= nbins ? nbins - 1 : bin ) );
+    }
+
+    private static double magnitude( final AnyValueArray values, final int veclen, final long node )
+    {
+        final long offset = node * veclen;
+        double magnitude = 0.0;
+        for ( int i = 0; i < veclen; i++ )
+        {
+            final double value = values.getDouble( offset + i );
+            magnitude += value * value;
+        }
+        return( Math.sqrt( magnitude ) );
+    }
+
+    /**
+     * 部分区間の最小値、最大値、平均、偏差平方和です。
+     */
+    private static final class Moments {
+
+        final long   count;
+        final double min;
+        final double max;
+        final double mean;
+        final double m2;
+
+        private Moments( final long count, final double min, final double max, final double mean, final double m2 )
+        {
+            this.count = count;
+            this.min   = min;
+            this.max   = max;
+            this.mean  = mean;
+            this.m2    = m2;
+        }
+
+        /**
+         * shiftからの差の和sumと二乗和sum2から求めます。
+         */
+        static Moments fromSums( final long count, final double min, final double max, final double shift, final double sum, final double sum2 )
+        {
+            return( new Moments(
+                    count,
+                    min,
+                    max,
+                    shift + sum / count,
+                    java.lang.Math.max( sum2 - sum * sum / count, 0.0 ) ) );
+        }
+
+        /**
+         * 2つの部分区間を合わせた統計量を求めます。
+         */
+        static Moments merge( final Moments a, final Moments b )
+        {
+            final long   n     = a.count + b.count;
+            final double delta = b.mean - a.mean;
+            return( new Moments(
+                    n,
+                    java.lang.Math.min( a.min, b.min ),
+                    java.lang.Math.max( a.max, b.max ),
+                    a.mean + delta * b.count / n,
+                    a.m2 + b.m2 + delta * delta * ( (double)a.count * b.count / n ) ) );
+        }
+    }
+}
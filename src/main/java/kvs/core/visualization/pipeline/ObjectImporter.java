@@ -38,10 +38,21 @@ public class ObjectImporter {
     private ImporterType    m_importer_type; ///< importer type
     private FileFormatBase  m_file_format;   ///< pointer to the estimated file format class
     private ImporterBase    m_importer;
+    private boolean         m_memory_mapped; ///< map the data section of the file if supported
     
     public ObjectImporter( final File filename ){
         m_filename = filename;
         m_importer_type = ImporterType.Unknown;
+        m_memory_mapped = false;
+    }
+    
+    /**
+     * データ部をメモリマップで読み込むかどうかを設定します。現在はAVSFieldのみ対応しています。
+     * 
+     * @param memory_mapped メモリマップするならtrue
+     */
+    public void setMemoryMapped( final boolean memory_mapped ){
+        m_memory_mapped = memory_mapped;
     }
     
     public ObjectBase importFile() throws KVSException{
@@ -82,7 +93,9 @@ public class ObjectImporter {
         if ( file.getPath().endsWith( "fld" ) )
         {
             m_importer_type = ImporterType.StructuredVolume;
-            m_file_format = new AVSField();
+            AVSField field = new AVSField();
+            field.setMemoryMapped( m_memory_mapped );
+            m_file_format = field;
         }
 
         else if ( file.getPath().endsWith( "ucd" ) || file.getPath().endsWith( "inp" ) )
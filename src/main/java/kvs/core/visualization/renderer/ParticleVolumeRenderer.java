@@ -7,6 +7,7 @@ import kvs.core.visualization.object.ObjectBase;
 import kvs.core.visualization.object.PointObject;
 import kvs.core.visualization.viewer.Camera;
 import kvs.core.visualization.viewer.Light;
+import kvs.core.visualization.viewer.ViewTransform;
 
 public class ParticleVolumeRenderer extends VolumeRendererBase {
 
@@ -14,6 +15,9 @@ public class ParticleVolumeRenderer extends VolumeRendererBase {
     protected boolean           m_enable_rendering; ///< rendering flag
     protected int               m_subpixel_level;   ///< number of divisions in a pixel
     protected ParticleBuffer    m_buffer; ///< particle buffer
+    protected int               m_coarse_subpixel_level; ///< subpixel level of the coarse image
+    private ParticleBuffer      m_coarse_buffer;  ///< particle buffer of the coarse image
+    private int                 m_next_particle;  ///< next particle to be projected in the refinement
 
     // Reference data (NOTE: not allocated in thie class).
     protected PointObject m_ref_point; ///< pointer to the point data
@@ -26,9 +30,9 @@ public class ParticleVolumeRenderer extends VolumeRendererBase {
                                   final PointObject point,
                                   final int         subpixel_level )
     {
+        this.initialize();
         setShader( new Shader.Lambert() );
 
-        this.initialize();
         this.setSubpixelLevel( subpixel_level );
         this.attachPointObject( point );
     }
@@ -46,9 +50,29 @@ public class ParticleVolumeRenderer extends VolumeRendererBase {
 
         m_timer.start();
 
-        this.create_image( point, camera, light );
+        this.create_image( point, camera, light, ViewTransform.current() );
         draw_image();
-        this.clean_particle_buffer();
+        if( !m_enable_progressive ){
+            this.clean_particle_buffer();
+        }
+
+        m_timer.stop();
+    }
+
+    @Override
+    public void render( ObjectBase object, Camera camera, Light light, ViewTransform view ) {
+        if( !m_enable_rendering ){
+            return;
+        }
+
+        PointObject point = PointObject.valueOf( object );
+
+        m_timer.start();
+
+        this.create_image( point, camera, light, view );
+        if( !m_enable_progressive ){
+            this.clean_particle_buffer();
+        }
 
         m_timer.stop();
     }
@@ -56,11 +80,36 @@ public class ParticleVolumeRenderer extends VolumeRendererBase {
     public void attachPointObject( final PointObject point )
     {
         m_ref_point = point;
+        this.reset_refinement();
     }
 
     public void setSubpixelLevel( final int subpixel_level )
     {
         m_subpixel_level = subpixel_level;
+        this.reset_refinement();
+    }
+
+    /**
+     * 段階的な描画で、操作中に使用する副画素レベルを設定します。操作中は副画素の面積に
+     * 比例して間引いた粒子を投影するため、画素あたりの不透明度はほぼ変わりません。
+     * 副画素レベル以上の値の場合は、操作中も全ての粒子を投影します。
+     *
+     * @param subpixel_level 操作中の副画素レベル
+     */
+    public void setCoarseSubpixelLevel( final int subpixel_level )
+    {
+        if( subpixel_level < 1 ){
+            throw new IllegalArgumentException( "Coarse subpixel level must be positive." );
+        }
+
+        m_coarse_subpixel_level = subpixel_level;
+        m_coarse_buffer = null;
+        this.reset_refinement();
+    }
+
+    public int coarseSubpixelLevel()
+    {
+        return( m_coarse_subpixel_level );
     }
 
     @Override
@@ -70,6 +119,9 @@ public class ParticleVolumeRenderer extends VolumeRendererBase {
         m_enable_rendering = true;
         m_subpixel_level   = 1;
         m_buffer           = null;
+        m_coarse_subpixel_level = 1;
+        m_coarse_buffer    = null;
+        m_next_particle    = 0;
     }
 
     public ParticleBuffer particleBuffer()
@@ -120,7 +172,8 @@ public class ParticleVolumeRenderer extends VolumeRendererBase {
     protected void create_image(
                                 final PointObject point,
                                 final Camera      camera,
-                                final Light       light )
+                                final Light       light,
+                                final ViewTransform view )
     {
         // Create memory region for the buffers, if the screen size is changed.
         if( ( m_width  != camera.getWindowWidth() ) ||
@@ -137,41 +190,130 @@ public class ParticleVolumeRenderer extends VolumeRendererBase {
                     m_width,
                     m_height,
                     m_subpixel_level );
+            m_coarse_buffer = null;
+            this.reset_refinement();
         }
 
         // Initialize the frame buffers.
         //BaseClass::m_color_data.fill( 0x00 );
         //BaseClass::m_depth_data.fill( 0x00 );
 
-        this.project_particle( point, camera, light );
+        if( m_enable_progressive ){
+            this.refine_image( point, camera, light, view );
+        }
+        else{
+            this.project_particle( point, camera, light, view );
+            m_is_refined = true;
+        }
+    }
+
+    /**
+     * 段階的な描画を行います。視点が変わると間引いた粒子から粗い画像を作成し、静止後は
+     * 時間の許す範囲で粒子を少しずつ投影して、全ての粒子を投影した時点で画像を置き換えます。
+     */
+    protected void refine_image(
+                                final PointObject point,
+                                final Camera      camera,
+                                final Light       light,
+                                final ViewTransform view )
+    {
+        final long start = System.nanoTime();
+
+        float[] t = new float[16];
+        view.getCombinedMatrix( t );
+
+        // Set shader initial parameters.
+        m_shader.set( camera, light );
+
+        final int coarse_level = java.lang.Math.min( m_coarse_subpixel_level, m_subpixel_level );
+        final boolean has_coarse_image = ( coarse_level < m_subpixel_level );
+
+        if( this.update_refined_view( point, view ) || m_is_interactive )
+        {
+            m_buffer.clean();
+            m_next_particle = 0;
+            m_is_refined    = false;
+
+            if( has_coarse_image )
+            {
+                if( m_coarse_buffer == null ){
+                    m_coarse_buffer = new ParticleBuffer( m_width, m_height, coarse_level );
+                }
+
+                // The particles are thinned out in proportion to the subpixel area.
+                final int stride = java.lang.Math.round(
+                        (float)( m_subpixel_level * m_subpixel_level ) / ( coarse_level * coarse_level ) );
+                this.project_particle( m_coarse_buffer, point, t, 0, stride, Long.MAX_VALUE );
+                this.create_particle_image( m_coarse_buffer, point );
+                m_coarse_buffer.clean();
+
+                if( m_is_interactive ) return;
+            }
+        }
+
+        if( m_is_refined ) return;
+
+        // Without the coarse image, every particle is projected in this frame.
+        final long deadline = has_coarse_image ? this.refinement_deadline( start ) : Long.MAX_VALUE;
+        m_next_particle = this.project_particle( m_buffer, point, t, m_next_particle, 1, deadline );
+        if( m_next_particle >= point.nvertices() )
+        {
+            this.create_particle_image( m_buffer, point );
+            m_buffer.clean();
+            m_is_refined = true;
+        }
     }
 
     protected void project_particle(
                                     final PointObject point,
                                     final Camera      camera,
-                                    final Light       light )
+                                    final Light       light,
+                                    final ViewTransform view )
     {
         float[] t = new float[16];
-        camera.getCombinedMatrix( t );
-        final int w = camera.getWindowWidth() / 2;
-        final int  h = camera.getWindowHeight() / 2;
+        view.getCombinedMatrix( t );
 
         // Set shader initial parameters.
         m_shader.set( camera, light );
 
-        // Attach the shader and the point object to the point buffer.
-        m_buffer.attachShader( m_shader );
-        m_buffer.attachPointObject( point );
+        this.project_particle( m_buffer, point, t, 0, 1, Long.MAX_VALUE );
+        this.create_particle_image( m_buffer, point );
+    }
+
+    /**
+     * begin番目からstride個ごとの粒子をバッファに投影します。
+     *
+     * @param t 射影行列とモデルビュー行列を掛けた行列
+     * @param deadline 投影を打ち切る時刻(System.nanoTime())
+     * @return 投影していない最初の粒子の番号、全て投影した場合は粒子数
+     */
+    private int project_particle(
+                                 final ParticleBuffer buffer,
+                                 final PointObject    point,
+                                 final float[]        t,
+                                 final int            begin,
+                                 final int            stride,
+                                 final long           deadline )
+    {
+        final int w = m_width / 2;
+        final int h = m_height / 2;
 
         // Aliases.
         final int       nv = point.nvertices();
         final float[] v  = point.coords().array();
 
-        int index3 = 0;
         final int bounds_width  = m_width  - 1;
         final int bounds_height = m_height - 1;
-        for( int index = 0; index < nv; index++, index3 += 3 )
+        for( int index = begin; index < nv; index += stride )
         {
+            // The time is checked for every chunk of the particles.
+            if( ( ( index - begin ) & 0xFFF ) == 0 && index != begin && System.nanoTime() >= deadline )
+            {
+                return( index );
+            }
+
+            final int index3 = 3 * index;
+
             /* Calculate the projected point position in the window coordinate system.
              * Ex.) Camera::projectObjectToWindow().
              */
@@ -194,20 +336,32 @@ public class ParticleVolumeRenderer extends VolumeRendererBase {
              {
                  if( ( p_win_x < bounds_width ) & ( p_win_y < bounds_height ) )
                  {
-                     m_buffer.add( p_win_x, p_win_y, depth, index );
+                     buffer.add( p_win_x, p_win_y, depth, index );
                  }
              }
         }
 
+        return( nv );
+    }
+
+    /**
+     * バッファに投影した粒子から画像を作成します。
+     */
+    private void create_particle_image( final ParticleBuffer buffer, final PointObject point )
+    {
+        // Attach the shader and the point object to the point buffer.
+        buffer.attachShader( m_shader );
+        buffer.attachPointObject( point );
+
         // Shading calculation.
         if( m_enable_shading ){
-            m_buffer.enableShading();
+            buffer.enableShading();
         }
         else{
-            m_buffer.disableShading();
+            buffer.disableShading();
         }
 
-        m_buffer.createImage( m_color_data.array(), m_depth_data.array() );
+        buffer.createImage( m_color_data.array(), m_depth_data.array() );
     }
 
     @Override
@@ -5,6 +5,7 @@ import java.awt.Color;
 import javax.media.opengl.GL;
 import javax.media.opengl.glu.GLU;
 
+import kvs.core.visualization.filter.PolygonSimplification;
 import kvs.core.visualization.object.ObjectBase;
 import kvs.core.visualization.object.PolygonObject;
 import kvs.core.visualization.object.PolygonObject.ColorType;
@@ -2665,10 +2666,35 @@ public class PolygonRenderer extends RendererBase {
         abstract void rendering( PolygonObject polygon );
     };
 
+    private PolygonSimplification m_levels = null; ///< levels of detail (level 0 is the rendered polygon)
+    private boolean m_is_interactive = false; ///< interaction flag (true: the view is being changed)
+
     public PolygonRenderer() {
 
     }
 
+    /**
+     * 詳細度の異なるポリゴンを設定します。描画するポリゴンがレベル0である場合、
+     * 操作中は操作中のレベルのポリゴンを描画します。
+     *
+     * @param levels 簡略化したポリゴン、使用しない場合はnull
+     */
+    public void setLevels( final PolygonSimplification levels ) {
+        m_levels = levels;
+    }
+
+    public PolygonSimplification levels() {
+        return m_levels;
+    }
+
+    public void setInteractive( final boolean interactive ) {
+        m_is_interactive = interactive;
+    }
+
+    public boolean isInteractive() {
+        return m_is_interactive;
+    }
+
     @Override
     public void exec( ObjectBase object, Camera camera, Light light ) {
         GL gl = GLU.getCurrentGL(); 
@@ -2676,6 +2702,9 @@ public class PolygonRenderer extends RendererBase {
         // kvs::IgnoreUnusedVariable( camera );
 
         PolygonObject polygon = (PolygonObject) object;
+        if ( m_levels != null && m_levels.nlevels() > 0 && m_levels.level( 0 ) == polygon ) {
+            polygon = m_levels.level( m_levels.selectLevel( m_is_interactive ) );
+        }
 
         gl.glPushAttrib( GL.GL_CURRENT_BIT | GL.GL_ENABLE_BIT );
 
@@ -0,0 +1,185 @@
+package kvs.core.visualization.renderer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import kvs.core.util.ThreadPool;
+import kvs.core.visualization.mapper.ColorMap;
+import kvs.core.visualization.mapper.OpacityMap;
+
+/**
+ * PreIntegrationTableクラスは前後のサンプルのスカラー値の組(front,back)から、その間の区間の
+ * 色と不透明度を求める事前積分テーブルです。区間内でスカラー値が線形に変化するものとして
+ * 伝達関数を積分するため、サンプリング間隔を大きくしても不透明度マップの鋭い変化を見落としません。
+ * <p>
+ * 不透明度マップの値は基準の間隔での1サンプルの不透明度とみなし、区間の長さは基準の間隔との比で与えます。
+ * 値はTransferFunction.premultipliedTable()と同じく不透明度を掛けた色(範囲[0,255])と不透明度の順です。
+ * 区間内での自己遮蔽は無視し、色は消衰係数で重み付けした平均とします。
+ */
+public final class PreIntegrationTable {
+
+    private static final float MaxOpacity = 0.999999f; ///< upper limit of the opacity to keep the extinction finite
+
+    private final ColorMap   m_color_map;   ///< color map used to build the table
+    private final OpacityMap m_opacity_map; ///< opacity map used to build the table
+    private final int[]      m_colors;      ///< color table used to build the table
+    private final float[]    m_opacities;   ///< opacity table used to build the table
+    private final float      m_ratio;       ///< segment length / reference sampling step
+    private final int        m_resolution;  ///< number of scalar values
+    private final float[]    m_table;       ///< RGBA of (front, back) at 4 * ( front * resolution + back )
+
+    /**
+     * テーブルを並列に計算します。
+     *
+     * @param color_map 色マップ
+     * @param opacity_map 不透明度マップ(基準の間隔での1サンプルの不透明度)
+     * @param ratio 区間の長さと基準の間隔の比
+     */
+    public PreIntegrationTable( final ColorMap color_map, final OpacityMap opacity_map, final float ratio )
+    {
+        if ( ratio <= 0.0f )
+        {
+            throw new IllegalArgumentException( "Segment length ratio must be positive." );
+        }
+
+        m_color_map   = color_map;
+        m_opacity_map = opacity_map;
+        m_colors      = color_map.table();
+        m_opacities   = opacity_map.table();
+        m_ratio       = ratio;
+        m_resolution  = m_opacities.length;
+        m_table       = new float[ 4 * m_resolution * m_resolution ];
+
+        this.calculate();
+    }
+
+    public int resolution()
+    {
+        return( m_resolution );
+    }
+
+    public float ratio()
+    {
+        return( m_ratio );
+    }
+
+    /**
+     * RGBAの表を返します。(front,back)の値は4*(front*resolution()+back)番目からです。
+     */
+    public float[] table()
+    {
+        return( m_table );
+    }
+
+    /**
+     * このテーブルが指定された伝達関数と区間の長さから作成されたかどうかを返します。
+     * 色マップと不透明度マップは表の配列が同じであれば同じものとみなします。
+     */
+    public boolean isCreatedFrom( final ColorMap color_map, final OpacityMap opacity_map, final float ratio )
+    {
+        return( m_color_map == color_map && m_colors == color_map.table() &&
+                m_opacity_map == opacity_map && m_opacities == opacity_map.table() &&
+                m_ratio == ratio );
+    }
+
+    private void calculate()
+    {
+        final int n = m_resolution;
+        final int ncolors = m_colors.length / 3;
+
+        // Extinction coefficients and extinction-weighted colors at the scalar values.
+        final double[] tau = new double[n];
+        final double[] tau_color = new double[ 3 * n ];
+        for ( int s = 0; s < n; s++ )
+        {
+            final double alpha = java.lang.Math.min( m_opacities[s], MaxOpacity );
+            tau[s] = -java.lang.Math.log( 1.0 - alpha );
+
+            final int c = 3 * java.lang.Math.min( s, ncolors - 1 );
+            tau_color[ 3 * s     ] = m_colors[ c     ] * tau[s];
+            tau_color[ 3 * s + 1 ] = m_colors[ c + 1 ] * tau[s];
+            tau_color[ 3 * s + 2 ] = m_colors[ c + 2 ] * tau[s];
+        }
+
+        // Integrals from 0 to s of the piecewise linear functions (trapezoidal rule).
+        final double[] tau_integral = new double[n];
+        final double[] color_integral = new double[ 3 * n ];
+        for ( int s = 1; s < n; s++ )
+        {
+            tau_integral[s] = tau_integral[ s - 1 ] + 0.5 * ( tau[ s - 1 ] + tau[s] );
+            for ( int c = 0; c < 3; c++ )
+            {
+                color_integral[ 3 * s + c ] = color_integral[ 3 * ( s - 1 ) + c ] +
+                        0.5 * ( tau_color[ 3 * ( s - 1 ) + c ] + tau_color[ 3 * s + c ] );
+            }
+        }
+
+        final int[] bounds = ThreadPool.split( n, ThreadPool.nthreads() * 4, 16 );
+        final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for ( int i = 0; i + 1 < bounds.length; i++ )
+        {
+            final int begin = bounds[i];
+            final int end   = bounds[i + 1];
+            tasks.add( new Callable<Object>()
+            {
+                public Object call()
+                {
+                    for ( int front = begin; front < end; front++ )
+                    {
+                        for ( int back = 0; back < n; back++ )
+                        {
+                            calculate_segment( front, back, tau, tau_color, tau_integral, color_integral );
+                        }
+                    }
+                    return( null );
+                }
+            } );
+        }
+        ThreadPool.invokeAll( tasks );
+    }
+
+    /**
+     * 区間(front,back)の平均の消衰係数から不透明度を、消衰係数で重み付けした平均から色を求めます。
+     */
+    private void calculate_segment(
+            final int      front,
+            final int      back,
+            final double[] tau,
+            final double[] tau_color,
+            final double[] tau_integral,
+            final double[] color_integral )
+    {
+        final int f = 3 * front;
+        final int b = 3 * back;
+        double mean_tau, mean_r, mean_g, mean_b;
+        if ( front == back )
+        {
+            mean_tau = tau[ front ];
+            mean_r   = tau_color[ f     ];
+            mean_g   = tau_color[ f + 1 ];
+            mean_b   = tau_color[ f + 2 ];
+        }
+        else
+        {
+            final double inv_length = 1.0 / ( back - front );
+            mean_tau = ( tau_integral[ back ] - tau_integral[ front ] ) * inv_length;
+            mean_r   = ( color_integral[ b     ] - color_integral[ f     ] ) * inv_length;
+            mean_g   = ( color_integral[ b + 1 ] - color_integral[ f + 1 ] ) * inv_length;
+            mean_b   = ( color_integral[ b + 2 ] - color_integral[ f + 2 ] ) * inv_length;
+        }
+
+        final int index = 4 * ( front * m_resolution + back );
+        if ( mean_tau <= 0.0 )
+        {
+            return;
+        }
+
+        final double alpha = 1.0 - java.lang.Math.exp( -m_ratio * mean_tau );
+        final double scale = alpha / mean_tau;
+        m_table[ index     ] = (float)( mean_r * scale );
+        m_table[ index + 1 ] = (float)( mean_g * scale );
+        m_table[ index + 2 ] = (float)( mean_b * scale );
+        m_table[ index + 3 ] = (float)alpha;
+    }
+}
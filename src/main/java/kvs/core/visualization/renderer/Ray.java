@@ -1,12 +1,10 @@
 package kvs.core.visualization.renderer;
 
-import javax.media.opengl.GL;
-import javax.media.opengl.glu.GLU;
-
 import kvs.core.matrix.Matrix44f;
 import kvs.core.matrix.Vector2f;
 import kvs.core.matrix.Vector3f;
 import kvs.core.matrix.Vector4f;
+import kvs.core.visualization.viewer.ViewTransform;
 
 public class Ray {
 
@@ -19,16 +17,24 @@ public class Ray {
     private Vector2f    m_constant;  ///<
 
 
+    /**
+     * 現在のOpenGLのコンテキストの行列とビューポートからレイを構築します。
+     */
     public Ray()
     {
-        GL gl = GLU.getCurrentGL();
-        double[] modelview = new double[16];
-        double[] projection = new double[16];
-        int[]    viewport = new int[4];
-
-        gl.glGetDoublev( GL.GL_MODELVIEW_MATRIX, modelview, 0 );
-        gl.glGetDoublev( GL.GL_PROJECTION_MATRIX, projection, 0 );
-        gl.glGetIntegerv( GL.GL_VIEWPORT, viewport, 0 );
+        this( ViewTransform.current() );
+    }
+
+    /**
+     * 指定された行列とビューポートからレイを構築します。OpenGLのコンテキストは不要です。
+     *
+     * @param view モデルビュー行列、射影行列、ビューポート
+     */
+    public Ray( final ViewTransform view )
+    {
+        final double[] modelview  = view.modelview();
+        final double[] projection = view.projection();
+        final int[]    viewport   = view.viewport();
 
         m_delta = new Vector2f( 2.0f / viewport[2],
                                 2.0f / viewport[3] );
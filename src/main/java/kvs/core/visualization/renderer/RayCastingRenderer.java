@@ -1,28 +1,71 @@
 package kvs.core.visualization.renderer;
-/**
- * 読み込むStructuredVolumeObjectのvalueはIntBufferのみ。
- */
-import java.awt.Color;
+
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import kvs.core.KVSException;
-import kvs.core.image.RGBColor;
+import kvs.core.matrix.Vector3f;
+import kvs.core.util.ThreadPool;
+import kvs.core.visualization.filter.GradientVolume;
 import kvs.core.visualization.filter.TrilinearInterpolator;
+import kvs.core.visualization.filter.VolumeSampler;
+import kvs.core.visualization.filter.VolumePyramid;
 import kvs.core.visualization.mapper.ColorMap;
 import kvs.core.visualization.mapper.OpacityMap;
 import kvs.core.visualization.mapper.TransferFunction;
+import kvs.core.visualization.object.MinMaxGrid;
 import kvs.core.visualization.object.ObjectBase;
 import kvs.core.visualization.object.StructuredVolumeObject;
 import kvs.core.visualization.viewer.Camera;
 import kvs.core.visualization.viewer.Light;
+import kvs.core.visualization.viewer.ViewTransform;
 
+/**
+ * RayCastingRendererクラスは構造格子ボリュームをCPUのレイキャスティングで描画するクラスです。
+ * 値はAnyValueArrayの全ての型に対応します。符号なし8ビット整数とint型の値はそのまま伝達関数の番号とし、
+ * その他の型の値はボリュームの最小値と最大値を伝達関数の範囲に対応させます(VolumeSampler.indexScale())。
+ */
 public class RayCastingRenderer extends VolumeRendererBase {
 
     private static final long serialVersionUID = 3882676668949905970L;
+
+    public static final int DefaultTileSize = 32;
+
+    /**
+     * 既定のサンプリング間隔です。不透明度マップの値はこの間隔での1サンプルの不透明度とみなし、
+     * 他の間隔では事後分類と事前積分のどちらでも不透明度を補正します。
+     */
+    public static final float DefaultSamplingStep = 0.5f;
+
+    /**
+     * 段階的な描画で、操作中にレイを投射する画素の既定の間隔です。
+     */
+    public static final int DefaultCoarseStride = 4;
+
+    /**
+     * 段階的な描画で、操作中のサンプリング間隔に掛ける既定の倍率です。
+     */
+    public static final float DefaultCoarseStepScale = 2.0f;
+
+    private static final int MaxClassifications = 4; ///< number of the cached classifications (coarse and refined passes)
+
     private float m_step;   ///< sampling step
     private float m_opaque; ///< opaque value for early ray termination
+    private VolumePyramid m_pyramid = null; ///< multi-resolution volume (level 0 is the rendered volume)
+    private int   m_level = 0;  ///< pyramid level used in the last frame
+    private int   m_tile_size;  ///< tile width and height [pixel]
+    private int   m_nthreads;   ///< number of rendering threads (0: number of the processors)
+    private int   m_coarse_stride;     ///< pixel interval of the coarse image (power of two)
+    private float m_coarse_step_scale; ///< sampling step scale of the coarse image
+    private int   m_pass_stride;       ///< pixel interval of the current refinement pass (0: refined)
+    private int   m_previous_stride;   ///< pixel interval of the previous pass (0: none)
+    private int   m_next_tile;         ///< next tile of the current refinement pass
+    private GradientVolume.Encoding m_gradient_encoding; ///< encoding of the precomputed gradients (null: not used)
+    private transient List<Classification> m_classifications; ///< cached classifications (most recently used first)
 
     public RayCastingRenderer()
     {
@@ -48,28 +91,211 @@ public class RayCastingRenderer extends VolumeRendererBase {
     public void initialize()
     {
         super.initialize();
-        m_step   = 0.5f;
+        m_step   = DefaultSamplingStep;
         m_opaque = 0.97f;
+        m_tile_size = DefaultTileSize;
+        m_nthreads  = 0;
+        m_coarse_stride     = DefaultCoarseStride;
+        m_coarse_step_scale = DefaultCoarseStepScale;
+        m_pass_stride       = 0;
+        m_previous_stride   = 0;
+        m_next_tile         = 0;
+        m_gradient_encoding = null;
+        m_classifications   = null;
         m_width  = 0;
         m_height = 0;
     }
 
+    /**
+     * 多重解像度ボリュームを設定します。描画するボリュームがピラミッドのレベル0である場合、
+     * 画面上のボクセルの大きさと操作中かどうかからレベルを選択して描画します。
+     *
+     * @param pyramid 多重解像度ボリューム、使用しない場合はnull
+     */
+    public void setPyramid( final VolumePyramid pyramid )
+    {
+        m_pyramid = pyramid;
+        this.reset_refinement();
+    }
+
+    public VolumePyramid pyramid()
+    {
+        return( m_pyramid );
+    }
+
+    /**
+     * サンプリング間隔(ボクセル単位)を設定します。
+     */
+    public void setSamplingStep( final float step )
+    {
+        if ( step <= 0.0f )
+        {
+            throw new IllegalArgumentException( "Sampling step must be positive." );
+        }
+
+        m_step = step;
+        this.reset_refinement();
+    }
+
+    public float samplingStep()
+    {
+        return( m_step );
+    }
+
+    /**
+     * 画像を分割するタイルの一辺の画素数を設定します。各スレッドはタイルを1つずつ取り出して描画します。
+     *
+     * @param tile_size タイルの一辺の画素数
+     */
+    public void setTileSize( final int tile_size )
+    {
+        if ( tile_size < 1 )
+        {
+            throw new IllegalArgumentException( "Tile size must be positive." );
+        }
+
+        m_tile_size = tile_size;
+        this.reset_refinement();
+    }
+
+    public int tileSize()
+    {
+        return( m_tile_size );
+    }
+
+    /**
+     * 描画に使用するスレッド数を設定します。0の場合はプロセッサ数です。
+     * スレッドはThreadPoolから取得するため、プロセッサ数より多くは同時に実行されません。
+     *
+     * @param nthreads スレッド数
+     */
+    public void setNumberOfThreads( final int nthreads )
+    {
+        if ( nthreads < 0 )
+        {
+            throw new IllegalArgumentException( "Number of threads must not be negative." );
+        }
+
+        m_nthreads = nthreads;
+    }
+
+    public int nthreads()
+    {
+        return( ( m_nthreads == 0 ) ? ThreadPool.nthreads() : m_nthreads );
+    }
+
+    /**
+     * 段階的な描画で、操作中にレイを投射する画素の間隔を設定します。
+     * 投射しない画素は、左下の投射した画素の値で埋めます。静止後は間隔を半分ずつにして詳細にします。
+     *
+     * @param stride 画素の間隔(2のべき乗)
+     */
+    public void setCoarseStride( final int stride )
+    {
+        if ( stride < 1 || ( stride & ( stride - 1 ) ) != 0 )
+        {
+            throw new IllegalArgumentException( "Coarse stride must be a power of two." );
+        }
+
+        m_coarse_stride = stride;
+        this.reset_refinement();
+    }
+
+    public int coarseStride()
+    {
+        return( m_coarse_stride );
+    }
+
+    /**
+     * 段階的な描画で、操作中のサンプリング間隔に掛ける倍率を設定します。
+     * 不透明度は間隔に合わせて補正します。
+     *
+     * @param scale サンプリング間隔の倍率
+     */
+    public void setCoarseStepScale( final float scale )
+    {
+        if ( scale <= 0.0f )
+        {
+            throw new IllegalArgumentException( "Coarse step scale must be positive." );
+        }
+
+        m_coarse_step_scale = scale;
+    }
+
+    public float coarseStepScale()
+    {
+        return( m_coarse_step_scale );
+    }
+
+    /**
+     * 事前に計算した勾配ボリュームを陰影付けに使用します。勾配は描画するボリューム(ピラミッドのレベル)ごとに
+     * 1度だけ計算され、サンプルごとの差分の計算が1回の補間になります。
+     *
+     * @param encoding 勾配の格納形式
+     */
+    public void enableGradientVolume( final GradientVolume.Encoding encoding )
+    {
+        if ( encoding == null )
+        {
+            throw new IllegalArgumentException( "Gradient encoding must not be null." );
+        }
+
+        m_gradient_encoding = encoding;
+        this.reset_refinement();
+    }
+
+    public void disableGradientVolume()
+    {
+        m_gradient_encoding = null;
+        this.reset_refinement();
+    }
+
+    public boolean isEnabledGradientVolume()
+    {
+        return( m_gradient_encoding != null );
+    }
+
+    public GradientVolume.Encoding gradientEncoding()
+    {
+        return( m_gradient_encoding );
+    }
+
+    /**
+     * 直前のフレームで使用したピラミッドのレベルを返します。
+     */
+    public int level()
+    {
+        return( m_level );
+    }
+
     @Override
     public void exec( ObjectBase object, Camera camera, Light light ) throws KVSException {
         final StructuredVolumeObject volume = (StructuredVolumeObject)(object);
 
         m_timer.start();
 
-        this.create_image( volume, camera, light );
+        this.create_image( volume, camera, light, ViewTransform.current() );
         this.draw_image();
 
         m_timer.stop();        
     }
 
+    @Override
+    public void render( ObjectBase object, Camera camera, Light light, ViewTransform view ) throws KVSException {
+        final StructuredVolumeObject volume = (StructuredVolumeObject)(object);
+
+        m_timer.start();
+
+        this.create_image( volume, camera, light, view );
+
+        m_timer.stop();
+    }
+
     private void create_image(
                               final StructuredVolumeObject volume,
                               final Camera                 camera,
-                              final Light                  light ) throws KVSException
+                              final Light                  light,
+                              final ViewTransform          view ) throws KVSException
     {
         if( m_width  != camera.getWindowWidth() || m_height != camera.getWindowHeight() )
         {
@@ -79,110 +305,608 @@ public class RayCastingRenderer extends VolumeRendererBase {
             final int npixels = m_width * m_height;
             m_color_data = ByteBuffer.allocate( npixels * 4 );
             m_depth_data = FloatBuffer.allocate( npixels );
+            this.reset_refinement();
         }
 
-        if( volume.values() instanceof IntBuffer ){
-            this.rasterize( volume, camera, light );
-        } else {
+        if( volume.valueArray() == null ){
             throw new KVSException( "Not supported data type" );
         }
+
+        this.rasterize( volume, camera, light, view );
     }
 
     //template <typename T> < unsigned int
     private void rasterize(
                            final StructuredVolumeObject volume,
                            final Camera                 camera,
-                           final Light                  light )
+                           final Light                  light,
+                           final ViewTransform          view )
     {
+        final long start = System.nanoTime();
+
         // Set shader initial parameters.
         m_shader.set( camera, light );
 
-        // Aliases.
-        final byte[]    pixel      = m_color_data.array();
-        for( int i = 0; i < pixel.length; i++){
-            pixel[i] = 0;
+        // Calculate the ray in the object coordinate system.
+        VolumeRayIntersector ray = new VolumeRayIntersector( volume, view );
+
+        // Select the resolution level.
+        m_level = 0;
+        if ( m_pyramid != null && m_pyramid.nlevels() > 0 && m_pyramid.level( 0 ) == volume )
+        {
+            m_level = m_pyramid.selectLevel( this.screen_voxel_size( ray ), m_is_interactive );
         }
-        final float[]   depth_data = m_depth_data.array();
-        for( int i = 0; i < depth_data.length; i++){
-            depth_data[i] = 0;
+
+        if ( !m_enable_progressive )
+        {
+            this.cast_pass( volume, view, ray, 1.0f, 1, 0, 0, Long.MAX_VALUE );
+            m_is_refined = true;
+            return;
         }
 
-        // Set the trilinear interpolator.
-        TrilinearInterpolator interpolator = new TrilinearInterpolator( volume );
+        final boolean changed = this.update_refined_view( volume, view );
+        if ( m_is_interactive )
+        {
+            // Coarse pixels with the larger step. The refinement after the interaction
+            // starts again from the coarse pixels with the usual step.
+            this.cast_pass( volume, view, ray, m_coarse_step_scale, m_coarse_stride, 0, 0, Long.MAX_VALUE );
+            this.start_refinement();
+            return;
+        }
 
-        // Calculate the ray in the object coordinate system.
-        VolumeRayIntersector ray = new VolumeRayIntersector( volume );
+        if ( changed )
+        {
+            // The image of the previous view is replaced by the coarse pixels at once.
+            this.start_refinement();
+            m_next_tile = this.cast_pass( volume, view, ray, 1.0f, m_pass_stride, 0, 0, Long.MAX_VALUE );
+            this.next_pass();
+        }
 
-        // Execute ray casting.
-        final int height = m_height;
-        final int width  = m_width;
+        // The passes halve the pixel interval, and the pixels of the previous passes are kept.
+        final long deadline = this.refinement_deadline( start );
+        while ( m_pass_stride > 0 && System.nanoTime() < deadline )
+        {
+            m_next_tile = this.cast_pass( volume, view, ray, 1.0f, m_pass_stride, m_previous_stride, m_next_tile, deadline );
+            this.next_pass();
+        }
 
-        final float step   = m_step;
-        final float opaque = m_opaque;
+        m_is_refined = ( m_pass_stride == 0 );
+    }
 
-        final ShadingType shader = m_shader;
-        final ColorMap   cmap = transferFunction().colorMap();
-        final OpacityMap omap = transferFunction().opacityMap();
+    private void start_refinement()
+    {
+        m_pass_stride     = m_coarse_stride;
+        m_previous_stride = 0;
+        m_next_tile       = 0;
+        m_is_refined      = false;
+    }
+
+    /**
+     * 現在のパスのタイルがすべて描画されていれば、次のパスに進みます。
+     */
+    private void next_pass()
+    {
+        final int ntiles = Frame.ntiles( m_width, m_height, m_tile_size );
+        if ( m_next_tile < ntiles ) return;
+
+        m_previous_stride = m_pass_stride;
+        m_pass_stride     = m_pass_stride / 2;
+        m_next_tile       = 0;
+    }
+
+    /**
+     * first_tile番目のタイルから、stride画素ごとの画素にレイを投射します。
+     * previous画素ごとの画素は前のパスで投射済みのため除きます。
+     *
+     * @param step_scale サンプリング間隔の倍率
+     * @param deadline 新しいタイルの描画を始めない時刻(System.nanoTime())
+     * @return 描画されていない最初のタイル
+     */
+    private int cast_pass(
+            final StructuredVolumeObject volume,
+            final ViewTransform          view,
+            final VolumeRayIntersector   ray,
+            final float                  step_scale,
+            final int                    stride,
+            final int                    previous,
+            final int                    first_tile,
+            final long                   deadline )
+    {
+        final StructuredVolumeObject sampled = ( m_level == 0 ) ? volume : m_pyramid.level( m_level );
+        final float scale = VolumePyramid.scale( m_level ) * step_scale;
+
+        // The opacities of the transfer function are defined for the default sampling step, and
+        // both of the post-classification and the pre-integration are corrected for the step used.
+        final float ratio = m_step * scale / DefaultSamplingStep;
+
+        final PreIntegrationTable pre_integration = m_enable_pre_integration ?
+                this.pre_integration_table( ratio ) : null;
+
+        // The values of every level are converted to the indices by the range of the rendered volume.
+        final VolumeSampler sampler = volume.sampler();
+        final float index_offset = sampler.indexOffset();
+        final float index_scale  = sampler.indexScale( transferFunction().opacityMap().resolution() );
+        final Classification classification = this.classification(
+                sampled.minMaxGrid(), ratio, index_offset, index_scale );
+        final Frame frame = new Frame(
+                sampled, m_level, m_step * scale, m_opaque, m_shader,
+                index_offset, index_scale,
+                ( m_gradient_encoding != null ) ? sampled.gradientVolume( m_gradient_encoding ) : null,
+                classification, pre_integration,
+                m_color_data.array(), m_depth_data.array(), m_width, m_height, m_tile_size,
+                stride, previous, first_tile, deadline );
+
+        // Execute ray casting. Each task has its own ray, uses the interpolator of its thread and
+        // takes the tiles one by one, so that the tasks finish together even if the costs differ.
+        final int ntasks = java.lang.Math.max( 1, java.lang.Math.min( this.nthreads(), frame.ntiles - first_tile ) );
+        final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>( ntasks );
+        for ( int i = 0; i < ntasks; i++ )
+        {
+            final VolumeRayIntersector task_ray = ( i == 0 ) ? ray : new VolumeRayIntersector( volume, view );
+            tasks.add( new Callable<Object>()
+            {
+                public Object call()
+                {
+                    // The interpolator of the sampler is taken on the thread which runs the task.
+                    frame.render( task_ray, sampled.sampler().interpolator() );
+                    return( null );
+                }
+            } );
+        }
+        ThreadPool.invokeAll( tasks );
 
-        int depth_index = 0;
-        int pixel_index = 0;
-        for ( int y = 0; y < height; ++y )
+        return( java.lang.Math.min( frame.next_tile.get(), frame.ntiles ) );
+    }
+
+    /**
+     * Frameクラスは1フレーム(段階的な描画では1つのパス)の描画で各タスクが共有する値を保持し、
+     * タイル単位でレイを投射します。stride画素ごとの画素がstride×strideのブロックを埋め、
+     * ブロックは重ならないため、各画素は1つのタスクだけが書き込みます。
+     */
+    private static final class Frame {
+
+        final StructuredVolumeObject sampled;    ///< sampled volume
+        final int              level;      ///< pyramid level
+        final float            scale;      ///< voxel size of the level
+        final float            inv_scale;  ///< 1 / scale
+        final float            max_x;      ///< last node of the level in x
+        final float            max_y;      ///< last node of the level in y
+        final float            max_z;      ///< last node of the level in z
+        final float            step;       ///< sampling step
+        final float            opaque;     ///< opaque value for early ray termination
+        final ShadingType      shader;     ///< shading method
+        final float            index_offset; ///< value subtracted from the scalar before the scaling
+        final float            index_scale;  ///< scale from the scalar to the index of the transfer function
+        final GradientVolume   gradients;  ///< precomputed gradients, or null
+        final float[]          table;      ///< premultiplied RGBA transfer function
+        final int              max_index;  ///< max index of the transfer function
+        final float[]          segments;   ///< pre-integrated RGBA of the (front, back) scalars, or null
+        final int              nscalars;   ///< number of scalars of the pre-integration table
+        final MinMaxGrid       grid;       ///< min/max values of the blocks
+        final boolean[]        empty;      ///< true if every sample in the block is transparent
+        final byte[]           pixel;      ///< color (RGBA) data
+        final float[]          depth_data; ///< depth data
+        final int              width;      ///< image width
+        final int              height;     ///< image height
+        final int              tile_size;  ///< tile width and height [pixel]
+        final int              ntiles_x;   ///< number of tiles in a row
+        final int              ntiles;     ///< number of tiles
+        final int              stride;     ///< pixel interval of the rays
+        final int              previous;   ///< pixel interval of the rays cast in the previous pass (0: none)
+        final long             deadline;   ///< time not to start the tiles after (System.nanoTime())
+        final AtomicInteger    next_tile;  ///< index of the next tile to be rendered
+
+        Frame(
+                final StructuredVolumeObject sampled,
+                final int         level,
+                final float       step,
+                final float       opaque,
+                final ShadingType shader,
+                final float       index_offset,
+                final float       index_scale,
+                final GradientVolume gradients,
+                final Classification classification,
+                final PreIntegrationTable pre_integration,
+                final byte[]      pixel,
+                final float[]     depth_data,
+                final int         width,
+                final int         height,
+                final int         tile_size,
+                final int         stride,
+                final int         previous,
+                final int         first_tile,
+                final long        deadline )
         {
-            for ( int x = 0; x < width; ++x )
+            this.sampled    = sampled;
+            this.level      = level;
+            this.scale      = VolumePyramid.scale( level );
+            this.inv_scale  = 1.0f / this.scale;
+            this.max_x      = sampled.resolution().getX() - 1;
+            this.max_y      = sampled.resolution().getY() - 1;
+            this.max_z      = sampled.resolution().getZ() - 1;
+            this.step       = step;
+            this.opaque     = opaque;
+            this.shader     = shader;
+            this.index_offset = index_offset;
+            this.index_scale  = index_scale;
+            this.gradients    = gradients;
+            this.table      = classification.table;
+            this.max_index  = table.length / 4 - 1;
+            this.segments   = ( pre_integration != null ) ? pre_integration.table() : null;
+            this.nscalars   = ( pre_integration != null ) ? pre_integration.resolution() : 0;
+            this.pixel      = pixel;
+            this.depth_data = depth_data;
+            this.width      = width;
+            this.height     = height;
+            this.tile_size  = tile_size;
+            this.ntiles_x   = ( width + tile_size - 1 ) / tile_size;
+            this.ntiles     = ntiles( width, height, tile_size );
+            this.stride     = stride;
+            this.previous   = previous;
+            this.deadline   = deadline;
+            this.next_tile  = new AtomicInteger( first_tile );
+
+            // Blocks in which every sample is transparent are skipped.
+            this.grid  = classification.grid;
+            this.empty = classification.empty;
+        }
+
+        static int ntiles( final int width, final int height, final int tile_size )
+        {
+            return( ( ( width + tile_size - 1 ) / tile_size ) * ( ( height + tile_size - 1 ) / tile_size ) );
+        }
+
+        /**
+         * 描画されていないタイルがなくなるか、期限を過ぎるまで、タイルを1つずつ取り出して描画します。
+         */
+        void render( final VolumeRayIntersector ray, final TrilinearInterpolator interpolator )
+        {
+            // Gradient at the sampling point (scratch array of this task).
+            final float[] gradient = new float[3];
+
+            int tile;
+            while ( System.nanoTime() < deadline && ( tile = next_tile.getAndIncrement() ) < ntiles )
             {
+                final int x0 = ( tile % ntiles_x ) * tile_size;
+                final int y0 = ( tile / ntiles_x ) * tile_size;
+                final int x1 = java.lang.Math.min( x0 + tile_size, width );
+                final int y1 = java.lang.Math.min( y0 + tile_size, height );
+                for ( int y = align( y0 ); y < y1; y += stride )
+                {
+                    for ( int x = align( x0 ); x < x1; x += stride )
+                    {
+                        if ( previous != 0 && x % previous == 0 && y % previous == 0 ) continue;
+
+                        this.cast( ray, interpolator, gradient, x, y );
+                        if ( stride > 1 ) this.fill_block( x, y );
+                    }
+                }
+            }
+        }
 
-                ray.setOrigin( x, y );
+        /**
+         * coord以上で最小のstrideの倍数を返します。
+         */
+        private int align( final int coord )
+        {
+            return( ( coord + stride - 1 ) / stride * stride );
+        }
 
-                // Intersection the ray with the bounding box.
-                if ( ray.isIntersected() )
+        /**
+         * 画素(x,y)の色と深度で、(x,y)から始まるstride×strideのブロックを埋めます。
+         */
+        private void fill_block( final int x, final int y )
+        {
+            final int src = x + y * width;
+            final int x1 = java.lang.Math.min( x + stride, width );
+            final int y1 = java.lang.Math.min( y + stride, height );
+            for ( int j = y; j < y1; j++ )
+            {
+                for ( int i = x; i < x1; i++ )
                 {
-                    Color color = Color.BLACK;
-                    float alpha = 0.0f;
+                    final int dst = i + j * width;
+                    if ( dst == src ) continue;
 
-                    depth_data[ depth_index ] = ray.depth();
+                    depth_data[ dst ] = depth_data[ src ];
+                    System.arraycopy( pixel, 4 * src, pixel, 4 * dst, 4 );
+                }
+            }
+        }
+
+        private void cast(
+                final VolumeRayIntersector  ray,
+                final TrilinearInterpolator interpolator,
+                final float[]               gradient,
+                final int x,
+                final int y )
+        {
+            final int depth_index = x + y * width;
+            final int pixel_index = 4 * depth_index;
+
+            ray.setOrigin( x, y );
 
-                    do //FIXME 動作が遅い
+            // Intersection the ray with the bounding box.
+            if ( ray.isIntersected() )
+            {
+                // The samples are composited in float without allocating any objects.
+                float r = 0.0f;
+                float g = 0.0f;
+                float b = 0.0f;
+                float alpha = 0.0f;
+                int   front = -1; // scalar of the previous sample for the pre-integration (-1: none)
+
+                depth_data[ depth_index ] = ray.depth();
+
+                final Vector3f from      = ray.from();
+                final Vector3f direction = ray.direction();
+                do
+                {
+                    // Sampling point (ray.point() in the coordinate system of the level).
+                    final float t = ray.t();
+                    float px = from.getX() + direction.getX() * t;
+                    float py = from.getY() + direction.getY() * t;
+                    float pz = from.getZ() + direction.getZ() * t;
+                    if ( level != 0 )
+                    {
+                        // The last coarse node may be before the last node of level 0.
+                        px = java.lang.Math.min( px * inv_scale, max_x );
+                        py = java.lang.Math.min( py * inv_scale, max_y );
+                        pz = java.lang.Math.min( pz * inv_scale, max_z );
+                    }
+
+                    // Empty space skipping. The samples are kept on the same positions and
+                    // the last sample before the block exit is evaluated as usual.
+                    float t_next = t;
+                    final int bx = grid.blockOf( (int)px, 0 );
+                    final int by = grid.blockOf( (int)py, 1 );
+                    final int bz = grid.blockOf( (int)pz, 2 );
+                    if ( empty[ grid.blockIndex( bx, by, bz ) ] )
                     {
-                        // Interpolation.
-                        interpolator.attachPoint( ray.point() );
+                        final float t_exit = block_exit( grid, bx, by, bz, ray, scale );
+                        while ( t_next + step < t_exit ) t_next += step;
 
-                        int s = (int)( interpolator.scalar() ); /// < interpolator.scalar<T>()                        
-                        s = ( s < 0 ) ? 0 : s;                  /// unsigned
-                        final float density = omap.getAt( s );
-                        if ( !kvs.core.util.Math.isZero( density ) )
+                        // The pre-integration composites the segment from the sample before the block,
+                        // and jumps after this sample. Only the segments between the samples in the
+                        // transparent block are skipped.
+                        if ( t_next != t && segments == null )
                         {
-                            // Front-to-back accumulation.
-                            final float attenuate = shader.attenuation( ( interpolator.gradient().get() ), 0 ); /// < interpolator.gradient<T>()[0]
-                            final float current_alpha = ( 1.0f - alpha ) * density;
-                            color = RGBColor.add( color, RGBColor.mul( cmap.getAt( s ), current_alpha * attenuate ) );
-                            alpha += current_alpha;
-                            if ( alpha > opaque )
-                            {
-                                alpha = opaque;
-                                break;
-                            }
+                            ray.setT( t_next );
+                            continue;
                         }
+                    }
 
-                        ray.step( step );
+                    // Interpolation.
+                    interpolator.attachPoint( px, py, pz );
 
+                    int s = (int)( ( interpolator.scalar() - index_offset ) * index_scale ); /// < interpolator.scalar<T>()
+                    s = ( s < 0 ) ? 0 : ( s > max_index ) ? max_index : s; /// unsigned
 
-                    } while ( ray.isInside() );
+                    // Post-classification uses the sample, and pre-integration uses the segment
+                    // from the previous sample. The first sample only starts a segment.
+                    final float[] rgba;
+                    final int     index;
+                    if ( segments == null )
+                    {
+                        rgba  = table;
+                        index = 4 * s;
+                    }
+                    else if ( front < 0 )
+                    {
+                        front = s;
+                        if ( t_next != t ) ray.setT( t_next ); else ray.step( step );
+                        continue;
+                    }
+                    else
+                    {
+                        rgba  = segments;
+                        index = 4 * ( front * nscalars + s );
+                        front = s;
+                    }
 
-                    // Set pixel value.
-                    pixel[ pixel_index     ] = (byte)color.getRed();
-                    pixel[ pixel_index + 1 ] = (byte)color.getGreen();
-                    pixel[ pixel_index + 2 ] = (byte)color.getBlue();
-                    pixel[ pixel_index + 3 ] = (byte)kvs.core.util.Math.round( alpha * 255.0 );
-                }
-                else
-                {
-                    depth_data[ depth_index ] = 1.0f;
-                }
+                    final float density = rgba[ index + 3 ];
+                    if ( !kvs.core.util.Math.isZero( density ) )
+                    {
+                        // Front-to-back accumulation with the premultiplied color.
+                        if ( gradients != null )
+                        {
+                            interpolator.gradient( gradients, gradient, 0 );
+                        }
+                        else
+                        {
+                            interpolator.gradient( gradient, 0 );
+                        }
+                        final float attenuate = shader.attenuation( gradient, 0 );
+                        final float weight = ( 1.0f - alpha ) * attenuate;
+                        r += rgba[ index     ] * weight;
+                        g += rgba[ index + 1 ] * weight;
+                        b += rgba[ index + 2 ] * weight;
+                        alpha += ( 1.0f - alpha ) * density;
+                        if ( alpha > opaque )
+                        {
+                            alpha = opaque;
+                            break;
+                        }
+                    }
+
+                    if ( t_next != t ) ray.setT( t_next ); else ray.step( step );
+
+                } while ( ray.isInside() );
+
+                // Set pixel value.
+                pixel[ pixel_index     ] = (byte)java.lang.Math.min( kvs.core.util.Math.round( r ), 255 );
+                pixel[ pixel_index + 1 ] = (byte)java.lang.Math.min( kvs.core.util.Math.round( g ), 255 );
+                pixel[ pixel_index + 2 ] = (byte)java.lang.Math.min( kvs.core.util.Math.round( b ), 255 );
+                pixel[ pixel_index + 3 ] = (byte)kvs.core.util.Math.round( alpha * 255.0 );
+            }
+            else
+            {
+                depth_data[ depth_index ] = 1.0f;
+
+                pixel[ pixel_index     ] = 0;
+                pixel[ pixel_index + 1 ] = 0;
+                pixel[ pixel_index + 2 ] = 0;
+                pixel[ pixel_index + 3 ] = 0;
+            }
+        }
+    }
+
+    /**
+     * 画面中央付近での、ボリュームの1ボクセルの画面上での大きさ[pixel]を求めます。
+     * ボリュームが画面中央にない場合は0を返します。
+     */
+    private float screen_voxel_size( final VolumeRayIntersector ray )
+    {
+        final int x = m_width / 2;
+        final int y = m_height / 2;
+
+        ray.setOrigin( x, y );
+        if ( !ray.isIntersected() ) return( 0.0f );
+        final Vector3f p0 = ray.point();
+
+        ray.setOrigin( x + 1, y );
+        if ( !ray.isIntersected() ) return( 0.0f );
+        final Vector3f p1 = ray.point();
+
+        final float length = (float)p1.sub( p0 ).length();
+        return( length > 0.0f ? 1.0f / length : 0.0f );
+    }
+
+    /**
+     * レイがブロック(bx,by,bz)から出るときのパラメータtを求めます。
+     */
+    private static float block_exit(
+            final MinMaxGrid grid,
+            final int bx, final int by, final int bz,
+            final Ray ray,
+            final float scale )
+    {
+        final Vector3f from      = ray.from();
+        final Vector3f direction = ray.direction();
+
+        final float tx = axis_exit( from.getX(), direction.getX(), grid.cellBegin( bx ) * scale, grid.cellEnd( bx, 0 ) * scale );
+        final float ty = axis_exit( from.getY(), direction.getY(), grid.cellBegin( by ) * scale, grid.cellEnd( by, 1 ) * scale );
+        final float tz = axis_exit( from.getZ(), direction.getZ(), grid.cellBegin( bz ) * scale, grid.cellEnd( bz, 2 ) * scale );
+
+        return( java.lang.Math.min( tx, java.lang.Math.min( ty, tz ) ) );
+    }
+
+    private static float axis_exit( final float from, final float direction, final float min, final float max )
+    {
+        if ( direction > 0.0f ) return( ( max - from ) / direction );
+        if ( direction < 0.0f ) return( ( min - from ) / direction );
+        return( Float.MAX_VALUE );
+    }
+
+    /**
+     * 現在の伝達関数での分類結果を返します。伝達関数、区間の長さ、ブロックおよび値の変換が
+     * 最近のパスと同じであれば、そのときの表を再利用します。
+     *
+     * @param grid 描画するレベルのブロックの最小値と最大値
+     * @param ratio 区間の長さと基準の間隔の比
+     * @param index_offset 値から引く数
+     * @param index_scale 値から伝達関数の番号への倍率
+     */
+    private Classification classification(
+            final MinMaxGrid grid,
+            final float      ratio,
+            final float      index_offset,
+            final float      index_scale )
+    {
+        final ColorMap   cmap = transferFunction().colorMap();
+        final OpacityMap omap = transferFunction().opacityMap();
 
-                ++depth_index;
-                pixel_index += 4;
+        if ( m_classifications == null )
+        {
+            m_classifications = new ArrayList<Classification>( MaxClassifications );
+        }
+
+        for ( int i = 0; i < m_classifications.size(); i++ )
+        {
+            final Classification c = m_classifications.get( i );
+            if ( c.isCreatedFrom( cmap, omap, ratio, grid, index_offset, index_scale ) )
+            {
+                m_classifications.add( 0, m_classifications.remove( i ) );
+                return( c );
             }
         }
+
+        final Classification c = new Classification( cmap, omap, ratio, grid, index_offset, index_scale );
+        if ( m_classifications.size() == MaxClassifications )
+        {
+            m_classifications.remove( MaxClassifications - 1 );
+        }
+        m_classifications.add( 0, c );
+
+        return( c );
+    }
+
+    /**
+     * サンプリング間隔をscale倍にしたときの不透明度補正を行った不透明度マップを返します。
+     */
+    private static OpacityMap corrected_opacity_map( final OpacityMap omap, final float scale )
+    {
+        final float[] table = omap.table();
+        final float[] corrected = new float[table.length];
+        for ( int i = 0; i < table.length; i++ )
+        {
+            corrected[i] = 1.0f - (float)java.lang.Math.pow( 1.0f - table[i], scale );
+        }
+
+        return( new OpacityMap( corrected ) );
+    }
+
+    /**
+     * Classificationクラスは伝達関数から求めた、1つのパスで使う表とブロックの透明度です。
+     * 色マップと不透明度マップは、PreIntegrationTableと同じく表の配列が同じであれば同じものとみなします。
+     */
+    private static final class Classification
+    {
+        final ColorMap   color_map;   ///< color map used to build the tables
+        final int[]      colors;      ///< color table used to build the tables
+        final OpacityMap opacity_map; ///< opacity map (for the reference step) used to build the tables
+        final float[]    opacities;   ///< opacity table used to build the tables
+        final float      ratio;       ///< sampling step / reference sampling step
+        final MinMaxGrid grid;        ///< min/max values of the blocks
+        final float      index_offset; ///< value subtracted from the scalar before the scaling
+        final float      index_scale;  ///< scale from the scalar to the index of the transfer function
+        final float[]    table;       ///< premultiplied RGBA transfer function corrected for the step
+        final boolean[]  empty;       ///< true if every sample in the block is transparent
+
+        Classification(
+                final ColorMap   cmap,
+                final OpacityMap omap,
+                final float      ratio,
+                final MinMaxGrid grid,
+                final float      index_offset,
+                final float      index_scale )
+        {
+            this.color_map    = cmap;
+            this.colors       = cmap.table();
+            this.opacity_map  = omap;
+            this.opacities    = omap.table();
+            this.ratio        = ratio;
+            this.grid         = grid;
+            this.index_offset = index_offset;
+            this.index_scale  = index_scale;
+
+            final OpacityMap corrected = ( ratio == 1.0f ) ? omap : corrected_opacity_map( omap, ratio );
+            this.table = TransferFunction.premultipliedTable( cmap, corrected );
+            this.empty = grid.transparentBlocks( corrected, index_offset, index_scale );
+        }
+
+        boolean isCreatedFrom(
+                final ColorMap   cmap,
+                final OpacityMap omap,
+                final float      ratio,
+                final MinMaxGrid grid,
+                final float      index_offset,
+                final float      index_scale )
+        {
+            return( this.color_map == cmap && this.colors == cmap.table() &&
+                    this.opacity_map == omap && this.opacities == omap.table() &&
+                    this.ratio == ratio && this.grid == grid &&
+                    this.index_offset == index_offset && this.index_scale == index_scale );
+        }
     }
 
     @Override
@@ -13,6 +13,33 @@ public abstract class Shader implements ShadingType {
 
     @Override
     public abstract float attenuation( final float[] gradient, final int offset );
+
+    /**
+     * 勾配を正規化する係数(Vector3f.normalize()と同じ値)を返します。
+     * 勾配が0ベクトルの場合は0を返し、陰影は環境光のみになります(NaNになりません)。
+     */
+    protected static float normalize_factor( final float[] gradient, final int offset )
+    {
+        final double x = gradient[ offset     ];
+        final double y = gradient[ offset + 1 ];
+        final double z = gradient[ offset + 2 ];
+        final double length2 = x * x + y * y + z * z;
+        if ( length2 == 0.0 ) return( 0.0f );
+
+        return( (float)( 1.0 / kvs.core.util.Math.squareRoot( length2 ) ) );
+    }
+
+    /**
+     * ベクトル(x,y,z)とvの内積(Vector3f.dot()と同じ順序で計算)を返します。
+     */
+    protected static float dot( final float x, final float y, final float z, final Vector3f v )
+    {
+        float result = 0.0f;
+        result += x * v.getX();
+        result += y * v.getY();
+        result += z * v.getZ();
+        return( result );
+    }
     
     public static class Lambert extends Shader {
 
@@ -45,11 +72,15 @@ public abstract class Shader implements ShadingType {
         
         @Override
         public float attenuation( final float[] gradient, final int offset ) {
-         // Normal vector.
-            final Vector3f N = new Vector3f( gradient, offset ).normalize();
+            // Normal vector. The components are kept in the local variables so that
+            // the shading of each sample does not allocate any objects.
+            final float n = normalize_factor( gradient, offset );
+            final float nx = gradient[ offset     ] * n;
+            final float ny = gradient[ offset + 1 ] * n;
+            final float nz = gradient[ offset + 2 ] * n;
 
             //const float dd = kvs::Math::Max( N.dot( L ), 0.0 );
-            final float dd = kvs.core.util.Math.abs( N.dot( L ) );
+            final float dd = kvs.core.util.Math.abs( dot( nx, ny, nz, L ) );
 
             /* I = Ia + Id
              *
@@ -105,14 +136,20 @@ public abstract class Shader implements ShadingType {
 
         @Override
         public float attenuation( final float[] gradient, final int offset ) {
-         // Normal vector N and reflection vector R.
-            final Vector3f N = new Vector3f( gradient, offset ).normalize();
-            final Vector3f R = N.mul(2.0f * N.dot( L )).sub( L );
+            // Normal vector N and reflection vector R.
+            final float n = normalize_factor( gradient, offset );
+            final float nx = gradient[ offset     ] * n;
+            final float ny = gradient[ offset + 1 ] * n;
+            final float nz = gradient[ offset + 2 ] * n;
+            final float nl = 2.0f * dot( nx, ny, nz, L );
+            final float rx = nx * nl - L.getX();
+            final float ry = ny * nl - L.getY();
+            final float rz = nz * nl - L.getZ();
 
             //const float dd = Math::Max( N.dot( L ), 0.0f );
             //const float ds = Math::Max( N.dot( R ), 0.0f );
-            final float dd = kvs.core.util.Math.abs( N.dot( L ) );
-            final float ds = kvs.core.util.Math.abs( N.dot( R ) );
+            final float dd = kvs.core.util.Math.abs( dot( nx, ny, nz, L ) );
+            final float ds = kvs.core.util.Math.abs( nx * rx + ny * ry + nz * rz );
 
             /* I = Ia + Id + Is
              *
@@ -165,13 +202,16 @@ public abstract class Shader implements ShadingType {
 
         @Override
         public float attenuation( float[] gradient , int offset ) {
-         // Normal vector.
-            final Vector3f N = new Vector3f( gradient, offset ).normalize();
+            // Normal vector.
+            final float n = normalize_factor( gradient, offset );
+            final float nx = gradient[ offset     ] * n;
+            final float ny = gradient[ offset + 1 ] * n;
+            final float nz = gradient[ offset + 2 ] * n;
 
             //const float dd = kvs::Math::Max( N.dot( L ), 0.0 );
             //const float ds = kvs::Math::Max( N.dot( H ), 0.0 );
-            final float dd = kvs.core.util.Math.abs( N.dot( L ) );
-            final float ds = kvs.core.util.Math.abs( N.dot( H ) );
+            final float dd = kvs.core.util.Math.abs( dot( nx, ny, nz, L ) );
+            final float ds = kvs.core.util.Math.abs( dot( nx, ny, nz, H ) );
 
             /* I = Ia + Id + Is
              *
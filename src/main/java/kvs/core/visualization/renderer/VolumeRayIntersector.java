@@ -2,6 +2,7 @@ package kvs.core.visualization.renderer;
 
 import kvs.core.matrix.Vector3f;
 import kvs.core.visualization.object.VolumeObjectBase;
+import kvs.core.visualization.viewer.ViewTransform;
 
 public class VolumeRayIntersector extends Ray {
 
@@ -10,7 +11,15 @@ public class VolumeRayIntersector extends Ray {
 
     public VolumeRayIntersector( final VolumeObjectBase volume )
     {
-        super();
+        this( volume, ViewTransform.current() );
+    }
+
+    /**
+     * 指定された行列とビューポートからレイを構築します。OpenGLのコンテキストは不要です。
+     */
+    public VolumeRayIntersector( final VolumeObjectBase volume, final ViewTransform view )
+    {
+        super( view );
         //m_reference_volume = volume;
         final Vector3f min = new Vector3f(
                                 volume.minExternalCoord().getX() + 1e-3f,
@@ -45,13 +54,19 @@ public class VolumeRayIntersector extends Ray {
     
     public boolean isInside()
     {
-        final Vector3f point = this.point();
+        // Same as this.point(), but without allocating the vectors.
+        final float t = this.t();
+        final Vector3f from      = this.from();
+        final Vector3f direction = this.direction();
+        final float x = from.getX() + direction.getX() * t;
+        final float y = from.getY() + direction.getY() * t;
+        final float z = from.getZ() + direction.getZ() * t;
 
-        if ( m_vertex[0].getZ() < point.getZ() && point.getZ() < m_vertex[6].getZ() )
+        if ( m_vertex[0].getZ() < z && z < m_vertex[6].getZ() )
         {
-            if ( m_vertex[0].getY() < point.getY() && point.getY() < m_vertex[6].getY() )
+            if ( m_vertex[0].getY() < y && y < m_vertex[6].getY() )
             {
-                if ( m_vertex[0].getX() < point.getX() && point.getX() < m_vertex[6].getX() )
+                if ( m_vertex[0].getX() < x && x < m_vertex[6].getX() )
                 {
                     return( true );
                 }
@@ -6,12 +6,25 @@ import java.nio.FloatBuffer;
 import javax.media.opengl.GL;
 import javax.media.opengl.glu.GLU;
 
+import kvs.core.KVSException;
+import kvs.core.visualization.mapper.ColorMap;
+import kvs.core.visualization.mapper.OpacityMap;
 import kvs.core.visualization.mapper.TransferFunction;
+import kvs.core.visualization.object.ObjectBase;
+import kvs.core.visualization.viewer.Camera;
 import kvs.core.visualization.viewer.FrameBuffer;
+import kvs.core.visualization.viewer.Light;
+import kvs.core.visualization.viewer.ViewTransform;
 
 public abstract class VolumeRendererBase extends RendererBase {
     
     private static final long serialVersionUID = -7475342475051025737L;
+
+    /**
+     * 段階的な描画で、静止後の1フレームに使用する既定の時間[msec]です。
+     */
+    public static final float DefaultTimeBudget = 30.0f;
+
     protected int                   m_width;          ///< width of rendering image
     protected int                   m_height;         ///< height of rendering image
     protected FrameBuffer           m_depth_buffer;   ///< depth buffer
@@ -21,6 +34,14 @@ public abstract class VolumeRendererBase extends RendererBase {
     protected boolean               m_enable_shading; ///< shading flag
     protected TransferFunction      m_tfunc = new TransferFunction();          ///< transfer function
     protected ShadingType           m_shader;         ///< shading method
+    protected boolean               m_is_interactive; ///< interaction flag (true: the view is being changed)
+    protected boolean               m_enable_pre_integration; ///< pre-integration flag
+    private transient PreIntegrationTable m_pre_integration_table; ///< cached pre-integration table
+    protected boolean               m_enable_progressive; ///< progressive rendering flag
+    protected float                 m_time_budget;    ///< time for the refinement in a frame [msec]
+    protected boolean               m_is_refined;     ///< true if the image has been rendered at full quality
+    private transient ObjectBase    m_refined_object; ///< object of the refined (or refining) image
+    private transient ViewTransform m_refined_view;   ///< view of the refined (or refining) image
     
     public VolumeRendererBase()
     {
@@ -30,16 +51,19 @@ public abstract class VolumeRendererBase extends RendererBase {
     public void setTransferFunction( final TransferFunction tfunc )
     {
         m_tfunc = tfunc;
+        this.reset_refinement();
     }
     
     public void enableShading()
     {
         m_enable_shading = true;
+        this.reset_refinement();
     }
     
     public void disableShading()
     {
         m_enable_shading = false;
+        this.reset_refinement();
     }
     
     public boolean isEnabledShading()
@@ -47,6 +71,181 @@ public abstract class VolumeRendererBase extends RendererBase {
         return( m_enable_shading );
     }
     
+    /**
+     * 視点が操作中かどうかを設定します。操作中は粗い解像度で描画するレンダラがあります。
+     */
+    public void setInteractive( final boolean interactive )
+    {
+        m_is_interactive = interactive;
+    }
+    
+    public boolean isInteractive()
+    {
+        return( m_is_interactive );
+    }
+    
+    /**
+     * OpenGLを使わずに画像を作成します。作成した画像はcolorData()とdepthData()で取得できます。
+     *
+     * @param object 描画するオブジェクト
+     * @param camera カメラ(ウィンドウサイズを画像の大きさとします)
+     * @param light 光源
+     * @param view オブジェクトの座標系からの変換
+     * @throws KVSException 描画できないオブジェクトの場合
+     */
+    public abstract void render( ObjectBase object, Camera camera, Light light, ViewTransform view ) throws KVSException;
+
+    /**
+     * 直前に作成した画像の色(RGBA、下の行から順)を返します。
+     */
+    public final ByteBuffer colorData()
+    {
+        return( m_color_data );
+    }
+
+    /**
+     * 直前に作成した画像の深度([0,1]、下の行から順)を返します。
+     */
+    public final FloatBuffer depthData()
+    {
+        return( m_depth_data );
+    }
+
+    public final int width()
+    {
+        return( m_width );
+    }
+
+    public final int height()
+    {
+        return( m_height );
+    }
+    
+    /**
+     * 事前積分を有効にします。サンプル間の区間の色と不透明度を事前積分テーブルから求めるため、
+     * 大きいサンプリング間隔でも不透明度マップの鋭い変化が失われません。
+     */
+    public void enablePreIntegration()
+    {
+        m_enable_pre_integration = true;
+        this.reset_refinement();
+    }
+
+    public void disablePreIntegration()
+    {
+        m_enable_pre_integration = false;
+        this.reset_refinement();
+    }
+
+    public boolean isEnabledPreIntegration()
+    {
+        return( m_enable_pre_integration );
+    }
+
+    /**
+     * 段階的な描画を有効にします。視点の操作中は粗く描画し、静止すると以降のフレームで
+     * 時間の許す範囲で少しずつ画像を詳細にして、最終的に通常と同じ画像にします。
+     */
+    public void enableProgressiveRendering()
+    {
+        m_enable_progressive = true;
+        this.reset_refinement();
+    }
+
+    public void disableProgressiveRendering()
+    {
+        m_enable_progressive = false;
+        this.reset_refinement();
+    }
+
+    public boolean isEnabledProgressiveRendering()
+    {
+        return( m_enable_progressive );
+    }
+
+    /**
+     * 段階的な描画で、静止後の1フレームに画像を詳細にするために使用する時間を設定します。
+     * 視点が変わった直後の粗い画像は、この時間を超えても作成します。
+     *
+     * @param msec 1フレームの時間[msec]
+     */
+    public void setTimeBudget( final float msec )
+    {
+        if ( msec <= 0.0f )
+        {
+            throw new IllegalArgumentException( "Time budget must be positive." );
+        }
+
+        m_time_budget = msec;
+    }
+
+    public float timeBudget()
+    {
+        return( m_time_budget );
+    }
+
+    /**
+     * 直前に作成した画像が通常と同じ品質であればtrueを返します。
+     * 段階的な描画が無効な場合は常にtrueです。
+     */
+    public boolean isRefined()
+    {
+        return( m_is_refined );
+    }
+
+    /**
+     * 段階的な描画で、描画するオブジェクトか視点が前のフレームから変わったかどうかを返し、
+     * 今回のオブジェクトと視点を記録します。reset_refinement()の後は常にtrueを返します。
+     */
+    protected final boolean update_refined_view( final ObjectBase object, final ViewTransform view )
+    {
+        if ( object == m_refined_object && view.equals( m_refined_view ) )
+        {
+            return( false );
+        }
+
+        m_refined_object = object;
+        m_refined_view   = new ViewTransform( view );
+        return( true );
+    }
+
+    /**
+     * 描画の設定が変わったため、段階的な描画を次のフレームで最初からやり直します。
+     */
+    protected final void reset_refinement()
+    {
+        m_refined_object = null;
+        m_refined_view   = null;
+    }
+
+    /**
+     * 段階的な描画で、今回のフレームで画像を詳細にする処理を打ち切る時刻(System.nanoTime())を返します。
+     *
+     * @param start フレームの開始時刻(System.nanoTime())
+     */
+    protected final long refinement_deadline( final long start )
+    {
+        return( start + (long)( m_time_budget * 1.0e6f ) );
+    }
+
+    /**
+     * 現在の伝達関数と区間の長さの事前積分テーブルを返します。
+     * テーブルは伝達関数または区間の長さが変わった場合にのみ作成し直します。
+     *
+     * @param ratio 区間の長さと、不透明度マップが定義されたサンプリング間隔の比
+     */
+    protected final PreIntegrationTable pre_integration_table( final float ratio )
+    {
+        final ColorMap   cmap = m_tfunc.colorMap();
+        final OpacityMap omap = m_tfunc.opacityMap();
+        if ( m_pre_integration_table == null || !m_pre_integration_table.isCreatedFrom( cmap, omap, ratio ) )
+        {
+            m_pre_integration_table = new PreIntegrationTable( cmap, omap, ratio );
+        }
+
+        return( m_pre_integration_table );
+    }
+    
     public final TransferFunction transferFunction()
     {
         return( m_tfunc );
@@ -55,6 +254,14 @@ public abstract class VolumeRendererBase extends RendererBase {
     public void initialize()
     {
         m_enable_shading = true;
+        m_is_interactive = false;
+        m_enable_pre_integration = false;
+        m_pre_integration_table = null;
+        m_enable_progressive = false;
+        m_time_budget = DefaultTimeBudget;
+        m_is_refined = true;
+        m_refined_object = null;
+        m_refined_view = null;
         m_shader = null;
 
         m_depth_buffer = new FrameBuffer();
@@ -123,6 +330,7 @@ public abstract class VolumeRendererBase extends RendererBase {
     protected final void setShader( final ShadingType shader )
     {
         m_shader = shader;
+        this.reset_refinement();
 
     };
     
@@ -35,6 +35,7 @@ public class Mouse extends Trackball{
     protected boolean       m_is_auto;      ///< auto flag (true: if auto mode)
     protected boolean       m_is_slow;      ///< slow flag (true: if slow mode)
     protected boolean       m_is_use_auto;  ///< auto use flag (true: if user use auto mode )
+    protected boolean       m_is_pressed;   ///< press flag (true: while a button is pressed)
     
     public Mouse(){
         this.reset();
@@ -59,6 +60,7 @@ public class Mouse extends Trackball{
         m_stop = Vector2i.ZERO;
         m_is_auto = false;
         m_is_slow = false;
+        m_is_pressed = false;
     }
     
     public void press( final int x, final int y )
@@ -70,6 +72,7 @@ public class Mouse extends Trackball{
         m_timer.start();
         m_is_auto = false;
         m_is_slow = false;
+        m_is_pressed = true;
     }
     
     public void move( final int x, final int y )
@@ -122,6 +125,7 @@ public class Mouse extends Trackball{
     {
         m_timer.stop();
         m_stop = new Vector2i( x, y );
+        m_is_pressed = false;
 
         final double threshould_time    = 500.0;
         final double tolerance_auto_len = 2.0;
@@ -391,4 +395,33 @@ public class Mouse extends Trackball{
         return( m_is_slow );
     }
 
+    public boolean isPressed()
+    {
+        return( m_is_pressed );
+    }
+
+    /**
+     * ボタンが押されている間、または自動回転などで視点が動き続けている間trueを返します。
+     * ボリュームレンダラはこの間、粗い解像度で描画します。
+     */
+    public boolean isInteracting()
+    {
+        if( m_is_pressed ) return( true );
+        if( !( m_is_use_auto && m_is_auto ) ) return( false );
+
+        switch( m_mode )
+        {
+        case Rotation:
+            return( java.lang.Math.abs( m_rot.getX() ) > 1.0e-5f ||
+                    java.lang.Math.abs( m_rot.getY() ) > 1.0e-5f ||
+                    java.lang.Math.abs( m_rot.getZ() ) > 1.0e-5f );
+        case Translation:
+            return( m_trans.length() > 0.0f );
+        case Scaling:
+            return( m_scale.getX() != 1.0f || m_scale.getY() != 1.0f || m_scale.getZ() != 1.0f );
+        default:
+            return( false );
+        }
+    }
+
 }
@@ -17,7 +17,9 @@ import kvs.core.matrix.Vector2f;
 import kvs.core.matrix.Vector3f;
 import kvs.core.util.IntPair;
 import kvs.core.visualization.object.ObjectBase;
+import kvs.core.visualization.renderer.PolygonRenderer;
 import kvs.core.visualization.renderer.RendererBase;
+import kvs.core.visualization.renderer.VolumeRendererBase;
 
 public abstract class ScreenCore {
     
@@ -256,6 +258,15 @@ public abstract class ScreenCore {
 
                     if( o.isShown() )
                     {
+                        if( r instanceof VolumeRendererBase )
+                        {
+                            ((VolumeRendererBase)r).setInteractive( GlobalCore.mouse.isInteracting() );
+                        }
+                        else if( r instanceof PolygonRenderer )
+                        {
+                            ((PolygonRenderer)r).setInteractive( GlobalCore.mouse.isInteracting() );
+                        }
+
                         gl.glPushMatrix();
                         o.transform( om.objectCenter(), om.normalize() );
                         r.exec( o, c, l );
@@ -0,0 +1,286 @@
+package kvs.core.visualization.viewer;
+
+import java.util.Arrays;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.glu.GLU;
+
+import kvs.core.matrix.Vector3f;
+
+/**
+ * ViewTransformクラスはモデルビュー行列、射影行列、ビューポートの組を保持するクラスです。
+ * OpenGLのコンテキストから取得するほか、CameraとXformの値からOpenGLを使わずに構築できるため、
+ * CPUで描画するボリュームレンダラをOpenGLのない環境で使用できます。
+ * 行列はOpenGLと同じ列優先の配列で、モデルビュー行列の変更はOpenGLの行列操作と同じく右から掛けます。
+ */
+public class ViewTransform {
+
+    private final double[] m_modelview  = new double[16]; ///< modelview matrix
+    private final double[] m_projection = new double[16]; ///< projection matrix
+    private final int[]    m_viewport   = new int[4];     ///< viewport (x, y, width, height)
+
+    /**
+     * 行列とビューポートをコピーして構築します。
+     */
+    public ViewTransform( final double[] modelview, final double[] projection, final int[] viewport )
+    {
+        System.arraycopy( modelview, 0, m_modelview, 0, 16 );
+        System.arraycopy( projection, 0, m_projection, 0, 16 );
+        System.arraycopy( viewport, 0, m_viewport, 0, 4 );
+    }
+
+    /**
+     * 他のViewTransformをコピーして構築します。
+     */
+    public ViewTransform( final ViewTransform other )
+    {
+        this( other.m_modelview, other.m_projection, other.m_viewport );
+    }
+
+    /**
+     * カメラの射影方法、視点、ウィンドウサイズから構築します。Camera.update()でOpenGLに設定される行列と同じです。
+     * 描画するオブジェクトの変換はmultMatrix()などで追加します。
+     *
+     * @param camera カメラ
+     */
+    public ViewTransform( final Camera camera )
+    {
+        final int width  = camera.getWindowWidth();
+        final int height = camera.getWindowHeight();
+        m_viewport[2] = width;
+        m_viewport[3] = height;
+
+        final double aspect = (double)width / (double)height;
+        if ( camera.isPerspective() )
+        {
+            set_perspective( camera.getFieldOfView(), aspect, camera.getFront(), camera.getBack() );
+        }
+        else if ( aspect >= 1.0 )
+        {
+            set_orthogonal( camera.getLeft() * aspect, camera.getRight() * aspect,
+                            camera.getBottom(), camera.getTop(),
+                            camera.getFront(), camera.getBack() );
+        }
+        else
+        {
+            set_orthogonal( camera.getLeft(), camera.getRight(),
+                            camera.getBottom() / aspect, camera.getTop() / aspect,
+                            camera.getFront(), camera.getBack() );
+        }
+
+        set_look_at( camera.getPosition(), camera.getLookAt(), camera.getUpVector() );
+    }
+
+    /**
+     * 現在のOpenGLのコンテキストから行列とビューポートを取得します。
+     */
+    public static ViewTransform current()
+    {
+        GL gl = GLU.getCurrentGL();
+        double[] modelview  = new double[16];
+        double[] projection = new double[16];
+        int[]    viewport   = new int[4];
+
+        gl.glGetDoublev( GL.GL_MODELVIEW_MATRIX, modelview, 0 );
+        gl.glGetDoublev( GL.GL_PROJECTION_MATRIX, projection, 0 );
+        gl.glGetIntegerv( GL.GL_VIEWPORT, viewport, 0 );
+
+        return( new ViewTransform( modelview, projection, viewport ) );
+    }
+
+    public final double[] modelview()
+    {
+        return( m_modelview.clone() );
+    }
+
+    public final double[] projection()
+    {
+        return( m_projection.clone() );
+    }
+
+    public final int[] viewport()
+    {
+        return( m_viewport.clone() );
+    }
+
+    public final boolean isPerspective()
+    {
+        return( m_projection[15] == 0.0 );
+    }
+
+    /**
+     * モデルビュー行列に列優先の行列を右から掛けます(glMultMatrixf)。
+     */
+    public void multMatrix( final float[] matrix )
+    {
+        final double[] m = m_modelview;
+        for ( int row = 0; row < 4; row++ )
+        {
+            final double m0 = m[row], m1 = m[row + 4], m2 = m[row + 8], m3 = m[row + 12];
+            for ( int col = 0; col < 4; col++ )
+            {
+                m[row + 4 * col] =
+                    m0 * matrix[4 * col] + m1 * matrix[4 * col + 1] +
+                    m2 * matrix[4 * col + 2] + m3 * matrix[4 * col + 3];
+            }
+        }
+    }
+
+    /**
+     * モデルビュー行列に平行移動を右から掛けます(glTranslatef)。
+     */
+    public void translate( final float x, final float y, final float z )
+    {
+        final double[] m = m_modelview;
+        for ( int row = 0; row < 4; row++ )
+        {
+            m[row + 12] += m[row] * x + m[row + 4] * y + m[row + 8] * z;
+        }
+    }
+
+    /**
+     * モデルビュー行列に拡大縮小を右から掛けます(glScalef)。
+     */
+    public void scale( final float x, final float y, final float z )
+    {
+        final double[] m = m_modelview;
+        for ( int row = 0; row < 4; row++ )
+        {
+            m[row]     *= x;
+            m[row + 4] *= y;
+            m[row + 8] *= z;
+        }
+    }
+
+    /**
+     * 射影行列とモデルビュー行列を掛けた行列(列優先)を求めます。
+     * Camera.getCombinedMatrix()と同じく、左右と上下が対称な視体積を仮定します。
+     *
+     * @param combined 結果を格納する16個の配列
+     */
+    public void getCombinedMatrix( final float[] combined )
+    {
+        final double[] p = m_projection;
+        final double[] m = m_modelview;
+
+        // Row 1
+        combined[ 0] = (float)( p[0] * m[ 0] );
+        combined[ 4] = (float)( p[0] * m[ 4] );
+        combined[ 8] = (float)( p[0] * m[ 8] );
+        combined[12] = (float)( p[0] * m[12] );
+
+        // Row 2
+        combined[ 1] = (float)( p[5] * m[ 1] );
+        combined[ 5] = (float)( p[5] * m[ 5] );
+        combined[ 9] = (float)( p[5] * m[ 9] );
+        combined[13] = (float)( p[5] * m[13] );
+
+        // Row 3
+        combined[ 2] = (float)( p[10] * m[ 2] );
+        combined[ 6] = (float)( p[10] * m[ 6] );
+        combined[10] = (float)( p[10] * m[10] );
+        combined[14] = (float)( p[10] * m[14] + p[14] );
+
+        // Row 4
+        if ( this.isPerspective() )
+        {
+            combined[ 3] = (float)( -m[ 2] );
+            combined[ 7] = (float)( -m[ 6] );
+            combined[11] = (float)( -m[10] );
+            combined[15] = (float)( -m[14] );
+        }
+        else
+        {
+            combined[ 3] = 0.0f;
+            combined[ 7] = 0.0f;
+            combined[11] = 0.0f;
+            combined[15] = 1.0f;
+        }
+    }
+
+    /**
+     * 行列とビューポートがすべて等しい場合にtrueを返します。
+     */
+    @Override
+    public boolean equals( Object obj ){
+        if( obj == this ){
+            return true;
+        }
+
+        if( !(obj instanceof ViewTransform) ){
+            return false;
+        }
+
+        ViewTransform other = (ViewTransform)obj;
+
+        return( Arrays.equals( this.m_modelview, other.m_modelview ) &&
+                Arrays.equals( this.m_projection, other.m_projection ) &&
+                Arrays.equals( this.m_viewport, other.m_viewport ) );
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 31 * hash + Arrays.hashCode( this.m_modelview );
+        hash = 31 * hash + Arrays.hashCode( this.m_projection );
+        hash = 31 * hash + Arrays.hashCode( this.m_viewport );
+        return hash;
+    }
+
+    // gluPerspective
+    private void set_perspective( final double fovy, final double aspect, final double near, final double far )
+    {
+        final double f = 1.0 / java.lang.Math.tan( java.lang.Math.toRadians( fovy ) * 0.5 );
+        m_projection[ 0] = f / aspect;
+        m_projection[ 5] = f;
+        m_projection[10] = ( far + near ) / ( near - far );
+        m_projection[11] = -1.0;
+        m_projection[14] = 2.0 * far * near / ( near - far );
+        m_projection[15] = 0.0;
+    }
+
+    // glOrtho
+    private void set_orthogonal(
+            final double left, final double right,
+            final double bottom, final double top,
+            final double near, final double far )
+    {
+        m_projection[ 0] = 2.0 / ( right - left );
+        m_projection[ 5] = 2.0 / ( top - bottom );
+        m_projection[10] = -2.0 / ( far - near );
+        m_projection[12] = -( right + left ) / ( right - left );
+        m_projection[13] = -( top + bottom ) / ( top - bottom );
+        m_projection[14] = -( far + near ) / ( far - near );
+        m_projection[15] = 1.0;
+    }
+
+    // gluLookAt
+    private void set_look_at( final Vector3f eye, final Vector3f center, final Vector3f up )
+    {
+        double fx = center.getX() - eye.getX();
+        double fy = center.getY() - eye.getY();
+        double fz = center.getZ() - eye.getZ();
+        final double f_norm = java.lang.Math.sqrt( fx * fx + fy * fy + fz * fz );
+        fx /= f_norm; fy /= f_norm; fz /= f_norm;
+
+        // s = f x up, u = s x f
+        double sx = fy * up.getZ() - fz * up.getY();
+        double sy = fz * up.getX() - fx * up.getZ();
+        double sz = fx * up.getY() - fy * up.getX();
+        final double s_norm = java.lang.Math.sqrt( sx * sx + sy * sy + sz * sz );
+        sx /= s_norm; sy /= s_norm; sz /= s_norm;
+
+        final double ux = sy * fz - sz * fy;
+        final double uy = sz * fx - sx * fz;
+        final double uz = sx * fy - sy * fx;
+
+        final double[] m = m_modelview;
+        m[0] =  sx; m[4] =  sy; m[ 8] =  sz;
+        m[1] =  ux; m[5] =  uy; m[ 9] =  uz;
+        m[2] = -fx; m[6] = -fy; m[10] = -fz;
+        m[3] = 0.0; m[7] = 0.0; m[11] = 0.0; m[15] = 1.0;
+        m[12] = -( sx * eye.getX() + sy * eye.getY() + sz * eye.getZ() );
+        m[13] = -( ux * eye.getX() + uy * eye.getY() + uz * eye.getZ() );
+        m[14] =  ( fx * eye.getX() + fy * eye.getY() + fz * eye.getZ() );
+    }
+}